@@ -0,0 +1,32 @@
+package com.lightrail.helpers;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CurrencyBenchmark {
+
+    @Param({"USD", "JPY"})
+    public String currency;
+
+    public float majorValue = 12.34f;
+    public int minorValue = 1234;
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public int majorToMinor() {
+        return Currency.majorToMinor(majorValue, currency);
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public float minorToMajor() {
+        return Currency.minorToMajor(minorValue, currency);
+    }
+}
@@ -0,0 +1,78 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.emulator.LightrailStripeEmulator;
+import com.lightrail.exceptions.*;
+import com.lightrail.model.Lightrail;
+import com.stripe.Stripe;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link StripeLightrailSplitTenderCharge#simulate} and {@link StripeLightrailSplitTenderCharge#create} against the
+ * {@link LightrailStripeEmulator}, for an order paid by Stripe only and for one split between a gift card and Stripe.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SplitTenderBenchmark {
+    private static final int ORDER_TOTAL = 1500;
+    private static final int GIFT_CARD_SHARE = 1000;
+
+    private LightrailStripeEmulator emulator;
+    private String giftCardId;
+    private SplitTenderChargeRequest stripeOnlyRequest;
+    private SplitTenderChargeRequest splitRequest;
+
+    @Setup
+    public void setUp() {
+        Lightrail.apiKey = "emulated";
+        Stripe.apiKey = "sk_test_emulated";
+        emulator = LightrailStripeEmulator.install();
+        giftCardId = emulator.createGiftCard("BENCHMARK-CODE", "USD", GIFT_CARD_SHARE);
+        stripeOnlyRequest = SplitTenderChargeRequest.builder(ORDER_TOTAL, "USD")
+                .useStripeToken("tok_visa")
+                .build();
+        splitRequest = SplitTenderChargeRequest.builder(ORDER_TOTAL, "USD")
+                .useLightrailGiftCode("BENCHMARK-CODE")
+                .useStripeToken("tok_visa")
+                .build();
+    }
+
+    /**
+     * Every split charge spends the gift card share, so the card gets enough value for a whole iteration.
+     */
+    @Setup(Level.Iteration)
+    public void refillGiftCard() {
+        emulator.setCardValue(giftCardId, Integer.MAX_VALUE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        emulator.uninstall();
+    }
+
+    @Benchmark
+    public SimulatedStripeLightrailSplitTenderCharge simulateStripeOnly() throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException, ThirdPartyException {
+        return StripeLightrailSplitTenderCharge.simulate(stripeOnlyRequest);
+    }
+
+    @Benchmark
+    public StripeLightrailSplitTenderCharge createStripeOnly() throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException, ThirdPartyException {
+        return StripeLightrailSplitTenderCharge.create(stripeOnlyRequest, ORDER_TOTAL, 0);
+    }
+
+    @Benchmark
+    public SimulatedStripeLightrailSplitTenderCharge simulateSplit() throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException, ThirdPartyException {
+        return StripeLightrailSplitTenderCharge.simulate(splitRequest);
+    }
+
+    @Benchmark
+    public StripeLightrailSplitTenderCharge createSplit() throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException, ThirdPartyException {
+        return StripeLightrailSplitTenderCharge.create(splitRequest, ORDER_TOTAL - GIFT_CARD_SHARE, GIFT_CARD_SHARE);
+    }
+}
@@ -0,0 +1,87 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.helpers.LightrailConstants;
+import com.lightrail.helpers.StripeConstants;
+import com.lightrail.model.api.objects.RequestParameters;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The parameter translation done for every Lightrail transaction, without any remote call.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TranslationBenchmark {
+
+    private Map<String, Object> chargeParams;
+    private Map<String, Object> fundParams;
+    private Map<String, Object> splitTenderParams;
+    private SplitTenderChargeRequest splitTenderRequest;
+    private CheckoutWithStripeAndLightrail checkout;
+
+    @Setup
+    public void setUp() {
+        chargeParams = new HashMap<>();
+        chargeParams.put(LightrailConstants.Parameters.CODE, "BENCHMARK-CODE");
+        chargeParams.put(StripeConstants.Parameters.AMOUNT, 1000);
+        chargeParams.put(LightrailConstants.Parameters.CURRENCY, "USD");
+        chargeParams.put(StripeConstants.Parameters.CAPTURE, false);
+        chargeParams.put(LightrailConstants.Parameters.USER_SUPPLIED_ID, "benchmark-charge");
+
+        fundParams = new HashMap<>();
+        fundParams.put(LightrailConstants.Parameters.CARD_ID, "card-benchmark");
+        fundParams.put(StripeConstants.Parameters.AMOUNT, 1000);
+        fundParams.put(LightrailConstants.Parameters.CURRENCY, "USD");
+        fundParams.put(LightrailConstants.Parameters.USER_SUPPLIED_ID, "benchmark-fund");
+
+        splitTenderParams = new HashMap<>();
+        splitTenderParams.put(LightrailConstants.Parameters.CODE, "BENCHMARK-CODE");
+        splitTenderParams.put(StripeConstants.Parameters.AMOUNT, 1000);
+        splitTenderParams.put(LightrailConstants.Parameters.CURRENCY, "USD");
+        splitTenderParams.put(StripeConstants.Parameters.TOKEN, "tok_visa");
+        splitTenderParams.put(LightrailConstants.Parameters.USER_SUPPLIED_ID, "benchmark-split");
+
+        splitTenderRequest = SplitTenderChargeRequest.fromParams(splitTenderParams);
+
+        checkout = new CheckoutWithStripeAndLightrail(1000, "USD")
+                .useLightrailGiftCode("BENCHMARK-CODE")
+                .useStripeToken("tok_visa");
+    }
+
+    @Benchmark
+    public RequestParameters translateChargeParams() {
+        return LightrailCharge.translateChargeParamsToLightrail(chargeParams);
+    }
+
+    @Benchmark
+    public RequestParameters translateFundParams() {
+        return LightrailFund.translateToLightrail(fundParams);
+    }
+
+    @Benchmark
+    public SplitTenderChargeRequest splitTenderRequestFromParams() {
+        return SplitTenderChargeRequest.fromParams(splitTenderParams);
+    }
+
+    @Benchmark
+    public SplitTenderChargeRequest checkoutChargeRequest() {
+        return checkout.getChargeRequest();
+    }
+
+    @Benchmark
+    public RequestParameters splitTenderLightrailLeg() {
+        return splitTenderRequest.toLightrailRequest(600, true, null);
+    }
+
+    @Benchmark
+    public Map<String, Object> splitTenderStripeLeg() {
+        return splitTenderRequest.toStripeParams(400, "card-benchmark/transaction-benchmark", "benchmark-split");
+    }
+}
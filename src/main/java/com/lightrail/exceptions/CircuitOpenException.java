@@ -0,0 +1,12 @@
+package com.lightrail.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of calling a service whose circuit breaker is open.
+ */
+public class CircuitOpenException extends IOException {
+    public CircuitOpenException(String message) {
+        super(message);
+    }
+}
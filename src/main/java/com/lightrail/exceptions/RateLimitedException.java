@@ -0,0 +1,12 @@
+package com.lightrail.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of calling a service when its client-side rate limiter would make the call wait too long.
+ */
+public class RateLimitedException extends IOException {
+    public RateLimitedException(String message) {
+        super(message);
+    }
+}
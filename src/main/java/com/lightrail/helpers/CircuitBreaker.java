@@ -0,0 +1,188 @@
+package com.lightrail.helpers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A circuit breaker for calls to one remote service. It opens after a number of consecutive failed calls, where a call
+ * slower than the slow call threshold also counts as failed. While open, calls are rejected without being made. Once
+ * the open duration has passed, a single trial call is let through: the breaker closes if it succeeds and opens again
+ * if it fails. Other successes reported meanwhile leave it open.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long slowCallThresholdNanos;
+    private final long openDurationNanos;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean trialInProgress = new AtomicBoolean();
+    private final LongAdder rejectedCalls = new LongAdder();
+    private final LongAdder timesOpened = new LongAdder();
+    private volatile State state = State.CLOSED;
+    private volatile long openedAt = 0;
+    private volatile long trialStartedAt = 0;
+
+    /**
+     * @param failureThreshold the number of consecutive failed calls which opens the breaker.
+     */
+    public CircuitBreaker(int failureThreshold, long openDuration, TimeUnit unit) {
+        this(failureThreshold, 0, openDuration, unit);
+    }
+
+    /**
+     * @param failureThreshold  the number of consecutive failed calls which opens the breaker.
+     * @param slowCallThreshold calls taking longer than this count as failed, or 0 to only count errors.
+     */
+    public CircuitBreaker(int failureThreshold, long slowCallThreshold, long openDuration, TimeUnit unit) {
+        if (failureThreshold <= 0)
+            throw new IllegalArgumentException("The failure threshold must be positive.");
+        if (slowCallThreshold < 0 || openDuration <= 0)
+            throw new IllegalArgumentException("The slow call threshold must not be negative and the open duration must be positive.");
+        this.failureThreshold = failureThreshold;
+        this.slowCallThresholdNanos = unit.toNanos(slowCallThreshold);
+        this.openDurationNanos = unit.toNanos(openDuration);
+    }
+
+    /**
+     * Asks to make a call. A permitted call must be reported with {@link #onSuccess} or {@link #onFailure} once it
+     * completes.
+     *
+     * @return false if the call must not be made.
+     */
+    public boolean tryAcquire() {
+        State current = state;
+        if (current == State.CLOSED)
+            return true;
+        if (current == State.OPEN) {
+            if (System.nanoTime() - openedAt < openDurationNanos) {
+                rejectedCalls.increment();
+                return false;
+            }
+            synchronized (this) {
+                if (state == State.OPEN)
+                    state = State.HALF_OPEN;
+            }
+        }
+        if (state == State.CLOSED)
+            return true;
+        if (trialInProgress.compareAndSet(false, true)) {
+            trialStartedAt = System.nanoTime();
+            return true;
+        }
+        rejectedCalls.increment();
+        return false;
+    }
+
+    /**
+     * @return whether {@link #tryAcquire()} would currently permit a call, without asking for one.
+     */
+    public boolean isCallPermitted() {
+        State current = state;
+        if (current == State.CLOSED)
+            return true;
+        if (current == State.OPEN)
+            return System.nanoTime() - openedAt >= openDurationNanos;
+        return !trialInProgress.get();
+    }
+
+    /**
+     * Reports a call permitted by {@link #tryAcquire()} which got a response from the service, even an error response
+     * about the request itself.
+     */
+    public void onSuccess(long durationNanos) {
+        onSuccess(durationNanos, true);
+    }
+
+    /**
+     * Reports a call which got a response from the service, even an error response about the request itself. Only the
+     * trial call closes an open breaker: successes of calls which started before it, or were made without asking
+     * {@link #tryAcquire()}, say little about a service which was just failing.
+     *
+     * @param permitted whether the call was permitted by {@link #tryAcquire()}, rather than made regardless of the
+     *                  breaker.
+     */
+    public void onSuccess(long durationNanos, boolean permitted) {
+        if (slowCallThresholdNanos > 0 && durationNanos > slowCallThresholdNanos) {
+            onFailure();
+            return;
+        }
+        State current = state;
+        if (current == State.CLOSED) {
+            consecutiveFailures.set(0);
+        } else if (current == State.HALF_OPEN && permitted) {
+            synchronized (this) {
+                if (state == State.HALF_OPEN && trialInProgress.get() && System.nanoTime() - durationNanos >= trialStartedAt) {
+                    state = State.CLOSED;
+                    trialInProgress.set(false);
+                    consecutiveFailures.set(0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports a call permitted by {@link #tryAcquire()} which was not made after all, e.g. because it was rate
+     * limited. If it was the trial call of a half-open breaker, the next call may be the trial instead.
+     *
+     * @param permittedAt the {@link System#nanoTime()} taken right after {@link #tryAcquire()} permitted the call.
+     */
+    public void cancel(long permittedAt) {
+        if (state != State.HALF_OPEN)
+            return;
+        synchronized (this) {
+            if (state == State.HALF_OPEN && trialInProgress.get() && trialStartedAt <= permittedAt)
+                trialInProgress.set(false);
+        }
+    }
+
+    /**
+     * Reports a call which failed because of the service, e.g. a connection failure, a timeout or a server error.
+     */
+    public void onFailure() {
+        State current = state;
+        if (current == State.HALF_OPEN)
+            open();
+        else if (current == State.CLOSED && consecutiveFailures.incrementAndGet() >= failureThreshold)
+            open();
+    }
+
+    private synchronized void open() {
+        if (state == State.OPEN)
+            return;
+        openedAt = System.nanoTime();
+        state = State.OPEN;
+        trialInProgress.set(false);
+        consecutiveFailures.set(0);
+        timesOpened.increment();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of calls rejected since this breaker was created.
+     */
+    public long getRejectedCalls() {
+        return rejectedCalls.sum();
+    }
+
+    public long getTimesOpened() {
+        return timesOpened.sum();
+    }
+
+    /**
+     * Closes the breaker, e.g. once the service is known to be back.
+     */
+    public synchronized void reset() {
+        state = State.CLOSED;
+        trialInProgress.set(false);
+        consecutiveFailures.set(0);
+    }
+}
@@ -1,50 +1,168 @@
 package com.lightrail.helpers;
 
-import java.util.HashMap;
-import java.util.Map;
+import com.lightrail.exceptions.BadParameterException;
 
+import java.util.Arrays;
 
+/**
+ * Converts amounts between major units (e.g. dollars) and the minor units Lightrail and Stripe count in (e.g. cents).
+ * The number of decimal places of every currency which does not have two is in a table built when the class is
+ * loaded, indexed by the three letters of the currency code, so a lookup neither allocates nor depends on anything
+ * having been constructed first. Codes are matched in either case, and unknown codes have two decimal places.
+ * <p>
+ * The {@code long} methods are exact, so they can be called for every line of a bulk price list or receipt without
+ * rounding drift or garbage. They use the ISO 4217 decimal places, except for ISK and UGX, which Stripe counts in
+ * hundredths although they have none. The deprecated {@code float} methods are kept for compatibility and round once,
+ * to the nearest minor unit; as before, they use no decimal places for the zero-decimal currencies and two for all
+ * others, including the three-decimal ones, so their minor units differ from those of the {@code long} methods.
+ */
 public class Currency {
-    static Map<String, Integer> majorToMinorRatioMap = new HashMap<>();
-
-    {
-        majorToMinorRatioMap.put("BIF", 1);
-        majorToMinorRatioMap.put("CLP", 1);
-        majorToMinorRatioMap.put("DJF", 1);
-        majorToMinorRatioMap.put("GNF", 1);
-        majorToMinorRatioMap.put("JPY", 1);
-        majorToMinorRatioMap.put("KMF", 1);
-        majorToMinorRatioMap.put("KRW", 1);
-        majorToMinorRatioMap.put("MGA", 1);
-        majorToMinorRatioMap.put("PYG", 1);
-        majorToMinorRatioMap.put("RWF", 1);
-        majorToMinorRatioMap.put("VND", 1);
-        majorToMinorRatioMap.put("VUV", 1);
-        majorToMinorRatioMap.put("XAF", 1);
-        majorToMinorRatioMap.put("XOF", 1);
-        majorToMinorRatioMap.put("XPF", 1);
-    }
-
-    private static int getConversionRatio(String currency) {
-        int conversionRatio = 100;
-        if (majorToMinorRatioMap.containsKey(currency)) {
-            conversionRatio = majorToMinorRatioMap.get(currency);
+    private static final int DEFAULT_DECIMAL_PLACES = 2;
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000};
+    private static final byte[] DECIMAL_PLACES = new byte[26 * 26 * 26];
+
+    static {
+        Arrays.fill(DECIMAL_PLACES, (byte) DEFAULT_DECIMAL_PLACES);
+        //Stripe's zero-decimal currencies, including MGA which it counts in whole units
+        for (String code : new String[]{"BIF", "CLP", "DJF", "GNF", "JPY", "KMF", "KRW", "MGA", "PYG", "RWF", "VND",
+                "VUV", "XAF", "XOF", "XPF"})
+            DECIMAL_PLACES[indexOf(code)] = 0;
+        for (String code : new String[]{"BHD", "IQD", "JOD", "KWD", "LYD", "OMR", "TND"})
+            DECIMAL_PLACES[indexOf(code)] = 3;
+        for (String code : new String[]{"CLF", "UYW"})
+            DECIMAL_PLACES[indexOf(code)] = 4;
+    }
+
+    /**
+     * @return the index of a three-letter code in the table, or -1 if it is not one.
+     */
+    private static int indexOf(String currency) {
+        if (currency == null || currency.length() != 3)
+            return -1;
+        int index = 0;
+        for (int i = 0; i < 3; i++) {
+            int letter = (currency.charAt(i) | 0x20) - 'a'; //folds to lower case
+            if (letter < 0 || letter >= 26)
+                return -1;
+            index = index * 26 + letter;
         }
-        return conversionRatio;
+        return index;
+    }
+
+    /**
+     * @return the number of minor unit digits of the currency: 0 for JPY, 2 for USD, 3 for KWD.
+     */
+    public static int getDecimalPlaces(String currency) {
+        int index = indexOf(currency);
+        return (index < 0) ? DEFAULT_DECIMAL_PLACES : DECIMAL_PLACES[index];
+    }
+
+    /**
+     * @return the number of minor units in one major unit: 1 for JPY, 100 for USD, 1000 for KWD.
+     */
+    public static long getMinorUnitsPerMajorUnit(String currency) {
+        return POWERS_OF_TEN[getDecimalPlaces(currency)];
     }
 
+    /**
+     * @return the number of minor units in one major unit the {@code float} methods have always used: 1 for the
+     * zero-decimal currencies and 100 for all others.
+     */
+    private static long getLegacyMinorUnitsPerMajorUnit(String currency) {
+        return (getDecimalPlaces(currency) == 0) ? 1 : 100;
+    }
+
+    /**
+     * Converts an amount in major units to minor units, rounding once to the nearest minor unit.
+     *
+     * @deprecated counts the three-decimal currencies, e.g. KWD, BHD and JOD, in hundredths rather than in their
+     * ISO 4217 thousandths, so it disagrees with {@link #parseMinor(CharSequence, String)} by a factor of ten for them;
+     * use {@link #parseMinor(CharSequence, String)} instead.
+     */
+    @Deprecated
     public static int majorToMinor(float value, String currency) {
-        Double minorValue;
-        int conversionRatio = getConversionRatio(currency);
-        minorValue = (Math.round(value * conversionRatio * 100.0) / 100.0);
-        return minorValue.intValue();
+        return Math.toIntExact(Math.round((double) value * getLegacyMinorUnitsPerMajorUnit(currency)));
     }
 
+    /**
+     * Converts an amount in minor units to major units.
+     *
+     * @deprecated counts the three-decimal currencies, e.g. KWD, BHD and JOD, in hundredths rather than in their
+     * ISO 4217 thousandths, so it disagrees with {@link #appendMajor(StringBuilder, long, String)} by a factor of ten
+     * for them; use {@link #appendMajor(StringBuilder, long, String)} instead.
+     */
+    @Deprecated
     public static float minorToMajor(int minorValue, String currency) {
-        Double majorValue;
-        int conversionRatio = getConversionRatio(currency);
-        majorValue = Math.round(((float) minorValue / conversionRatio) * 100.0) / 100.0;
-        return majorValue.floatValue();
+        return (float) ((double) minorValue / getLegacyMinorUnitsPerMajorUnit(currency));
     }
 
+    /**
+     * Reads a decimal amount in major units, e.g. {@code "12.5"} or {@code "-0.99"}, exactly. Trailing zeros beyond
+     * the currency's decimal places are allowed.
+     *
+     * @return the amount in minor units.
+     * @throws BadParameterException if the amount is not a decimal number, has more significant decimal places than
+     *                               the currency, or does not fit in a {@code long}.
+     */
+    public static long parseMinor(CharSequence amount, String currency) {
+        int decimalPlaces = getDecimalPlaces(currency);
+        int length = amount.length();
+        int i = 0;
+        boolean negative = false;
+        if (i < length && (amount.charAt(i) == '-' || amount.charAt(i) == '+')) {
+            negative = amount.charAt(i) == '-';
+            i++;
+        }
+        long minorValue = 0;
+        int digits = 0;
+        int fractionDigits = -1; //no decimal point yet
+        try {
+            for (; i < length; i++) {
+                char c = amount.charAt(i);
+                if (c == '.' && fractionDigits < 0) {
+                    fractionDigits = 0;
+                } else if (c >= '0' && c <= '9') {
+                    digits++;
+                    if (fractionDigits >= 0 && ++fractionDigits > decimalPlaces) {
+                        if (c != '0')
+                            throw new BadParameterException("Amount '" + amount + "' has more than " + decimalPlaces + " decimal places for " + currency + ".");
+                        continue;
+                    }
+                    minorValue = Math.addExact(Math.multiplyExact(minorValue, 10), c - '0');
+                } else {
+                    throw new BadParameterException("Amount '" + amount + "' is not a decimal number.");
+                }
+            }
+            if (digits == 0)
+                throw new BadParameterException("Amount '" + amount + "' is not a decimal number.");
+            minorValue = Math.multiplyExact(minorValue, POWERS_OF_TEN[decimalPlaces - Math.min(Math.max(fractionDigits, 0), decimalPlaces)]);
+        } catch (ArithmeticException e) {
+            throw new BadParameterException("Amount '" + amount + "' is too large.");
+        }
+        return negative ? -minorValue : minorValue;
+    }
+
+    /**
+     * Writes an amount in minor units as a decimal amount in major units, with exactly the currency's decimal places,
+     * e.g. {@code 1250} in USD as {@code "12.50"}.
+     *
+     * @return the builder, for chaining.
+     */
+    public static StringBuilder appendMajor(StringBuilder out, long minorValue, String currency) {
+        int decimalPlaces = getDecimalPlaces(currency);
+        if (decimalPlaces == 0)
+            return out.append(minorValue);
+        long minorUnitsPerMajorUnit = POWERS_OF_TEN[decimalPlaces];
+        long majorValue = minorValue / minorUnitsPerMajorUnit;
+        long fraction = minorValue % minorUnitsPerMajorUnit;
+        if (minorValue < 0) {
+            out.append('-');
+            majorValue = -majorValue;
+            fraction = -fraction;
+        }
+        out.append(majorValue).append('.');
+        for (long place = minorUnitsPerMajorUnit / 10; place > 1 && fraction < place; place /= 10)
+            out.append('0');
+        return out.append(fraction);
+    }
 }
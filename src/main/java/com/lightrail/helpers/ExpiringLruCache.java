@@ -0,0 +1,116 @@
+package com.lightrail.helpers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * A small thread-safe cache bounded both in size (least recently used entries are evicted first) and in time
+ * (entries expire a fixed time after they were written).
+ */
+public class ExpiringLruCache<K, V> {
+    private static class Entry<V> {
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public ExpiringLruCache(final int maxEntries, long ttl, TimeUnit unit) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("maxEntries must be positive");
+        this.maxEntries = maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() <= maxEntries)
+                    return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return the cached value, or {@code null} if there is none or it has expired.
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && System.nanoTime() - entry.expiresAt >= 0) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        entries.put(key, new Entry<>(value, System.nanoTime() + ttlNanos));
+    }
+
+    public synchronized V remove(K key) {
+        Entry<V> entry = entries.remove(key);
+        return (entry == null) ? null : entry.value;
+    }
+
+    public synchronized void removeIf(Predicate<? super K> keyPredicate) {
+        entries.keySet().removeIf(keyPredicate);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return the number of entries held, including expired ones that have not been looked up or purged yet.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void purgeExpired() {
+        long now = System.nanoTime();
+        Iterator<Entry<V>> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().expiresAt >= 0)
+                iterator.remove();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return entries dropped to stay within the size bound. Expired and explicitly removed entries are not counted.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+}
@@ -6,6 +6,7 @@ public final class LightrailEcommerceConstants {
         public static final String SPLIT_TENDER_PARTNER = "_split-tender-partner";
         public static final String SPLIT_TENDER_TOTAL = "_split-tender-total";
         public static final String SPLIT_TENDER_PARTNER_TRANSACTION_ID = "_split-tender-partner-txn-id";
+        public static final String SPLIT_TENDER_IDEMPOTENCY_KEY = "_split-tender-idempotency-key";
     }
 
     public final class PaymentSummary {
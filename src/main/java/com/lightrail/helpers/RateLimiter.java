@@ -0,0 +1,149 @@
+package com.lightrail.helpers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A token bucket limiting the rate of calls to one remote service. Tokens are added at a steady rate up to the burst
+ * size, and each call takes one. A call which finds the bucket empty reserves the next token to be added and waits for
+ * it, so waiting calls are served in the order they arrived. The rate and burst size can be changed at any time.
+ */
+public class RateLimiter {
+    private double permitsPerSecond;
+    private int burst;
+    private long intervalNanos;
+
+    private double storedPermits;
+    private long nextFreeNanos;
+
+    private final LongAdder rejectedCalls = new LongAdder();
+    private final LongAdder delayedCalls = new LongAdder();
+
+    /**
+     * @param burst the number of calls which can be made at once after a quiet period; the bucket starts full.
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        checkRate(permitsPerSecond, burst);
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.storedPermits = burst;
+        this.nextFreeNanos = System.nanoTime();
+    }
+
+    private static void checkRate(double permitsPerSecond, int burst) {
+        if (!(permitsPerSecond > 0) || Double.isInfinite(permitsPerSecond))
+            throw new IllegalArgumentException("The rate must be a positive number of calls per second.");
+        if (burst <= 0)
+            throw new IllegalArgumentException("The burst size must be positive.");
+    }
+
+    /**
+     * Changes the rate and burst size. Tokens already stored above the new burst size are dropped, and calls already
+     * waiting keep the time they reserved.
+     */
+    public synchronized void setRate(double permitsPerSecond, int burst) {
+        checkRate(permitsPerSecond, burst);
+        refill(System.nanoTime());
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.storedPermits = Math.min(storedPermits, burst);
+    }
+
+    public synchronized double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    public synchronized int getBurst() {
+        return burst;
+    }
+
+    private void refill(long now) {
+        if (now - nextFreeNanos > 0) {
+            storedPermits = Math.min(burst, storedPermits + (double) (now - nextFreeNanos) / intervalNanos);
+            nextFreeNanos = now;
+        }
+    }
+
+    /**
+     * @return how long a call made now would wait for its token.
+     */
+    public synchronized long getExpectedWaitNanos() {
+        long now = System.nanoTime();
+        refill(now);
+        return waitFor(now);
+    }
+
+    /**
+     * @return how long until a token is free for the next call: at once if one is stored, else when the partial token
+     * stored fills up, after the tokens already reserved.
+     */
+    private long waitFor(long now) {
+        if (storedPermits >= 1)
+            return 0;
+        return Math.max(nextFreeNanos, now) + (long) ((1 - storedPermits) * intervalNanos) - now;
+    }
+
+    /**
+     * Takes a token, waiting for it if the bucket is empty.
+     */
+    public void acquire() throws InterruptedException {
+        sleep(reserve(Long.MAX_VALUE));
+    }
+
+    /**
+     * Takes a token if one is available within the timeout, waiting for it.
+     *
+     * @return false, without taking a token or waiting, if the call would have to wait longer than the timeout.
+     */
+    public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+        long wait = reserve(unit.toNanos(timeout));
+        if (wait < 0) {
+            rejectedCalls.increment();
+            return false;
+        }
+        sleep(wait);
+        return true;
+    }
+
+    /**
+     * @return the time to wait for the reserved token, or -1 if it would be longer than the timeout and no token was
+     * reserved.
+     */
+    private synchronized long reserve(long timeoutNanos) {
+        long now = System.nanoTime();
+        refill(now);
+        long wait = waitFor(now);
+        if (wait > timeoutNanos)
+            return -1;
+        if (wait == 0) {
+            storedPermits -= 1;
+        } else {
+            storedPermits = 0;
+            nextFreeNanos = now + wait;
+        }
+        return wait;
+    }
+
+    private void sleep(long nanos) throws InterruptedException {
+        if (nanos <= 0)
+            return;
+        delayedCalls.increment();
+        TimeUnit.NANOSECONDS.sleep(nanos);
+    }
+
+    /**
+     * @return the number of calls rejected by {@link #tryAcquire} since this limiter was created.
+     */
+    public long getRejectedCalls() {
+        return rejectedCalls.sum();
+    }
+
+    /**
+     * @return the number of calls which had to wait for their token since this limiter was created.
+     */
+    public long getDelayedCalls() {
+        return delayedCalls.sum();
+    }
+}
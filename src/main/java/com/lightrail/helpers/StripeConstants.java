@@ -1,6 +1,10 @@
 package com.lightrail.helpers;
 
 public class StripeConstants {
+    /**
+     * The smallest Stripe charge in currencies without a minimum of their own, see
+     * {@code SplitAllocationPolicies#getStripeMinimum(String)}.
+     */
     public static final int STRIPE_MINIMUM_TRANSACTION_VALUE = 50;
     public static final class Parameters {
         public static final String AMOUNT = "amount";
@@ -9,5 +13,9 @@ public class StripeConstants {
         public static final String CUSTOMER = "customer";
         public static final String CAPTURE = "capture";
         public static final String METADATA = "metadata";
+        public static final String CHARGE = "charge";
+        public static final String CREATED = "created";
+        public static final String LIMIT = "limit";
+        public static final String STARTING_AFTER = "starting_after";
     }
 }
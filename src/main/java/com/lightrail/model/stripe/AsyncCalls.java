@@ -0,0 +1,116 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.*;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+final class AsyncCalls {
+
+    interface Call<T> {
+        T call() throws Exception;
+    }
+
+    private AsyncCalls() {
+    }
+
+    private static final class BlockingCallExecutor {
+        static final Executor INSTANCE = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "lightrail-blocking-call");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * An executor for blocking calls the synchronous API makes in parallel with the calling thread. Its threads are
+     * created on first use and end after a minute without work.
+     */
+    static Executor blockingCallExecutor() {
+        return BlockingCallExecutor.INSTANCE;
+    }
+
+    /**
+     * Runs a blocking call on the given executor. The returned future completes exceptionally with the
+     * original (possibly checked) exception, so {@code get()} reports it as the cause of the {@code ExecutionException}.
+     */
+    static <T> CompletableFuture<T> supply(final Call<T> call, Executor executor) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (Throwable t) { //e.g. RejectedExecutionException
+            future.completeExceptionally(t);
+        }
+        return future;
+    }
+
+    static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    /**
+     * @return the exception the future completed with, or {@code null} if it completed normally. Does not block
+     * if the future is already complete.
+     */
+    static Throwable failureOf(CompletableFuture<?> future) {
+        try {
+            future.join();
+            return null;
+        } catch (Throwable t) {
+            return unwrap(t);
+        }
+    }
+
+    /**
+     * Waits for the future and rethrows its failure as the checked exception the blocking split-tender API declares.
+     */
+    static <T> T join(CompletableFuture<T> future) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, CurrencyMismatchException, IOException {
+        try {
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof ThirdPartyException)
+                throw (ThirdPartyException) cause;
+            if (cause instanceof AuthorizationException)
+                throw (AuthorizationException) cause;
+            if (cause instanceof CouldNotFindObjectException)
+                throw (CouldNotFindObjectException) cause;
+            if (cause instanceof InsufficientValueException)
+                throw (InsufficientValueException) cause;
+            if (cause instanceof CurrencyMismatchException)
+                throw (CurrencyMismatchException) cause;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new ThirdPartyException((Exception) cause);
+        }
+    }
+
+    static Exception asException(Throwable t) {
+        if (t instanceof Error)
+            throw (Error) t;
+        return (Exception) t;
+    }
+
+    static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null)
+            t = t.getCause();
+        return t;
+    }
+}
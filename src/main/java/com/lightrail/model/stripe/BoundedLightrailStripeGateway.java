@@ -0,0 +1,225 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.*;
+import com.lightrail.model.api.objects.Metadata;
+import com.lightrail.model.api.objects.RequestParameters;
+import com.lightrail.model.business.LightrailTransaction;
+import com.stripe.exception.APIConnectionException;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Charge;
+import com.stripe.model.ChargeCollection;
+import com.stripe.model.Refund;
+import com.stripe.net.RequestOptions;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A gateway for high call rates, which makes its calls through another gateway, by default a
+ * {@link DefaultLightrailStripeGateway}, while capping the number of calls in flight to each service. Calls beyond the
+ * cap wait their turn in arrival order, so that a burst queues up here instead of opening more connections than the
+ * services can keep up with. Each call runs on the calling thread.
+ * <p>
+ * The gateway does not change how connections are made, nor how long a call may take once it is made; those are up to
+ * the Lightrail and Stripe clients. A call interrupted while waiting its turn throws an {@link InterruptedIOException}
+ * for Lightrail or an {@link APIConnectionException} for Stripe, without having been made.
+ */
+public class BoundedLightrailStripeGateway implements LightrailStripeGateway {
+    private final LightrailStripeGateway delegate;
+    private final Semaphore lightrailCalls;
+    private final Semaphore stripeCalls;
+
+    /**
+     * @param maxLightrailCalls the most calls to Lightrail in flight at once.
+     * @param maxStripeCalls    the most calls to Stripe in flight at once.
+     */
+    public BoundedLightrailStripeGateway(int maxLightrailCalls, int maxStripeCalls) {
+        this(DefaultLightrailStripeGateway.INSTANCE, maxLightrailCalls, maxStripeCalls);
+    }
+
+    /**
+     * @param delegate the gateway which makes the calls, e.g. an instrumented one.
+     */
+    public BoundedLightrailStripeGateway(LightrailStripeGateway delegate, int maxLightrailCalls, int maxStripeCalls) {
+        if (delegate == null)
+            throw new IllegalArgumentException("The delegate gateway must not be null.");
+        this.delegate = delegate;
+        if (maxLightrailCalls <= 0 || maxStripeCalls <= 0)
+            throw new IllegalArgumentException("The call limits must be positive.");
+        this.lightrailCalls = new Semaphore(maxLightrailCalls, true);
+        this.stripeCalls = new Semaphore(maxStripeCalls, true);
+    }
+
+    /**
+     * Runs the call once fewer than the service's maximum calls are in flight.
+     */
+    private static <T> T call(Semaphore calls, AsyncCalls.Call<T> call) throws Exception {
+        calls.acquire();
+        try {
+            return call.call();
+        } finally {
+            calls.release();
+        }
+    }
+
+    private static IOException lightrailFailure(Exception e) {
+        if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+            return new InterruptedIOException("Interrupted while waiting to call Lightrail.");
+        }
+        return new IOException(e);
+    }
+
+    private static StripeException stripeFailure(Exception e) {
+        if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+            return new APIConnectionException("Interrupted while waiting to call Stripe.");
+        }
+        return new APIConnectionException(String.valueOf(e));
+    }
+
+    @Override
+    public LightrailTransaction createTransaction(RequestParameters params) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException {
+        try {
+            return call(lightrailCalls, () -> delegate.createTransaction(params));
+        } catch (IOException | AuthorizationException | CouldNotFindObjectException | InsufficientValueException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw lightrailFailure(e);
+        }
+    }
+
+    @Override
+    public LightrailTransaction simulateTransaction(RequestParameters params) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException {
+        try {
+            return call(lightrailCalls, () -> delegate.simulateTransaction(params));
+        } catch (IOException | AuthorizationException | CouldNotFindObjectException | InsufficientValueException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw lightrailFailure(e);
+        }
+    }
+
+    @Override
+    public LightrailTransaction retrieveTransaction(RequestParameters params) throws IOException, AuthorizationException, CouldNotFindObjectException {
+        try {
+            return call(lightrailCalls, () -> delegate.retrieveTransaction(params));
+        } catch (IOException | AuthorizationException | CouldNotFindObjectException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw lightrailFailure(e);
+        }
+    }
+
+    @Override
+    public LightrailTransaction captureTransaction(LightrailTransaction pendingTransaction, String userSuppliedId, Metadata metadata) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException {
+        try {
+            return call(lightrailCalls, () -> delegate.captureTransaction(pendingTransaction, userSuppliedId, metadata));
+        } catch (IOException | AuthorizationException | CouldNotFindObjectException | InsufficientValueException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw lightrailFailure(e);
+        }
+    }
+
+    @Override
+    public LightrailTransaction voidTransaction(LightrailTransaction pendingTransaction, String userSuppliedId, Metadata metadata) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException {
+        try {
+            return call(lightrailCalls, () -> delegate.voidTransaction(pendingTransaction, userSuppliedId, metadata));
+        } catch (IOException | AuthorizationException | CouldNotFindObjectException | InsufficientValueException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw lightrailFailure(e);
+        }
+    }
+
+    @Override
+    public LightrailTransaction refundTransaction(LightrailTransaction transaction, String userSuppliedId, Metadata metadata) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException {
+        try {
+            return call(lightrailCalls, () -> delegate.refundTransaction(transaction, userSuppliedId, metadata));
+        } catch (IOException | AuthorizationException | CouldNotFindObjectException | InsufficientValueException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw lightrailFailure(e);
+        }
+    }
+
+    @Override
+    public RequestParameters resolveContact(RequestParameters params) throws IOException, AuthorizationException, CouldNotFindObjectException, CurrencyMismatchException {
+        try {
+            return call(lightrailCalls, () -> delegate.resolveContact(params));
+        } catch (IOException | AuthorizationException | CouldNotFindObjectException | CurrencyMismatchException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw lightrailFailure(e);
+        }
+    }
+
+    @Override
+    public Charge createCharge(Map<String, Object> params, RequestOptions options) throws StripeException {
+        try {
+            return call(stripeCalls, () -> delegate.createCharge(params, options));
+        } catch (StripeException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw stripeFailure(e);
+        }
+    }
+
+    @Override
+    public Charge retrieveCharge(String chargeId) throws StripeException {
+        try {
+            return call(stripeCalls, () -> delegate.retrieveCharge(chargeId));
+        } catch (StripeException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw stripeFailure(e);
+        }
+    }
+
+    @Override
+    public ChargeCollection listCharges(Map<String, Object> params) throws StripeException {
+        try {
+            return call(stripeCalls, () -> delegate.listCharges(params));
+        } catch (StripeException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw stripeFailure(e);
+        }
+    }
+
+    @Override
+    public Charge captureCharge(Charge charge, Map<String, Object> params, RequestOptions options) throws StripeException {
+        try {
+            return call(stripeCalls, () -> delegate.captureCharge(charge, params, options));
+        } catch (StripeException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw stripeFailure(e);
+        }
+    }
+
+    @Override
+    public Charge updateCharge(Charge charge, Map<String, Object> params) throws StripeException {
+        try {
+            return call(stripeCalls, () -> delegate.updateCharge(charge, params));
+        } catch (StripeException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw stripeFailure(e);
+        }
+    }
+
+    @Override
+    public Refund createRefund(Map<String, Object> params, RequestOptions options) throws StripeException {
+        try {
+            return call(stripeCalls, () -> delegate.createRefund(params, options));
+        } catch (StripeException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw stripeFailure(e);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.BadParameterException;
+
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Checks out a large number of orders with a bounded number of orders in flight. The next order is only taken from
+ * the input once a slot is free, so the input can be a lazy stream of any size. The remote steps of each order run
+ * on the given executor, which can be shared with other work.
+ */
+public class BulkCheckout {
+    private final Executor executor;
+    private final int maxInFlight;
+
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+
+    public BulkCheckout(Executor executor, int maxInFlight) {
+        if (executor == null)
+            throw new BadParameterException("An executor is required for bulk checkout.");
+        if (maxInFlight <= 0)
+            throw new BadParameterException("The maximum number of orders in flight must be a positive integer.");
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public BulkCheckoutSummary run(Stream<CheckoutWithStripeAndLightrail> checkouts, Consumer<BulkCheckoutResult> listener) throws InterruptedException {
+        return run(checkouts.iterator(), listener);
+    }
+
+    /**
+     * Checks out every order from the iterator and blocks until all of them have completed. The listener is called
+     * once per order as soon as it completes, in completion order and possibly from several threads at once.
+     */
+    public BulkCheckoutSummary run(Iterator<CheckoutWithStripeAndLightrail> checkouts, final Consumer<BulkCheckoutResult> listener) throws InterruptedException {
+        final Semaphore slots = new Semaphore(maxInFlight);
+        final AtomicLong runSucceeded = new AtomicLong();
+        final AtomicLong runFailed = new AtomicLong();
+        long start = System.nanoTime();
+
+        long position = 0;
+        while (checkouts.hasNext()) {
+            slots.acquire();
+            final CheckoutWithStripeAndLightrail checkout;
+            try {
+                checkout = checkouts.next();
+            } catch (RuntimeException e) {
+                slots.release();
+                throw e;
+            }
+            final long orderPosition = position++;
+            inFlight.incrementAndGet();
+            checkout.checkoutAsync(executor).whenComplete((charge, failure) -> {
+                try {
+                    if (failure == null) {
+                        runSucceeded.incrementAndGet();
+                        succeeded.incrementAndGet();
+                    } else {
+                        runFailed.incrementAndGet();
+                        failed.incrementAndGet();
+                    }
+                    if (listener != null)
+                        listener.accept(new BulkCheckoutResult(orderPosition, checkout, charge, (failure == null) ? null : AsyncCalls.unwrap(failure)));
+                } finally {
+                    inFlight.decrementAndGet();
+                    slots.release();
+                }
+            });
+        }
+
+        slots.acquire(maxInFlight); //wait for the stragglers
+        slots.release(maxInFlight);
+
+        return new BulkCheckoutSummary(runSucceeded.get(), runFailed.get(), System.nanoTime() - start);
+    }
+
+    /**
+     * @return orders completed successfully since this object was created, across runs.
+     */
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,44 @@
+package com.lightrail.model.stripe;
+
+public class BulkCheckoutResult {
+    private final long position;
+    private final CheckoutWithStripeAndLightrail checkout;
+    private final StripeLightrailSplitTenderCharge charge;
+    private final Throwable failure;
+
+    BulkCheckoutResult(long position, CheckoutWithStripeAndLightrail checkout, StripeLightrailSplitTenderCharge charge, Throwable failure) {
+        this.position = position;
+        this.checkout = checkout;
+        this.charge = charge;
+        this.failure = failure;
+    }
+
+    /**
+     * @return the zero-based position of this order in the input.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public CheckoutWithStripeAndLightrail getCheckout() {
+        return checkout;
+    }
+
+    /**
+     * @return the committed charge, or {@code null} if this order failed.
+     */
+    public StripeLightrailSplitTenderCharge getCharge() {
+        return charge;
+    }
+
+    /**
+     * @return the exception the checkout failed with, e.g. an {@code InsufficientValueException}, or {@code null}.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public boolean isSuccessful() {
+        return failure == null;
+    }
+}
@@ -0,0 +1,46 @@
+package com.lightrail.model.stripe;
+
+import java.util.concurrent.TimeUnit;
+
+public class BulkCheckoutSummary {
+    private final long succeeded;
+    private final long failed;
+    private final long elapsedNanos;
+
+    BulkCheckoutSummary(long succeeded, long failed, long elapsedNanos) {
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public long getSucceeded() {
+        return succeeded;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getTotal() {
+        return succeeded + failed;
+    }
+
+    public long getElapsed(TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return completed orders (successful or not) per second over the whole run.
+     */
+    public double getThroughputPerSecond() {
+        if (elapsedNanos == 0)
+            return 0;
+        return getTotal() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d orders (%d succeeded, %d failed) in %d ms, %.1f orders/s",
+                getTotal(), succeeded, failed, getElapsed(TimeUnit.MILLISECONDS), getThroughputPerSecond());
+    }
+}
@@ -0,0 +1,212 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.BadParameterException;
+import com.lightrail.helpers.LightrailConstants;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Funds a large number of Cards or Contacts with a bounded number of funds in flight, like {@link BulkCheckout} does
+ * for orders. Each row is a map of {@link LightrailFund#create(Map)} parameters.
+ * <p>
+ * A row without a {@code userSuppliedId} gets one made of the run ID and its position in the input, so running the
+ * same input again with the same run ID, e.g. after the process was stopped, never funds a row twice: Lightrail
+ * returns the transaction made the first time instead.
+ */
+public class BulkFunding {
+    private final Executor executor;
+    private final int maxInFlight;
+    private final String runId;
+
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+
+    /**
+     * @param runId identifies the input, e.g. the name of the promotion. Reuse it to resume a run.
+     */
+    public BulkFunding(Executor executor, int maxInFlight, String runId) {
+        if (executor == null)
+            throw new BadParameterException("An executor is required for bulk funding.");
+        if (maxInFlight <= 0)
+            throw new BadParameterException("The maximum number of funds in flight must be a positive integer.");
+        if (runId == null || runId.isEmpty())
+            throw new BadParameterException("A run ID is required for bulk funding.");
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.runId = runId;
+    }
+
+    public BulkFundingSummary run(Stream<Map<String, Object>> rows, Consumer<BulkFundingResult> listener) throws InterruptedException {
+        return run(rows.iterator(), listener);
+    }
+
+    /**
+     * Funds every row from the iterator and blocks until all of them have completed. The listener is called once per
+     * row as soon as it completes, in completion order and possibly from several threads at once.
+     */
+    public BulkFundingSummary run(Iterator<Map<String, Object>> rows, Consumer<BulkFundingResult> listener) throws InterruptedException {
+        return run(rows, listener, new BitSet());
+    }
+
+    /**
+     * Funds the rows of a CSV file and appends one line per row to the result file as soon as the row completes. The
+     * first line of the input names the columns, out of {@code cardId}, {@code contact}, {@code shopperId},
+     * {@code amount}, {@code currency} and {@code userSuppliedId}; the input is read as the run advances. If the
+     * result file exists, it is taken to be from an earlier run of the same input with the same run ID: the rows it
+     * reports as funded are skipped and the others, including failed ones, are funded again.
+     * <p>
+     * A malformed row stops the run with a {@link BadParameterException} once the rows in flight have completed.
+     */
+    public BulkFundingSummary runCsv(Path input, Path results) throws IOException, InterruptedException {
+        BitSet funded = new BitSet();
+        boolean resuming = Files.exists(results);
+        if (resuming) {
+            try (BufferedReader earlierResults = Files.newBufferedReader(results, StandardCharsets.UTF_8)) {
+                funded = BulkFundingCsv.readFunded(earlierResults);
+            }
+            terminateTornLine(results);
+        }
+
+        final AtomicReference<IOException> writeFailure = new AtomicReference<>();
+        BulkFundingSummary summary;
+        try (BufferedReader rows = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             final Writer resultWriter = Files.newBufferedWriter(results, StandardCharsets.UTF_8,
+                     StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (!resuming)
+                writeLine(resultWriter, BulkFundingCsv.RESULT_HEADER);
+            try {
+                summary = run(BulkFundingCsv.read(rows), result -> {
+                    try {
+                        writeLine(resultWriter, BulkFundingCsv.format(result));
+                    } catch (IOException e) {
+                        writeFailure.compareAndSet(null, e);
+                    }
+                }, funded);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        if (writeFailure.get() != null)
+            throw writeFailure.get();
+        return summary;
+    }
+
+    private BulkFundingSummary run(Iterator<Map<String, Object>> rows, final Consumer<BulkFundingResult> listener, BitSet alreadyFunded) throws InterruptedException {
+        final Semaphore slots = new Semaphore(maxInFlight);
+        final AtomicLong runSucceeded = new AtomicLong();
+        final AtomicLong runFailed = new AtomicLong();
+        long skipped = 0;
+        long start = System.nanoTime();
+
+        long position = 0;
+        try {
+            while (rows.hasNext()) {
+                slots.acquire();
+                final Map<String, Object> fundParams;
+                try {
+                    fundParams = withIdempotencyKey(rows.next(), position);
+                } catch (RuntimeException e) {
+                    slots.release();
+                    throw e;
+                }
+                final long rowPosition = position++;
+                if (rowPosition < Integer.MAX_VALUE && alreadyFunded.get((int) rowPosition)) {
+                    skipped++;
+                    slots.release();
+                    continue;
+                }
+                inFlight.incrementAndGet();
+                AsyncCalls.supply(() -> LightrailFund.create(fundParams), executor).whenComplete((fund, failure) -> {
+                    try {
+                        if (failure == null) {
+                            runSucceeded.incrementAndGet();
+                            succeeded.incrementAndGet();
+                        } else {
+                            runFailed.incrementAndGet();
+                            failed.incrementAndGet();
+                        }
+                        if (listener != null)
+                            listener.accept(new BulkFundingResult(rowPosition, fundParams, fund, (failure == null) ? null : AsyncCalls.unwrap(failure)));
+                    } finally {
+                        inFlight.decrementAndGet();
+                        slots.release();
+                    }
+                });
+            }
+        } finally {
+            slots.acquire(maxInFlight); //wait for the stragglers, also when the input failed
+            slots.release(maxInFlight);
+        }
+
+        return new BulkFundingSummary(runSucceeded.get(), runFailed.get(), skipped, System.nanoTime() - start);
+    }
+
+    private Map<String, Object> withIdempotencyKey(Map<String, Object> row, long position) {
+        if (row.containsKey(LightrailConstants.Parameters.USER_SUPPLIED_ID))
+            return row;
+        Map<String, Object> fundParams = new HashMap<>(row);
+        fundParams.put(LightrailConstants.Parameters.USER_SUPPLIED_ID, idempotencyKey(runId, position));
+        return fundParams;
+    }
+
+    static String idempotencyKey(String runId, long position) {
+        return runId + "-fund-" + position;
+    }
+
+    private static void writeLine(Writer writer, String line) throws IOException {
+        synchronized (writer) {
+            writer.write(line);
+            writer.write('\n');
+            writer.flush();
+        }
+    }
+
+    /**
+     * Ends a line torn by a crash, so that the next result goes on a line of its own.
+     */
+    private static void terminateTornLine(Path results) throws IOException {
+        try (FileChannel channel = FileChannel.open(results, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() == 0)
+                return;
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            if (last.get(0) != '\n')
+                channel.write(ByteBuffer.wrap(new byte[]{'\n'}), channel.size());
+        }
+    }
+
+    /**
+     * @return rows funded successfully since this object was created, across runs.
+     */
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getInFlight() {
+        return inFlight.get();
+    }
+}
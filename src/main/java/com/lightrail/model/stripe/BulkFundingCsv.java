@@ -0,0 +1,180 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.BadParameterException;
+import com.lightrail.helpers.LightrailConstants;
+import com.lightrail.helpers.StripeConstants;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the input and writes the result files of {@link BulkFunding#runCsv(java.nio.file.Path, java.nio.file.Path)}.
+ * Fields may be quoted, with {@code ""} standing for a quote, but cannot span lines.
+ */
+final class BulkFundingCsv {
+    static final String FUNDED = "FUNDED";
+    static final String FAILED = "FAILED";
+    static final String RESULT_HEADER = "position,userSuppliedId,status,transactionId,error";
+
+    private static final List<String> COLUMNS = Arrays.asList(
+            LightrailConstants.Parameters.CARD_ID,
+            LightrailConstants.Parameters.CONTACT,
+            LightrailConstants.Parameters.SHOPPER_ID,
+            StripeConstants.Parameters.AMOUNT,
+            LightrailConstants.Parameters.CURRENCY,
+            LightrailConstants.Parameters.USER_SUPPLIED_ID
+    );
+
+    private BulkFundingCsv() {
+    }
+
+    /**
+     * @return the fund parameters of each row, read from the input as the iterator advances. The first line names
+     * the columns, out of {@code cardId}, {@code contact}, {@code shopperId}, {@code amount}, {@code currency} and
+     * {@code userSuppliedId}. Empty cells are left out.
+     * @throws BadParameterException from {@code next()} if a row is malformed.
+     */
+    static Iterator<Map<String, Object>> read(final BufferedReader input) throws IOException {
+        String headerLine = input.readLine();
+        if (headerLine == null)
+            throw new BadParameterException("The funding input is empty; its first line must name the columns.");
+        final List<String> header = new ArrayList<>();
+        for (String column : parseLine(headerLine)) {
+            if (!COLUMNS.contains(column.trim()))
+                throw new BadParameterException("Unknown funding column '" + column + "'. Columns must be among " + COLUMNS + ".");
+            header.add(column.trim());
+        }
+
+        return new Iterator<Map<String, Object>>() {
+            private long lineNumber = 1;
+            private String nextLine = readNonBlankLine();
+
+            private String readNonBlankLine() {
+                try {
+                    String line;
+                    do {
+                        line = input.readLine();
+                        lineNumber++;
+                    } while (line != null && line.trim().isEmpty());
+                    return line;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextLine != null;
+            }
+
+            @Override
+            public Map<String, Object> next() {
+                if (nextLine == null)
+                    throw new NoSuchElementException();
+                Map<String, Object> fundParams = toFundParams(header, parseLine(nextLine), lineNumber);
+                nextLine = readNonBlankLine();
+                return fundParams;
+            }
+        };
+    }
+
+    private static Map<String, Object> toFundParams(List<String> header, List<String> cells, long lineNumber) {
+        if (cells.size() != header.size())
+            throw new BadParameterException("Line " + lineNumber + " of the funding input has " + cells.size() + " cells instead of " + header.size() + ".");
+        Map<String, Object> fundParams = new HashMap<>();
+        for (int i = 0; i < cells.size(); i++) {
+            String cell = cells.get(i).trim();
+            if (cell.isEmpty())
+                continue;
+            if (StripeConstants.Parameters.AMOUNT.equals(header.get(i))) {
+                try {
+                    fundParams.put(StripeConstants.Parameters.AMOUNT, Integer.parseInt(cell));
+                } catch (NumberFormatException e) {
+                    throw new BadParameterException("Line " + lineNumber + " of the funding input has an amount which is not an integer: '" + cell + "'.");
+                }
+            } else {
+                fundParams.put(header.get(i), cell);
+            }
+        }
+        return fundParams;
+    }
+
+    static String format(BulkFundingResult result) {
+        StringBuilder line = new StringBuilder();
+        line.append(result.getPosition()).append(',');
+        appendCell(line, result.getIdempotencyKey());
+        line.append(',').append(result.isSuccessful() ? FUNDED : FAILED).append(',');
+        appendCell(line, result.isSuccessful() ? result.getFund().getId() : null);
+        line.append(',');
+        appendCell(line, result.isSuccessful() ? null : String.valueOf(result.getFailure()));
+        return line.toString();
+    }
+
+    /**
+     * @return the positions of the rows a result file reports as funded. Lines which cannot be parsed, e.g. one
+     * torn by a crash, are ignored.
+     */
+    static BitSet readFunded(BufferedReader results) throws IOException {
+        BitSet funded = new BitSet();
+        String line;
+        while ((line = results.readLine()) != null) {
+            List<String> cells = parseLine(line);
+            if (cells.size() < 3 || !FUNDED.equals(cells.get(2)))
+                continue;
+            try {
+                funded.set(Integer.parseInt(cells.get(0)));
+            } catch (NumberFormatException e) {
+                //the header, or a torn line
+            }
+        }
+        return funded;
+    }
+
+    private static void appendCell(StringBuilder line, String cell) {
+        if (cell == null)
+            return;
+        String singleLine = cell.replace('\r', ' ').replace('\n', ' ');
+        if (singleLine.indexOf(',') < 0 && singleLine.indexOf('"') < 0) {
+            line.append(singleLine);
+            return;
+        }
+        line.append('"').append(singleLine.replace("\"", "\"\"")).append('"');
+    }
+
+    static List<String> parseLine(String line) {
+        List<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    cell.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    cell.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else {
+                cell.append(c);
+            }
+        }
+        cells.add(cell.toString());
+        return cells;
+    }
+}
@@ -0,0 +1,55 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.helpers.LightrailConstants;
+
+import java.util.Map;
+
+public class BulkFundingResult {
+    private final long position;
+    private final Map<String, Object> fundParams;
+    private final LightrailFund fund;
+    private final Throwable failure;
+
+    BulkFundingResult(long position, Map<String, Object> fundParams, LightrailFund fund, Throwable failure) {
+        this.position = position;
+        this.fundParams = fundParams;
+        this.fund = fund;
+        this.failure = failure;
+    }
+
+    /**
+     * @return the zero-based position of this row in the input.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return the parameters the row was funded with, including its idempotency key.
+     */
+    public Map<String, Object> getFundParams() {
+        return fundParams;
+    }
+
+    public String getIdempotencyKey() {
+        return (String) fundParams.get(LightrailConstants.Parameters.USER_SUPPLIED_ID);
+    }
+
+    /**
+     * @return the fund transaction, or {@code null} if this row failed.
+     */
+    public LightrailFund getFund() {
+        return fund;
+    }
+
+    /**
+     * @return the exception the funding failed with, e.g. a {@code CouldNotFindObjectException}, or {@code null}.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public boolean isSuccessful() {
+        return failure == null;
+    }
+}
@@ -0,0 +1,58 @@
+package com.lightrail.model.stripe;
+
+import java.util.concurrent.TimeUnit;
+
+public class BulkFundingSummary {
+    private final long succeeded;
+    private final long failed;
+    private final long skipped;
+    private final long elapsedNanos;
+
+    BulkFundingSummary(long succeeded, long failed, long skipped, long elapsedNanos) {
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.skipped = skipped;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public long getSucceeded() {
+        return succeeded;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return rows not funded again because an earlier run of the same input already funded them.
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return rows funded or failed in this run, not counting skipped rows.
+     */
+    public long getTotal() {
+        return succeeded + failed;
+    }
+
+    public long getElapsed(TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return completed rows (successful or not) per second over the whole run.
+     */
+    public double getThroughputPerSecond() {
+        if (elapsedNanos == 0)
+            return 0;
+        return getTotal() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d funds (%d succeeded, %d failed, %d skipped) in %d ms, %.1f funds/s",
+                getTotal(), succeeded, failed, skipped, getElapsed(TimeUnit.MILLISECONDS), getThroughputPerSecond());
+    }
+}
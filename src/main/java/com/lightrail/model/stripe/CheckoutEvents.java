@@ -0,0 +1,96 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.InsufficientValueException;
+import com.lightrail.exceptions.ThirdPartyException;
+import com.lightrail.helpers.LightrailConstants;
+import com.stripe.exception.CardException;
+
+import java.util.Map;
+
+/**
+ * Emits a JDK Flight Recorder event for each {@link MetricsRegistry.Phase}, when the JVM has Flight Recorder
+ * ({@code jdk.jfr}, in Java 11 and 8u272 or later) and the event type is enabled in the recording. The event classes
+ * are only loaded when Flight Recorder is present, so this library still runs on JVMs without it.
+ */
+final class CheckoutEvents {
+    static final String SUCCEEDED = "SUCCEEDED";
+    static final String FAILED = "FAILED";
+    static final String INSUFFICIENT_VALUE = "INSUFFICIENT_VALUE";
+    static final String STRIPE_DECLINED = "STRIPE_DECLINED";
+
+    /**
+     * A call being recorded. It must be completed exactly once, after the call returned or failed.
+     */
+    interface Span {
+        /**
+         * @param failure what the call failed with, or {@code null} if it succeeded.
+         */
+        void complete(String idempotencyKey, String currency, long amount, Throwable failure);
+
+        /**
+         * Completes the span of a whole split-tender simulation or charge.
+         */
+        void complete(String idempotencyKey, String currency, long amount, int lightrailShare, int stripeShare, Throwable failure);
+    }
+
+    static final Span DISABLED = new Span() {
+        @Override
+        public void complete(String idempotencyKey, String currency, long amount, Throwable failure) {
+        }
+
+        @Override
+        public void complete(String idempotencyKey, String currency, long amount, int lightrailShare, int stripeShare, Throwable failure) {
+        }
+    };
+
+    private static final boolean FLIGHT_RECORDER_AVAILABLE = isFlightRecorderAvailable();
+
+    private CheckoutEvents() {
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, CheckoutEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts timing a call. Returns {@link #DISABLED} unless the phase's event type is enabled in a running recording.
+     */
+    static Span begin(MetricsRegistry.Phase phase) {
+        return FLIGHT_RECORDER_AVAILABLE ? FlightRecorderEvents.begin(phase) : DISABLED;
+    }
+
+    static String outcomeOf(Throwable failure) {
+        if (failure == null)
+            return SUCCEEDED;
+        if (failure instanceof InsufficientValueException)
+            return INSUFFICIENT_VALUE;
+        if (failure instanceof CardException
+                || (failure instanceof ThirdPartyException && failure.getCause() instanceof CardException))
+            return STRIPE_DECLINED;
+        return FAILED + ": " + failure.getClass().getSimpleName();
+    }
+
+    static String idempotencyKeyOf(Map<String, Object> params) {
+        Object idempotencyKey = params.get(LightrailConstants.Parameters.USER_SUPPLIED_ID);
+        return (idempotencyKey instanceof String) ? (String) idempotencyKey : null;
+    }
+
+    static String currencyOf(Map<String, Object> params) {
+        Object currency = params.get(LightrailConstants.Parameters.CURRENCY);
+        return (currency instanceof String) ? (String) currency : null;
+    }
+
+    /**
+     * @return the absolute value of an amount parameter, so that Lightrail's negative charge values read as amounts,
+     * or 0 if the parameter is missing.
+     */
+    static long amountOf(Map<String, Object> params, String amountParameter) {
+        Object amount = params.get(amountParameter);
+        return (amount instanceof Number) ? Math.abs(((Number) amount).longValue()) : 0;
+    }
+}
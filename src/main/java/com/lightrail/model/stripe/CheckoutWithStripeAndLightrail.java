@@ -2,14 +2,20 @@ package com.lightrail.model.stripe;
 
 
 import com.lightrail.exceptions.*;
-import com.lightrail.helpers.LightrailConstants;
-import com.lightrail.helpers.StripeConstants;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A checkout session for one order. The last simulation is remembered and reused by {@link #needsCreditCardPayment()},
+ * {@link #simulate()} and {@link #checkout()} until the order or any payment method changes, or until it is older than
+ * the simulation freshness window.
+ */
 public class CheckoutWithStripeAndLightrail {
+    public static final long DEFAULT_SIMULATION_FRESHNESS_SECONDS = 30;
+
     private int orderTotal;
     private String orderCurrency;
     private String giftCode = null;
@@ -18,87 +24,162 @@ public class CheckoutWithStripeAndLightrail {
     private String lightrailContact = null;
     private String stripeToken = null;
     private String stripeCustomer = null;
+    private LightrailStripeGateway gateway = null;
+    private SplitAllocationPolicy allocationPolicy = null;
 
     StripeLightrailSplitTenderCharge stripeLightrailSplitTenderChargeObject = null;
 
+    private long simulationFreshnessNanos = TimeUnit.SECONDS.toNanos(DEFAULT_SIMULATION_FRESHNESS_SECONDS);
+    private SimulatedStripeLightrailSplitTenderCharge lastSimulation = null;
+    private long lastSimulationTime;
+    private long inputVersion = 0;
+
     public CheckoutWithStripeAndLightrail(int orderTotal, String orderCurrency) {
         setOrderTotal(orderTotal, orderCurrency);
     }
 
     public CheckoutWithStripeAndLightrail useLightrailGiftCode(String giftCode) {
         this.giftCode = giftCode;
+        invalidateSimulation();
         return this;
     }
 
     public CheckoutWithStripeAndLightrail useStripeToken(String stripeToken) {
         this.stripeToken = stripeToken;
+        invalidateSimulation();
         return this;
     }
 
     public CheckoutWithStripeAndLightrail useStripeCustomer(String stripeCustomer) {
         this.stripeCustomer = stripeCustomer;
+        invalidateSimulation();
         return this;
     }
 
     public CheckoutWithStripeAndLightrail useLightrailContact(String lightrailCustomerId) {
         this.lightrailContact = lightrailCustomerId;
+        invalidateSimulation();
         return this;
     }
 
     public CheckoutWithStripeAndLightrail useLightrailShopperId(String lightrailShopperId) {
         this.lightrailShopperId = lightrailShopperId;
+        invalidateSimulation();
         return this;
     }
 
     public CheckoutWithStripeAndLightrail useLightrailCardId(String giftCardId) {
         this.cardId = giftCardId;
+        invalidateSimulation();
         return this;
     }
 
     public CheckoutWithStripeAndLightrail setOrderTotal(int orderTotal, String orderCurrency) {
         this.orderTotal = orderTotal;
         this.orderCurrency = orderCurrency;
+        invalidateSimulation();
+        return this;
+    }
+
+    /**
+     * Makes the checkout's Lightrail and Stripe calls through the given gateway, or the default one with
+     * {@code null}.
+     */
+    public CheckoutWithStripeAndLightrail setGateway(LightrailStripeGateway gateway) {
+        this.gateway = gateway;
+        invalidateSimulation();
         return this;
     }
 
+    /**
+     * Splits the order between Lightrail and Stripe with the given policy, or the default one with {@code null}.
+     */
+    public CheckoutWithStripeAndLightrail setAllocationPolicy(SplitAllocationPolicy allocationPolicy) {
+        this.allocationPolicy = allocationPolicy;
+        invalidateSimulation();
+        return this;
+    }
+
+    /**
+     * Sets how long a simulation is reused before the Lightrail value is checked again. A zero duration turns
+     * reuse off, so every call simulates.
+     */
+    public CheckoutWithStripeAndLightrail setSimulationFreshness(long duration, TimeUnit unit) {
+        this.simulationFreshnessNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    public synchronized void invalidateSimulation() {
+        inputVersion++;
+        lastSimulation = null;
+    }
+
+    private synchronized SimulatedStripeLightrailSplitTenderCharge getFreshSimulation() {
+        if (lastSimulation != null && System.nanoTime() - lastSimulationTime < simulationFreshnessNanos)
+            return lastSimulation;
+        lastSimulation = null;
+        return null;
+    }
+
+    private synchronized void rememberSimulation(SimulatedStripeLightrailSplitTenderCharge simulation, long simulatedInputVersion, long simulationTime) {
+        if (simulatedInputVersion == inputVersion) { //otherwise the input changed while simulating
+            lastSimulation = simulation;
+            lastSimulationTime = simulationTime;
+        }
+    }
+
+    private synchronized long getInputVersion() {
+        return inputVersion;
+    }
+
     public boolean needsCreditCardPayment() throws IOException, CurrencyMismatchException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException, ThirdPartyException {
-        return (StripeLightrailSplitTenderCharge.simulate(getChargeParams()).getStripeCharge() != null);
+        return (simulate().getStripeCharge() != null);
 
     }
 
     public SimulatedStripeLightrailSplitTenderCharge simulate() throws IOException, CurrencyMismatchException, InsufficientValueException, AuthorizationException, CouldNotFindObjectException, ThirdPartyException {
-        return StripeLightrailSplitTenderCharge.simulate(getChargeParams());
+        SimulatedStripeLightrailSplitTenderCharge simulation = getFreshSimulation();
+        if (simulation == null) {
+            long simulatedInputVersion = getInputVersion();
+            long simulationTime = System.nanoTime();
+            simulation = StripeLightrailSplitTenderCharge.simulate(getChargeRequest());
+            rememberSimulation(simulation, simulatedInputVersion, simulationTime);
+        }
+        return simulation;
     }
 
+    /**
+     * Commits the remembered simulation if it is still fresh, otherwise simulates first. A committed plan is never
+     * reused: the next call simulates again.
+     */
     public StripeLightrailSplitTenderCharge checkout() throws IOException, AuthorizationException, ThirdPartyException, CurrencyMismatchException, CouldNotFindObjectException, InsufficientValueException {
         SimulatedStripeLightrailSplitTenderCharge simulatedTx = simulate();
+        invalidateSimulation();
         return simulatedTx.commit();
     }
 
-    private Map<String, Object> getChargeParams() {
-        Map<String, Object> chargeParams = new HashMap<>();
-        chargeParams.put(StripeConstants.Parameters.AMOUNT, orderTotal);
-        chargeParams.put(LightrailConstants.Parameters.CURRENCY, orderCurrency);
-        if (giftCode != null) {
-            chargeParams.put(LightrailConstants.Parameters.CODE, giftCode);
-        }
-        if (cardId != null) {
-            chargeParams.put(LightrailConstants.Parameters.CARD_ID, cardId);
-        }
-        if (lightrailContact != null) {
-            chargeParams.put(LightrailConstants.Parameters.CONTACT, lightrailContact);
-        }
-        if (lightrailShopperId != null) {
-            chargeParams.put(LightrailConstants.Parameters.SHOPPER_ID, lightrailShopperId);
-        }
-        if (stripeToken != null) {
-            chargeParams.put(StripeConstants.Parameters.TOKEN, stripeToken);
-        }
-        if (stripeCustomer != null) {
-            chargeParams.put(StripeConstants.Parameters.CUSTOMER, stripeCustomer);
-        }
+    public CompletableFuture<StripeLightrailSplitTenderCharge> checkoutAsync(Executor executor) {
+        SimulatedStripeLightrailSplitTenderCharge simulatedTx = getFreshSimulation();
+        if (simulatedTx == null)
+            return StripeLightrailSplitTenderCharge.createAsync(getChargeRequest(), executor);
+        invalidateSimulation();
+        return simulatedTx.commitAsync(executor);
+    }
 
-        return chargeParams;
+    /**
+     * The request built for every simulation and checkout. Package-private for {@code TranslationBenchmark}.
+     */
+    SplitTenderChargeRequest getChargeRequest() {
+        return SplitTenderChargeRequest.builder(orderTotal, orderCurrency)
+                .useLightrailGiftCode(giftCode)
+                .useLightrailCardId(cardId)
+                .useLightrailContact(lightrailContact)
+                .useLightrailShopperId(lightrailShopperId)
+                .useStripeToken(stripeToken)
+                .useStripeCustomer(stripeCustomer)
+                .setGateway(gateway)
+                .setAllocationPolicy(allocationPolicy)
+                .build();
     }
 
     public String getOrderCurrency() {
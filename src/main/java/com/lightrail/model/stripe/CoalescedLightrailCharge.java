@@ -0,0 +1,37 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.helpers.LightrailConstants;
+
+import java.util.Map;
+
+/**
+ * One caller's copy of a simulated charge shared by coalesced callers, see {@link LightrailSingleFlight}. It reads
+ * the shared transaction but keeps its own amount, so that {@link #setAmount(int)} does not change the others', and
+ * its own idempotency key rather than the one of the caller whose simulation was made.
+ */
+class CoalescedLightrailCharge extends LightrailCharge {
+    private final String idempotencyKey;
+    private int amount;
+
+    CoalescedLightrailCharge(LightrailCharge sharedCharge, Map<String, Object> chargeParams) {
+        super(sharedCharge.transactionObject, sharedCharge.gateway);
+        this.amount = sharedCharge.getAmount();
+        String callerIdempotencyKey = (String) chargeParams.get(LightrailConstants.Parameters.USER_SUPPLIED_ID);
+        this.idempotencyKey = (callerIdempotencyKey != null) ? callerIdempotencyKey : sharedCharge.getIdempotencyKey();
+    }
+
+    @Override
+    public int getAmount() {
+        return amount;
+    }
+
+    @Override
+    public void setAmount(int amount) {
+        this.amount = amount;
+    }
+
+    @Override
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+}
@@ -0,0 +1,93 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.*;
+import com.lightrail.model.api.objects.Metadata;
+import com.lightrail.model.api.objects.RequestParameters;
+import com.lightrail.model.business.LightrailContact;
+import com.lightrail.model.business.LightrailTransaction;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Charge;
+import com.stripe.model.ChargeCollection;
+import com.stripe.model.Refund;
+import com.stripe.net.RequestOptions;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Makes each call with the Lightrail and Stripe clients, which open connections through {@link java.net.URL}.
+ */
+public class DefaultLightrailStripeGateway implements LightrailStripeGateway {
+    static final DefaultLightrailStripeGateway INSTANCE = new DefaultLightrailStripeGateway();
+
+    @Override
+    public LightrailTransaction createTransaction(RequestParameters params) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException {
+        return LightrailTransaction.Create.create(params);
+    }
+
+    @Override
+    public LightrailTransaction simulateTransaction(RequestParameters params) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException {
+        return LightrailTransaction.Simulate.simulate(params);
+    }
+
+    @Override
+    public LightrailTransaction retrieveTransaction(RequestParameters params) throws IOException, AuthorizationException, CouldNotFindObjectException {
+        return LightrailTransaction.Retrieve.retrieve(params);
+    }
+
+    @Override
+    public LightrailTransaction captureTransaction(LightrailTransaction pendingTransaction, String userSuppliedId, Metadata metadata) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException {
+        if (userSuppliedId != null)
+            return pendingTransaction.capture(userSuppliedId, metadata);
+        return (metadata != null) ? pendingTransaction.capture(metadata) : pendingTransaction.capture();
+    }
+
+    @Override
+    public LightrailTransaction voidTransaction(LightrailTransaction pendingTransaction, String userSuppliedId, Metadata metadata) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException {
+        if (userSuppliedId != null)
+            return pendingTransaction.doVoid(userSuppliedId, metadata);
+        return (metadata != null) ? pendingTransaction.doVoid(metadata) : pendingTransaction.doVoid();
+    }
+
+    @Override
+    public LightrailTransaction refundTransaction(LightrailTransaction transaction, String userSuppliedId, Metadata metadata) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException {
+        if (userSuppliedId != null)
+            return transaction.refund(userSuppliedId, metadata);
+        return (metadata != null) ? transaction.refund(metadata) : transaction.refund();
+    }
+
+    @Override
+    public RequestParameters resolveContact(RequestParameters params) throws IOException, AuthorizationException, CouldNotFindObjectException, CurrencyMismatchException {
+        return LightrailContact.handleContact(params);
+    }
+
+    @Override
+    public Charge createCharge(Map<String, Object> params, RequestOptions options) throws StripeException {
+        return (options == null) ? Charge.create(params) : Charge.create(params, options);
+    }
+
+    @Override
+    public Charge retrieveCharge(String chargeId) throws StripeException {
+        return Charge.retrieve(chargeId);
+    }
+
+    @Override
+    public ChargeCollection listCharges(Map<String, Object> params) throws StripeException {
+        return Charge.list(params);
+    }
+
+    @Override
+    public Charge captureCharge(Charge charge, Map<String, Object> params, RequestOptions options) throws StripeException {
+        return charge.capture(params, options);
+    }
+
+    @Override
+    public Charge updateCharge(Charge charge, Map<String, Object> params) throws StripeException {
+        return charge.update(params);
+    }
+
+    @Override
+    public Refund createRefund(Map<String, Object> params, RequestOptions options) throws StripeException {
+        return Refund.create(params, options);
+    }
+}
@@ -0,0 +1,212 @@
+package com.lightrail.model.stripe;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Flight Recorder event types of {@link CheckoutEvents}, one per {@link MetricsRegistry.Phase}, so that each can be
+ * enabled, disabled or given a threshold on its own in the recording settings, e.g.
+ * {@code com.lightrail.StripeCharge#threshold=100 ms}. Only loaded by {@link CheckoutEvents} once it knows
+ * {@code jdk.jfr} is present.
+ */
+final class FlightRecorderEvents {
+
+    /**
+     * The event type of each phase, by ordinal, so that a disabled phase is known without allocating an event.
+     */
+    private static final EventType[] EVENT_TYPES;
+
+    static {
+        MetricsRegistry.Phase[] phases = MetricsRegistry.Phase.values();
+        EVENT_TYPES = new EventType[phases.length];
+        for (MetricsRegistry.Phase phase : phases)
+            EVENT_TYPES[phase.ordinal()] = EventType.getEventType(newEvent(phase).getClass());
+    }
+
+    private FlightRecorderEvents() {
+    }
+
+    /**
+     * Allocates nothing unless the phase's event type is enabled in a running recording.
+     */
+    static CheckoutEvents.Span begin(MetricsRegistry.Phase phase) {
+        if (!EVENT_TYPES[phase.ordinal()].isEnabled())
+            return CheckoutEvents.DISABLED;
+        CheckoutEvent event = newEvent(phase);
+        event.begin();
+        return event;
+    }
+
+    private static CheckoutEvent newEvent(MetricsRegistry.Phase phase) {
+        switch (phase) {
+            case LIGHTRAIL_SIMULATE:
+                return new LightrailSimulateEvent();
+            case LIGHTRAIL_CHARGE:
+                return new LightrailChargeEvent();
+            case LIGHTRAIL_PENDING_CHARGE:
+                return new LightrailPendingChargeEvent();
+            case LIGHTRAIL_CAPTURE:
+                return new LightrailCaptureEvent();
+            case LIGHTRAIL_VOID:
+                return new LightrailVoidEvent();
+            case LIGHTRAIL_REFUND:
+                return new LightrailRefundEvent();
+            case LIGHTRAIL_FUND:
+                return new LightrailFundEvent();
+            case LIGHTRAIL_RETRIEVE:
+                return new LightrailRetrieveEvent();
+            case LIGHTRAIL_CONTACT_LOOKUP:
+                return new LightrailContactLookupEvent();
+            case STRIPE_CHARGE:
+                return new StripeChargeEvent();
+            case STRIPE_RETRIEVE:
+                return new StripeRetrieveEvent();
+            case STRIPE_UPDATE:
+                return new StripeUpdateEvent();
+            case STRIPE_REFUND:
+                return new StripeRefundEvent();
+            case STRIPE_CAPTURE:
+                return new StripeCaptureEvent();
+            case SPLIT_TENDER_SIMULATE:
+                return new SplitTenderSimulateEvent();
+            case SPLIT_TENDER_CREATE:
+                return new SplitTenderCreateEvent();
+            default:
+                throw new IllegalArgumentException("No event type for " + phase);
+        }
+    }
+
+    @Category({"Lightrail", "Checkout"})
+    abstract static class CheckoutEvent extends Event implements CheckoutEvents.Span {
+        @Label("Idempotency Key")
+        @Description("The userSuppliedId of the Lightrail transaction or the Idempotency-Key of the Stripe request")
+        String idempotencyKey;
+
+        @Label("Currency")
+        String currency;
+
+        @Label("Amount")
+        @Description("In the smallest unit of the currency")
+        long amount;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Override
+        public void complete(String idempotencyKey, String currency, long amount, Throwable failure) {
+            end();
+            if (shouldCommit()) {
+                this.idempotencyKey = idempotencyKey;
+                this.currency = currency;
+                this.amount = amount;
+                this.outcome = CheckoutEvents.outcomeOf(failure);
+                commit();
+            }
+        }
+
+        @Override
+        public void complete(String idempotencyKey, String currency, long amount, int lightrailShare, int stripeShare, Throwable failure) {
+            complete(idempotencyKey, currency, amount, failure);
+        }
+    }
+
+    abstract static class SplitTenderEvent extends CheckoutEvent {
+        @Label("Lightrail Share")
+        long lightrailShare;
+
+        @Label("Stripe Share")
+        long stripeShare;
+
+        @Override
+        public void complete(String idempotencyKey, String currency, long amount, int lightrailShare, int stripeShare, Throwable failure) {
+            this.lightrailShare = lightrailShare;
+            this.stripeShare = stripeShare;
+            complete(idempotencyKey, currency, amount, failure);
+        }
+    }
+
+    @Name("com.lightrail.SplitTenderSimulate")
+    @Label("Split-Tender Simulate")
+    static final class SplitTenderSimulateEvent extends SplitTenderEvent {
+    }
+
+    @Name("com.lightrail.SplitTenderCreate")
+    @Label("Split-Tender Create")
+    @Description("A whole split-tender charge, from the first leg to the capture")
+    static final class SplitTenderCreateEvent extends SplitTenderEvent {
+    }
+
+    @Name("com.lightrail.LightrailSimulate")
+    @Label("Lightrail Simulate")
+    static final class LightrailSimulateEvent extends CheckoutEvent {
+    }
+
+    @Name("com.lightrail.LightrailCharge")
+    @Label("Lightrail Charge")
+    static final class LightrailChargeEvent extends CheckoutEvent {
+    }
+
+    @Name("com.lightrail.LightrailPendingCharge")
+    @Label("Lightrail Pending Charge")
+    static final class LightrailPendingChargeEvent extends CheckoutEvent {
+    }
+
+    @Name("com.lightrail.LightrailCapture")
+    @Label("Lightrail Capture")
+    static final class LightrailCaptureEvent extends CheckoutEvent {
+    }
+
+    @Name("com.lightrail.LightrailVoid")
+    @Label("Lightrail Void")
+    static final class LightrailVoidEvent extends CheckoutEvent {
+    }
+
+    @Name("com.lightrail.LightrailRefund")
+    @Label("Lightrail Refund")
+    static final class LightrailRefundEvent extends CheckoutEvent {
+    }
+
+    @Name("com.lightrail.LightrailFund")
+    @Label("Lightrail Fund")
+    static final class LightrailFundEvent extends CheckoutEvent {
+    }
+
+    @Name("com.lightrail.LightrailRetrieve")
+    @Label("Lightrail Retrieve")
+    static final class LightrailRetrieveEvent extends CheckoutEvent {
+    }
+
+    @Name("com.lightrail.LightrailContactLookup")
+    @Label("Lightrail Contact Lookup")
+    static final class LightrailContactLookupEvent extends CheckoutEvent {
+    }
+
+    @Name("com.lightrail.StripeCharge")
+    @Label("Stripe Charge")
+    static final class StripeChargeEvent extends CheckoutEvent {
+    }
+
+    @Name("com.lightrail.StripeRetrieve")
+    @Label("Stripe Retrieve")
+    static final class StripeRetrieveEvent extends CheckoutEvent {
+    }
+
+    @Name("com.lightrail.StripeUpdate")
+    @Label("Stripe Update")
+    static final class StripeUpdateEvent extends CheckoutEvent {
+    }
+
+    @Name("com.lightrail.StripeRefund")
+    @Label("Stripe Refund")
+    static final class StripeRefundEvent extends CheckoutEvent {
+    }
+
+    @Name("com.lightrail.StripeCapture")
+    @Label("Stripe Capture")
+    static final class StripeCaptureEvent extends CheckoutEvent {
+    }
+}
@@ -0,0 +1,106 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.helpers.LatencyHistogram;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link MetricsRegistry} keeping a {@link LatencyHistogram} and failure, retry and coalescing counters per phase,
+ * and a counter per outcome, in this process.
+ */
+public class HistogramMetricsRegistry implements MetricsRegistry {
+    private final Map<Phase, LatencyHistogram> latencies = new EnumMap<>(Phase.class);
+    private final Map<Phase, LongAdder> failures = new EnumMap<>(Phase.class);
+    private final Map<Phase, LongAdder> retries = new EnumMap<>(Phase.class);
+    private final Map<Phase, LongAdder> coalesced = new EnumMap<>(Phase.class);
+    private final Map<Outcome, LongAdder> outcomes = new EnumMap<>(Outcome.class);
+
+    public HistogramMetricsRegistry() {
+        for (Phase phase : Phase.values()) {
+            latencies.put(phase, new LatencyHistogram());
+            failures.put(phase, new LongAdder());
+            retries.put(phase, new LongAdder());
+            coalesced.put(phase, new LongAdder());
+        }
+        for (Outcome outcome : Outcome.values())
+            outcomes.put(outcome, new LongAdder());
+    }
+
+    @Override
+    public void recordLatency(Phase phase, long nanos, boolean successful) {
+        latencies.get(phase).record(nanos);
+        if (!successful)
+            failures.get(phase).increment();
+    }
+
+    @Override
+    public void recordOutcome(Outcome outcome) {
+        outcomes.get(outcome).increment();
+    }
+
+    @Override
+    public void recordRetry(Phase phase) {
+        retries.get(phase).increment();
+    }
+
+    @Override
+    public void recordCoalesced(Phase phase) {
+        coalesced.get(phase).increment();
+    }
+
+    /**
+     * @return the latencies of all calls of the phase, successful or not.
+     */
+    public LatencyHistogram getLatency(Phase phase) {
+        return latencies.get(phase);
+    }
+
+    public long getFailureCount(Phase phase) {
+        return failures.get(phase).sum();
+    }
+
+    public long getRetryCount(Phase phase) {
+        return retries.get(phase).sum();
+    }
+
+    public long getCoalescedCount(Phase phase) {
+        return coalesced.get(phase).sum();
+    }
+
+    public long getOutcomeCount(Outcome outcome) {
+        return outcomes.get(outcome).sum();
+    }
+
+    public void reset() {
+        for (Phase phase : Phase.values()) {
+            latencies.get(phase).reset();
+            failures.get(phase).reset();
+            retries.get(phase).reset();
+            coalesced.get(phase).reset();
+        }
+        for (Outcome outcome : Outcome.values())
+            outcomes.get(outcome).reset();
+    }
+
+    /**
+     * @return one line per phase that was called, then the outcome counts.
+     */
+    public String getSummary() {
+        StringBuilder buffer = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram latency = latencies.get(phase);
+            if (latency.getCount() == 0)
+                continue;
+            buffer.append(phase).append(": ").append(latency)
+                    .append(" failures=").append(getFailureCount(phase))
+                    .append(" retries=").append(getRetryCount(phase))
+                    .append(" coalesced=").append(getCoalescedCount(phase))
+                    .append('\n');
+        }
+        for (Outcome outcome : Outcome.values())
+            buffer.append(outcome).append(": ").append(getOutcomeCount(outcome)).append('\n');
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,97 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.helpers.ExpiringLruCache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link LightrailResolutionCache} held in this process, bounded in size and age, with hit and miss counters.
+ */
+public class InMemoryLightrailResolutionCache implements LightrailResolutionCache {
+    private static final char SEPARATOR = '\u0000';
+
+    private final ExpiringLruCache<String, String> accountCardIds;
+    private final ExpiringLruCache<String, String> codeCardIds;
+
+    public InMemoryLightrailResolutionCache(int maxEntries, long ttl, TimeUnit unit) {
+        accountCardIds = new ExpiringLruCache<>(maxEntries, ttl, unit);
+        codeCardIds = new ExpiringLruCache<>(maxEntries, ttl, unit);
+    }
+
+    private static String contactKey(String contactId, String currency) {
+        return "contact" + SEPARATOR + contactId + SEPARATOR + currency;
+    }
+
+    private static String shopperKey(String shopperId, String currency) {
+        return "shopper" + SEPARATOR + shopperId + SEPARATOR + currency;
+    }
+
+    @Override
+    public String getCardIdForContact(String contactId, String currency) {
+        return accountCardIds.get(contactKey(contactId, currency));
+    }
+
+    @Override
+    public void putCardIdForContact(String contactId, String currency, String cardId) {
+        accountCardIds.put(contactKey(contactId, currency), cardId);
+    }
+
+    @Override
+    public String getCardIdForShopper(String shopperId, String currency) {
+        return accountCardIds.get(shopperKey(shopperId, currency));
+    }
+
+    @Override
+    public void putCardIdForShopper(String shopperId, String currency, String cardId) {
+        accountCardIds.put(shopperKey(shopperId, currency), cardId);
+    }
+
+    @Override
+    public String getCardIdForCode(String code) {
+        return codeCardIds.get(code);
+    }
+
+    @Override
+    public void putCardIdForCode(String code, String cardId) {
+        codeCardIds.put(code, cardId);
+    }
+
+    @Override
+    public void invalidateContact(String contactId) {
+        final String prefix = contactKey(contactId, "");
+        accountCardIds.removeIf(key -> key.startsWith(prefix));
+    }
+
+    @Override
+    public void invalidateShopper(String shopperId) {
+        final String prefix = shopperKey(shopperId, "");
+        accountCardIds.removeIf(key -> key.startsWith(prefix));
+    }
+
+    @Override
+    public void invalidateCode(String code) {
+        codeCardIds.remove(code);
+    }
+
+    @Override
+    public void clear() {
+        accountCardIds.clear();
+        codeCardIds.clear();
+    }
+
+    public long getHits() {
+        return accountCardIds.getHits() + codeCardIds.getHits();
+    }
+
+    public long getMisses() {
+        return accountCardIds.getMisses() + codeCardIds.getMisses();
+    }
+
+    public long getEvictions() {
+        return accountCardIds.getEvictions() + codeCardIds.getEvictions();
+    }
+
+    public int size() {
+        return accountCardIds.size() + codeCardIds.size();
+    }
+}
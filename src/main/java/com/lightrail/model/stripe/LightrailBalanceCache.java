@@ -0,0 +1,142 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.helpers.ExpiringLruCache;
+import com.lightrail.helpers.LightrailConstants;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional client-side cache of how much value each Lightrail Card can cover, learned from previous simulations.
+ * When installed with {@link #setDefault(LightrailBalanceCache)}, split-tender simulations,
+ * {@link LightrailCharge#simulateByCardId} and {@link LightrailCharge#simulateByCode} are answered locally whenever
+ * the cached knowledge is enough to know the result, and every charge, capture, void, refund and fund made through
+ * this library drops the entry of the Card it touched. {@link LightrailCharge#simulate(Map)} always asks Lightrail,
+ * since its parameters may carry an idempotency key only Lightrail can look up, but the cache learns from it. Changes
+ * made outside this process are only picked up once an entry expires, so keep the TTL short.
+ */
+public class LightrailBalanceCache {
+    private static volatile LightrailBalanceCache defaultCache = null;
+
+    /**
+     * What a simulation told us: either the exact available value (the card could not cover the requested amount)
+     * or a lower bound (it covered all of it).
+     */
+    private static class CardValue {
+        final String currency;
+        final int value;
+        final boolean exact;
+
+        CardValue(String currency, int value, boolean exact) {
+            this.currency = currency;
+            this.value = value;
+            this.exact = exact;
+        }
+    }
+
+    private final ExpiringLruCache<String, CardValue> valuesByCardId;
+    private final ExpiringLruCache<String, String> cardIdsByCode;
+
+    public LightrailBalanceCache(int maxCards, long ttl, TimeUnit unit) {
+        valuesByCardId = new ExpiringLruCache<>(maxCards, ttl, unit);
+        cardIdsByCode = new ExpiringLruCache<>(maxCards, ttl, unit);
+    }
+
+    public static LightrailBalanceCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Installs the cache used by this library, or turns caching off with {@code null}.
+     */
+    public static void setDefault(LightrailBalanceCache cache) {
+        defaultCache = cache;
+    }
+
+    public void invalidateCard(String cardId) {
+        if (cardId != null)
+            valuesByCardId.remove(cardId);
+    }
+
+    public void clear() {
+        valuesByCardId.clear();
+        cardIdsByCode.clear();
+    }
+
+    public int size() {
+        return valuesByCardId.size();
+    }
+
+    private String getCardId(Map<String, Object> chargeParams) {
+        String cardId = (String) chargeParams.get(LightrailConstants.Parameters.CARD_ID);
+        if (cardId != null)
+            return cardId;
+        String code = (String) chargeParams.get(LightrailConstants.Parameters.CODE);
+        return (code == null) ? null : cardIdsByCode.get(code);
+    }
+
+    /**
+     * Tells how much of an amount a Card can cover from what earlier simulations learned, without asking Lightrail.
+     *
+     * @param chargeParams    the {@code cardId} or {@code code}, and the {@code currency}.
+     * @param requestedAmount the amount to cover.
+     * @return the amount the Card can cover, or {@code null} if the cache cannot tell for sure and Lightrail must be
+     * asked.
+     */
+    public Integer getCoverableAmount(Map<String, Object> chargeParams, int requestedAmount) {
+        String cardId = getCardId(chargeParams);
+        if (cardId == null)
+            return null;
+        CardValue cardValue = valuesByCardId.get(cardId);
+        if (cardValue == null || !cardValue.currency.equals(chargeParams.get(LightrailConstants.Parameters.CURRENCY)))
+            return null;
+
+        if (cardValue.exact)
+            return Math.min(requestedAmount, cardValue.value);
+        else if (requestedAmount <= cardValue.value)
+            return requestedAmount;
+        return null;
+    }
+
+    /**
+     * @return the simulated charge, or {@code null} if the cache cannot tell for sure and Lightrail must be asked.
+     */
+    LightrailCharge simulate(Map<String, Object> chargeParams, int requestedAmount) {
+        Integer coverableAmount = getCoverableAmount(chargeParams, requestedAmount);
+        if (coverableAmount == null)
+            return null;
+        return new LocallySimulatedLightrailCharge(getCardId(chargeParams), (String) chargeParams.get(LightrailConstants.Parameters.CURRENCY), coverableAmount, chargeParams);
+    }
+
+    void recordSimulation(Map<String, Object> chargeParams, int requestedAmount, LightrailCharge simulatedCharge) {
+        Object currency = chargeParams.get(LightrailConstants.Parameters.CURRENCY);
+        if (simulatedCharge.getId() != null) //an idempotent replay, not a simulation
+            return;
+        if (!(currency instanceof String) || simulatedCharge.getTransactionObject() == null)
+            return;
+        String cardId = simulatedCharge.getTransactionObject().getCardId();
+        if (cardId == null)
+            return;
+        String code = (String) chargeParams.get(LightrailConstants.Parameters.CODE);
+        if (code != null)
+            cardIdsByCode.put(code, cardId);
+
+        int simulatedAmount = simulatedCharge.getAmount();
+        valuesByCardId.put(cardId, new CardValue((String) currency, simulatedAmount, simulatedAmount < requestedAmount));
+    }
+
+    static void cardChanged(Map<String, Object> params, LightrailBaseTransaction result) {
+        LightrailBalanceCache cache = defaultCache;
+        if (cache == null)
+            return;
+        cache.invalidateCard(cache.getCardId(params));
+        if (result != null && result.getTransactionObject() != null)
+            cache.invalidateCard(result.getTransactionObject().getCardId());
+    }
+
+    static void cardChanged(LightrailBaseTransaction transaction) {
+        LightrailBalanceCache cache = defaultCache;
+        if (cache != null && transaction.getTransactionObject() != null)
+            cache.invalidateCard(transaction.getTransactionObject().getCardId());
+    }
+}
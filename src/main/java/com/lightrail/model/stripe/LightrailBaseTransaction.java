@@ -1,13 +1,21 @@
 package com.lightrail.model.stripe;
 
+import com.lightrail.model.api.objects.RequestParameters;
 import com.lightrail.model.business.LightrailTransaction;
 
-import java.util.HashMap;
 import java.util.Map;
 
 
 public abstract class LightrailBaseTransaction {
     LightrailTransaction transactionObject;
+    LightrailStripeGateway gateway = null;
+
+    /**
+     * @return the gateway which made this transaction, used for the calls made on it, or the default one.
+     */
+    LightrailStripeGateway gateway() {
+        return LightrailStripeGateways.orDefault(gateway);
+    }
 
     public LightrailTransaction getTransactionObject() {
         return transactionObject;
@@ -28,8 +36,9 @@ public abstract class LightrailBaseTransaction {
         return transactionObject.getMetadata();
     }
 
-    static Map<String, Object> translateToLightrail(Map<String, Object> params) {
-        Map<String, Object> translatedParams = new HashMap<>(params);
+    static RequestParameters translateToLightrail(Map<String, Object> params) {
+        RequestParameters translatedParams = new RequestParameters();
+        translatedParams.putAll(params);
         //nothing for now
         return translatedParams;
     }
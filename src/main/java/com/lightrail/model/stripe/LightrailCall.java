@@ -0,0 +1,14 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.AuthorizationException;
+import com.lightrail.exceptions.CouldNotFindObjectException;
+import com.lightrail.exceptions.InsufficientValueException;
+
+import java.io.IOException;
+
+/**
+ * A remote Lightrail call, with the checked exceptions the Lightrail client declares.
+ */
+interface LightrailCall<T> {
+    T call() throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException;
+}
@@ -16,6 +16,11 @@ public class LightrailCharge extends LightrailBaseTransaction {
         this.transactionObject = transactionObject;
     }
 
+    LightrailCharge(LightrailTransaction transactionObject, LightrailStripeGateway gateway) {
+        this.transactionObject = transactionObject;
+        this.gateway = gateway;
+    }
+
     public int getAmount() {
         return 0 - transactionObject.getValue();
     }
@@ -25,12 +30,7 @@ public class LightrailCharge extends LightrailBaseTransaction {
     }
 
     static RequestParameters translateChargeParamsToLightrail(Map<String, Object> chargeParams) {
-        chargeParams = LightrailBaseTransaction.translateToLightrail(chargeParams);
-        if (!chargeParams.containsKey(StripeConstants.Parameters.CAPTURE))
-            chargeParams.put(StripeConstants.Parameters.CAPTURE, true);
-
-        RequestParameters translatedParams = new RequestParameters();
-        translatedParams.putAll(chargeParams);
+        RequestParameters translatedParams = LightrailBaseTransaction.translateToLightrail(chargeParams);
 
         //capture --> pending
         Boolean capture = (Boolean) translatedParams.remove(StripeConstants.Parameters.CAPTURE);
@@ -51,40 +51,52 @@ public class LightrailCharge extends LightrailBaseTransaction {
         return translatedParams;
     }
 
+    private LightrailTransaction changeBalance(MetricsRegistry.Phase phase, String userSuppliedId, LightrailCall<LightrailTransaction> call) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
+        try {
+            String idempotencyKey = (userSuppliedId != null) ? userSuppliedId : getIdempotencyKey();
+            LightrailTransaction transaction = LightrailMetrics.time(phase, idempotencyKey, null, getAmount(), call);
+            if (phase == MetricsRegistry.Phase.LIGHTRAIL_VOID)
+                LightrailMetrics.outcome(MetricsRegistry.Outcome.VOIDED);
+            return transaction;
+        } finally {
+            LightrailBalanceCache.cardChanged(this);
+        }
+    }
+
     public LightrailFund refund(String userSuppliedId, Metadata metadata) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException {
-        return new LightrailFund(transactionObject.refund(userSuppliedId, metadata));
+        return new LightrailFund(changeBalance(MetricsRegistry.Phase.LIGHTRAIL_REFUND, userSuppliedId, () -> gateway().refundTransaction(transactionObject, userSuppliedId, metadata)), gateway);
     }
 
     public LightrailCharge capture(String userSuppliedId, Metadata metadata) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
-        return new LightrailCharge(transactionObject.capture(userSuppliedId, metadata));
+        return new LightrailCharge(changeBalance(MetricsRegistry.Phase.LIGHTRAIL_CAPTURE, userSuppliedId, () -> gateway().captureTransaction(transactionObject, userSuppliedId, metadata)), gateway);
     }
 
     public LightrailFund doVoid(String userSuppliedId, Metadata metadata) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
-        return new LightrailFund(transactionObject.doVoid(userSuppliedId, metadata));
+        return new LightrailFund(changeBalance(MetricsRegistry.Phase.LIGHTRAIL_VOID, userSuppliedId, () -> gateway().voidTransaction(transactionObject, userSuppliedId, metadata)), gateway);
     }
 
     public LightrailFund refund(Metadata metadata) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException {
-        return new LightrailFund(transactionObject.refund(metadata));
+        return new LightrailFund(changeBalance(MetricsRegistry.Phase.LIGHTRAIL_REFUND, null, () -> gateway().refundTransaction(transactionObject, null, metadata)), gateway);
     }
 
     public LightrailCharge capture(Metadata metadata) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
-        return new LightrailCharge(transactionObject.capture(metadata));
+        return new LightrailCharge(changeBalance(MetricsRegistry.Phase.LIGHTRAIL_CAPTURE, null, () -> gateway().captureTransaction(transactionObject, null, metadata)), gateway);
     }
 
     public LightrailFund doVoid(Metadata metadata) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
-        return new LightrailFund(transactionObject.doVoid(metadata));
+        return new LightrailFund(changeBalance(MetricsRegistry.Phase.LIGHTRAIL_VOID, null, () -> gateway().voidTransaction(transactionObject, null, metadata)), gateway);
     }
 
     public LightrailFund refund() throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException {
-        return new LightrailFund(transactionObject.refund());
+        return new LightrailFund(changeBalance(MetricsRegistry.Phase.LIGHTRAIL_REFUND, null, () -> gateway().refundTransaction(transactionObject, null, null)), gateway);
     }
 
     public LightrailCharge capture() throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
-        return new LightrailCharge(transactionObject.capture());
+        return new LightrailCharge(changeBalance(MetricsRegistry.Phase.LIGHTRAIL_CAPTURE, null, () -> gateway().captureTransaction(transactionObject, null, null)), gateway);
     }
 
     public LightrailFund doVoid() throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
-        return new LightrailFund(transactionObject.doVoid());
+        return new LightrailFund(changeBalance(MetricsRegistry.Phase.LIGHTRAIL_VOID, null, () -> gateway().voidTransaction(transactionObject, null, null)), gateway);
     }
 
     public static LightrailCharge createPendingByContact(String contactId, int amount, String currency) throws AuthorizationException, CouldNotFindObjectException, InsufficientValueException, IOException {
@@ -138,46 +150,201 @@ public class LightrailCharge extends LightrailBaseTransaction {
         return create(giftChargeParams);
     }
 
+    /**
+     * May be answered from the {@link LightrailBalanceCache}, with a charge whose transaction has no ID.
+     */
     public static LightrailCharge simulateByCardId(String cardId, int amount, String currency) throws AuthorizationException, CouldNotFindObjectException, InsufficientValueException, IOException {
         Map<String, Object> giftChargeParams = new HashMap<>();
         giftChargeParams.put(LightrailConstants.Parameters.CARD_ID, cardId);
         giftChargeParams.put(StripeConstants.Parameters.AMOUNT, amount);
         giftChargeParams.put(LightrailConstants.Parameters.CURRENCY, currency);
-        return simulate(giftChargeParams);
+        return simulateWithCache(giftChargeParams, amount);
     }
+
+    /**
+     * May be answered from the {@link LightrailBalanceCache}, with a charge whose transaction has no ID.
+     */
     public static LightrailCharge simulateByCode(String code, int amount, String currency) throws AuthorizationException, CouldNotFindObjectException, InsufficientValueException, IOException {
         Map<String, Object> giftChargeParams = new HashMap<>();
         giftChargeParams.put(LightrailConstants.Parameters.CODE, code);
         giftChargeParams.put(StripeConstants.Parameters.AMOUNT, amount);
         giftChargeParams.put(LightrailConstants.Parameters.CURRENCY, currency);
+        return simulateWithCache(giftChargeParams, amount);
+    }
+
+    /**
+     * Only for parameters without an idempotency key, which could belong to an existing transaction.
+     */
+    private static LightrailCharge simulateWithCache(Map<String, Object> giftChargeParams, int amount) throws AuthorizationException, CouldNotFindObjectException, InsufficientValueException, IOException {
+        LightrailBalanceCache balanceCache = LightrailBalanceCache.getDefault();
+        if (balanceCache != null) {
+            LightrailCharge cachedSimulation = balanceCache.simulate(giftChargeParams, amount);
+            if (cachedSimulation != null)
+                return cachedSimulation;
+        }
         return simulate(giftChargeParams);
     }
 
     public static LightrailCharge simulate(Map<String, Object> giftChargeParams) throws IOException, InsufficientValueException, AuthorizationException, CouldNotFindObjectException {
-        return create(giftChargeParams, true);
+        return simulate(giftChargeParams, (LightrailStripeGateway) null);
+    }
+
+    /**
+     * @param gateway the gateway to make the call through, or {@code null} for the default one.
+     */
+    public static LightrailCharge simulate(Map<String, Object> giftChargeParams, LightrailStripeGateway gateway) throws IOException, InsufficientValueException, AuthorizationException, CouldNotFindObjectException {
+        return simulate(giftChargeParams, !giftChargeParams.containsKey(LightrailConstants.Parameters.USER_SUPPLIED_ID), gateway);
+    }
+
+    /**
+     * Always asks Lightrail, since only Lightrail knows whether the idempotency key belongs to an existing
+     * transaction; the {@link LightrailBalanceCache} only learns from the result.
+     *
+     * @param generatedIdempotencyKey whether the idempotency key was generated for this simulation alone, so that it
+     *                                cannot belong to an existing transaction.
+     */
+    static LightrailCharge simulate(Map<String, Object> giftChargeParams, boolean generatedIdempotencyKey, LightrailStripeGateway gateway) throws IOException, InsufficientValueException, AuthorizationException, CouldNotFindObjectException {
+        LightrailConstants.Parameters.requireParameters(Arrays.asList(
+                StripeConstants.Parameters.AMOUNT,
+                LightrailConstants.Parameters.CURRENCY
+        ), giftChargeParams);
+        int amount = (Integer) giftChargeParams.get(StripeConstants.Parameters.AMOUNT);
+
+        LightrailBalanceCache balanceCache = LightrailBalanceCache.getDefault();
+        LightrailCharge simulatedCharge = LightrailSingleFlight.call(MetricsRegistry.Phase.LIGHTRAIL_SIMULATE,
+                simulationKey(giftChargeParams, generatedIdempotencyKey),
+                () -> LightrailMetrics.time(MetricsRegistry.Phase.LIGHTRAIL_SIMULATE,
+                        CheckoutEvents.idempotencyKeyOf(giftChargeParams), CheckoutEvents.currencyOf(giftChargeParams), amount,
+                        () -> create(giftChargeParams, true, gateway)),
+                sharedCharge -> new CoalescedLightrailCharge(sharedCharge, giftChargeParams));
+        if (balanceCache != null)
+            balanceCache.recordSimulation(giftChargeParams, amount, simulatedCharge);
+        return simulatedCharge;
+    }
+
+    /**
+     * Simulates a charge from parameters already in Lightrail's format, e.g. built by {@link SplitTenderChargeRequest}.
+     * Like {@link #simulateByCode}, this one may be answered from the {@link LightrailBalanceCache} with a charge that
+     * has no transaction ID.
+     *
+     * @param mayUseCachedValue whether the simulation may be answered from the {@link LightrailBalanceCache}. This
+     *                          must be false when the idempotency key could belong to an existing transaction, since
+     *                          only Lightrail can tell.
+     */
+    static LightrailCharge simulateTranslated(RequestParameters lightrailParams, int amount, boolean mayUseCachedValue, LightrailStripeGateway gateway) throws IOException, InsufficientValueException, AuthorizationException, CouldNotFindObjectException {
+        LightrailBalanceCache balanceCache = LightrailBalanceCache.getDefault();
+        if (balanceCache != null && mayUseCachedValue) {
+            LightrailCharge cachedSimulation = balanceCache.simulate(lightrailParams, amount);
+            if (cachedSimulation != null)
+                return cachedSimulation;
+        }
+
+        LightrailCharge simulatedCharge = LightrailSingleFlight.call(MetricsRegistry.Phase.LIGHTRAIL_SIMULATE,
+                simulationKey(lightrailParams, mayUseCachedValue),
+                () -> LightrailMetrics.time(MetricsRegistry.Phase.LIGHTRAIL_SIMULATE,
+                        CheckoutEvents.idempotencyKeyOf(lightrailParams), CheckoutEvents.currencyOf(lightrailParams), amount,
+                        () -> new LightrailCharge(LightrailStripeGateways.orDefault(gateway).simulateTransaction(lightrailParams), gateway)),
+                sharedCharge -> new CoalescedLightrailCharge(sharedCharge, lightrailParams));
+        if (balanceCache != null)
+            balanceCache.recordSimulation(lightrailParams, amount, simulatedCharge);
+        return simulatedCharge;
+    }
+
+    /**
+     * @return the identity of a simulation for {@link LightrailSingleFlight}. An idempotency key generated for the
+     * simulation alone is left out, so that identical simulations without one are coalesced.
+     */
+    private static Object simulationKey(Map<String, Object> params, boolean generatedIdempotencyKey) {
+        Map<String, Object> key = new HashMap<>(params);
+        if (generatedIdempotencyKey)
+            key.remove(LightrailConstants.Parameters.USER_SUPPLIED_ID);
+        return Arrays.asList(LightrailCharge.class, key);
+    }
+
+    /**
+     * Creates a charge from parameters already in Lightrail's format, e.g. built by {@link SplitTenderChargeRequest}.
+     */
+    static LightrailCharge createTranslated(RequestParameters lightrailParams, LightrailStripeGateway gateway) throws IOException, InsufficientValueException, AuthorizationException, CouldNotFindObjectException {
+        LightrailCharge charge = null;
+        try {
+            MetricsRegistry.Phase phase = Boolean.TRUE.equals(lightrailParams.get(LightrailConstants.Parameters.PENDING))
+                    ? MetricsRegistry.Phase.LIGHTRAIL_PENDING_CHARGE
+                    : MetricsRegistry.Phase.LIGHTRAIL_CHARGE;
+            charge = LightrailMetrics.time(phase,
+                    CheckoutEvents.idempotencyKeyOf(lightrailParams), CheckoutEvents.currencyOf(lightrailParams),
+                    CheckoutEvents.amountOf(lightrailParams, LightrailConstants.Parameters.VALUE),
+                    () -> new LightrailCharge(LightrailStripeGateways.orDefault(gateway).createTransaction(lightrailParams), gateway));
+            return charge;
+        } finally {
+            LightrailBalanceCache.cardChanged(lightrailParams, charge);
+        }
     }
 
     public static LightrailCharge create(Map<String, Object> giftChargeParams) throws IOException, InsufficientValueException, AuthorizationException, CouldNotFindObjectException {
-        return create(giftChargeParams, false);
+        return create(giftChargeParams, (LightrailStripeGateway) null);
+    }
+
+    /**
+     * @param gateway the gateway to make the call through, and the calls made on the charge, or {@code null} for the
+     *                default one.
+     */
+    public static LightrailCharge create(Map<String, Object> giftChargeParams, LightrailStripeGateway gateway) throws IOException, InsufficientValueException, AuthorizationException, CouldNotFindObjectException {
+        LightrailCharge charge = null;
+        try {
+            MetricsRegistry.Phase phase = Boolean.FALSE.equals(giftChargeParams.get(StripeConstants.Parameters.CAPTURE))
+                    ? MetricsRegistry.Phase.LIGHTRAIL_PENDING_CHARGE
+                    : MetricsRegistry.Phase.LIGHTRAIL_CHARGE;
+            charge = LightrailMetrics.time(phase,
+                    CheckoutEvents.idempotencyKeyOf(giftChargeParams), CheckoutEvents.currencyOf(giftChargeParams),
+                    CheckoutEvents.amountOf(giftChargeParams, StripeConstants.Parameters.AMOUNT),
+                    () -> create(giftChargeParams, false, gateway));
+            return charge;
+        } finally {
+            LightrailBalanceCache.cardChanged(giftChargeParams, charge);
+        }
     }
 
-    private static LightrailCharge create(Map<String, Object> giftChargeParams, boolean simulate) throws IOException, InsufficientValueException, AuthorizationException, CouldNotFindObjectException {
+    private static LightrailCharge create(Map<String, Object> giftChargeParams, boolean simulate, LightrailStripeGateway gateway) throws IOException, InsufficientValueException, AuthorizationException, CouldNotFindObjectException {
         LightrailConstants.Parameters.requireParameters(Arrays.asList(
                 StripeConstants.Parameters.AMOUNT,
                 LightrailConstants.Parameters.CURRENCY
         ), giftChargeParams);
 
+        LightrailStripeGateway callGateway = LightrailStripeGateways.orDefault(gateway);
         if (simulate)
-            return new LightrailCharge(LightrailTransaction.Simulate.simulate(translateChargeParamsToLightrail(giftChargeParams)));
+            return new LightrailCharge(callGateway.simulateTransaction(translateChargeParamsToLightrail(giftChargeParams)), gateway);
         else
-            return new LightrailCharge(LightrailTransaction.Create.create(translateChargeParamsToLightrail(giftChargeParams)));
+            return new LightrailCharge(callGateway.createTransaction(translateChargeParamsToLightrail(giftChargeParams)), gateway);
     }
 
     public static LightrailCharge retrieve(Map<String, Object> chargeParams) throws AuthorizationException, IOException, CouldNotFindObjectException {
+        return retrieve(chargeParams, null);
+    }
+
+    /**
+     * @param gateway the gateway to make the call through, and the calls made on the charge, or {@code null} for the
+     *                default one.
+     */
+    public static LightrailCharge retrieve(Map<String, Object> chargeParams, LightrailStripeGateway gateway) throws AuthorizationException, IOException, CouldNotFindObjectException {
         RequestParameters requestParameters = new RequestParameters();
         requestParameters.putAll(chargeParams);
-        LightrailTransaction retrievedTransaction = LightrailTransaction.Retrieve.retrieve(requestParameters);
-
-        return new LightrailCharge(retrievedTransaction);
+        long start = LightrailMetrics.start();
+        CheckoutEvents.Span span = CheckoutEvents.begin(MetricsRegistry.Phase.LIGHTRAIL_RETRIEVE);
+        Throwable failure = null;
+        long callStart = 0;
+        LightrailTransaction retrievedTransaction;
+        try {
+            callStart = LightrailCircuitBreakers.beforeCall(MetricsRegistry.Phase.LIGHTRAIL_RETRIEVE);
+            retrievedTransaction = LightrailStripeGateways.orDefault(gateway).retrieveTransaction(requestParameters);
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            LightrailCircuitBreakers.afterCall(MetricsRegistry.Phase.LIGHTRAIL_RETRIEVE, callStart, failure);
+            LightrailMetrics.stop(MetricsRegistry.Phase.LIGHTRAIL_RETRIEVE, start, failure == null);
+            span.complete(CheckoutEvents.idempotencyKeyOf(requestParameters), CheckoutEvents.currencyOf(requestParameters), 0, failure);
+        }
+
+        return new LightrailCharge(retrievedTransaction, gateway);
     }
 }
\ No newline at end of file
@@ -0,0 +1,145 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.CircuitOpenException;
+import com.lightrail.helpers.CircuitBreaker;
+import com.stripe.exception.APIConnectionException;
+import com.stripe.exception.APIException;
+import com.stripe.exception.RateLimitException;
+
+import java.io.IOException;
+
+/**
+ * Holds the circuit breakers guarding the calls this library makes to Lightrail and to Stripe. No breaker is installed
+ * by default. While a breaker is open, calls to its service fail fast with a {@link CircuitOpenException}, or a
+ * {@link com.lightrail.exceptions.ThirdPartyException} caused by one for Stripe. Captures, voids and refunds are never
+ * rejected, since they release or settle value that is already held; their failures still count, but their
+ * successes do not close an open breaker.
+ * <p>
+ * With {@link #setFailOpenToStripe(boolean)}, split-tender charges are charged entirely to Stripe while the Lightrail
+ * breaker is open, see {@link StripeLightrailSplitTenderCharge#isLightrailSkipped()}.
+ */
+public final class LightrailCircuitBreakers {
+    private static volatile CircuitBreaker lightrail = null;
+    private static volatile CircuitBreaker stripe = null;
+    private static volatile boolean failOpenToStripe = false;
+
+    private LightrailCircuitBreakers() {
+    }
+
+    public static CircuitBreaker getLightrail() {
+        return lightrail;
+    }
+
+    /**
+     * Installs the breaker guarding Lightrail calls, or removes it with {@code null}.
+     */
+    public static void setLightrail(CircuitBreaker circuitBreaker) {
+        lightrail = circuitBreaker;
+    }
+
+    public static CircuitBreaker getStripe() {
+        return stripe;
+    }
+
+    /**
+     * Installs the breaker guarding Stripe calls, or removes it with {@code null}.
+     */
+    public static void setStripe(CircuitBreaker circuitBreaker) {
+        stripe = circuitBreaker;
+    }
+
+    public static boolean isFailOpenToStripe() {
+        return failOpenToStripe;
+    }
+
+    /**
+     * @param enabled whether split-tender simulations skip the Lightrail leg, and put the whole amount on Stripe,
+     *                while the Lightrail breaker is open. Off by default, so that such simulations fail.
+     */
+    public static void setFailOpenToStripe(boolean enabled) {
+        failOpenToStripe = enabled;
+    }
+
+    private static CircuitBreaker breakerFor(MetricsRegistry.Phase phase) {
+        return phase.name().startsWith("STRIPE_") ? stripe : lightrail;
+    }
+
+    static boolean mayBeRejected(MetricsRegistry.Phase phase) {
+        switch (phase) {
+            case LIGHTRAIL_CAPTURE:
+            case LIGHTRAIL_VOID:
+            case LIGHTRAIL_REFUND:
+            case STRIPE_REFUND:
+            case STRIPE_CAPTURE:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Asks the breaker of the phase's service for a call, to be reported with {@link #afterCall}, then takes a token
+     * from the rate limiter of that service, see {@link LightrailRateLimiters}. Calls rejected by an open breaker take
+     * no token, and a call which is rate limited gives its permission back to the breaker.
+     *
+     * @return the start time of the call, or 0 if there is no breaker.
+     */
+    static long beforeCall(MetricsRegistry.Phase phase) throws IOException {
+        CircuitBreaker circuitBreaker = breakerFor(phase);
+        boolean rejectable = circuitBreaker != null && mayBeRejected(phase);
+        if (rejectable && !circuitBreaker.tryAcquire())
+            throw new CircuitOpenException("The circuit breaker for " + (circuitBreaker == stripe ? "Stripe" : "Lightrail") + " is open.");
+        long permittedAt = System.nanoTime();
+        try {
+            LightrailRateLimiters.acquire(phase);
+        } catch (IOException e) {
+            if (rejectable)
+                circuitBreaker.cancel(permittedAt);
+            throw e;
+        }
+        return (circuitBreaker == null) ? 0 : System.nanoTime();
+    }
+
+    /**
+     * @param failure what the call failed with, before any wrapping, or {@code null} if it succeeded.
+     */
+    static void afterCall(MetricsRegistry.Phase phase, long start, Throwable failure) {
+        CircuitBreaker circuitBreaker = breakerFor(phase);
+        if (circuitBreaker == null || start == 0 || failure instanceof CircuitOpenException)
+            return;
+        if (isServiceFailure(failure))
+            circuitBreaker.onFailure();
+        else
+            circuitBreaker.onSuccess(System.nanoTime() - start, mayBeRejected(phase));
+    }
+
+    /**
+     * Errors about the request itself, e.g. insufficient value or a declined card, show that the service is up.
+     */
+    private static boolean isServiceFailure(Throwable failure) {
+        return failure instanceof IOException
+                || failure instanceof APIConnectionException
+                || failure instanceof APIException
+                || failure instanceof RateLimitException;
+    }
+
+    static boolean isCallPermitted(MetricsRegistry.Phase phase) {
+        CircuitBreaker circuitBreaker = breakerFor(phase);
+        return circuitBreaker == null || circuitBreaker.isCallPermitted();
+    }
+
+    /**
+     * Split-tender charges check this before creating a pending Lightrail charge, which would certainly be voided.
+     */
+    static void checkStripeAvailable() throws CircuitOpenException {
+        if (!isCallPermitted(MetricsRegistry.Phase.STRIPE_CHARGE))
+            throw new CircuitOpenException("The circuit breaker for Stripe is open.");
+    }
+
+    /**
+     * @return whether a split-tender simulation should put the whole amount on Stripe without calling Lightrail.
+     */
+    static boolean shouldSkipLightrail() {
+        return failOpenToStripe && !isCallPermitted(MetricsRegistry.Phase.LIGHTRAIL_SIMULATE);
+    }
+}
@@ -20,6 +20,11 @@ public class LightrailFund extends LightrailBaseTransaction {
         this.transactionObject = cardTransactionResponse;
     }
 
+    LightrailFund(LightrailTransaction cardTransactionResponse, LightrailStripeGateway gateway) {
+        this.transactionObject = cardTransactionResponse;
+        this.gateway = gateway;
+    }
+
     public int getAmount() {
         return transactionObject.getValue();
     }
@@ -41,26 +46,36 @@ public class LightrailFund extends LightrailBaseTransaction {
     }
 
     public static LightrailFund create(Map<String, Object> fundParams) throws BadParameterException, IOException, AuthorizationException, CouldNotFindObjectException {
+        return create(fundParams, null);
+    }
+
+    /**
+     * @param gateway the gateway to make the call through, or {@code null} for the default one.
+     */
+    public static LightrailFund create(Map<String, Object> fundParams, LightrailStripeGateway gateway) throws BadParameterException, IOException, AuthorizationException, CouldNotFindObjectException {
         LightrailConstants.Parameters.requireParameters(Arrays.asList(
                 StripeConstants.Parameters.AMOUNT,
                 LightrailConstants.Parameters.CURRENCY
         ), fundParams);
 
-        LightrailTransaction fundTransaction;
+        LightrailFund fund = null;
 
         try {
-            fundTransaction = LightrailTransaction.Create.create(translateToLightrail(fundParams));
+            fund = LightrailMetrics.time(MetricsRegistry.Phase.LIGHTRAIL_FUND,
+                    CheckoutEvents.idempotencyKeyOf(fundParams), CheckoutEvents.currencyOf(fundParams),
+                    CheckoutEvents.amountOf(fundParams, StripeConstants.Parameters.AMOUNT),
+                    () -> new LightrailFund(LightrailStripeGateways.orDefault(gateway).createTransaction(translateToLightrail(fundParams)), gateway));
         } catch (InsufficientValueException e) {
             throw new RuntimeException(e); //never happens since we are funding
+        } finally {
+            LightrailBalanceCache.cardChanged(fundParams, fund);
         }
 
-        return new LightrailFund(fundTransaction);
+        return fund;
     }
 
     static RequestParameters translateToLightrail(Map<String, Object> fundParams) {
-        fundParams = LightrailBaseTransaction.translateToLightrail(fundParams);
-        RequestParameters translatedParams = new RequestParameters();
-        translatedParams.putAll(fundParams);
+        RequestParameters translatedParams = LightrailBaseTransaction.translateToLightrail(fundParams);
         //amount --> value
         Integer fundAmount = (Integer) translatedParams.remove(StripeConstants.Parameters.AMOUNT);
         if (fundAmount <= 0)
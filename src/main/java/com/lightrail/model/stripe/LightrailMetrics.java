@@ -0,0 +1,84 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.AuthorizationException;
+import com.lightrail.exceptions.CouldNotFindObjectException;
+import com.lightrail.exceptions.InsufficientValueException;
+
+import java.io.IOException;
+
+/**
+ * Holds the {@link MetricsRegistry} this library reports into. Nothing is measured until one is installed.
+ */
+public final class LightrailMetrics {
+    private static volatile MetricsRegistry registry = null;
+
+    private LightrailMetrics() {
+    }
+
+    public static MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Installs the registry this library reports into, or turns metrics off with {@code null}.
+     */
+    public static void setRegistry(MetricsRegistry metricsRegistry) {
+        registry = metricsRegistry;
+    }
+
+    /**
+     * @return the start time of a call to pass to {@link #stop}, or 0 when no registry is installed.
+     */
+    static long start() {
+        return (registry == null) ? 0 : System.nanoTime();
+    }
+
+    static void stop(MetricsRegistry.Phase phase, long start, boolean successful) {
+        MetricsRegistry metricsRegistry = registry;
+        if (metricsRegistry != null && start != 0)
+            metricsRegistry.recordLatency(phase, System.nanoTime() - start, successful);
+    }
+
+    static void outcome(MetricsRegistry.Outcome outcome) {
+        MetricsRegistry metricsRegistry = registry;
+        if (metricsRegistry != null)
+            metricsRegistry.recordOutcome(outcome);
+    }
+
+    static void retry(MetricsRegistry.Phase phase) {
+        MetricsRegistry metricsRegistry = registry;
+        if (metricsRegistry != null)
+            metricsRegistry.recordRetry(phase);
+    }
+
+    static void coalesced(MetricsRegistry.Phase phase) {
+        MetricsRegistry metricsRegistry = registry;
+        if (metricsRegistry != null)
+            metricsRegistry.recordCoalesced(phase);
+    }
+
+    /**
+     * Times a Lightrail call, and counts an {@link MetricsRegistry.Outcome#INSUFFICIENT_VALUE} outcome if it fails
+     * for that reason. The call is also recorded as a Flight Recorder event, see {@link CheckoutEvents}, and goes
+     * through the Lightrail circuit breaker, see {@link LightrailCircuitBreakers}.
+     */
+    static <T> T time(MetricsRegistry.Phase phase, String idempotencyKey, String currency, long amount, LightrailCall<T> call) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
+        long start = start();
+        CheckoutEvents.Span span = CheckoutEvents.begin(phase);
+        Throwable failure = null;
+        long callStart = 0;
+        try {
+            callStart = LightrailCircuitBreakers.beforeCall(phase);
+            return call.call();
+        } catch (Throwable e) {
+            failure = e;
+            if (e instanceof InsufficientValueException)
+                outcome(MetricsRegistry.Outcome.INSUFFICIENT_VALUE);
+            throw e;
+        } finally {
+            LightrailCircuitBreakers.afterCall(phase, callStart, failure);
+            stop(phase, start, failure == null);
+            span.complete(idempotencyKey, currency, amount, failure);
+        }
+    }
+}
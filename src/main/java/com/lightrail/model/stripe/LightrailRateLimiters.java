@@ -0,0 +1,101 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.RateLimitedException;
+import com.lightrail.helpers.RateLimiter;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the client-side rate limiters for the calls this library makes to Lightrail and to Stripe, to stay under the
+ * services' own rate limits instead of getting rate limit errors halfway through a split-tender charge. No limiter is
+ * installed by default. Every remote call takes a token from the limiter of its service, waiting for it up to the
+ * maximum wait, and fails with a {@link RateLimitedException}, or a
+ * {@link com.lightrail.exceptions.ThirdPartyException} caused by one for Stripe, if it would have to wait longer.
+ * Captures, voids and refunds wait as long as it takes, since they release or settle value that is already held.
+ * Calls rejected by an open breaker of {@link LightrailCircuitBreakers} take no token.
+ * <p>
+ * Split-tender charges are admitted before any leg starts: a charge is rejected up front if either of its services
+ * is already backed up beyond the maximum wait.
+ */
+public final class LightrailRateLimiters {
+    private static volatile RateLimiter lightrail = null;
+    private static volatile RateLimiter stripe = null;
+    private static volatile long maxWaitNanos = TimeUnit.SECONDS.toNanos(1);
+
+    private LightrailRateLimiters() {
+    }
+
+    public static RateLimiter getLightrail() {
+        return lightrail;
+    }
+
+    /**
+     * Installs the limiter for Lightrail calls, or removes it with {@code null}. To change the limit of an installed
+     * limiter, use {@link RateLimiter#setRate(double, int)}.
+     */
+    public static void setLightrail(RateLimiter rateLimiter) {
+        lightrail = rateLimiter;
+    }
+
+    public static RateLimiter getStripe() {
+        return stripe;
+    }
+
+    /**
+     * Installs the limiter for Stripe calls, or removes it with {@code null}.
+     */
+    public static void setStripe(RateLimiter rateLimiter) {
+        stripe = rateLimiter;
+    }
+
+    public static long getMaxWait(TimeUnit unit) {
+        return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param maxWait how long a call may wait for its token before it is rejected, 1 second by default. 0 rejects
+     *                calls as soon as the limit is reached.
+     */
+    public static void setMaxWait(long maxWait, TimeUnit unit) {
+        if (maxWait < 0)
+            throw new IllegalArgumentException("The maximum wait must not be negative.");
+        maxWaitNanos = unit.toNanos(maxWait);
+    }
+
+    private static RateLimiter limiterFor(MetricsRegistry.Phase phase) {
+        return phase.name().startsWith("STRIPE_") ? stripe : lightrail;
+    }
+
+    /**
+     * Takes a token for a call of the given phase, waiting for it if needed.
+     */
+    static void acquire(MetricsRegistry.Phase phase) throws RateLimitedException, InterruptedIOException {
+        RateLimiter rateLimiter = limiterFor(phase);
+        if (rateLimiter == null)
+            return;
+        try {
+            if (!LightrailCircuitBreakers.mayBeRejected(phase))
+                rateLimiter.acquire();
+            else if (!rateLimiter.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS))
+                throw new RateLimitedException("The rate limit for " + (rateLimiter == stripe ? "Stripe" : "Lightrail") + " is reached.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the rate limit.");
+        }
+    }
+
+    /**
+     * Rejects a split-tender charge before any of its legs starts if a service it needs is backed up beyond the
+     * maximum wait. The charge's calls still take their tokens as they are made.
+     */
+    static void admit(boolean needsLightrail, boolean needsStripe) throws RateLimitedException {
+        checkBacklog(needsLightrail ? lightrail : null, "Lightrail");
+        checkBacklog(needsStripe ? stripe : null, "Stripe");
+    }
+
+    private static void checkBacklog(RateLimiter rateLimiter, String service) throws RateLimitedException {
+        if (rateLimiter != null && rateLimiter.getExpectedWaitNanos() > maxWaitNanos)
+            throw new RateLimitedException("The rate limit for " + service + " is reached.");
+    }
+}
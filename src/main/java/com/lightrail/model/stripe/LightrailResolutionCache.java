@@ -0,0 +1,37 @@
+package com.lightrail.model.stripe;
+
+/**
+ * Remembers which Lightrail Card a Contact, shopper or gift code resolves to, so that split-tender simulate, create
+ * and retrieve calls do not look it up remotely every time. Implementations must be thread-safe and should be bounded.
+ * Install one with {@link LightrailResolver#setCache(LightrailResolutionCache)}; see
+ * {@link InMemoryLightrailResolutionCache} for the built-in implementation.
+ */
+public interface LightrailResolutionCache {
+
+    /**
+     * @return the Account Card of the Contact for the currency, or {@code null} if unknown.
+     */
+    String getCardIdForContact(String contactId, String currency);
+
+    void putCardIdForContact(String contactId, String currency, String cardId);
+
+    /**
+     * @return the Account Card of the Contact with this shopper ID ({@code userSuppliedId}) for the currency,
+     * or {@code null} if unknown.
+     */
+    String getCardIdForShopper(String shopperId, String currency);
+
+    void putCardIdForShopper(String shopperId, String currency, String cardId);
+
+    String getCardIdForCode(String code);
+
+    void putCardIdForCode(String code, String cardId);
+
+    void invalidateContact(String contactId);
+
+    void invalidateShopper(String shopperId);
+
+    void invalidateCode(String code);
+
+    void clear();
+}
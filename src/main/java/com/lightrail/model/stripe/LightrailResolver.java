@@ -0,0 +1,179 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.*;
+import com.lightrail.helpers.LightrailConstants;
+import com.lightrail.model.api.objects.RequestParameters;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Turns the Lightrail parameter of a charge ({@code contact}, {@code shopperId} or {@code code}) into a {@code cardId},
+ * using the installed {@link LightrailResolutionCache} when there is one.
+ */
+public final class LightrailResolver {
+    private static volatile LightrailResolutionCache cache = null;
+
+    private LightrailResolver() {
+    }
+
+    public static LightrailResolutionCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Installs the resolution cache used by this library, or turns it off with {@code null}.
+     */
+    public static void setCache(LightrailResolutionCache resolutionCache) {
+        cache = resolutionCache;
+    }
+
+    /**
+     * @return a copy of the parameters in which a Contact or shopper ID is replaced by the Account Card for the
+     * currency, and a gift code by its Card when it is known.
+     */
+    static Map<String, Object> resolve(Map<String, Object> params) throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException {
+        String contactId = (String) params.get(LightrailConstants.Parameters.CONTACT);
+        String shopperId = (String) params.get(LightrailConstants.Parameters.SHOPPER_ID);
+        String code = (String) params.get(LightrailConstants.Parameters.CODE);
+        String currency = (String) params.get(LightrailConstants.Parameters.CURRENCY);
+
+        RequestParameters requestParameters = new RequestParameters();
+        requestParameters.putAll(params);
+        String cardId = getCachedCardId(contactId, shopperId, code, currency);
+        if (cardId != null) {
+            replaceWithCardId(requestParameters, cardId);
+            return requestParameters;
+        }
+        if (contactId == null && shopperId == null)
+            return requestParameters;
+
+        cardId = lookUpAccountCard(contactId, shopperId, currency, requestParameters, null);
+        replaceWithCardId(requestParameters, cardId);
+        return requestParameters;
+    }
+
+    /**
+     * The typed equivalent of {@link #resolve(Map)}.
+     */
+    static SplitTenderChargeRequest resolve(SplitTenderChargeRequest request) throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException {
+        String contactId = request.getContact();
+        String shopperId = request.getShopperId();
+        String cardId = getCachedCardId(contactId, shopperId, request.getCode(), request.getCurrency());
+        if (cardId != null)
+            return request.withResolvedCardId(cardId);
+        if (contactId == null && shopperId == null)
+            return request;
+
+        RequestParameters requestParameters = new RequestParameters();
+        requestParameters.putAll(request.getLightrailParams());
+        cardId = lookUpAccountCard(contactId, shopperId, request.getCurrency(), requestParameters, request.getGateway());
+        return request.withResolvedCardId(cardId);
+    }
+
+    /**
+     * Looks up the Account Card of a Contact or shopper ID, sharing the lookup with identical ones in flight when
+     * {@link LightrailSingleFlight} is installed.
+     */
+    private static String lookUpAccountCard(String contactId, String shopperId, String currency, RequestParameters requestParameters, LightrailStripeGateway gateway) throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException {
+        Object key = Arrays.asList(LightrailResolver.class, contactId, shopperId, currency);
+        String cardId = LightrailSingleFlight.lookUp(MetricsRegistry.Phase.LIGHTRAIL_CONTACT_LOOKUP, key,
+                () -> (String) lookUpContact(requestParameters, gateway).get(LightrailConstants.Parameters.CARD_ID));
+        rememberAccountCard(contactId, shopperId, currency, cardId);
+        return cardId;
+    }
+
+    private static Map<String, Object> lookUpContact(RequestParameters requestParameters, LightrailStripeGateway gateway) throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException {
+        long start = LightrailMetrics.start();
+        CheckoutEvents.Span span = CheckoutEvents.begin(MetricsRegistry.Phase.LIGHTRAIL_CONTACT_LOOKUP);
+        Throwable failure = null;
+        long callStart = 0;
+        try {
+            callStart = LightrailCircuitBreakers.beforeCall(MetricsRegistry.Phase.LIGHTRAIL_CONTACT_LOOKUP);
+            return LightrailStripeGateways.orDefault(gateway).resolveContact(requestParameters);
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            LightrailCircuitBreakers.afterCall(MetricsRegistry.Phase.LIGHTRAIL_CONTACT_LOOKUP, callStart, failure);
+            LightrailMetrics.stop(MetricsRegistry.Phase.LIGHTRAIL_CONTACT_LOOKUP, start, failure == null);
+            span.complete(CheckoutEvents.idempotencyKeyOf(requestParameters), CheckoutEvents.currencyOf(requestParameters), 0, failure);
+        }
+    }
+
+    private static String getCachedCardId(String contactId, String shopperId, String code, String currency) {
+        LightrailResolutionCache resolutionCache = cache;
+        if (resolutionCache == null)
+            return null;
+        if (contactId != null)
+            return resolutionCache.getCardIdForContact(contactId, currency);
+        if (shopperId != null)
+            return resolutionCache.getCardIdForShopper(shopperId, currency);
+        if (code != null)
+            return resolutionCache.getCardIdForCode(code);
+        return null;
+    }
+
+    private static void rememberAccountCard(String contactId, String shopperId, String currency, String cardId) {
+        LightrailResolutionCache resolutionCache = cache;
+        if (resolutionCache == null || cardId == null)
+            return;
+        if (contactId != null)
+            resolutionCache.putCardIdForContact(contactId, currency, cardId);
+        else
+            resolutionCache.putCardIdForShopper(shopperId, currency, cardId);
+    }
+
+    private static void replaceWithCardId(Map<String, Object> params, String cardId) {
+        params.remove(LightrailConstants.Parameters.CONTACT);
+        params.remove(LightrailConstants.Parameters.SHOPPER_ID);
+        params.remove(LightrailConstants.Parameters.CODE);
+        params.put(LightrailConstants.Parameters.CARD_ID, cardId);
+    }
+
+    /**
+     * Remembers which Card a gift code charged or simulated against.
+     */
+    static void learn(Map<String, Object> params, LightrailBaseTransaction transaction) {
+        learnCode((String) params.get(LightrailConstants.Parameters.CODE), transaction);
+    }
+
+    static void learn(SplitTenderChargeRequest request, LightrailBaseTransaction transaction) {
+        learnCode(request.getCode(), transaction);
+    }
+
+    private static void learnCode(String code, LightrailBaseTransaction transaction) {
+        LightrailResolutionCache resolutionCache = cache;
+        if (resolutionCache == null || code == null || transaction == null || transaction.getTransactionObject() == null)
+            return;
+        String cardId = transaction.getTransactionObject().getCardId();
+        if (cardId != null)
+            resolutionCache.putCardIdForCode(code, cardId);
+    }
+
+    /**
+     * Drops what was cached for the parameters, e.g. after Lightrail could not find the resolved Card.
+     */
+    static void forget(Map<String, Object> params) {
+        forget((String) params.get(LightrailConstants.Parameters.CONTACT),
+                (String) params.get(LightrailConstants.Parameters.SHOPPER_ID),
+                (String) params.get(LightrailConstants.Parameters.CODE));
+    }
+
+    static void forget(SplitTenderChargeRequest request) {
+        forget(request.getContact(), request.getShopperId(), request.getCode());
+    }
+
+    private static void forget(String contactId, String shopperId, String code) {
+        LightrailResolutionCache resolutionCache = cache;
+        if (resolutionCache == null)
+            return;
+        if (contactId != null)
+            resolutionCache.invalidateContact(contactId);
+        if (shopperId != null)
+            resolutionCache.invalidateShopper(shopperId);
+        if (code != null)
+            resolutionCache.invalidateCode(code);
+    }
+}
@@ -0,0 +1,212 @@
+package com.lightrail.model.stripe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Settles split-tender charges off the checkout thread: once the Stripe charge decided whether an order succeeds, the
+ * capture of its pending Lightrail charge, or the void compensating a failed Stripe charge, is queued here instead of
+ * being waited for. Settlements failing with an {@link IOException} are retried with exponential backoff. Other
+ * failures, and settlements still failing after the last attempt, are abandoned, and left to
+ * {@link SplitTenderJournal#recover()} when a journal is installed.
+ * <pre>{@code
+ * LightrailSettlementQueue.setDefault(new LightrailSettlementQueue());
+ * }</pre>
+ */
+public class LightrailSettlementQueue implements Closeable {
+    public static final int DEFAULT_MAX_ATTEMPTS = 8;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 500;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 60000;
+
+    private static volatile LightrailSettlementQueue defaultQueue = null;
+
+    public enum Operation {
+        CAPTURE, VOID
+    }
+
+    private final class Settlement {
+        final String idempotencyKey;
+        final Operation operation;
+        final LightrailCall<?> call;
+        final long queuedAt = System.nanoTime();
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+        int attempts = 0;
+
+        Settlement(String idempotencyKey, Operation operation, LightrailCall<?> call) {
+            this.idempotencyKey = idempotencyKey;
+            this.operation = operation;
+            this.call = call;
+        }
+
+        void attempt() {
+            attempts++;
+            try {
+                result.complete(call.call());
+            } catch (IOException e) {
+                if (attempts >= maxAttempts || !retry(this)) {
+                    abandoned.increment();
+                    result.completeExceptionally(e);
+                }
+            } catch (Throwable e) {
+                abandoned.increment();
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final int maxAttempts;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final Map<String, Settlement> queued = new ConcurrentHashMap<>();
+    private final LongAdder settled = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+
+    public LightrailSettlementQueue() {
+        this(2, DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param threads     the number of settlements made at the same time.
+     * @param maxAttempts the number of attempts after which a settlement failing with an {@code IOException} is
+     *                    abandoned.
+     */
+    public LightrailSettlementQueue(int threads, int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit unit) {
+        if (threads <= 0 || maxAttempts <= 0)
+            throw new IllegalArgumentException("The number of threads and of attempts must be positive.");
+        if (initialBackoff <= 0 || maxBackoff < initialBackoff)
+            throw new IllegalArgumentException("The backoffs must satisfy 0 < initialBackoff <= maxBackoff.");
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffNanos = unit.toNanos(initialBackoff);
+        this.maxBackoffNanos = unit.toNanos(maxBackoff);
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.scheduler = Executors.newScheduledThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "lightrail-settlement-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static LightrailSettlementQueue getDefault() {
+        return defaultQueue;
+    }
+
+    /**
+     * Installs the queue split-tender charges are settled on, or settles them on the checkout thread again with
+     * {@code null}.
+     */
+    public static void setDefault(LightrailSettlementQueue queue) {
+        defaultQueue = queue;
+    }
+
+    /**
+     * Queues a settlement, unless one is already queued under the same idempotency key. If that one is the same
+     * operation, it is returned instead; if not, e.g. a void submitted while the capture is queued, the settlement is
+     * rejected, since only one of them can succeed.
+     *
+     * @return the result of the settlement, which fails with the exception of its last attempt if it is abandoned, or
+     * with an {@link IllegalStateException} if it is rejected.
+     */
+    @SuppressWarnings("unchecked")
+    <T> CompletableFuture<T> submit(String idempotencyKey, Operation operation, LightrailCall<T> call) {
+        Settlement settlement = new Settlement(idempotencyKey, operation, call);
+        Settlement existing = queued.putIfAbsent(idempotencyKey, settlement);
+        if (existing != null && existing.operation == operation)
+            return (CompletableFuture<T>) existing.result;
+        if (existing != null)
+            return AsyncCalls.failed(new IllegalStateException("Cannot queue " + operation + " " + idempotencyKey + " while " + existing.operation + " is queued."));
+
+        settlement.result.whenComplete((result, failure) -> {
+            if (failure == null)
+                settled.increment();
+            queued.remove(idempotencyKey, settlement);
+        });
+        try {
+            scheduler.execute(settlement::attempt);
+        } catch (RejectedExecutionException e) {
+            abandoned.increment();
+            settlement.result.completeExceptionally(e);
+        }
+        return (CompletableFuture<T>) settlement.result;
+    }
+
+    private boolean retry(Settlement settlement) {
+        long backoff = Math.min(maxBackoffNanos, initialBackoffNanos << Math.min(settlement.attempts - 1, 30));
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        try {
+            scheduler.schedule(settlement::attempt, delay, TimeUnit.NANOSECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of settlements queued or being retried.
+     */
+    public int getDepth() {
+        return queued.size();
+    }
+
+    /**
+     * @return how long the oldest settlement still queued has been waiting, or 0 if the queue is empty.
+     */
+    public long getOldestAge(TimeUnit unit) {
+        long now = System.nanoTime();
+        long oldest = 0;
+        for (Settlement settlement : queued.values())
+            oldest = Math.max(oldest, now - settlement.queuedAt);
+        return unit.convert(oldest, TimeUnit.NANOSECONDS);
+    }
+
+    public long getSettledCount() {
+        return settled.sum();
+    }
+
+    /**
+     * @return the number of settlements given up since the queue was created.
+     */
+    public long getAbandonedCount() {
+        return abandoned.sum();
+    }
+
+    /**
+     * Waits until every queued settlement succeeded or was abandoned.
+     *
+     * @return false if the timeout elapsed first.
+     */
+    public boolean awaitEmpty(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!queued.isEmpty()) {
+            for (Settlement settlement : queued.values()) {
+                try {
+                    settlement.result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (ExecutionException e) {
+                    //abandoned
+                } catch (TimeoutException e) {
+                    return false;
+                }
+            }
+            Thread.yield(); //let completed settlements leave the queue
+        }
+        return true;
+    }
+
+    /**
+     * Stops the queue. Settlements still queued are abandoned, so call {@link #awaitEmpty} first to let them finish.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        for (Settlement settlement : queued.values()) {
+            abandoned.increment();
+            settlement.result.completeExceptionally(new IOException("The settlement queue was closed before " + settlement.operation + " " + settlement.idempotencyKey + " succeeded."));
+        }
+        if (defaultQueue == this)
+            defaultQueue = null;
+    }
+}
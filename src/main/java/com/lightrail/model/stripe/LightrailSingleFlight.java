@@ -0,0 +1,160 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.AuthorizationException;
+import com.lightrail.exceptions.CouldNotFindObjectException;
+import com.lightrail.exceptions.CurrencyMismatchException;
+import com.lightrail.exceptions.InsufficientValueException;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+/**
+ * Optional request coalescing for Lightrail calls which only read: simulations and Contact lookups. When installed
+ * with {@link #setDefault(LightrailSingleFlight)}, a call made while an identical one is in flight, e.g. after a
+ * double-click, waits for that call and shares its result or failure instead of calling Lightrail again. Each caller
+ * gets its own copy of a mutable result.
+ * <p>
+ * Only calls in flight are tracked, so nothing is ever answered from a stale result; see
+ * {@link LightrailBalanceCache} for that. When {@code maxKeys} calls are already in flight, further calls are made
+ * without coalescing.
+ */
+public class LightrailSingleFlight {
+    private static volatile LightrailSingleFlight defaultSingleFlight = null;
+
+    private final int maxKeys;
+    private final ConcurrentHashMap<Object, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder leaders = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    /**
+     * @param maxKeys the number of distinct calls tracked at once.
+     */
+    public LightrailSingleFlight(int maxKeys) {
+        if (maxKeys <= 0)
+            throw new IllegalArgumentException("maxKeys must be positive.");
+        this.maxKeys = maxKeys;
+    }
+
+    public static LightrailSingleFlight getDefault() {
+        return defaultSingleFlight;
+    }
+
+    /**
+     * Installs the request coalescing used by this library, or turns it off with {@code null}.
+     */
+    public static void setDefault(LightrailSingleFlight singleFlight) {
+        defaultSingleFlight = singleFlight;
+    }
+
+    /**
+     * @return the number of calls made to Lightrail while tracked.
+     */
+    public long getLeaderCount() {
+        return leaders.sum();
+    }
+
+    /**
+     * @return the number of calls which shared the result of an identical call in flight.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the number of calls made without coalescing because {@code maxKeys} calls were already in flight.
+     */
+    public long getOverflowCount() {
+        return overflows.sum();
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * A Contact lookup, which unlike a {@link LightrailCall} can fail with a {@link CurrencyMismatchException}.
+     */
+    interface ContactLookup<T> {
+        T call() throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException, CurrencyMismatchException;
+    }
+
+    /**
+     * Makes the call, or waits for an identical call in flight when coalescing is installed.
+     *
+     * @param key  the identity of the call; it must implement {@code equals} and {@code hashCode} and must not be
+     *             modified afterwards.
+     * @param copy makes the copy of the shared result each coalesced caller gets, including the one which made the
+     *             call, so that none of them sees another's changes.
+     */
+    static <T> T call(MetricsRegistry.Phase phase, Object key, LightrailCall<T> call, UnaryOperator<T> copy) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
+        LightrailSingleFlight singleFlight = defaultSingleFlight;
+        if (singleFlight == null)
+            return call.call();
+        try {
+            return singleFlight.coalesce(phase, key, call::call, copy);
+        } catch (IOException | AuthorizationException | InsufficientValueException | CouldNotFindObjectException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) { //the call declares nothing else
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The equivalent of {@link #call(MetricsRegistry.Phase, Object, LightrailCall, UnaryOperator)} for Contact
+     * lookups, whose results are immutable and shared as they are.
+     */
+    static <T> T lookUp(MetricsRegistry.Phase phase, Object key, ContactLookup<T> lookup) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException, CurrencyMismatchException {
+        LightrailSingleFlight singleFlight = defaultSingleFlight;
+        if (singleFlight == null)
+            return lookup.call();
+        try {
+            return singleFlight.coalesce(phase, key, lookup::call, UnaryOperator.identity());
+        } catch (IOException | AuthorizationException | InsufficientValueException | CouldNotFindObjectException | CurrencyMismatchException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) { //the lookup declares nothing else
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T coalesce(MetricsRegistry.Phase phase, Object key, AsyncCalls.Call<T> call, UnaryOperator<T> copy) throws Exception {
+        CompletableFuture<Object> flight = inFlight.get(key);
+        if (flight == null) {
+            if (inFlight.size() >= maxKeys) {
+                overflows.increment();
+                return call.call();
+            }
+            CompletableFuture<Object> newFlight = new CompletableFuture<>();
+            flight = inFlight.putIfAbsent(key, newFlight);
+            if (flight == null)
+                return copy.apply(lead(key, newFlight, call));
+        }
+        coalesced.increment();
+        LightrailMetrics.coalesced(phase);
+        try {
+            return copy.apply((T) flight.join());
+        } catch (CompletionException | CancellationException e) {
+            throw AsyncCalls.asException(AsyncCalls.unwrap(e));
+        }
+    }
+
+    private <T> T lead(Object key, CompletableFuture<Object> flight, AsyncCalls.Call<T> call) throws Exception {
+        leaders.increment();
+        try {
+            T result = call.call();
+            flight.complete(result);
+            return result;
+        } catch (Throwable e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.*;
+import com.lightrail.model.api.objects.Metadata;
+import com.lightrail.model.api.objects.RequestParameters;
+import com.lightrail.model.business.LightrailTransaction;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Charge;
+import com.stripe.model.ChargeCollection;
+import com.stripe.model.Refund;
+import com.stripe.net.RequestOptions;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Every remote call this library makes to Lightrail and to Stripe. The calls are still timed, traced, rate limited
+ * and guarded by the circuit breakers around the gateway, so an implementation only has to make them, e.g. over a
+ * pooled or instrumented transport. {@link DefaultLightrailStripeGateway} calls the Lightrail and Stripe clients and
+ * {@link BoundedLightrailStripeGateway} caps the calls in flight.
+ * <p>
+ * The gateway is chosen per split-tender request, see {@link SplitTenderChargeRequest.Builder#setGateway}, or per
+ * Lightrail call, and is kept by the objects a call returns, so that e.g. the capture of a pending charge goes through
+ * the gateway that created it. Everything else uses {@link LightrailStripeGateways#getDefault()}.
+ */
+public interface LightrailStripeGateway {
+
+    LightrailTransaction createTransaction(RequestParameters params) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException;
+
+    LightrailTransaction simulateTransaction(RequestParameters params) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException;
+
+    LightrailTransaction retrieveTransaction(RequestParameters params) throws IOException, AuthorizationException, CouldNotFindObjectException;
+
+    /**
+     * @param userSuppliedId the idempotency key of the capture, or {@code null} to let Lightrail make one.
+     * @param metadata       may be {@code null}.
+     */
+    LightrailTransaction captureTransaction(LightrailTransaction pendingTransaction, String userSuppliedId, Metadata metadata) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException;
+
+    LightrailTransaction voidTransaction(LightrailTransaction pendingTransaction, String userSuppliedId, Metadata metadata) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException;
+
+    LightrailTransaction refundTransaction(LightrailTransaction transaction, String userSuppliedId, Metadata metadata) throws IOException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException;
+
+    /**
+     * @return the parameters with the Contact or shopper ID replaced by the Contact's Account Card for the currency.
+     */
+    RequestParameters resolveContact(RequestParameters params) throws IOException, AuthorizationException, CouldNotFindObjectException, CurrencyMismatchException;
+
+    /**
+     * @param options the idempotency key of the charge, or {@code null} for none.
+     */
+    Charge createCharge(Map<String, Object> params, RequestOptions options) throws StripeException;
+
+    Charge retrieveCharge(String chargeId) throws StripeException;
+
+    /**
+     * @param params the list parameters, e.g. {@code created[gte]}, {@code limit} and {@code starting_after}.
+     */
+    ChargeCollection listCharges(Map<String, Object> params) throws StripeException;
+
+    Charge captureCharge(Charge charge, Map<String, Object> params, RequestOptions options) throws StripeException;
+
+    Charge updateCharge(Charge charge, Map<String, Object> params) throws StripeException;
+
+    Refund createRefund(Map<String, Object> params, RequestOptions options) throws StripeException;
+}
@@ -0,0 +1,29 @@
+package com.lightrail.model.stripe;
+
+/**
+ * Holds the gateway used by calls which were not given one, see {@link LightrailStripeGateway}.
+ */
+public final class LightrailStripeGateways {
+    private static volatile LightrailStripeGateway defaultGateway = DefaultLightrailStripeGateway.INSTANCE;
+
+    private LightrailStripeGateways() {
+    }
+
+    public static LightrailStripeGateway getDefault() {
+        return defaultGateway;
+    }
+
+    /**
+     * Installs the default gateway, or goes back to a {@link DefaultLightrailStripeGateway} with {@code null}.
+     */
+    public static void setDefault(LightrailStripeGateway gateway) {
+        defaultGateway = (gateway == null) ? DefaultLightrailStripeGateway.INSTANCE : gateway;
+    }
+
+    /**
+     * @return the given gateway, or the default one if it is {@code null}.
+     */
+    static LightrailStripeGateway orDefault(LightrailStripeGateway gateway) {
+        return (gateway != null) ? gateway : defaultGateway;
+    }
+}
@@ -0,0 +1,41 @@
+package com.lightrail.model.stripe;
+
+import com.google.gson.Gson;
+import com.lightrail.helpers.LightrailConstants;
+import com.lightrail.model.business.LightrailTransaction;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A simulated charge answered from the {@link LightrailBalanceCache} without asking Lightrail. Its transaction object
+ * is built locally in the shape of a Lightrail simulation: it has the Card, currency, value and idempotency key, but
+ * no transaction ID. Like any simulation, it cannot be captured, voided or refunded.
+ */
+class LocallySimulatedLightrailCharge extends LightrailCharge {
+    private static final Gson GSON = new Gson();
+
+    LocallySimulatedLightrailCharge(String cardId, String currency, int amount, Map<String, Object> chargeParams) {
+        super(toTransaction(cardId, currency, amount, chargeParams));
+    }
+
+    private static LightrailTransaction toTransaction(String cardId, String currency, int amount, Map<String, Object> chargeParams) {
+        Map<String, Object> transaction = new LinkedHashMap<>();
+        transaction.put("cardId", cardId);
+        transaction.put("currency", currency);
+        transaction.put("value", 0 - amount);
+        transaction.put("userSuppliedId", chargeParams.get(LightrailConstants.Parameters.USER_SUPPLIED_ID));
+        transaction.put("transactionType", "DRAWDOWN");
+        transaction.put("metadata", new HashMap<String, Object>());
+        return new LightrailTransaction(GSON.toJson(transaction));
+    }
+
+    /**
+     * @return the Card's ID alone, since there is no transaction.
+     */
+    @Override
+    public String getFullId() {
+        return getTransactionObject().getCardId();
+    }
+}
@@ -0,0 +1,88 @@
+package com.lightrail.model.stripe;
+
+/**
+ * Receives the latency of every remote call made by this library, the outcome of split-tender charges, retries and
+ * coalesced calls.
+ * Implementations are called on the request path, from many threads at once, and must be thread-safe and fast.
+ * Install one with {@link LightrailMetrics#setRegistry(MetricsRegistry)}; {@link HistogramMetricsRegistry} is the
+ * built-in implementation. To report into another metrics library, implement this interface on top of it.
+ */
+public interface MetricsRegistry {
+
+    enum Phase {
+        LIGHTRAIL_SIMULATE,
+        LIGHTRAIL_CHARGE,
+        LIGHTRAIL_PENDING_CHARGE,
+        LIGHTRAIL_CAPTURE,
+        LIGHTRAIL_VOID,
+        LIGHTRAIL_REFUND,
+        LIGHTRAIL_FUND,
+        LIGHTRAIL_RETRIEVE,
+        LIGHTRAIL_CONTACT_LOOKUP,
+        STRIPE_CHARGE,
+        STRIPE_RETRIEVE,
+        STRIPE_UPDATE,
+        STRIPE_REFUND,
+        /**
+         * The capture of a Stripe charge authorized by {@link StripeLightrailSplitTenderCharge#authorize}.
+         */
+        STRIPE_CAPTURE,
+        /**
+         * A whole {@link StripeLightrailSplitTenderCharge#simulate(SplitTenderChargeRequest)}.
+         */
+        SPLIT_TENDER_SIMULATE,
+        /**
+         * A whole split-tender charge creation, from the first leg to the capture.
+         */
+        SPLIT_TENDER_CREATE
+    }
+
+    enum Outcome {
+        /**
+         * A split-tender charge was completed.
+         */
+        CAPTURED,
+        /**
+         * A pending Lightrail charge was voided.
+         */
+        VOIDED,
+        /**
+         * A Stripe charge was refunded to compensate for a failed Lightrail leg.
+         */
+        STRIPE_REFUNDED,
+        STRIPE_DECLINED,
+        INSUFFICIENT_VALUE,
+        /**
+         * A split-tender charge was put entirely on Stripe because the Lightrail circuit breaker was open.
+         */
+        LIGHTRAIL_SKIPPED,
+        /**
+         * Both legs of a split-tender charge were authorized, to be captured or voided later.
+         */
+        AUTHORIZED,
+        /**
+         * A split-tender charge was refunded, wholly or in part.
+         */
+        REFUNDED
+    }
+
+    /**
+     * @param successful whether the call returned normally rather than throwing.
+     */
+    void recordLatency(Phase phase, long nanos, boolean successful);
+
+    void recordOutcome(Outcome outcome);
+
+    /**
+     * Records that a call was a retry of an earlier one, e.g. a split-tender simulation which found the transaction
+     * created by an earlier attempt with the same idempotency key.
+     */
+    void recordRetry(Phase phase);
+
+    /**
+     * Records that a call shared the result of an identical call already in flight instead of calling Lightrail,
+     * see {@link LightrailSingleFlight}.
+     */
+    default void recordCoalesced(Phase phase) {
+    }
+}
@@ -0,0 +1,181 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.BadParameterException;
+import com.lightrail.helpers.LightrailConstants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable split-tender charge request paid with several Lightrail instruments, e.g. gift codes and the shopper's
+ * account credit, and one Stripe source. The instruments are used in the order they were added: each one pays as much
+ * of what is left as it can, and Stripe is charged the rest. Each instrument must be a different Card.
+ * <p>
+ * Each instrument is charged as its own {@link SplitTenderChargeRequest}, see {@link #getInstruments()}, with the
+ * idempotency key of the request followed by its position, e.g. {@code order-1234-0}.
+ */
+public final class MultiInstrumentChargeRequest {
+    private final SplitTenderChargeRequest stripeRequest;
+    private final List<Instrument> instruments;
+
+    private List<SplitTenderChargeRequest> instrumentRequests = null;
+
+    private static final class Instrument {
+        final String parameter;
+        final String value;
+
+        Instrument(String parameter, String value) {
+            this.parameter = parameter;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Instrument && parameter.equals(((Instrument) o).parameter) && value.equals(((Instrument) o).value);
+        }
+
+        @Override
+        public int hashCode() {
+            return parameter.hashCode() * 31 + value.hashCode();
+        }
+    }
+
+    public static class Builder {
+        private final SplitTenderChargeRequest.Builder stripeRequest;
+        private final List<Instrument> instruments = new ArrayList<>();
+
+        private Builder(int amount, String currency) {
+            this.stripeRequest = SplitTenderChargeRequest.builder(amount, currency);
+        }
+
+        private Builder addInstrument(String parameter, String value) {
+            if (value == null)
+                throw new BadParameterException("Missing Lightrail parameter: " + parameter + ".");
+            Instrument instrument = new Instrument(parameter, value);
+            if (instruments.contains(instrument))
+                throw new BadParameterException("The Lightrail " + parameter + " '" + value + "' was added twice.");
+            instruments.add(instrument);
+            return this;
+        }
+
+        public Builder addLightrailGiftCode(String code) {
+            return addInstrument(LightrailConstants.Parameters.CODE, code);
+        }
+
+        public Builder addLightrailCardId(String cardId) {
+            return addInstrument(LightrailConstants.Parameters.CARD_ID, cardId);
+        }
+
+        public Builder addLightrailContact(String contact) {
+            return addInstrument(LightrailConstants.Parameters.CONTACT, contact);
+        }
+
+        public Builder addLightrailShopperId(String shopperId) {
+            return addInstrument(LightrailConstants.Parameters.SHOPPER_ID, shopperId);
+        }
+
+        public Builder useStripeToken(String stripeToken) {
+            stripeRequest.useStripeToken(stripeToken);
+            return this;
+        }
+
+        public Builder useStripeCustomer(String stripeCustomer) {
+            stripeRequest.useStripeCustomer(stripeCustomer);
+            return this;
+        }
+
+        public Builder setUserSuppliedId(String userSuppliedId) {
+            stripeRequest.setUserSuppliedId(userSuppliedId);
+            return this;
+        }
+
+        /**
+         * Adds a parameter that is passed through to Lightrail as is, for every instrument.
+         */
+        public Builder setLightrailParam(String key, Object value) {
+            stripeRequest.setLightrailParam(key, value);
+            return this;
+        }
+
+        public Builder setGateway(LightrailStripeGateway gateway) {
+            stripeRequest.setGateway(gateway);
+            return this;
+        }
+
+        /**
+         * Splits this request with the given policy instead of the default one. The policy decides the total of the
+         * Lightrail shares, which is then taken from the instruments in order.
+         */
+        public Builder setAllocationPolicy(SplitAllocationPolicy allocationPolicy) {
+            stripeRequest.setAllocationPolicy(allocationPolicy);
+            return this;
+        }
+
+        public MultiInstrumentChargeRequest build() {
+            return new MultiInstrumentChargeRequest(stripeRequest.build(), Collections.unmodifiableList(new ArrayList<>(instruments)));
+        }
+    }
+
+    private MultiInstrumentChargeRequest(SplitTenderChargeRequest stripeRequest, List<Instrument> instruments) {
+        this.stripeRequest = stripeRequest;
+        this.instruments = instruments;
+    }
+
+    public static Builder builder(int amount, String currency) {
+        return new Builder(amount, currency);
+    }
+
+    MultiInstrumentChargeRequest withUserSuppliedId(String userSuppliedId) {
+        return new MultiInstrumentChargeRequest(stripeRequest.withUserSuppliedId(userSuppliedId), instruments);
+    }
+
+    /**
+     * The request without its Lightrail instruments, which carries the Stripe source, the total amount and the
+     * allocation policy.
+     */
+    SplitTenderChargeRequest getStripeRequest() {
+        return stripeRequest;
+    }
+
+    /**
+     * @return one single-instrument request per instrument, in order, for the whole amount of this request.
+     */
+    public List<SplitTenderChargeRequest> getInstruments() {
+        List<SplitTenderChargeRequest> requests = instrumentRequests;
+        if (requests == null) {
+            requests = new ArrayList<>(instruments.size());
+            for (int i = 0; i < instruments.size(); i++) {
+                String userSuppliedId = (getUserSuppliedId() == null) ? null : getUserSuppliedId() + "-" + i;
+                requests.add(stripeRequest.withLightrailInstrument(instruments.get(i).parameter, instruments.get(i).value, userSuppliedId));
+            }
+            requests = Collections.unmodifiableList(requests);
+            instrumentRequests = requests;
+        }
+        return requests;
+    }
+
+    public int getAmount() {
+        return stripeRequest.getAmount();
+    }
+
+    public String getCurrency() {
+        return stripeRequest.getCurrency();
+    }
+
+    public String getStripeToken() {
+        return stripeRequest.getStripeToken();
+    }
+
+    public String getStripeCustomer() {
+        return stripeRequest.getStripeCustomer();
+    }
+
+    public String getUserSuppliedId() {
+        return stripeRequest.getUserSuppliedId();
+    }
+
+    public LightrailStripeGateway getGateway() {
+        return stripeRequest.getGateway();
+    }
+}
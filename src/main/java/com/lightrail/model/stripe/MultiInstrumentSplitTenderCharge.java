@@ -0,0 +1,344 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.*;
+import com.lightrail.model.api.objects.Metadata;
+import com.stripe.model.Charge;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * A split-tender charge paid with several Lightrail instruments and one Stripe source, see
+ * {@link MultiInstrumentChargeRequest}. Every instrument is simulated at once, and charged with a pending charge placed
+ * at the same time as the others; Stripe is charged the rest once all of them are held, and the pending charges are
+ * then captured at once.
+ * <p>
+ * When Stripe is charged, each instrument's pending charge is recorded in the {@link SplitTenderJournal} as a charge
+ * of its own, under the instrument's idempotency key, so that recovery captures or voids it. These charges are not
+ * recorded in the caches of single-instrument charges.
+ */
+public class MultiInstrumentSplitTenderCharge {
+    final List<LightrailCharge> lightrailCharges;
+    final Charge stripeCharge;
+
+    MultiInstrumentSplitTenderCharge(List<LightrailCharge> lightrailCharges, Charge stripeCharge) {
+        this.lightrailCharges = Collections.unmodifiableList(lightrailCharges);
+        this.stripeCharge = stripeCharge;
+    }
+
+    /**
+     * @return the Lightrail charge of each instrument, in order, or {@code null} for an instrument which pays nothing.
+     */
+    public List<LightrailCharge> getLightrailCharges() {
+        return lightrailCharges;
+    }
+
+    public Charge getStripeCharge() {
+        return stripeCharge;
+    }
+
+    /**
+     * @return the share of each instrument, in order.
+     */
+    public int[] getLightrailShares() {
+        int[] shares = new int[lightrailCharges.size()];
+        for (int i = 0; i < shares.length; i++)
+            shares[i] = (lightrailCharges.get(i) == null) ? 0 : lightrailCharges.get(i).getAmount();
+        return shares;
+    }
+
+    public int getLightrailShare() {
+        int lightrailShare = 0;
+        for (int share : getLightrailShares())
+            lightrailShare += share;
+        return lightrailShare;
+    }
+
+    public int getStripeShare() {
+        return (stripeCharge == null) ? 0 : stripeCharge.getAmount().intValue();
+    }
+
+    public static SimulatedMultiInstrumentSplitTenderCharge simulate(MultiInstrumentChargeRequest request) throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException, ThirdPartyException {
+        return simulate(request, AsyncCalls.blockingCallExecutor());
+    }
+
+    /**
+     * Simulates every instrument at once on the given executor, each for as much as the allocation policy lets
+     * Lightrail pay, then takes the shares from the instruments in order.
+     */
+    public static SimulatedMultiInstrumentSplitTenderCharge simulate(MultiInstrumentChargeRequest request, Executor executor) throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException, ThirdPartyException {
+        boolean generatedIdempotencyKey = request.getUserSuppliedId() == null;
+        if (generatedIdempotencyKey)
+            request = request.withUserSuppliedId(UUID.randomUUID().toString());
+
+        long start = LightrailMetrics.start();
+        CheckoutEvents.Span span = CheckoutEvents.begin(MetricsRegistry.Phase.SPLIT_TENDER_SIMULATE);
+        SimulatedMultiInstrumentSplitTenderCharge simulatedCharge = null;
+        Throwable failure = null;
+        try {
+            simulatedCharge = simulateSplit(request, generatedIdempotencyKey, executor);
+            return simulatedCharge;
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            LightrailMetrics.stop(MetricsRegistry.Phase.SPLIT_TENDER_SIMULATE, start, failure == null);
+            span.complete(request.getUserSuppliedId(), request.getCurrency(), request.getAmount(),
+                    (simulatedCharge == null) ? 0 : simulatedCharge.getLightrailShare(),
+                    (simulatedCharge == null) ? 0 : simulatedCharge.getStripeShare(),
+                    failure);
+        }
+    }
+
+    private static SimulatedMultiInstrumentSplitTenderCharge simulateSplit(MultiInstrumentChargeRequest request, final boolean generatedIdempotencyKey, Executor executor) throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException, ThirdPartyException {
+        List<SplitTenderChargeRequest> instruments = request.getInstruments();
+        final int maxLightrailShare = SplitAllocationPolicies.getMaxLightrailShare(request.getStripeRequest());
+        List<CompletableFuture<LightrailCharge>> simulations = new ArrayList<>(instruments.size());
+        for (final SplitTenderChargeRequest instrument : instruments) {
+            simulations.add((maxLightrailShare == 0) ? CompletableFuture.<LightrailCharge>completedFuture(null)
+                    : AsyncCalls.supply(() -> simulateInstrument(instrument, maxLightrailShare, generatedIdempotencyKey), executor));
+        }
+        joinAll(simulations);
+
+        int[] shares = new int[instruments.size()];
+        int lightrailAvailable = 0;
+        for (int i = 0; i < shares.length; i++) {
+            LightrailCharge simulatedCharge = simulations.get(i).join();
+            shares[i] = (simulatedCharge == null) ? 0 : Math.min(simulatedCharge.getAmount(), maxLightrailShare - lightrailAvailable);
+            lightrailAvailable += shares[i];
+        }
+        int lightrailShare = instruments.isEmpty() ? 0 : SplitAllocationPolicies.allocate(request.getStripeRequest(), lightrailAvailable);
+        for (int i = shares.length - 1; i >= 0 && lightrailAvailable > lightrailShare; i--) { //give back from the last instruments
+            int returned = Math.min(shares[i], lightrailAvailable - lightrailShare);
+            shares[i] -= returned;
+            lightrailAvailable -= returned;
+        }
+
+        List<LightrailCharge> lightrailCharges = new ArrayList<>(shares.length);
+        for (int i = 0; i < shares.length; i++) {
+            LightrailCharge simulatedCharge = (shares[i] == 0) ? null : simulations.get(i).join();
+            if (simulatedCharge != null)
+                simulatedCharge.setAmount(shares[i]);
+            lightrailCharges.add(simulatedCharge);
+        }
+        Charge stripeCharge = null;
+        int stripeShare = request.getAmount() - lightrailShare;
+        if (stripeShare != 0) {
+            stripeCharge = new Charge();
+            stripeCharge.setCurrency(request.getCurrency());
+            stripeCharge.setAmount((long) stripeShare);
+        }
+        return new SimulatedMultiInstrumentSplitTenderCharge(lightrailCharges, stripeCharge, request);
+    }
+
+    private static LightrailCharge simulateInstrument(SplitTenderChargeRequest instrument, int amount, boolean generatedIdempotencyKey) throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException {
+        try {
+            SplitTenderChargeRequest resolvedInstrument = LightrailResolver.resolve(instrument);
+            LightrailCharge simulatedCharge = LightrailCharge.simulateTranslated(resolvedInstrument.toLightrailRequest(amount, false, null), amount, generatedIdempotencyKey, instrument.getGateway());
+            LightrailResolver.learn(instrument, simulatedCharge);
+            return simulatedCharge;
+        } catch (CouldNotFindObjectException e) {
+            LightrailResolver.forget(instrument);
+            throw e;
+        }
+    }
+
+    public static MultiInstrumentSplitTenderCharge create(MultiInstrumentChargeRequest request) throws InsufficientValueException, AuthorizationException, CurrencyMismatchException, IOException, CouldNotFindObjectException, ThirdPartyException {
+        return simulate(request).commit();
+    }
+
+    public static MultiInstrumentSplitTenderCharge create(MultiInstrumentChargeRequest request, int[] lightrailShares) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, IOException, CurrencyMismatchException {
+        return create(request, lightrailShares, AsyncCalls.blockingCallExecutor());
+    }
+
+    /**
+     * Places a pending charge on every instrument with a share at once on the given executor, then charges Stripe the
+     * rest and captures the pending charges at once. If a pending charge or the Stripe charge fails, the pending
+     * charges already placed, and those whose creation failed without a known outcome, are voided at once before the
+     * failure is thrown. If the Stripe charge failed without a known outcome, the instruments are left in the
+     * {@link SplitTenderJournal} for recovery to refund it if it was made. If a capture fails, the Stripe charge and
+     * the other captures stand, and creating the charge again with the same idempotency key and shares, or recovery,
+     * captures the rest.
+     *
+     * @param lightrailShares the share of each instrument, in order; Stripe is charged the rest.
+     */
+    public static MultiInstrumentSplitTenderCharge create(MultiInstrumentChargeRequest request, int[] lightrailShares, Executor executor) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, IOException, CurrencyMismatchException {
+        if (lightrailShares.length != request.getInstruments().size())
+            throw new BadParameterException("Need one Lightrail share per instrument.");
+        int lightrailShare = 0;
+        for (int share : lightrailShares) {
+            if (share < 0)
+                throw new BadParameterException("Lightrail shares must not be negative.");
+            lightrailShare += share;
+        }
+        int stripeShare = request.getAmount() - lightrailShare;
+        if (stripeShare < 0)
+            throw new BadParameterException("The Lightrail shares add up to more than the transaction amount.");
+        LightrailRateLimiters.admit(lightrailShare != 0, stripeShare != 0);
+        if (stripeShare != 0)
+            StripeLightrailSplitTenderCharge.checkStripeAvailable();
+        if (request.getUserSuppliedId() == null)
+            request = request.withUserSuppliedId(UUID.randomUUID().toString());
+
+        long start = LightrailMetrics.start();
+        CheckoutEvents.Span span = CheckoutEvents.begin(MetricsRegistry.Phase.SPLIT_TENDER_CREATE);
+        Throwable failure = null;
+        try {
+            MultiInstrumentSplitTenderCharge charge = createSplit(request, lightrailShares, stripeShare, executor);
+            LightrailMetrics.outcome(MetricsRegistry.Outcome.CAPTURED);
+            return charge;
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            LightrailMetrics.stop(MetricsRegistry.Phase.SPLIT_TENDER_CREATE, start, failure == null);
+            span.complete(request.getUserSuppliedId(), request.getCurrency(), request.getAmount(), lightrailShare, stripeShare, failure);
+        }
+    }
+
+    private static MultiInstrumentSplitTenderCharge createSplit(MultiInstrumentChargeRequest request, int[] lightrailShares, int stripeShare, Executor executor) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, IOException, CurrencyMismatchException {
+        final String idempotencyKey = request.getUserSuppliedId();
+        final boolean journaled = stripeShare != 0;
+        final List<SplitTenderChargeRequest> instruments = request.getInstruments();
+        final List<CompletableFuture<LightrailCharge>> pendingCharges = new ArrayList<>(instruments.size());
+        for (int i = 0; i < instruments.size(); i++) {
+            final SplitTenderChargeRequest instrument = instruments.get(i);
+            final int share = lightrailShares[i];
+            pendingCharges.add((share == 0) ? CompletableFuture.<LightrailCharge>completedFuture(null)
+                    : AsyncCalls.supply(() -> createPendingCharge(instrument, share, journaled), executor));
+        }
+        try {
+            joinAll(pendingCharges);
+        } catch (Exception e) {
+            voidAll(instruments, pendingCharges, e, executor);
+            throw e;
+        }
+
+        Charge stripeCharge = null;
+        if (stripeShare != 0) {
+            try {
+                Map<String, Object> stripeParams = request.getStripeRequest().toStripeParams(stripeShare, null, idempotencyKey);
+                for (int i = 0; i < instruments.size(); i++) {
+                    if (pendingCharges.get(i).join() != null)
+                        SplitTenderJournal.recordStripeRequested(instruments.get(i).getUserSuppliedId(), stripeParams);
+                }
+                stripeCharge = StripeLightrailSplitTenderCharge.createStripeCharge(request.getGateway(), stripeParams, idempotencyKey);
+            } catch (ThirdPartyException | IOException | RuntimeException e) {
+                voidAll(instruments, pendingCharges, e, executor);
+                throw e;
+            }
+        }
+
+        final Metadata captureMetadata = StripeLightrailSplitTenderCharge.getLightrailMetadata(request.getAmount(), (stripeCharge == null) ? null : stripeCharge.getId());
+        List<CompletableFuture<LightrailCharge>> capturedCharges = new ArrayList<>(instruments.size());
+        for (int i = 0; i < instruments.size(); i++) {
+            final LightrailCharge pendingCharge = pendingCharges.get(i).join();
+            final String instrumentIdempotencyKey = instruments.get(i).getUserSuppliedId();
+            capturedCharges.add((pendingCharge == null) ? CompletableFuture.<LightrailCharge>completedFuture(null)
+                    : AsyncCalls.supply(() -> capturePendingCharge(pendingCharge, instrumentIdempotencyKey, captureMetadata), executor));
+        }
+        joinAll(capturedCharges);
+
+        List<LightrailCharge> lightrailCharges = new ArrayList<>(instruments.size());
+        for (CompletableFuture<LightrailCharge> capturedCharge : capturedCharges)
+            lightrailCharges.add(capturedCharge.join());
+        return new MultiInstrumentSplitTenderCharge(lightrailCharges, stripeCharge);
+    }
+
+    /**
+     * @param journaled whether the pending charge is recorded in the {@link SplitTenderJournal}; only when Stripe is
+     *                  charged too, like a single-instrument charge.
+     */
+    private static LightrailCharge createPendingCharge(SplitTenderChargeRequest instrument, int share, boolean journaled) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException, CurrencyMismatchException {
+        try {
+            return StripeLightrailSplitTenderCharge.createLightrailCharge(instrument, share, false, journaled);
+        } catch (Throwable e) {
+            SplitTenderJournal.recordFailure(instrument.getUserSuppliedId(), e);
+            throw e;
+        }
+    }
+
+    private static LightrailCharge capturePendingCharge(LightrailCharge pendingCharge, String instrumentIdempotencyKey, Metadata captureMetadata) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
+        LightrailCharge capturedCharge;
+        try {
+            capturedCharge = pendingCharge.capture(instrumentIdempotencyKey + "-capture", captureMetadata);
+        } catch (Throwable e) {
+            SplitTenderJournal.recordUnresolved(instrumentIdempotencyKey);
+            throw e;
+        }
+        SplitTenderJournal.recordCompleted(instrumentIdempotencyKey);
+        return capturedCharge;
+    }
+
+    /**
+     * Voids every pending charge which was placed, and every one whose creation failed without a known outcome if it
+     * was placed after all, at once, and adds the failures to the one being thrown. If that failure is a Stripe charge
+     * of unknown outcome, every instrument is left in the journal for recovery to refund it, and to void any pending
+     * charge whose void failed; none of them is ever captured, so that they all stay compensated.
+     */
+    private static void voidAll(List<SplitTenderChargeRequest> instruments, List<CompletableFuture<LightrailCharge>> pendingCharges, final Throwable failure, Executor executor) {
+        List<CompletableFuture<LightrailFund>> voids = new ArrayList<>();
+        for (int i = 0; i < pendingCharges.size(); i++) {
+            final SplitTenderChargeRequest instrument = instruments.get(i);
+            Throwable createFailure = AsyncCalls.failureOf(pendingCharges.get(i));
+            if (createFailure == null) {
+                final LightrailCharge pendingCharge = pendingCharges.get(i).join();
+                if (pendingCharge != null)
+                    voids.add(AsyncCalls.supply(() -> voidPendingCharge(pendingCharge, instrument.getUserSuppliedId(), failure), executor));
+            } else if (StripeLightrailSplitTenderCharge.mayHaveBeenCreated(createFailure)) {
+                voids.add(AsyncCalls.supply(() -> {
+                    LightrailCharge pendingCharge = StripeLightrailSplitTenderCharge.findPendingCharge(instrument);
+                    if (pendingCharge != null)
+                        return voidPendingCharge(pendingCharge, instrument.getUserSuppliedId(), failure);
+                    SplitTenderJournal.recordAborted(instrument.getUserSuppliedId());
+                    return null;
+                }, executor));
+            }
+        }
+        for (CompletableFuture<LightrailFund> voided : voids) {
+            Throwable voidFailure = AsyncCalls.failureOf(voided);
+            if (voidFailure != null)
+                failure.addSuppressed(voidFailure);
+        }
+    }
+
+    private static LightrailFund voidPendingCharge(LightrailCharge pendingCharge, String instrumentIdempotencyKey, Throwable failure) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
+        LightrailFund voidedCharge;
+        try {
+            voidedCharge = pendingCharge.doVoid(instrumentIdempotencyKey + "-void", null);
+        } catch (Throwable e) {
+            if (StripeLightrailSplitTenderCharge.isUnknownStripeOutcome(failure))
+                SplitTenderJournal.recordVoided(instrumentIdempotencyKey); //recovery voids it, and never captures it
+            else
+                SplitTenderJournal.recordUnresolved(instrumentIdempotencyKey);
+            throw e;
+        }
+        StripeLightrailSplitTenderCharge.recordCompensated(instrumentIdempotencyKey, failure);
+        return voidedCharge;
+    }
+
+    /**
+     * Waits for every call, then throws the failure of the first one in order which failed, with the other failures
+     * suppressed, if any.
+     */
+    private static void joinAll(List<? extends CompletableFuture<?>> calls) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, CurrencyMismatchException, IOException {
+        Throwable failure = null;
+        for (CompletableFuture<?> call : calls) {
+            Throwable callFailure = AsyncCalls.failureOf(call);
+            if (callFailure == null)
+                continue;
+            if (failure == null)
+                failure = callFailure;
+            else if (callFailure != failure)
+                failure.addSuppressed(callFailure);
+        }
+        if (failure != null)
+            AsyncCalls.join(AsyncCalls.failed(failure));
+    }
+}
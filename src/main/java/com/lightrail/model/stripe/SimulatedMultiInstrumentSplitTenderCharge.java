@@ -0,0 +1,28 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.*;
+import com.stripe.model.Charge;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+public class SimulatedMultiInstrumentSplitTenderCharge extends MultiInstrumentSplitTenderCharge {
+    MultiInstrumentChargeRequest request;
+
+    SimulatedMultiInstrumentSplitTenderCharge(List<LightrailCharge> lightrailCharges, Charge stripeCharge, MultiInstrumentChargeRequest request) {
+        super(lightrailCharges, stripeCharge);
+        this.request = request;
+    }
+
+    public MultiInstrumentSplitTenderCharge commit() throws CouldNotFindObjectException, ThirdPartyException, IOException, CurrencyMismatchException, InsufficientValueException, AuthorizationException {
+        return MultiInstrumentSplitTenderCharge.create(request, getLightrailShares());
+    }
+
+    /**
+     * Commits the simulated shares, making the Lightrail calls of every instrument at once on the given executor.
+     */
+    public MultiInstrumentSplitTenderCharge commit(Executor executor) throws CouldNotFindObjectException, ThirdPartyException, IOException, CurrencyMismatchException, InsufficientValueException, AuthorizationException {
+        return MultiInstrumentSplitTenderCharge.create(request, getLightrailShares(), executor);
+    }
+}
@@ -4,25 +4,37 @@ import com.lightrail.exceptions.*;
 import com.stripe.model.Charge;
 
 import java.io.IOException;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public class SimulatedStripeLightrailSplitTenderCharge extends StripeLightrailSplitTenderCharge {
-    Map<String, Object> originalParams;
+    SplitTenderChargeRequest request;
 
-    SimulatedStripeLightrailSplitTenderCharge(LightrailCharge lightrailCharge, Charge stripeCharge, Map<String, Object> originalParams) {
+    SimulatedStripeLightrailSplitTenderCharge(LightrailCharge lightrailCharge, Charge stripeCharge, SplitTenderChargeRequest request) {
         super(lightrailCharge, stripeCharge);
-        this.originalParams = originalParams;
+        this.request = request;
     }
 
     public StripeLightrailSplitTenderCharge commit() throws CouldNotFindObjectException, ThirdPartyException, IOException, CurrencyMismatchException, InsufficientValueException, AuthorizationException {
-        int lightrailShare = 0;
-        int stripeShare = 0;
-        if (this.getLightrailCharge() != null)
-            lightrailShare = getLightrailCharge().getAmount();
-        if (this.getStripeCharge() != null)
-            stripeShare = getStripeCharge().getAmount().intValue();
-
-        return StripeLightrailSplitTenderCharge.create(originalParams, stripeShare, lightrailShare);
+        return withSkippedLeg(StripeLightrailSplitTenderCharge.create(request, getStripeShare(), getLightrailShare()));
+    }
+
+    /**
+     * Holds the simulated shares for a later capture instead of committing them, see
+     * {@link StripeLightrailSplitTenderCharge#authorize(SplitTenderChargeRequest, int, int)}.
+     */
+    public SplitTenderAuthorization authorize() throws CouldNotFindObjectException, ThirdPartyException, IOException, CurrencyMismatchException, InsufficientValueException, AuthorizationException {
+        return StripeLightrailSplitTenderCharge.authorize(request, getStripeShare(), getLightrailShare());
+    }
+
+    public CompletableFuture<StripeLightrailSplitTenderCharge> commitAsync(Executor executor) {
+        return StripeLightrailSplitTenderCharge.createAsync(request, getStripeShare(), getLightrailShare(), executor)
+                .thenApply(this::withSkippedLeg);
+    }
+
+    private StripeLightrailSplitTenderCharge withSkippedLeg(StripeLightrailSplitTenderCharge charge) {
+        charge.lightrailSkipped = lightrailSkipped;
+        return charge;
     }
 
 }
@@ -0,0 +1,170 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.InsufficientValueException;
+import com.lightrail.helpers.StripeConstants;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the {@link SplitAllocationPolicy} used by split-tender requests which were not given one, by default
+ * {@link #giftCardFirst()}, and the smallest charge Stripe accepts in each currency.
+ */
+public final class SplitAllocationPolicies {
+    private static final SplitAllocationPolicy GIFT_CARD_FIRST = new SplitAllocationPolicy() {
+        @Override
+        public int getMaxLightrailShare(int transactionAmount, String currency) {
+            return transactionAmount;
+        }
+
+        @Override
+        public int allocate(int transactionAmount, int lightrailAvailable, int stripeMinimum, String currency) {
+            return lightrailAvailable;
+        }
+    };
+
+    private static volatile SplitAllocationPolicy defaultPolicy = GIFT_CARD_FIRST;
+    private static final Map<String, Integer> stripeMinimums = new ConcurrentHashMap<>();
+
+    static {
+        //https://stripe.com/docs/currencies#minimum-and-maximum-charge-amounts
+        String[] currencies = {"USD", "AED", "AUD", "BGN", "BRL", "CAD", "CHF", "CZK", "DKK", "EUR", "GBP", "HKD", "HUF",
+                "INR", "JPY", "MXN", "MYR", "NOK", "NZD", "PLN", "RON", "SEK", "SGD", "THB"};
+        int[] minimums = {50, 200, 50, 100, 50, 50, 50, 1500, 250, 50, 30, 400, 17500,
+                50, 50, 1000, 200, 300, 50, 200, 200, 300, 50, 1000};
+        for (int i = 0; i < currencies.length; i++)
+            stripeMinimums.put(currencies[i], minimums[i]);
+    }
+
+    private SplitAllocationPolicies() {
+    }
+
+    public static SplitAllocationPolicy getDefault() {
+        return defaultPolicy;
+    }
+
+    /**
+     * Installs the default policy, or goes back to {@link #giftCardFirst()} with {@code null}.
+     */
+    public static void setDefault(SplitAllocationPolicy policy) {
+        defaultPolicy = (policy == null) ? GIFT_CARD_FIRST : policy;
+    }
+
+    static SplitAllocationPolicy orDefault(SplitAllocationPolicy policy) {
+        return (policy != null) ? policy : defaultPolicy;
+    }
+
+    /**
+     * @return the smallest charge Stripe accepts in the currency, in its smallest unit, or
+     * {@link StripeConstants#STRIPE_MINIMUM_TRANSACTION_VALUE} if it is not known.
+     */
+    public static int getStripeMinimum(String currency) {
+        Integer minimum = (currency == null) ? null : stripeMinimums.get(currency.toUpperCase(Locale.ROOT));
+        return (minimum != null) ? minimum : StripeConstants.STRIPE_MINIMUM_TRANSACTION_VALUE;
+    }
+
+    /**
+     * Sets the smallest charge Stripe accepts in a currency, e.g. when Stripe changes it or the account settles in
+     * another currency.
+     */
+    public static void setStripeMinimum(String currency, int minimum) {
+        if (minimum < 0)
+            throw new IllegalArgumentException("The Stripe minimum must not be negative.");
+        stripeMinimums.put(currency.toUpperCase(Locale.ROOT), minimum);
+    }
+
+    /**
+     * Puts as much as the Lightrail Card can cover on Lightrail, and the rest on Stripe.
+     */
+    public static SplitAllocationPolicy giftCardFirst() {
+        return GIFT_CARD_FIRST;
+    }
+
+    /**
+     * Puts as much as the Lightrail Card can cover on Lightrail, up to a percentage of the transaction amount rounded
+     * down, and the rest on Stripe.
+     */
+    public static SplitAllocationPolicy capLightrailShare(final int percent) {
+        if (percent < 0 || percent > 100)
+            throw new IllegalArgumentException("The Lightrail share must be capped at 0 to 100 percent.");
+        return new SplitAllocationPolicy() {
+            @Override
+            public int getMaxLightrailShare(int transactionAmount, String currency) {
+                return (int) ((long) transactionAmount * percent / 100);
+            }
+
+            @Override
+            public int allocate(int transactionAmount, int lightrailAvailable, int stripeMinimum, String currency) {
+                return lightrailAvailable;
+            }
+        };
+    }
+
+    /**
+     * Picks the split which costs the least in fees: Stripe's fixed fee and percentage, and what each Lightrail
+     * transaction costs. This is {@link #giftCardFirst()}, except that a balance too small to pay for its own
+     * Lightrail transaction is left on the Card and the whole amount put on Stripe.
+     *
+     * @param stripeBasisPoints the percentage fee of Stripe, in hundredths of a percent.
+     */
+    public static SplitAllocationPolicy minimizeCardFees(final int stripeFixedFee, final int stripeBasisPoints, final int lightrailFixedFee) {
+        if (stripeFixedFee < 0 || stripeBasisPoints < 0 || lightrailFixedFee < 0)
+            throw new IllegalArgumentException("Fees must not be negative.");
+        return new SplitAllocationPolicy() {
+            @Override
+            public int getMaxLightrailShare(int transactionAmount, String currency) {
+                return transactionAmount;
+            }
+
+            @Override
+            public int allocate(int transactionAmount, int lightrailAvailable, int stripeMinimum, String currency) {
+                int lightrailShare = lightrailAvailable;
+                int stripeShare = transactionAmount - lightrailShare;
+                if (stripeShare > 0 && stripeShare < stripeMinimum)
+                    lightrailShare = Math.max(0, transactionAmount - stripeMinimum);
+                if (lightrailShare == 0 || transactionAmount < stripeMinimum)
+                    return lightrailShare;
+                return (fees(transactionAmount, 0) < fees(transactionAmount, lightrailShare)) ? 0 : lightrailShare;
+            }
+
+            private long fees(int transactionAmount, int lightrailShare) {
+                long stripeShare = transactionAmount - lightrailShare;
+                long stripeFees = (stripeShare == 0) ? 0 : stripeFixedFee + (stripeShare * stripeBasisPoints + 9999) / 10000;
+                return stripeFees + ((lightrailShare == 0) ? 0 : lightrailFixedFee);
+            }
+        };
+    }
+
+    /**
+     * @return the most the request's Lightrail share may be, as decided by its policy.
+     */
+    static int getMaxLightrailShare(SplitTenderChargeRequest request) {
+        int maxShare = request.getAllocationPolicy().getMaxLightrailShare(request.getAmount(), request.getCurrency());
+        return Math.max(0, Math.min(maxShare, request.getAmount()));
+    }
+
+    /**
+     * @param lightrailAvailable how much of the maximum Lightrail share the Card can cover.
+     * @return the Lightrail share of the request, leaving Stripe either nothing or at least its minimum.
+     * @throws InsufficientValueException if the Stripe share cannot be brought up to the Stripe minimum.
+     */
+    static int allocate(SplitTenderChargeRequest request, int lightrailAvailable) throws InsufficientValueException {
+        int transactionAmount = request.getAmount();
+        String currency = request.getCurrency();
+        int stripeMinimum = getStripeMinimum(currency);
+        int lightrailShare = request.getAllocationPolicy().allocate(transactionAmount, lightrailAvailable, stripeMinimum, currency);
+        if (lightrailShare < 0 || lightrailShare > lightrailAvailable)
+            throw new IllegalStateException("The allocation policy put " + lightrailShare + " on Lightrail when " + lightrailAvailable + " was available.");
+
+        int stripeShare = transactionAmount - lightrailShare;
+        if (stripeShare > 0 && stripeShare < stripeMinimum) {
+            lightrailShare -= stripeMinimum - stripeShare;
+            if (lightrailShare < 0) {
+                LightrailMetrics.outcome(MetricsRegistry.Outcome.INSUFFICIENT_VALUE);
+                throw new InsufficientValueException("The balance of this Lightrail Card is too small for this transaction.");
+            }
+        }
+        return lightrailShare;
+    }
+}
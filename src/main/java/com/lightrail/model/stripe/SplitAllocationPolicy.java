@@ -0,0 +1,26 @@
+package com.lightrail.model.stripe;
+
+/**
+ * Decides how a split-tender charge is divided between Lightrail and Stripe. Lightrail is asked how much of
+ * {@link #getMaxLightrailShare(int, String)} the Card can cover, from the {@link LightrailBalanceCache} when it knows
+ * and with a remote simulation otherwise, and the policy then picks the Lightrail share; Stripe is charged the rest.
+ * Implementations must be thread-safe and fast, since they run for every simulation. Install one with
+ * {@link SplitAllocationPolicies#setDefault(SplitAllocationPolicy)} or per request; see
+ * {@link SplitAllocationPolicies} for the built-in ones.
+ */
+public interface SplitAllocationPolicy {
+
+    /**
+     * @return the most the Lightrail share may be, from 0 to the transaction amount. Lightrail is not asked at all
+     * when it is 0.
+     */
+    int getMaxLightrailShare(int transactionAmount, String currency);
+
+    /**
+     * @param lightrailAvailable how much of the maximum Lightrail share the Card can cover.
+     * @param stripeMinimum      the smallest charge Stripe accepts in the currency.
+     * @return the Lightrail share, from 0 to {@code lightrailAvailable}. If the rest is above 0 but below the Stripe
+     * minimum, the share is lowered to make up the difference.
+     */
+    int allocate(int transactionAmount, int lightrailAvailable, int stripeMinimum, String currency);
+}
@@ -0,0 +1,84 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.*;
+import com.stripe.model.Charge;
+
+import java.io.IOException;
+
+/**
+ * Both legs of a split-tender charge held for a later capture, as made by
+ * {@link StripeLightrailSplitTenderCharge#authorize(SplitTenderChargeRequest, int, int)}: a pending Lightrail charge
+ * and an uncaptured Stripe charge. Capturing or voiding settles both legs at the same time. Each settlement call has
+ * its own idempotency key, so a capture or void that failed can be called again.
+ */
+public class SplitTenderAuthorization {
+    final SplitTenderChargeRequest request;
+    final LightrailCharge pendingLightrailCharge;
+    final Charge uncapturedStripeCharge;
+
+    SplitTenderAuthorization(SplitTenderChargeRequest request, LightrailCharge pendingLightrailCharge, Charge uncapturedStripeCharge) {
+        this.request = request;
+        this.pendingLightrailCharge = pendingLightrailCharge;
+        this.uncapturedStripeCharge = uncapturedStripeCharge;
+    }
+
+    public String getIdempotencyKey() {
+        return request.getUserSuppliedId();
+    }
+
+    public int getAmount() {
+        return request.getAmount();
+    }
+
+    public String getCurrency() {
+        return request.getCurrency();
+    }
+
+    /**
+     * @return the pending Lightrail charge, or {@code null} if nothing was put on Lightrail.
+     */
+    public LightrailCharge getPendingLightrailCharge() {
+        return pendingLightrailCharge;
+    }
+
+    /**
+     * @return the uncaptured Stripe charge, or {@code null} if nothing was put on Stripe.
+     */
+    public Charge getStripeCharge() {
+        return uncapturedStripeCharge;
+    }
+
+    public int getLightrailShare() {
+        return (pendingLightrailCharge == null) ? 0 : pendingLightrailCharge.getAmount();
+    }
+
+    public int getStripeShare() {
+        return (uncapturedStripeCharge == null) ? 0 : uncapturedStripeCharge.getAmount().intValue();
+    }
+
+    /**
+     * Captures both legs in full.
+     */
+    public StripeLightrailSplitTenderCharge capture() throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, CurrencyMismatchException, IOException {
+        return capture(getAmount(), SplitTenderRefund.Allocation.PROPORTIONAL);
+    }
+
+    /**
+     * Captures part of the authorized amount, e.g. when only some items of the order shipped. The amount that is not
+     * captured is released from the legs as the allocation says, like a refund would be: Stripe captures less than it
+     * authorized, and a Lightrail charge is captured in full and the released amount returned to the card. A leg left
+     * with nothing to capture is voided.
+     *
+     * @throws BadParameterException if the amount is not positive or more than was authorized.
+     */
+    public StripeLightrailSplitTenderCharge capture(int amount, SplitTenderRefund.Allocation release) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, CurrencyMismatchException, IOException {
+        return StripeLightrailSplitTenderCharge.captureAuthorization(this, amount, release);
+    }
+
+    /**
+     * Voids the pending Lightrail charge and releases the Stripe authorization.
+     */
+    public void doVoid() throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, CurrencyMismatchException, IOException {
+        StripeLightrailSplitTenderCharge.voidAuthorization(this);
+    }
+}
@@ -0,0 +1,119 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.BadParameterException;
+import com.lightrail.helpers.ExpiringLruCache;
+import com.stripe.model.Charge;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional client-side cache of settled split-tender charges, keyed by idempotency key. When installed with
+ * {@link #setDefault(SplitTenderChargeCache)}, {@link StripeLightrailSplitTenderCharge#retrieve(java.util.Map)}
+ * answers repeated lookups of a charge made or retrieved earlier without any network call. It also remembers the
+ * Stripe charge ID of each split-tender charge made by this process, so that a retrieve missing the cache fetches the
+ * Lightrail and the Stripe charge at the same time.
+ */
+public class SplitTenderChargeCache {
+    private static volatile SplitTenderChargeCache defaultCache = null;
+
+    private static class SettledCharge {
+        final int amount;
+        final StripeLightrailSplitTenderCharge charge;
+
+        SettledCharge(int amount, StripeLightrailSplitTenderCharge charge) {
+            this.amount = amount;
+            this.charge = charge;
+        }
+    }
+
+    private final ExpiringLruCache<String, SettledCharge> settledCharges;
+    private final ExpiringLruCache<String, String> stripeChargeIds;
+
+    public SplitTenderChargeCache(int maxCharges, long ttl, TimeUnit unit) {
+        settledCharges = new ExpiringLruCache<>(maxCharges, ttl, unit);
+        stripeChargeIds = new ExpiringLruCache<>(maxCharges, ttl, unit);
+    }
+
+    public static SplitTenderChargeCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Installs the cache used by this library, or turns caching off with {@code null}.
+     */
+    public static void setDefault(SplitTenderChargeCache cache) {
+        defaultCache = cache;
+    }
+
+    /**
+     * Drops the cached result of a charge, e.g. after it was refunded outside this library. The ID of its Stripe
+     * charge, which cannot change, is kept.
+     */
+    public void invalidate(String idempotencyKey) {
+        if (idempotencyKey != null)
+            settledCharges.remove(idempotencyKey);
+    }
+
+    public void clear() {
+        settledCharges.clear();
+        stripeChargeIds.clear();
+    }
+
+    public long getHits() {
+        return settledCharges.getHits();
+    }
+
+    public long getMisses() {
+        return settledCharges.getMisses();
+    }
+
+    public long getEvictions() {
+        return settledCharges.getEvictions();
+    }
+
+    public int size() {
+        return settledCharges.size();
+    }
+
+    /**
+     * @return the settled charge, or {@code null} if it is not cached.
+     * @throws BadParameterException if it was cached with a different total amount.
+     */
+    static StripeLightrailSplitTenderCharge getSettled(String idempotencyKey, int amount) {
+        SplitTenderChargeCache cache = defaultCache;
+        if (cache == null || idempotencyKey == null)
+            return null;
+        SettledCharge settledCharge = cache.settledCharges.get(idempotencyKey);
+        if (settledCharge == null)
+            return null;
+        if (settledCharge.amount != amount)
+            throw new BadParameterException("Idempotency Error. The parameters do not match the original transaction.");
+        return settledCharge.charge;
+    }
+
+    static void putSettled(String idempotencyKey, int amount, StripeLightrailSplitTenderCharge charge) {
+        SplitTenderChargeCache cache = defaultCache;
+        if (cache == null || idempotencyKey == null)
+            return;
+        cache.settledCharges.put(idempotencyKey, new SettledCharge(amount, charge));
+        if (charge.getStripeCharge() != null)
+            cache.stripeChargeIds.put(idempotencyKey, charge.getStripeCharge().getId());
+    }
+
+    /**
+     * Remembers the Stripe leg of a charge as soon as it is known, before the charge is settled.
+     */
+    static void putStripeCharge(String idempotencyKey, Charge stripeCharge) {
+        SplitTenderChargeCache cache = defaultCache;
+        if (cache != null && idempotencyKey != null && stripeCharge != null)
+            cache.stripeChargeIds.put(idempotencyKey, stripeCharge.getId());
+    }
+
+    /**
+     * @return the ID of the Stripe leg of the charge, or {@code null} if it is not known.
+     */
+    static String getStripeChargeId(String idempotencyKey) {
+        SplitTenderChargeCache cache = defaultCache;
+        return (cache == null || idempotencyKey == null) ? null : cache.stripeChargeIds.get(idempotencyKey);
+    }
+}
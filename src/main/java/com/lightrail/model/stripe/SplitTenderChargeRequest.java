@@ -0,0 +1,395 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.BadParameterException;
+import com.lightrail.helpers.LightrailConstants;
+import com.lightrail.helpers.LightrailEcommerceConstants;
+import com.lightrail.helpers.StripeConstants;
+import com.lightrail.model.api.objects.Metadata;
+import com.lightrail.model.api.objects.RequestParameters;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable split-tender charge request: the typed equivalent of the parameter map accepted by
+ * {@link StripeLightrailSplitTenderCharge#simulate(Map)} and {@link StripeLightrailSplitTenderCharge#create(Map, int, int)}.
+ * The parts of the Lightrail and Stripe parameters that do not depend on the split are built once, on first use, and
+ * shared by every leg created from this request.
+ */
+public final class SplitTenderChargeRequest {
+    private final int amount;
+    private final String currency;
+    private final String code;
+    private final String cardId;
+    private final String contact;
+    private final String shopperId;
+    private final String stripeToken;
+    private final String stripeCustomer;
+    private final String userSuppliedId;
+    private final Map<String, Object> otherParams;
+    private final LightrailStripeGateway gateway;
+    private final SplitAllocationPolicy allocationPolicy;
+
+    private Map<String, Object> lightrailParams = null;
+
+    public static class Builder {
+        private final int amount;
+        private final String currency;
+        private String code = null;
+        private String cardId = null;
+        private String contact = null;
+        private String shopperId = null;
+        private String stripeToken = null;
+        private String stripeCustomer = null;
+        private String userSuppliedId = null;
+        private Map<String, Object> otherParams = null;
+        private LightrailStripeGateway gateway = null;
+        private SplitAllocationPolicy allocationPolicy = null;
+
+        private Builder(int amount, String currency) {
+            this.amount = amount;
+            this.currency = currency;
+        }
+
+        public Builder useLightrailGiftCode(String code) {
+            this.code = code;
+            return this;
+        }
+
+        public Builder useLightrailCardId(String cardId) {
+            this.cardId = cardId;
+            return this;
+        }
+
+        public Builder useLightrailContact(String contact) {
+            this.contact = contact;
+            return this;
+        }
+
+        public Builder useLightrailShopperId(String shopperId) {
+            this.shopperId = shopperId;
+            return this;
+        }
+
+        public Builder useStripeToken(String stripeToken) {
+            this.stripeToken = stripeToken;
+            return this;
+        }
+
+        public Builder useStripeCustomer(String stripeCustomer) {
+            this.stripeCustomer = stripeCustomer;
+            return this;
+        }
+
+        public Builder setUserSuppliedId(String userSuppliedId) {
+            this.userSuppliedId = userSuppliedId;
+            return this;
+        }
+
+        /**
+         * Adds a parameter that is passed through to Lightrail as is.
+         */
+        public Builder setLightrailParam(String key, Object value) {
+            if (otherParams == null)
+                otherParams = new HashMap<>();
+            otherParams.put(key, value);
+            return this;
+        }
+
+        /**
+         * Makes every Lightrail and Stripe call for this request, and for the charge it creates, through the given
+         * gateway instead of the default one.
+         */
+        public Builder setGateway(LightrailStripeGateway gateway) {
+            this.gateway = gateway;
+            return this;
+        }
+
+        /**
+         * Splits this request between Lightrail and Stripe with the given policy instead of the default one.
+         */
+        public Builder setAllocationPolicy(SplitAllocationPolicy allocationPolicy) {
+            this.allocationPolicy = allocationPolicy;
+            return this;
+        }
+
+        public SplitTenderChargeRequest build() {
+            if (currency == null)
+                throw new BadParameterException("Missing parameter: currency.");
+            return new SplitTenderChargeRequest(amount, currency, code, cardId, contact, shopperId, stripeToken, stripeCustomer, userSuppliedId,
+                    (otherParams == null) ? Collections.<String, Object>emptyMap() : Collections.unmodifiableMap(new HashMap<>(otherParams)), gateway, allocationPolicy);
+        }
+    }
+
+    private SplitTenderChargeRequest(int amount, String currency, String code, String cardId, String contact, String shopperId,
+                                     String stripeToken, String stripeCustomer, String userSuppliedId, Map<String, Object> otherParams,
+                                     LightrailStripeGateway gateway, SplitAllocationPolicy allocationPolicy) {
+        this.amount = amount;
+        this.currency = currency;
+        this.code = code;
+        this.cardId = cardId;
+        this.contact = contact;
+        this.shopperId = shopperId;
+        this.stripeToken = stripeToken;
+        this.stripeCustomer = stripeCustomer;
+        this.userSuppliedId = userSuppliedId;
+        this.otherParams = otherParams;
+        this.gateway = gateway;
+        this.allocationPolicy = allocationPolicy;
+    }
+
+    public static Builder builder(int amount, String currency) {
+        return new Builder(amount, currency);
+    }
+
+    /**
+     * Reads a split-tender parameter map. Keys this class does not model are passed through to Lightrail.
+     */
+    public static SplitTenderChargeRequest fromParams(Map<String, Object> chargeParams) {
+        LightrailConstants.Parameters.requireParameters(Arrays.asList(
+                StripeConstants.Parameters.AMOUNT,
+                LightrailConstants.Parameters.CURRENCY
+        ), chargeParams);
+
+        Map<String, Object> otherParams = null;
+        for (Map.Entry<String, Object> param : chargeParams.entrySet()) {
+            if (!isModelled(param.getKey())) {
+                if (otherParams == null)
+                    otherParams = new HashMap<>();
+                otherParams.put(param.getKey(), param.getValue());
+            }
+        }
+
+        return new SplitTenderChargeRequest(
+                (Integer) chargeParams.get(StripeConstants.Parameters.AMOUNT),
+                (String) chargeParams.get(LightrailConstants.Parameters.CURRENCY),
+                (String) chargeParams.get(LightrailConstants.Parameters.CODE),
+                (String) chargeParams.get(LightrailConstants.Parameters.CARD_ID),
+                (String) chargeParams.get(LightrailConstants.Parameters.CONTACT),
+                (String) chargeParams.get(LightrailConstants.Parameters.SHOPPER_ID),
+                (String) chargeParams.get(StripeConstants.Parameters.TOKEN),
+                (String) chargeParams.get(StripeConstants.Parameters.CUSTOMER),
+                (String) chargeParams.get(LightrailConstants.Parameters.USER_SUPPLIED_ID),
+                (otherParams == null) ? Collections.<String, Object>emptyMap() : Collections.unmodifiableMap(otherParams), null, null);
+    }
+
+    private static boolean isModelled(String key) {
+        return StripeConstants.Parameters.AMOUNT.equals(key)
+                || LightrailConstants.Parameters.CURRENCY.equals(key)
+                || LightrailConstants.Parameters.CODE.equals(key)
+                || LightrailConstants.Parameters.CARD_ID.equals(key)
+                || LightrailConstants.Parameters.CONTACT.equals(key)
+                || LightrailConstants.Parameters.SHOPPER_ID.equals(key)
+                || StripeConstants.Parameters.TOKEN.equals(key)
+                || StripeConstants.Parameters.CUSTOMER.equals(key)
+                || LightrailConstants.Parameters.USER_SUPPLIED_ID.equals(key);
+    }
+
+    /**
+     * @return the request in the parameter map format, as a new mutable map.
+     */
+    public Map<String, Object> toParams() {
+        Map<String, Object> chargeParams = new HashMap<>(otherParams);
+        chargeParams.put(StripeConstants.Parameters.AMOUNT, amount);
+        chargeParams.put(LightrailConstants.Parameters.CURRENCY, currency);
+        putIfNotNull(chargeParams, LightrailConstants.Parameters.CODE, code);
+        putIfNotNull(chargeParams, LightrailConstants.Parameters.CARD_ID, cardId);
+        putIfNotNull(chargeParams, LightrailConstants.Parameters.CONTACT, contact);
+        putIfNotNull(chargeParams, LightrailConstants.Parameters.SHOPPER_ID, shopperId);
+        putIfNotNull(chargeParams, StripeConstants.Parameters.TOKEN, stripeToken);
+        putIfNotNull(chargeParams, StripeConstants.Parameters.CUSTOMER, stripeCustomer);
+        putIfNotNull(chargeParams, LightrailConstants.Parameters.USER_SUPPLIED_ID, userSuppliedId);
+        return chargeParams;
+    }
+
+    private static void putIfNotNull(Map<String, Object> params, String key, Object value) {
+        if (value != null)
+            params.put(key, value);
+    }
+
+    SplitTenderChargeRequest withUserSuppliedId(String userSuppliedId) {
+        return new SplitTenderChargeRequest(amount, currency, code, cardId, contact, shopperId, stripeToken, stripeCustomer, userSuppliedId, otherParams, gateway, allocationPolicy);
+    }
+
+    /**
+     * @return this request paid with the given Lightrail parameter ({@code code}, {@code cardId}, {@code contact} or
+     * {@code shopperId}) instead of its own, under the given idempotency key.
+     */
+    SplitTenderChargeRequest withLightrailInstrument(String parameter, String value, String userSuppliedId) {
+        return new SplitTenderChargeRequest(amount, currency,
+                LightrailConstants.Parameters.CODE.equals(parameter) ? value : null,
+                LightrailConstants.Parameters.CARD_ID.equals(parameter) ? value : null,
+                LightrailConstants.Parameters.CONTACT.equals(parameter) ? value : null,
+                LightrailConstants.Parameters.SHOPPER_ID.equals(parameter) ? value : null,
+                stripeToken, stripeCustomer, userSuppliedId, otherParams, gateway, allocationPolicy);
+    }
+
+    /**
+     * @param resolvedCardId the Card the Lightrail parameter resolved to, or {@code null} if there is none.
+     */
+    SplitTenderChargeRequest withResolvedCardId(String resolvedCardId) {
+        return new SplitTenderChargeRequest(amount, currency, null, resolvedCardId, null, null, stripeToken, stripeCustomer, userSuppliedId, otherParams, gateway, allocationPolicy);
+    }
+
+    /**
+     * The Lightrail parameters shared by every leg of this request: the Lightrail parameter, currency, idempotency key
+     * and pass-through parameters.
+     */
+    Map<String, Object> getLightrailParams() {
+        Map<String, Object> params = lightrailParams;
+        if (params == null) {
+            params = new HashMap<>(otherParams);
+            params.put(LightrailConstants.Parameters.CURRENCY, currency);
+            putIfNotNull(params, LightrailConstants.Parameters.CODE, code);
+            putIfNotNull(params, LightrailConstants.Parameters.CARD_ID, cardId);
+            putIfNotNull(params, LightrailConstants.Parameters.CONTACT, contact);
+            putIfNotNull(params, LightrailConstants.Parameters.SHOPPER_ID, shopperId);
+            putIfNotNull(params, LightrailConstants.Parameters.USER_SUPPLIED_ID, userSuppliedId);
+            params = Collections.unmodifiableMap(params);
+            lightrailParams = params;
+        }
+        return params;
+    }
+
+    /**
+     * @return the Lightrail transaction parameters for a charge of the given amount.
+     */
+    RequestParameters toLightrailRequest(int chargeAmount, boolean pending, Metadata metadata) {
+        if (chargeAmount <= 0)
+            throw new BadParameterException("Charge 'amount' must be a positive integer in the smallest unit of currency.");
+        RequestParameters requestParameters = new RequestParameters();
+        requestParameters.putAll(getLightrailParams());
+        requestParameters.put(LightrailConstants.Parameters.VALUE, 0 - chargeAmount);
+        requestParameters.put(LightrailConstants.Parameters.PENDING, pending);
+        if (metadata != null)
+            requestParameters.put(LightrailConstants.Parameters.METADATA, metadata);
+        return requestParameters;
+    }
+
+    /**
+     * @return the Stripe charge parameters for the given share of this request.
+     */
+    Map<String, Object> toStripeParams(int stripeShare, String lightrailTxFullId, String idempotencyKey) {
+        Map<String, Object> stripeParams = new HashMap<>();
+        if (stripeToken != null) {
+            stripeParams.put(StripeConstants.Parameters.TOKEN, stripeToken);
+        } else if (stripeCustomer != null) {
+            stripeParams.put(StripeConstants.Parameters.CUSTOMER, stripeCustomer);
+        } else {
+            throw new BadParameterException("Need credit card payment information to handle this order.");
+        }
+        stripeParams.put(StripeConstants.Parameters.AMOUNT, stripeShare);
+        stripeParams.put(StripeConstants.Parameters.CURRENCY, currency);
+
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_TOTAL, amount);
+        metadata.put(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_PARTNER, "LIGHTRAIL");
+        if (lightrailTxFullId != null)
+            metadata.put(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_PARTNER_TRANSACTION_ID, lightrailTxFullId);
+        if (idempotencyKey != null)
+            metadata.put(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_IDEMPOTENCY_KEY, idempotencyKey);
+        stripeParams.put(StripeConstants.Parameters.METADATA, metadata);
+
+        return stripeParams;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public String getCardId() {
+        return cardId;
+    }
+
+    public String getContact() {
+        return contact;
+    }
+
+    public String getShopperId() {
+        return shopperId;
+    }
+
+    public String getStripeToken() {
+        return stripeToken;
+    }
+
+    public String getStripeCustomer() {
+        return stripeCustomer;
+    }
+
+    public String getUserSuppliedId() {
+        return userSuppliedId;
+    }
+
+    /**
+     * @return the gateway set on the request, or the default one.
+     */
+    public LightrailStripeGateway getGateway() {
+        return LightrailStripeGateways.orDefault(gateway);
+    }
+
+    /**
+     * @return the allocation policy set on the request, or the default one.
+     */
+    public SplitAllocationPolicy getAllocationPolicy() {
+        return SplitAllocationPolicies.orDefault(allocationPolicy);
+    }
+
+    /**
+     * @return a 64-bit FNV-1a hash of every parameter except the idempotency key, so that a retry can be told from a
+     * different request sent with the same key.
+     */
+    long fingerprint() {
+        long hash = 0xcbf29ce484222325L;
+        hash = fingerprint(hash, Integer.toString(amount));
+        hash = fingerprint(hash, currency);
+        hash = fingerprint(hash, code);
+        hash = fingerprint(hash, cardId);
+        hash = fingerprint(hash, contact);
+        hash = fingerprint(hash, shopperId);
+        hash = fingerprint(hash, stripeToken);
+        hash = fingerprint(hash, stripeCustomer);
+        for (Map.Entry<String, Object> param : new TreeMap<>(otherParams).entrySet()) {
+            hash = fingerprint(hash, param.getKey());
+            hash = fingerprint(hash, String.valueOf(param.getValue()));
+        }
+        return hash;
+    }
+
+    private static long fingerprint(long hash, String value) {
+        if (value == null)
+            return (hash ^ 0xff) * 0x100000001b3L; //differs from the empty string
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * 0x100000001b3L;
+            hash = (hash ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        return (hash ^ 0xfe) * 0x100000001b3L; //ends the value, so that "ab","c" differs from "a","bc"
+    }
+
+    /**
+     * @return whether the request names a Lightrail Card directly, by {@code code} or {@code cardId}.
+     */
+    boolean hasLightrailCard() {
+        return code != null || cardId != null;
+    }
+
+    /**
+     * @return whether the request names any Lightrail instrument, including a {@code contact} or {@code shopperId}
+     * which is yet to be resolved to a Card.
+     */
+    boolean hasLightrailInstrument() {
+        return hasLightrailCard() || contact != null || shopperId != null;
+    }
+}
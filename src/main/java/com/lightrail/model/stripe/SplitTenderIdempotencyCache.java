@@ -0,0 +1,100 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.BadParameterException;
+import com.lightrail.helpers.ExpiringLruCache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional client-side idempotency layer for split-tender charges. When installed with
+ * {@link #setDefault(SplitTenderIdempotencyCache)}, it remembers, for each {@code userSuppliedId}, a fingerprint of
+ * every request parameter and the charge that was made. Within the replay window, a request sent again with the same
+ * {@code userSuppliedId} is answered from memory, without calling Lightrail or Stripe: with the original charge if its
+ * parameters are the same, and with a {@link BadParameterException} if they differ.
+ */
+public class SplitTenderIdempotencyCache {
+    private static volatile SplitTenderIdempotencyCache defaultCache = null;
+
+    private static class Replay {
+        final long fingerprint;
+        final StripeLightrailSplitTenderCharge charge;
+
+        Replay(long fingerprint, StripeLightrailSplitTenderCharge charge) {
+            this.fingerprint = fingerprint;
+            this.charge = charge;
+        }
+    }
+
+    private final ExpiringLruCache<String, Replay> replays;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param replayWindow how long a charge is answered from memory after it was made.
+     */
+    public SplitTenderIdempotencyCache(int maxCharges, long replayWindow, TimeUnit unit) {
+        replays = new ExpiringLruCache<>(maxCharges, replayWindow, unit);
+    }
+
+    public static SplitTenderIdempotencyCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Installs the idempotency layer used by this library, or turns it off with {@code null}.
+     */
+    public static void setDefault(SplitTenderIdempotencyCache cache) {
+        defaultCache = cache;
+    }
+
+    public void clear() {
+        replays.clear();
+    }
+
+    public int size() {
+        return replays.size();
+    }
+
+    /**
+     * @return the number of requests answered with the original charge.
+     */
+    public long getHits() {
+        return replays.getHits() - rejected.sum();
+    }
+
+    public long getMisses() {
+        return replays.getMisses();
+    }
+
+    /**
+     * @return the number of requests rejected because their parameters differed from the original request's.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the charge made earlier for the request's {@code userSuppliedId}, or {@code null} if there is none.
+     * @throws BadParameterException if that charge was made for different parameters.
+     */
+    static StripeLightrailSplitTenderCharge replay(SplitTenderChargeRequest request, MetricsRegistry.Phase phase) {
+        SplitTenderIdempotencyCache cache = defaultCache;
+        if (cache == null || request.getUserSuppliedId() == null)
+            return null;
+        Replay replay = cache.replays.get(request.getUserSuppliedId());
+        if (replay == null)
+            return null;
+        LightrailMetrics.retry(phase);
+        if (replay.fingerprint != request.fingerprint()) {
+            cache.rejected.increment();
+            throw new BadParameterException("Idempotency Error. The parameters do not match the original transaction.");
+        }
+        return replay.charge;
+    }
+
+    static void remember(SplitTenderChargeRequest request, StripeLightrailSplitTenderCharge charge) {
+        SplitTenderIdempotencyCache cache = defaultCache;
+        if (cache != null && request.getUserSuppliedId() != null)
+            cache.replays.put(request.getUserSuppliedId(), new Replay(request.fingerprint(), charge));
+    }
+}
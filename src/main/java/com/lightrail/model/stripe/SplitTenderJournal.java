@@ -0,0 +1,535 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.helpers.LightrailConstants;
+import com.lightrail.helpers.LightrailEcommerceConstants;
+import com.lightrail.helpers.StripeConstants;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A local write-ahead journal of the split-tender charges in flight, so that a charge interrupted by a crash between
+ * its pending Lightrail charge, its Stripe charge and its capture can be finished or compensated on the next start:
+ * <pre>{@code
+ * SplitTenderJournal journal = new SplitTenderJournal(Paths.get("/var/lib/checkout/journal"));
+ * journal.recover();
+ * SplitTenderJournal.setDefault(journal);
+ * }</pre>
+ * Records are appended to memory-mapped segment files. A record is written to disk before the remote call it
+ * announces: concurrent charges share one {@code fsync} (group commit), so each charge waits for at most two.
+ * Segments are deleted once every charge they mention is over.
+ */
+public class SplitTenderJournal implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "split-tender-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final int RECORD_HEADER_SIZE = 8;
+    /**
+     * How long after its request a Stripe charge which is not found by {@link #recover()} may still be in flight.
+     */
+    static final long STRIPE_REQUEST_GRACE_SECONDS = 60;
+
+    private static volatile SplitTenderJournal defaultJournal = null;
+
+    enum RecordType {
+        /**
+         * A pending Lightrail charge is about to be created.
+         */
+        STARTED,
+        /**
+         * The Stripe charge is about to be created, for this amount and with the transaction's idempotency key in its
+         * metadata. The source is not recorded.
+         */
+        STRIPE_REQUESTED,
+        /**
+         * The charge is being compensated although the Stripe charge may have been made: its pending Lightrail charge
+         * was voided, or is left for recovery to void, but is never captured.
+         */
+        VOIDED,
+        COMPLETED,
+        ABORTED,
+        /**
+         * A partial capture of an authorization is about to capture its pending Lightrail charge in full and fund the
+         * released value back to the Card.
+         */
+        RELEASE_REQUESTED
+    }
+
+    public enum Recovery {
+        /**
+         * The Stripe charge was made and the pending Lightrail charge captured.
+         */
+        FINISHED,
+        /**
+         * The pending Lightrail charge was voided and any Stripe charge refunded.
+         */
+        COMPENSATED,
+        /**
+         * Lightrail or Stripe could not be reached, or the Stripe charge may still be in flight; the transaction stays
+         * in the journal for the next recovery.
+         */
+        FAILED
+    }
+
+    /**
+     * What the journal knows about a split-tender charge which is not over.
+     */
+    static final class Entry {
+        final String idempotencyKey;
+        final Map<String, String> started = new HashMap<>();
+        Map<String, String> stripeRequest = null;
+        Map<String, String> release = null;
+        boolean voided = false;
+        long firstSegment;
+
+        Entry(String idempotencyKey, long firstSegment) {
+            this.idempotencyKey = idempotencyKey;
+            this.firstSegment = firstSegment;
+        }
+
+        /**
+         * @return the idempotency key in the metadata of the Stripe charge: the charge's own, or for an instrument of a
+         * {@link MultiInstrumentSplitTenderCharge}, the one its instruments share.
+         */
+        String getStripeIdempotencyKey() {
+            String stripeIdempotencyKey = (stripeRequest == null) ? null : stripeRequest.get(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_IDEMPOTENCY_KEY);
+            return (stripeIdempotencyKey != null) ? stripeIdempotencyKey : idempotencyKey;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final Map<String, Entry> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, Entry> incomplete = new ConcurrentHashMap<>();
+
+    private final Object appendLock = new Object();
+    private long segmentNumber;
+    private long oldestSegment;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long appended = 0;
+    private boolean closed = false;
+
+    private final Object syncLock = new Object();
+    private long durable = 0;
+    private boolean syncing = false;
+
+    public SplitTenderJournal(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public SplitTenderJournal(Path directory, int segmentSize) throws IOException {
+        if (segmentSize < 4096)
+            throw new IllegalArgumentException("Journal segments must be at least 4096 bytes.");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        List<Long> existingSegments = listSegments();
+        for (long existingSegment : existingSegments)
+            readSegment(existingSegment);
+        incomplete.putAll(inFlight);
+        long lastSegment = existingSegments.isEmpty() ? 0 : existingSegments.get(existingSegments.size() - 1);
+        oldestSegment = existingSegments.isEmpty() ? 1 : existingSegments.get(0);
+        openSegment(lastSegment + 1);
+    }
+
+    public static SplitTenderJournal getDefault() {
+        return defaultJournal;
+    }
+
+    /**
+     * Installs the journal split-tender charges are recorded in, or stops journaling with {@code null}.
+     */
+    public static void setDefault(SplitTenderJournal journal) {
+        defaultJournal = journal;
+    }
+
+    /**
+     * @return the idempotency keys of the charges which were in flight when the journal was last closed or the process
+     * stopped, and have not been recovered since.
+     */
+    public Set<String> getIncompleteTransactions() {
+        return Collections.unmodifiableSet(new TreeSet<>(incomplete.keySet()));
+    }
+
+    /**
+     * Finishes or compensates every incomplete charge: those found when the journal was opened, and those which failed
+     * since without a known outcome. Call it on startup, and then from time to time.
+     * <p>
+     * A charge whose Stripe charge may have been requested is looked up among the Stripe charges created since, by the
+     * idempotency key in their metadata; the request is never repeated. If the Stripe charge was made, the pending
+     * Lightrail charge is captured. If it was not, the pending Lightrail charge is missing, or the charge was already
+     * being compensated, the charge is compensated by voiding the pending Lightrail charge, if it was created, and
+     * refunding the Stripe charge, if it was made. A
+     * Stripe charge requested less than {@link #STRIPE_REQUEST_GRACE_SECONDS} ago and not found yet may still be in
+     * flight, so its charge stays incomplete until a later recovery.
+     * <p>
+     * A partial capture of an authorization is finished: its pending Lightrail charge is captured and the released
+     * value funded back, each with the idempotency key of the original call.
+     */
+    public Map<String, Recovery> recover() throws IOException {
+        Map<String, Recovery> recoveries = new TreeMap<>();
+        for (Entry entry : new ArrayList<>(incomplete.values())) {
+            Recovery recovery = StripeLightrailSplitTenderCharge.recover(entry);
+            recoveries.put(entry.idempotencyKey, recovery);
+            if (recovery != Recovery.FAILED) {
+                append(recovery == Recovery.FINISHED ? RecordType.COMPLETED : RecordType.ABORTED, entry.idempotencyKey, Collections.<String, String>emptyMap(), true);
+                incomplete.remove(entry.idempotencyKey);
+            }
+        }
+        return recoveries;
+    }
+
+    /**
+     * Records, on disk, that a pending Lightrail charge is about to be created for the split-tender charge.
+     */
+    static void recordStarted(SplitTenderChargeRequest resolvedRequest, int lightrailShare) throws IOException {
+        SplitTenderJournal journal = defaultJournal;
+        if (journal == null)
+            return;
+        Map<String, String> fields = new HashMap<>();
+        fields.put(StripeConstants.Parameters.AMOUNT, Integer.toString(resolvedRequest.getAmount()));
+        fields.put(LightrailConstants.Parameters.CURRENCY, resolvedRequest.getCurrency());
+        fields.put(LightrailConstants.Parameters.VALUE, Integer.toString(lightrailShare));
+        if (resolvedRequest.getCardId() != null)
+            fields.put(LightrailConstants.Parameters.CARD_ID, resolvedRequest.getCardId());
+        if (resolvedRequest.getCode() != null)
+            fields.put(LightrailConstants.Parameters.CODE, resolvedRequest.getCode());
+        journal.append(RecordType.STARTED, resolvedRequest.getUserSuppliedId(), fields, true);
+    }
+
+    /**
+     * Records, on disk, that the Stripe charge is about to be requested with these parameters, whose metadata must
+     * carry the idempotency key, or the key of the multi-instrument charge the entry is an instrument of. Only the
+     * amount, the currency, that key and the time are recorded: never the token or customer.
+     */
+    static void recordStripeRequested(String idempotencyKey, Map<String, Object> stripeParams) throws IOException {
+        recordStripeRequested(idempotencyKey, stripeParams, System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * @param requestedAt when the Stripe charge was requested, in seconds since the epoch like Stripe's
+     *                    {@code created}.
+     */
+    static void recordStripeRequested(String idempotencyKey, Map<String, Object> stripeParams, long requestedAt) throws IOException {
+        SplitTenderJournal journal = defaultJournal;
+        if (journal == null)
+            return;
+        Map<String, String> fields = new HashMap<>();
+        fields.put(StripeConstants.Parameters.AMOUNT, String.valueOf(stripeParams.get(StripeConstants.Parameters.AMOUNT)));
+        fields.put(StripeConstants.Parameters.CURRENCY, String.valueOf(stripeParams.get(StripeConstants.Parameters.CURRENCY)));
+        fields.put(StripeConstants.Parameters.CREATED, Long.toString(requestedAt));
+        Object metadata = stripeParams.get(StripeConstants.Parameters.METADATA);
+        Object stripeIdempotencyKey = (metadata instanceof Map) ? ((Map<?, ?>) metadata).get(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_IDEMPOTENCY_KEY) : null;
+        if (stripeIdempotencyKey != null && !idempotencyKey.equals(stripeIdempotencyKey))
+            fields.put(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_IDEMPOTENCY_KEY, stripeIdempotencyKey.toString());
+        journal.append(RecordType.STRIPE_REQUESTED, idempotencyKey, fields, true);
+    }
+
+    /**
+     * Records, on disk, that the pending Lightrail charge of an authorization is about to be captured in full and the
+     * released value funded back to the Card, two calls which {@link #recover()} finishes if only the first was made.
+     *
+     * @param stripeTxId the Stripe charge of the authorization, or {@code null} if there is none.
+     */
+    static void recordReleaseRequested(String idempotencyKey, String cardId, String currency, int amount, int released, String stripeTxId) throws IOException {
+        SplitTenderJournal journal = defaultJournal;
+        if (journal == null)
+            return;
+        Map<String, String> fields = new HashMap<>();
+        fields.put(LightrailConstants.Parameters.CARD_ID, cardId);
+        fields.put(LightrailConstants.Parameters.CURRENCY, currency);
+        fields.put(StripeConstants.Parameters.AMOUNT, Integer.toString(amount));
+        fields.put(LightrailConstants.Parameters.VALUE, Integer.toString(released));
+        if (stripeTxId != null)
+            fields.put(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_PARTNER_TRANSACTION_ID, stripeTxId);
+        journal.append(RecordType.RELEASE_REQUESTED, idempotencyKey, fields, true);
+    }
+
+    /**
+     * Records that the charge was captured. Not synced: if the record is lost, recovery captures again with the same
+     * capture key, and Lightrail returns the original capture.
+     */
+    static void recordCompleted(String idempotencyKey) {
+        recordEnd(RecordType.COMPLETED, idempotencyKey);
+    }
+
+    /**
+     * Records that nothing is held nor charged for the charge anymore.
+     */
+    static void recordAborted(String idempotencyKey) {
+        recordEnd(RecordType.ABORTED, idempotencyKey);
+    }
+
+    /**
+     * Records, on disk, that the charge is compensated after the Stripe charge failed without a known outcome, and
+     * leaves it to {@link #recover()} to refund the Stripe charge if it was made. The pending Lightrail charge was
+     * voided, or if the void failed, is voided by recovery.
+     */
+    static void recordVoided(String idempotencyKey) {
+        SplitTenderJournal journal = defaultJournal;
+        if (journal == null || !journal.inFlight.containsKey(idempotencyKey))
+            return;
+        try {
+            journal.append(RecordType.VOIDED, idempotencyKey, Collections.<String, String>emptyMap(), true);
+        } catch (IOException e) {
+            //recovery finds the voided charge and fails until the record can be written
+        }
+        recordUnresolved(idempotencyKey);
+    }
+
+    /**
+     * Leaves a charge whose last call failed without a known outcome, or whose compensation failed, to
+     * {@link #recover()}.
+     */
+    static void recordUnresolved(String idempotencyKey) {
+        SplitTenderJournal journal = defaultJournal;
+        if (journal == null)
+            return;
+        Entry entry = journal.inFlight.get(idempotencyKey);
+        if (entry != null)
+            journal.incomplete.put(idempotencyKey, entry);
+    }
+
+    /**
+     * Records the end of a charge whose pending Lightrail charge could not be created. When the failure was a
+     * connection failure, the charge may have been created anyway, so it is left to recovery.
+     */
+    static void recordFailure(String idempotencyKey, Throwable failure) {
+        if (failure instanceof IOException)
+            recordUnresolved(idempotencyKey);
+        else
+            recordAborted(idempotencyKey);
+    }
+
+    private static void recordEnd(RecordType type, String idempotencyKey) {
+        SplitTenderJournal journal = defaultJournal;
+        if (journal == null || !journal.inFlight.containsKey(idempotencyKey))
+            return;
+        try {
+            journal.append(type, idempotencyKey, Collections.<String, String>emptyMap(), false);
+        } catch (IOException e) {
+            recordUnresolved(idempotencyKey);
+        }
+    }
+
+    private void append(RecordType type, String idempotencyKey, Map<String, String> fields, boolean sync) throws IOException {
+        byte[] payload = encode(type, idempotencyKey, fields);
+        if (RECORD_HEADER_SIZE + payload.length > segmentSize)
+            throw new IOException("Journal record of " + payload.length + " bytes is larger than a segment.");
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        long end;
+        synchronized (appendLock) {
+            if (closed)
+                throw new IOException("The journal is closed.");
+            if (segment.remaining() < RECORD_HEADER_SIZE + payload.length)
+                openSegment(segmentNumber + 1);
+            segment.putInt(payload.length);
+            segment.putInt((int) crc.getValue());
+            segment.put(payload);
+            appended += RECORD_HEADER_SIZE + payload.length;
+            end = appended;
+            apply(type, idempotencyKey, fields, segmentNumber);
+        }
+        if (type == RecordType.COMPLETED || type == RecordType.ABORTED)
+            deleteFinishedSegments();
+        if (sync)
+            awaitDurable(end);
+    }
+
+    /**
+     * Group commit: the first caller to find the journal behind syncs everything appended so far, while later callers
+     * wait for it and only sync again if their record came after that.
+     */
+    private void awaitDurable(long end) throws IOException {
+        while (true) {
+            synchronized (syncLock) {
+                while (syncing && durable < end) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the journal to be synced.");
+                    }
+                }
+                if (durable >= end)
+                    return;
+                syncing = true;
+            }
+
+            long target;
+            MappedByteBuffer buffer;
+            synchronized (appendLock) {
+                target = appended;
+                buffer = segment;
+            }
+            boolean synced = false;
+            try {
+                buffer.force();
+                synced = true;
+            } finally {
+                synchronized (syncLock) {
+                    syncing = false;
+                    if (synced && target > durable)
+                        durable = target;
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Must hold {@link #appendLock}. Records in earlier segments are synced before the next segment is used, so only
+     * the current segment ever needs syncing.
+     */
+    private void openSegment(long number) throws IOException {
+        if (segment != null) {
+            segment.force();
+            channel.close();
+        }
+        Path path = segmentPath(number);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segmentNumber = number;
+    }
+
+    private void apply(RecordType type, String idempotencyKey, Map<String, String> fields, long segment) {
+        switch (type) {
+            case STARTED:
+            case STRIPE_REQUESTED:
+            case RELEASE_REQUESTED:
+                Entry entry = inFlight.computeIfAbsent(idempotencyKey, key -> new Entry(key, segment));
+                if (type == RecordType.STARTED)
+                    entry.started.putAll(fields);
+                else if (type == RecordType.STRIPE_REQUESTED)
+                    entry.stripeRequest = new LinkedHashMap<>(fields);
+                else
+                    entry.release = new LinkedHashMap<>(fields);
+                break;
+            case VOIDED:
+                Entry voidedEntry = inFlight.get(idempotencyKey);
+                if (voidedEntry != null)
+                    voidedEntry.voided = true;
+                break;
+            case COMPLETED:
+            case ABORTED:
+                inFlight.remove(idempotencyKey);
+                incomplete.remove(idempotencyKey);
+                break;
+        }
+    }
+
+    private void deleteFinishedSegments() throws IOException {
+        long oldestNeeded;
+        long firstToDelete;
+        synchronized (appendLock) {
+            if (oldestSegment == segmentNumber)
+                return;
+            oldestNeeded = segmentNumber;
+            for (Entry entry : inFlight.values())
+                oldestNeeded = Math.min(oldestNeeded, entry.firstSegment);
+            if (oldestSegment >= oldestNeeded)
+                return;
+            firstToDelete = oldestSegment;
+            oldestSegment = oldestNeeded;
+        }
+        for (long number = firstToDelete; number < oldestNeeded; number++)
+            Files.deleteIfExists(segmentPath(number));
+    }
+
+    private void readSegment(long number) throws IOException {
+        byte[] contents = Files.readAllBytes(segmentPath(number));
+        ByteBuffer buffer = ByteBuffer.wrap(contents);
+        try {
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining())
+                    return; //end of the written records, or a torn write
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum)
+                    return;
+                decodeAndApply(payload, number);
+            }
+        } catch (BufferUnderflowException e) {
+            //torn write at the end of the segment
+        }
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    //not a segment
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static byte[] encode(RecordType type, String idempotencyKey, Map<String, String> fields) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type.ordinal());
+        out.writeUTF(idempotencyKey);
+        out.writeShort(fields.size());
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            out.writeUTF(field.getKey());
+            out.writeUTF(field.getValue());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void decodeAndApply(byte[] payload, long segment) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        RecordType type = RecordType.values()[in.readUnsignedByte()];
+        String idempotencyKey = in.readUTF();
+        int fieldCount = in.readUnsignedShort();
+        Map<String, String> fields = new LinkedHashMap<>();
+        for (int i = 0; i < fieldCount; i++)
+            fields.put(in.readUTF(), in.readUTF());
+        apply(type, idempotencyKey, fields, segment);
+    }
+
+    /**
+     * Syncs and closes the current segment. Charges still in flight are found again by the next journal opened on
+     * this directory.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            if (closed)
+                return;
+            closed = true;
+            segment.force();
+            channel.close();
+        }
+        if (defaultJournal == this)
+            defaultJournal = null;
+    }
+}
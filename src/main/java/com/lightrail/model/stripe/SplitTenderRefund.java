@@ -0,0 +1,107 @@
+package com.lightrail.model.stripe;
+
+import com.stripe.model.Refund;
+
+/**
+ * The outcome of {@link StripeLightrailSplitTenderCharge#refund(int, Allocation, String)}. Each leg is refunded on its
+ * own, so one leg can fail while the other succeeds; refunding again with the same idempotency key retries the leg
+ * that failed without refunding the other one twice.
+ */
+public class SplitTenderRefund {
+
+    public enum Allocation {
+        /**
+         * Splits the refund in the same proportion as the charge, rounding the Stripe amount to the nearest unit.
+         */
+        PROPORTIONAL,
+        /**
+         * Refunds to the credit card up to its share of the charge, and the rest to the gift card.
+         */
+        STRIPE_FIRST
+    }
+
+    private final String idempotencyKey;
+    private final int lightrailAmount;
+    private final int stripeAmount;
+    LightrailFund lightrailRefund = null;
+    Refund stripeRefund = null;
+    Throwable lightrailFailure = null;
+    Throwable stripeFailure = null;
+
+    SplitTenderRefund(String idempotencyKey, int lightrailAmount, int stripeAmount) {
+        this.idempotencyKey = idempotencyKey;
+        this.lightrailAmount = lightrailAmount;
+        this.stripeAmount = stripeAmount;
+    }
+
+    /**
+     * @return the share of a split-tender charge of {@code lightrailShare} and {@code stripeShare} a refund of
+     * {@code amount} puts on Lightrail.
+     */
+    static int allocateToLightrail(int amount, int lightrailShare, int stripeShare, Allocation allocation) {
+        switch (allocation) {
+            case STRIPE_FIRST:
+                return amount - Math.min(amount, stripeShare);
+            case PROPORTIONAL:
+            default:
+                int total = lightrailShare + stripeShare;
+                long stripeAmount = ((long) amount * stripeShare * 2 + total) / (2L * total);
+                return amount - (int) stripeAmount;
+        }
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public int getLightrailAmount() {
+        return lightrailAmount;
+    }
+
+    public int getStripeAmount() {
+        return stripeAmount;
+    }
+
+    public int getAmount() {
+        return lightrailAmount + stripeAmount;
+    }
+
+    /**
+     * @return the Lightrail transaction returning value to the card, or {@code null} if the Lightrail leg was not
+     * refunded.
+     */
+    public LightrailFund getLightrailRefund() {
+        return lightrailRefund;
+    }
+
+    /**
+     * @return the Stripe refund, or {@code null} if the Stripe leg was not refunded.
+     */
+    public Refund getStripeRefund() {
+        return stripeRefund;
+    }
+
+    /**
+     * @return the exception the Lightrail leg failed with, or {@code null}.
+     */
+    public Throwable getLightrailFailure() {
+        return lightrailFailure;
+    }
+
+    /**
+     * @return the exception the Stripe leg failed with, usually a {@code ThirdPartyException}, or {@code null}.
+     */
+    public Throwable getStripeFailure() {
+        return stripeFailure;
+    }
+
+    public boolean isSuccessful() {
+        return lightrailFailure == null && stripeFailure == null;
+    }
+
+    public String getSummary() {
+        return String.format("Refund %s: Lightrail %d%s, Stripe %d%s", idempotencyKey,
+                lightrailAmount, (lightrailFailure == null) ? "" : " failed (" + lightrailFailure + ")",
+                stripeAmount, (stripeFailure == null) ? "" : " failed (" + stripeFailure + ")");
+    }
+}
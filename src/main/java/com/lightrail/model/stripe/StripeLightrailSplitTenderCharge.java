@@ -6,24 +6,49 @@ import com.lightrail.helpers.LightrailEcommerceConstants;
 import com.lightrail.helpers.StripeConstants;
 import com.lightrail.model.api.objects.Metadata;
 import com.lightrail.model.api.objects.RequestParameters;
-import com.lightrail.model.business.LightrailContact;
 import com.stripe.exception.*;
 import com.stripe.model.Charge;
+import com.stripe.model.ChargeCollection;
+import com.stripe.model.Refund;
 import com.stripe.net.RequestOptions;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 public class StripeLightrailSplitTenderCharge {
 
     LightrailCharge lightrailCharge = null;
     Charge stripeCharge = null;
+    boolean lightrailSkipped = false;
+    CompletableFuture<LightrailCharge> lightrailCapture = null;
+    LightrailStripeGateway gateway = null;
+    String idempotencyKey = null;
+    boolean retrieved = false;
+    private final Map<String, SplitTenderRefund> refundsByIdempotencyKey = new HashMap<>();
+    private int lightrailRefunded = 0;
+    private int stripeRefunded = 0;
 
 
+    /**
+     * @return the Lightrail charge, which is still pending if its capture was queued, see
+     * {@link #getLightrailCapture()}. A simulated charge answered from the {@link LightrailBalanceCache} has no
+     * transaction object.
+     */
     public LightrailCharge getLightrailCharge() {
         return lightrailCharge;
     }
 
+    /**
+     * @return the captured Lightrail charge once the capture queued on the {@link LightrailSettlementQueue} succeeds,
+     * or a completed future if the charge was not queued.
+     */
+    public CompletableFuture<LightrailCharge> getLightrailCapture() {
+        return (lightrailCapture != null) ? lightrailCapture : CompletableFuture.completedFuture(lightrailCharge);
+    }
+
     public Charge getStripeCharge() {
         return stripeCharge;
     }
@@ -34,49 +59,35 @@ public class StripeLightrailSplitTenderCharge {
         this.stripeCharge = stripeCharge;
     }
 
-    public String getIdempotencyKey() {
-        return (lightrailCharge != null) ? lightrailCharge.getIdempotencyKey() : null;
+    /**
+     * @param gateway the gateway the charge was made through, which its refunds go through too.
+     */
+    StripeLightrailSplitTenderCharge(LightrailCharge lightrailCharge, Charge stripeCharge, LightrailStripeGateway gateway) {
+        this(lightrailCharge, stripeCharge);
+        this.gateway = gateway;
     }
 
-    private static Map<String, Object> getStripeParams(int amount, Map<String, Object> chargeParams, String lightrailTxFullId) {
-        Object stripeToken = chargeParams.get(StripeConstants.Parameters.TOKEN);
-        Object stripeCustomerId = chargeParams.get(StripeConstants.Parameters.CUSTOMER);
-        Integer splitTenderTotal = (Integer) chargeParams.get(StripeConstants.Parameters.AMOUNT);
-
-        Map<String, Object> stripeParams = new HashMap<>();
-
-        if (stripeToken != null) {
-            stripeParams.put(StripeConstants.Parameters.TOKEN, stripeToken);
-        } else if (stripeCustomerId != null) {
-            stripeParams.put(StripeConstants.Parameters.CUSTOMER, stripeCustomerId);
-        } else {
-            throw new BadParameterException("Need credit card payment information to handle this order.");
-        }
-        stripeParams.put(StripeConstants.Parameters.AMOUNT, amount);
-        stripeParams.put(StripeConstants.Parameters.CURRENCY, chargeParams.get(StripeConstants.Parameters.CURRENCY));
-
-        Map<String, Object> metadata = new HashMap<>();
-        metadata.put(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_TOTAL, splitTenderTotal);
-        metadata.put(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_PARTNER, "LIGHTRAIL");
-        if (lightrailTxFullId != null)
-            metadata.put(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_PARTNER_TRANSACTION_ID, lightrailTxFullId);
-
-        stripeParams.put(StripeConstants.Parameters.METADATA, metadata);
-
-        return stripeParams;
+    /**
+     * @param idempotencyKey the idempotency key of the request, which the captured Lightrail charge does not carry
+     *                       when its capture has a key of its own.
+     */
+    StripeLightrailSplitTenderCharge(LightrailCharge lightrailCharge, Charge stripeCharge, LightrailStripeGateway gateway, String idempotencyKey) {
+        this(lightrailCharge, stripeCharge, gateway);
+        this.idempotencyKey = idempotencyKey;
     }
 
-    private static int adjustForMinimumStripeTransactionValue(int transactionAmount, int currentLightrailShare) throws InsufficientValueException {
-        int newLightrailShare = currentLightrailShare;
-        int stripeShare = transactionAmount - currentLightrailShare;
-        if (stripeShare > 0 && stripeShare < StripeConstants.STRIPE_MINIMUM_TRANSACTION_VALUE) {
-            int differential = StripeConstants.STRIPE_MINIMUM_TRANSACTION_VALUE - stripeShare;
-            newLightrailShare = currentLightrailShare - differential;
-            if (newLightrailShare < 0)
-                throw new InsufficientValueException("The balance of this Lightrail Card is too small for this transaction.");
-        }
+    /**
+     * @return whether the Lightrail leg was skipped, and the whole amount put on Stripe, because the Lightrail circuit
+     * breaker was open. See {@link LightrailCircuitBreakers#setFailOpenToStripe(boolean)}.
+     */
+    public boolean isLightrailSkipped() {
+        return lightrailSkipped;
+    }
 
-        return newLightrailShare;
+    public String getIdempotencyKey() {
+        if (idempotencyKey != null)
+            return idempotencyKey;
+        return (lightrailCharge != null) ? lightrailCharge.getIdempotencyKey() : null;
     }
 
     private static void removeStripeParams(Map<String, Object> params) {
@@ -84,66 +95,173 @@ public class StripeLightrailSplitTenderCharge {
         params.remove(StripeConstants.Parameters.TOKEN);
     }
 
+    /**
+     * Retrieves a split-tender charge by its idempotency key. A charge found in the installed
+     * {@link SplitTenderChargeCache} is returned without any network call. If the cache knows the charge's Stripe
+     * leg, the Stripe charge is retrieved while the Lightrail charge is. The Lightrail charge returned is the capture
+     * if there is one; a charge whose capture is not found, e.g. because it is still queued, is not cached.
+     */
     public static StripeLightrailSplitTenderCharge retrieve(Map<String, Object> chargeParams) throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException, ThirdPartyException {
-        Map<String, Object> lightrailRetrieveParams = new HashMap<>(chargeParams);
+        String idempotencyKey = CheckoutEvents.idempotencyKeyOf(chargeParams);
+        int transactionAmount = (Integer) chargeParams.get(StripeConstants.Parameters.AMOUNT);
+        StripeLightrailSplitTenderCharge cachedCharge = SplitTenderChargeCache.getSettled(idempotencyKey, transactionAmount);
+        if (cachedCharge != null)
+            return cachedCharge;
+
+        final LightrailStripeGateway gateway = LightrailStripeGateways.getDefault();
+        final String knownStripeTxId = SplitTenderChargeCache.getStripeChargeId(idempotencyKey);
+        CompletableFuture<Charge> stripeLeg = (knownStripeTxId == null) ? null
+                : AsyncCalls.supply(() -> retrieveStripeCharge(gateway, knownStripeTxId, chargeParams), AsyncCalls.blockingCallExecutor());
+
+        Map<String, Object> lightrailRetrieveParams = LightrailResolver.resolve(chargeParams);
         removeStripeParams(lightrailRetrieveParams);
-        LightrailCharge lightrailCharge = LightrailCharge.retrieve(lightrailRetrieveParams);
+        LightrailCharge lightrailCharge = LightrailCharge.retrieve(lightrailRetrieveParams, gateway);
         int originalTransactionAmount = ((Double) lightrailCharge.getMetadata().get(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_TOTAL)).intValue();
-        int transactionAmount = (Integer) chargeParams.get(StripeConstants.Parameters.AMOUNT);
         if (transactionAmount != originalTransactionAmount)
             throw new BadParameterException("Idempotency Error. The parameters do not match the original transaction.");
 
-        String stripeTxId = ((String) lightrailCharge.getMetadata().get(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_PARTNER_TRANSACTION_ID));
-
+        boolean settled = true;
         Charge stripeTransaction = null;
         if (originalTransactionAmount - lightrailCharge.getAmount() != 0) { //then there was no stripe
-            try {
-                stripeTransaction = Charge.retrieve(stripeTxId);
-            } catch (StripeException e) {
-                throw new ThirdPartyException(e);
-            }
+            LightrailCharge capturedCharge = findPendingCharge(idempotencyKey + "-capture", lightrailCharge.getTransactionObject().getCardId(), null, gateway);
+            if (capturedCharge != null)
+                lightrailCharge = capturedCharge;
+            else
+                settled = false; //the capture may still be queued on the LightrailSettlementQueue
+
+            String stripeTxId = ((String) lightrailCharge.getMetadata().get(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_PARTNER_TRANSACTION_ID));
+            if (stripeLeg != null && (stripeTxId == null || stripeTxId.equals(knownStripeTxId)))
+                stripeTransaction = AsyncCalls.join(stripeLeg);
+            else
+                stripeTransaction = retrieveStripeCharge(gateway, stripeTxId, chargeParams);
+        }
+        StripeLightrailSplitTenderCharge charge = new StripeLightrailSplitTenderCharge(lightrailCharge, stripeTransaction, gateway, idempotencyKey);
+        charge.retrieved = true;
+        if (settled)
+            SplitTenderChargeCache.putSettled(idempotencyKey, originalTransactionAmount, charge);
+        return charge;
+    }
+
+    private static Charge retrieveStripeCharge(LightrailStripeGateway gateway, String stripeTxId, Map<String, Object> chargeParams) throws ThirdPartyException {
+        long start = LightrailMetrics.start();
+        CheckoutEvents.Span span = CheckoutEvents.begin(MetricsRegistry.Phase.STRIPE_RETRIEVE);
+        Throwable failure = null;
+        long callStart = 0;
+        Charge stripeTransaction = null;
+        try {
+            callStart = LightrailCircuitBreakers.beforeCall(MetricsRegistry.Phase.STRIPE_RETRIEVE);
+            stripeTransaction = gateway.retrieveCharge(stripeTxId);
+            return stripeTransaction;
+        } catch (StripeException | IOException e) {
+            failure = e;
+            throw new ThirdPartyException(e);
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            LightrailCircuitBreakers.afterCall(MetricsRegistry.Phase.STRIPE_RETRIEVE, callStart, failure);
+            LightrailMetrics.stop(MetricsRegistry.Phase.STRIPE_RETRIEVE, start, failure == null);
+            span.complete(CheckoutEvents.idempotencyKeyOf(chargeParams), CheckoutEvents.currencyOf(chargeParams), (stripeTransaction == null) ? 0 : stripeTransaction.getAmount(), failure);
         }
-        return new StripeLightrailSplitTenderCharge(lightrailCharge, stripeTransaction);
     }
 
     public static SimulatedStripeLightrailSplitTenderCharge simulate(Map<String, Object> chargeParams) throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException, ThirdPartyException {
-        LightrailConstants.Parameters.requireParameters(Arrays.asList(
-                StripeConstants.Parameters.AMOUNT,
-                LightrailConstants.Parameters.CURRENCY
-        ), chargeParams);
+        return simulate(SplitTenderChargeRequest.fromParams(chargeParams));
+    }
 
-        RequestParameters requestParameters = new RequestParameters();
-        requestParameters.putAll(chargeParams);
-        chargeParams = LightrailContact.handleContact(requestParameters);
-        Integer transactionAmount = (Integer) chargeParams.get(StripeConstants.Parameters.AMOUNT);
-        String currency = (String) chargeParams.get(LightrailConstants.Parameters.CURRENCY);
+    public static SimulatedStripeLightrailSplitTenderCharge simulate(SplitTenderChargeRequest request) throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException, ThirdPartyException {
+        StripeLightrailSplitTenderCharge replayedCharge = SplitTenderIdempotencyCache.replay(request, MetricsRegistry.Phase.SPLIT_TENDER_SIMULATE);
+        if (replayedCharge != null) {
+            SimulatedStripeLightrailSplitTenderCharge simulatedCharge = new SimulatedStripeLightrailSplitTenderCharge(replayedCharge.lightrailCharge, replayedCharge.stripeCharge, request);
+            simulatedCharge.lightrailSkipped = replayedCharge.lightrailSkipped;
+            return simulatedCharge;
+        }
+
+        long start = LightrailMetrics.start();
+        CheckoutEvents.Span span = CheckoutEvents.begin(MetricsRegistry.Phase.SPLIT_TENDER_SIMULATE);
+        SimulatedStripeLightrailSplitTenderCharge simulatedCharge = null;
+        Throwable failure = null;
+        try {
+            simulatedCharge = simulateSplit(request);
+            return simulatedCharge;
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            LightrailMetrics.stop(MetricsRegistry.Phase.SPLIT_TENDER_SIMULATE, start, failure == null);
+            span.complete(request.getUserSuppliedId(), request.getCurrency(), request.getAmount(),
+                    (simulatedCharge == null) ? 0 : simulatedCharge.getLightrailShare(),
+                    (simulatedCharge == null) ? 0 : simulatedCharge.getStripeShare(),
+                    failure);
+        }
+    }
+
+    private static SimulatedStripeLightrailSplitTenderCharge simulateSplit(SplitTenderChargeRequest request) throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException {
+        if (request.hasLightrailInstrument() && LightrailCircuitBreakers.shouldSkipLightrail())
+            return simulateWithoutLightrail(request);
+        try {
+            return simulateWithLightrail(request);
+        } catch (CircuitOpenException e) {
+            if (!request.hasLightrailInstrument() || !LightrailCircuitBreakers.isFailOpenToStripe())
+                throw e;
+            return simulateWithoutLightrail(request);
+        }
+    }
+
+    /**
+     * Puts the whole amount on Stripe because the Lightrail circuit breaker is open.
+     */
+    private static SimulatedStripeLightrailSplitTenderCharge simulateWithoutLightrail(SplitTenderChargeRequest request) {
+        LightrailMetrics.outcome(MetricsRegistry.Outcome.LIGHTRAIL_SKIPPED);
+        request = ensureIdempotencyKey(request);
+        Charge stripeCharge = new Charge();
+        stripeCharge.setCurrency(request.getCurrency());
+        stripeCharge.setAmount((long) request.getAmount());
+        SimulatedStripeLightrailSplitTenderCharge simulatedCharge = new SimulatedStripeLightrailSplitTenderCharge(null, stripeCharge, request);
+        simulatedCharge.lightrailSkipped = true;
+        return simulatedCharge;
+    }
+
+    private static SimulatedStripeLightrailSplitTenderCharge simulateWithLightrail(SplitTenderChargeRequest request) throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException {
+        SplitTenderChargeRequest originalRequest = request;
+        try {
+            request = LightrailResolver.resolve(request);
+        } catch (CouldNotFindObjectException e) {
+            LightrailResolver.forget(originalRequest);
+            throw e;
+        }
+        int transactionAmount = request.getAmount();
 
         LightrailCharge lightrailCharge = null;
         Charge stripeCharge = null;
-        Integer lightrailShare = 0;
-        Integer stripeShare = 0;
+        int lightrailShare = 0;
+        int stripeShare = 0;
 
-        Object lightrailCodeObject = chargeParams.get(LightrailConstants.Parameters.CODE);
-        Object lightrailCardIdObject = chargeParams.get(LightrailConstants.Parameters.CARD_ID);
-        String idempotencyKey = (String) chargeParams.get(LightrailConstants.Parameters.USER_SUPPLIED_ID);
-        if (idempotencyKey == null) {
-            chargeParams.put(LightrailConstants.Parameters.USER_SUPPLIED_ID, UUID.randomUUID().toString());
-        }
+        boolean generatedIdempotencyKey = request.getUserSuppliedId() == null;
+        if (generatedIdempotencyKey)
+            request = request.withUserSuppliedId(UUID.randomUUID().toString());
 
-        if (lightrailCardIdObject != null || lightrailCodeObject != null) {
-            RequestParameters simulateParameters = new RequestParameters();
-            simulateParameters.putAll(chargeParams);
-            removeStripeParams(simulateParameters);
-            lightrailCharge = LightrailCharge.simulate(simulateParameters);
+        int maxLightrailShare = SplitAllocationPolicies.getMaxLightrailShare(request);
+        if (request.hasLightrailCard() && maxLightrailShare == 0) {
+            lightrailShare = SplitAllocationPolicies.allocate(request, 0);
+        } else if (request.hasLightrailCard()) {
+            try {
+                lightrailCharge = LightrailCharge.simulateTranslated(request.toLightrailRequest(maxLightrailShare, false, null), maxLightrailShare, generatedIdempotencyKey, request.getGateway());
+            } catch (CouldNotFindObjectException e) {
+                LightrailResolver.forget(originalRequest);
+                throw e;
+            }
+            LightrailResolver.learn(request, lightrailCharge);
             lightrailShare = lightrailCharge.getAmount();
 
-            if (lightrailCharge.getId() != null) { //this means this is not a simulation; make sure the amount is the same. todo: check more request params
+            if (lightrailCharge.getId() != null) { //this means this is not a simulation; make sure the amount is the same. SplitTenderIdempotencyCache checks every parameter, within its window
+                LightrailMetrics.retry(MetricsRegistry.Phase.SPLIT_TENDER_SIMULATE);
                 int originalTransactionAmount = ((Double) lightrailCharge.getMetadata().get(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_TOTAL)).intValue();
                 if (transactionAmount != originalTransactionAmount)
                     throw new BadParameterException("Idempotency Error. The parameters do not match the original transaction.");
 
             } else {
-                lightrailShare = adjustForMinimumStripeTransactionValue(transactionAmount, lightrailShare);
+                lightrailShare = SplitAllocationPolicies.allocate(request, lightrailShare);
             }
             lightrailCharge.setAmount(lightrailShare);
             if (lightrailShare == 0)
@@ -151,18 +269,15 @@ public class StripeLightrailSplitTenderCharge {
         }
         stripeShare = transactionAmount - lightrailShare;
         if (stripeShare != 0) {
-            //getStripeParams(stripeShare, chargeParams, null);
-
             stripeCharge = new Charge();
-            stripeCharge.setCurrency(currency);
-            stripeCharge.setAmount(stripeShare.longValue());
+            stripeCharge.setCurrency(request.getCurrency());
+            stripeCharge.setAmount((long) stripeShare);
         }
 
-        SimulatedStripeLightrailSplitTenderCharge splitTenderCharge = new SimulatedStripeLightrailSplitTenderCharge(lightrailCharge, stripeCharge, chargeParams);
-        return splitTenderCharge;
+        return new SimulatedStripeLightrailSplitTenderCharge(lightrailCharge, stripeCharge, request);
     }
 
-    private static Metadata getLightrailMetadata(int transactionAmount, String stripeTxId) {
+    static Metadata getLightrailMetadata(int transactionAmount, String stripeTxId) {
         Metadata lightrailChargeMetadata = new Metadata();
         lightrailChargeMetadata.put(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_TOTAL, transactionAmount);
         lightrailChargeMetadata.put(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_PARTNER, "STRIPE");
@@ -171,65 +286,923 @@ public class StripeLightrailSplitTenderCharge {
         return lightrailChargeMetadata;
     }
 
-    public static StripeLightrailSplitTenderCharge create(Map<String, Object> chargeParams, int stripeShare, int lightrailShare) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, IOException, CurrencyMismatchException, ThirdPartyException {
-        int transactionAmount = (Integer) chargeParams.get(StripeConstants.Parameters.AMOUNT);
-        if (transactionAmount != stripeShare + lightrailShare)
+    /**
+     * Reads the parameter map of the map-based API. A generated idempotency key is written back to the map, so that
+     * the caller can retry or retrieve the transaction.
+     */
+    private static SplitTenderChargeRequest toRequestWithIdempotencyKey(Map<String, Object> chargeParams) {
+        SplitTenderChargeRequest request = SplitTenderChargeRequest.fromParams(chargeParams);
+        if (request.getUserSuppliedId() != null)
+            return request;
+        request = request.withUserSuppliedId(UUID.randomUUID().toString());
+        chargeParams.put(LightrailConstants.Parameters.USER_SUPPLIED_ID, request.getUserSuppliedId());
+        return request;
+    }
+
+    private static SplitTenderChargeRequest ensureIdempotencyKey(SplitTenderChargeRequest request) {
+        return (request.getUserSuppliedId() != null) ? request : request.withUserSuppliedId(UUID.randomUUID().toString());
+    }
+
+    /**
+     * Fails fast, before a pending Lightrail charge is created, when the Stripe leg is certain to be rejected.
+     */
+    static void checkStripeAvailable() throws ThirdPartyException {
+        try {
+            LightrailCircuitBreakers.checkStripeAvailable();
+        } catch (CircuitOpenException e) {
+            throw new ThirdPartyException(e);
+        }
+    }
+
+    /**
+     * Rejects the charge before any leg starts if Lightrail or Stripe is backed up beyond its rate limit.
+     */
+    private static void admit(int stripeShare, int lightrailShare) throws IOException {
+        LightrailRateLimiters.admit(lightrailShare != 0, stripeShare != 0);
+    }
+
+    private static void checkShares(SplitTenderChargeRequest request, int stripeShare, int lightrailShare) {
+        if (request.getAmount() != stripeShare + lightrailShare)
             throw new BadParameterException("Transaction amount does not match the sum of the given Stripe and Lightrail shares.");
+    }
+
+    private static LightrailCharge createLightrailCharge(SplitTenderChargeRequest request, int lightrailShare, boolean capture) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException, CurrencyMismatchException {
+        return createLightrailCharge(request, lightrailShare, capture, !capture);
+    }
 
-        String idempotencyKey = (String) chargeParams.get(LightrailConstants.Parameters.USER_SUPPLIED_ID);
-        if (idempotencyKey == null) {
-            idempotencyKey = (String) chargeParams.put(LightrailConstants.Parameters.USER_SUPPLIED_ID, UUID.randomUUID().toString());
+    /**
+     * @param journaled whether the pending charge is recorded in the {@link SplitTenderJournal}, to be captured or
+     *                  voided on recovery. Authorizations are not, since they are meant to stay pending.
+     */
+    static LightrailCharge createLightrailCharge(SplitTenderChargeRequest request, int lightrailShare, boolean capture, boolean journaled) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException, CurrencyMismatchException {
+        try {
+            SplitTenderChargeRequest resolvedRequest = LightrailResolver.resolve(request);
+            if (journaled)
+                SplitTenderJournal.recordStarted(resolvedRequest, lightrailShare);
+            LightrailCharge lightrailCharge = LightrailCharge.createTranslated(resolvedRequest.toLightrailRequest(lightrailShare, !capture, getLightrailMetadata(request.getAmount(), null)), request.getGateway());
+            LightrailResolver.learn(request, lightrailCharge);
+            return lightrailCharge;
+        } catch (CouldNotFindObjectException e) {
+            LightrailResolver.forget(request);
+            throw e;
         }
+    }
+
+    static Charge createStripeCharge(LightrailStripeGateway gateway, Map<String, Object> stripeParams, String idempotencyKey) throws ThirdPartyException {
+        long start = LightrailMetrics.start();
+        CheckoutEvents.Span span = CheckoutEvents.begin(MetricsRegistry.Phase.STRIPE_CHARGE);
+        Throwable failure = null;
+        long callStart = 0;
+        try {
+            callStart = LightrailCircuitBreakers.beforeCall(MetricsRegistry.Phase.STRIPE_CHARGE);
+            RequestOptions stripeRequestOptions = null;
+            if (idempotencyKey != null) {
+                stripeRequestOptions = RequestOptions.builder()
+                        .setIdempotencyKey(idempotencyKey)
+                        .build();
+            }
+            return gateway.createCharge(stripeParams, stripeRequestOptions);
+        } catch (Exception e) {
+            failure = e;
+            if (e instanceof CardException)
+                LightrailMetrics.outcome(MetricsRegistry.Outcome.STRIPE_DECLINED);
+            if (e instanceof BadParameterException)
+                throw (BadParameterException) e;
+            else
+                throw new ThirdPartyException(e);
+        } finally {
+            LightrailCircuitBreakers.afterCall(MetricsRegistry.Phase.STRIPE_CHARGE, callStart, failure);
+            LightrailMetrics.stop(MetricsRegistry.Phase.STRIPE_CHARGE, start, failure == null);
+            span.complete(idempotencyKey, CheckoutEvents.currencyOf(stripeParams), CheckoutEvents.amountOf(stripeParams, StripeConstants.Parameters.AMOUNT), failure);
+        }
+    }
+
+    /**
+     * Charges the Stripe share of a split tender whose Lightrail share is already pending.
+     * If the Stripe charge fails, the pending Lightrail charge is voided before the failure is rethrown.
+     */
+    private static Charge createStripeChargeOrVoid(LightrailCharge pendingLightrailCharge, int stripeShare, SplitTenderChargeRequest request) throws ThirdPartyException, IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
+        try {
+            return createJournaledStripeCharge(request.getGateway(), request.toStripeParams(stripeShare, pendingLightrailCharge.getFullId(), request.getUserSuppliedId()), request.getUserSuppliedId());
+        } catch (ThirdPartyException | BadParameterException | IOException e) {
+            voidPendingCharge(pendingLightrailCharge, request.getUserSuppliedId(), e);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates the pending Lightrail charge of a split transaction, and ends its journal entry if that fails.
+     */
+    private static LightrailCharge createPendingLightrailCharge(SplitTenderChargeRequest request, int lightrailShare) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException, CurrencyMismatchException {
+        try {
+            return createLightrailCharge(request, lightrailShare, false);
+        } catch (Throwable e) {
+            SplitTenderJournal.recordFailure(request.getUserSuppliedId(), e);
+            throw e;
+        }
+    }
+
+    private static Charge createJournaledStripeCharge(LightrailStripeGateway gateway, Map<String, Object> stripeParams, String idempotencyKey) throws ThirdPartyException, IOException {
+        SplitTenderJournal.recordStripeRequested(idempotencyKey, stripeParams);
+        return createStripeCharge(gateway, stripeParams, idempotencyKey);
+    }
+
+    private static void voidPendingCharge(LightrailCharge pendingLightrailCharge, String idempotencyKey, Throwable stripeFailure) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
+        LightrailSettlementQueue settlementQueue = LightrailSettlementQueue.getDefault();
+        if (settlementQueue != null) {
+            settlementQueue.submit(idempotencyKey, LightrailSettlementQueue.Operation.VOID, () -> pendingLightrailCharge.doVoid(idempotencyKey + "-void", null))
+                    .whenComplete((voided, failure) -> {
+                        if (failure == null)
+                            recordCompensated(idempotencyKey, stripeFailure);
+                        else
+                            SplitTenderJournal.recordUnresolved(idempotencyKey);
+                    });
+            return;
+        }
+        try {
+            pendingLightrailCharge.doVoid(idempotencyKey + "-void", null);
+        } catch (Throwable e) {
+            SplitTenderJournal.recordUnresolved(idempotencyKey);
+            throw e;
+        }
+        recordCompensated(idempotencyKey, stripeFailure);
+    }
+
+    /**
+     * @return whether a pending charge may have been created although its creation failed, e.g. if the response was
+     * lost. Calls rejected by a circuit breaker or a rate limiter were never made.
+     */
+    static boolean mayHaveBeenCreated(Throwable createFailure) {
+        return createFailure instanceof IOException
+                && !(createFailure instanceof CircuitOpenException)
+                && !(createFailure instanceof RateLimitedException);
+    }
+
+    static void recordCompensated(String idempotencyKey, Throwable stripeFailure) {
+        if (isUnknownStripeOutcome(stripeFailure))
+            SplitTenderJournal.recordVoided(idempotencyKey);
+        else
+            SplitTenderJournal.recordAborted(idempotencyKey);
+    }
+
+    /**
+     * @return whether Stripe may have made the charge although the request failed, e.g. if the response was lost.
+     */
+    static boolean isUnknownStripeOutcome(Throwable stripeFailure) {
+        Throwable cause = (stripeFailure instanceof ThirdPartyException) ? stripeFailure.getCause() : null;
+        return cause instanceof APIConnectionException || cause instanceof APIException;
+    }
+
+    /**
+     * Captures the pending Lightrail charge once the Stripe charge succeeded, or queues the capture on the
+     * {@link LightrailSettlementQueue} if there is one. Queued captures and voids have their own idempotency keys, so
+     * that a retry after a lost response returns the original result.
+     */
+    private static StripeLightrailSplitTenderCharge settle(LightrailCharge pendingLightrailCharge, SplitTenderChargeRequest request, Charge stripeCharge) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
+        final String idempotencyKey = request.getUserSuppliedId();
+        LightrailSettlementQueue settlementQueue = LightrailSettlementQueue.getDefault();
+        if (settlementQueue == null) {
+            StripeLightrailSplitTenderCharge charge = new StripeLightrailSplitTenderCharge(capturePendingCharge(pendingLightrailCharge, request, stripeCharge), stripeCharge, request.getGateway(), idempotencyKey);
+            SplitTenderChargeCache.putSettled(idempotencyKey, request.getAmount(), charge);
+            return charge;
+        }
+
+        SplitTenderChargeCache.putStripeCharge(idempotencyKey, stripeCharge);
+        final Metadata captureMetadata = getLightrailMetadata(request.getAmount(), stripeCharge.getId());
+        StripeLightrailSplitTenderCharge charge = new StripeLightrailSplitTenderCharge(pendingLightrailCharge, stripeCharge, request.getGateway(), idempotencyKey);
+        charge.lightrailCapture = settlementQueue.submit(idempotencyKey, LightrailSettlementQueue.Operation.CAPTURE, () -> pendingLightrailCharge.capture(idempotencyKey + "-capture", captureMetadata))
+                .whenComplete((capturedCharge, failure) -> {
+                    if (failure == null) {
+                        SplitTenderJournal.recordCompleted(idempotencyKey);
+                        SplitTenderChargeCache.putSettled(idempotencyKey, request.getAmount(), new StripeLightrailSplitTenderCharge(capturedCharge, stripeCharge, request.getGateway(), idempotencyKey));
+                    } else {
+                        SplitTenderJournal.recordUnresolved(idempotencyKey);
+                    }
+                });
+        return charge;
+    }
+
+    private static LightrailCharge capturePendingCharge(LightrailCharge pendingLightrailCharge, SplitTenderChargeRequest request, Charge stripeCharge) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
+        LightrailCharge capturedCharge;
+        try {
+            capturedCharge = pendingLightrailCharge.capture(request.getUserSuppliedId() + "-capture", getLightrailMetadata(request.getAmount(), stripeCharge.getId()));
+        } catch (Throwable e) {
+            SplitTenderJournal.recordUnresolved(request.getUserSuppliedId());
+            throw e;
+        }
+        SplitTenderJournal.recordCompleted(request.getUserSuppliedId());
+        return capturedCharge;
+    }
+
+    public static StripeLightrailSplitTenderCharge create(Map<String, Object> chargeParams, int stripeShare, int lightrailShare) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, IOException, CurrencyMismatchException, ThirdPartyException {
+        return create(toRequestWithIdempotencyKey(chargeParams), stripeShare, lightrailShare);
+    }
+
+    public static StripeLightrailSplitTenderCharge create(SplitTenderChargeRequest request, int stripeShare, int lightrailShare) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, IOException, CurrencyMismatchException {
+        checkShares(request, stripeShare, lightrailShare);
+        StripeLightrailSplitTenderCharge replayedCharge = SplitTenderIdempotencyCache.replay(request, MetricsRegistry.Phase.SPLIT_TENDER_CREATE);
+        if (replayedCharge != null)
+            return replayedCharge;
+        admit(stripeShare, lightrailShare);
+        request = ensureIdempotencyKey(request);
+        long start = LightrailMetrics.start();
+        CheckoutEvents.Span span = CheckoutEvents.begin(MetricsRegistry.Phase.SPLIT_TENDER_CREATE);
+        Throwable failure = null;
+        try {
+            StripeLightrailSplitTenderCharge charge = createSplit(request, stripeShare, lightrailShare);
+            SplitTenderIdempotencyCache.remember(request, charge);
+            return charge;
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            recordCreation(start, span, request, stripeShare, lightrailShare, failure);
+        }
+    }
+
+    private static void recordCreation(long start, CheckoutEvents.Span span, SplitTenderChargeRequest request, int stripeShare, int lightrailShare, Throwable failure) {
+        LightrailMetrics.stop(MetricsRegistry.Phase.SPLIT_TENDER_CREATE, start, failure == null);
+        if (failure == null)
+            LightrailMetrics.outcome(MetricsRegistry.Outcome.CAPTURED);
+        span.complete(request.getUserSuppliedId(), request.getCurrency(), request.getAmount(), lightrailShare, stripeShare, AsyncCalls.unwrap(failure));
+    }
+
+    private static CompletableFuture<StripeLightrailSplitTenderCharge> recordCreation(SplitTenderChargeRequest request, int stripeShare, int lightrailShare, Supplier<CompletableFuture<StripeLightrailSplitTenderCharge>> creation) {
+        long start = LightrailMetrics.start();
+        CheckoutEvents.Span span = CheckoutEvents.begin(MetricsRegistry.Phase.SPLIT_TENDER_CREATE);
+        return creation.get().whenComplete((charge, failure) -> {
+            recordCreation(start, span, request, stripeShare, lightrailShare, failure);
+            if (failure == null)
+                SplitTenderIdempotencyCache.remember(request, charge);
+        });
+    }
 
+    private static StripeLightrailSplitTenderCharge createSplit(SplitTenderChargeRequest request, int stripeShare, int lightrailShare) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, IOException, CurrencyMismatchException {
         LightrailCharge lightrailCapturedCharge = null;
         Charge stripeCharge = null;
 
         if (lightrailShare != 0) {
-            Map<String, Object> lightrailChargeParams = new HashMap<>(chargeParams);
-            removeStripeParams(lightrailChargeParams);
-            lightrailChargeParams.put(StripeConstants.Parameters.AMOUNT, lightrailShare);
-
-            lightrailChargeParams.put(LightrailConstants.Parameters.METADATA, getLightrailMetadata(transactionAmount, null));
-
             if (stripeShare == 0) { //everything on card
-                lightrailCapturedCharge = LightrailCharge.create(lightrailChargeParams);
+                lightrailCapturedCharge = createLightrailCharge(request, lightrailShare, true);
+                StripeLightrailSplitTenderCharge charge = new StripeLightrailSplitTenderCharge(lightrailCapturedCharge, null, request.getGateway(), request.getUserSuppliedId());
+                SplitTenderChargeCache.putSettled(request.getUserSuppliedId(), request.getAmount(), charge);
+                return charge;
             } else { //split between car and credit card
-                lightrailChargeParams.put(StripeConstants.Parameters.CAPTURE, false);
-                LightrailCharge lightrailCharge = LightrailCharge.create(lightrailChargeParams);
-                try {
-                    RequestOptions stripeRequestOptions = RequestOptions.builder()
-                            .setIdempotencyKey(idempotencyKey)
-                            .build();
-                    stripeCharge = Charge.create(getStripeParams(stripeShare, chargeParams, lightrailCharge.getFullId()), stripeRequestOptions);
-                } catch (Exception e) {
-                    lightrailCharge.doVoid();
-                    if (e instanceof BadParameterException)
-                        throw (BadParameterException) e;
-                    else
-                        throw new ThirdPartyException(e);
-                }
-                lightrailCapturedCharge = lightrailCharge.capture(getLightrailMetadata(transactionAmount, stripeCharge.getId()));
+                checkStripeAvailable();
+                LightrailCharge lightrailCharge = createPendingLightrailCharge(request, lightrailShare);
+                stripeCharge = createStripeChargeOrVoid(lightrailCharge, stripeShare, request);
+                return settle(lightrailCharge, request, stripeCharge);
             }
         } else { //all on credit card
+            stripeCharge = createStripeCharge(request.getGateway(), request.toStripeParams(stripeShare, null, null), null);
+        }
+
+        return new StripeLightrailSplitTenderCharge(lightrailCapturedCharge, stripeCharge, request.getGateway(), request.getUserSuppliedId());
+    }
+
+    public static StripeLightrailSplitTenderCharge create(Map<String, Object> chargeParams) throws InsufficientValueException, AuthorizationException, CurrencyMismatchException, IOException, CouldNotFindObjectException, ThirdPartyException {
+        return create(SplitTenderChargeRequest.fromParams(chargeParams));
+    }
+
+    public static StripeLightrailSplitTenderCharge create(SplitTenderChargeRequest request) throws InsufficientValueException, AuthorizationException, CurrencyMismatchException, IOException, CouldNotFindObjectException, ThirdPartyException {
+        return simulate(request).commit();
+    }
+
+    public static CompletableFuture<SimulatedStripeLightrailSplitTenderCharge> simulateAsync(final Map<String, Object> chargeParams, Executor executor) {
+        return AsyncCalls.supply(() -> simulate(chargeParams), executor);
+    }
+
+    public static CompletableFuture<SimulatedStripeLightrailSplitTenderCharge> simulateAsync(final SplitTenderChargeRequest request, Executor executor) {
+        return AsyncCalls.supply(() -> simulate(request), executor);
+    }
+
+    public static CompletableFuture<StripeLightrailSplitTenderCharge> retrieveAsync(final Map<String, Object> chargeParams, Executor executor) {
+        return AsyncCalls.supply(() -> retrieve(chargeParams), executor);
+    }
+
+    public static CompletableFuture<StripeLightrailSplitTenderCharge> createAsync(final Map<String, Object> chargeParams, final int stripeShare, final int lightrailShare, final Executor executor) {
+        try {
+            return createAsync(toRequestWithIdempotencyKey(chargeParams), stripeShare, lightrailShare, executor);
+        } catch (RuntimeException e) {
+            return AsyncCalls.failed(e);
+        }
+    }
+
+    /**
+     * Non-blocking counterpart of {@link #create(SplitTenderChargeRequest, int, int)}. Each remote step (Lightrail
+     * pending charge, Stripe charge, Lightrail capture or void) runs as a separate task on the given executor, so no
+     * thread is held between steps.
+     */
+    public static CompletableFuture<StripeLightrailSplitTenderCharge> createAsync(SplitTenderChargeRequest request, final int stripeShare, final int lightrailShare, final Executor executor) {
+        try {
+            checkShares(request, stripeShare, lightrailShare);
+            StripeLightrailSplitTenderCharge replayedCharge = SplitTenderIdempotencyCache.replay(request, MetricsRegistry.Phase.SPLIT_TENDER_CREATE);
+            if (replayedCharge != null)
+                return CompletableFuture.completedFuture(replayedCharge);
+            admit(stripeShare, lightrailShare);
+        } catch (RuntimeException | IOException e) {
+            return AsyncCalls.failed(e);
+        }
+        final SplitTenderChargeRequest keyedRequest = ensureIdempotencyKey(request);
+        if (lightrailShare == 0 || stripeShare == 0) //a single remote call
+            return AsyncCalls.supply(() -> create(keyedRequest, stripeShare, lightrailShare), executor);
+        try {
+            checkStripeAvailable();
+        } catch (ThirdPartyException e) {
+            return AsyncCalls.failed(e);
+        }
+
+        return recordCreation(keyedRequest, stripeShare, lightrailShare, () -> AsyncCalls.supply(() -> createPendingLightrailCharge(keyedRequest, lightrailShare), executor)
+                .thenCompose(lightrailCharge -> AsyncCalls.supply(() -> createStripeChargeOrVoid(lightrailCharge, stripeShare, keyedRequest), executor)
+                        .thenCompose(stripeCharge -> AsyncCalls.supply(() -> settle(lightrailCharge, keyedRequest, stripeCharge), executor))));
+    }
+
+    public static CompletableFuture<StripeLightrailSplitTenderCharge> createAsync(final Map<String, Object> chargeParams, final Executor executor) {
+        return simulateAsync(chargeParams, executor).thenCompose(simulatedCharge -> simulatedCharge.commitAsync(executor));
+    }
+
+    public static CompletableFuture<StripeLightrailSplitTenderCharge> createAsync(final SplitTenderChargeRequest request, final Executor executor) {
+        return simulateAsync(request, executor).thenCompose(simulatedCharge -> simulatedCharge.commitAsync(executor));
+    }
+
+    public static CompletableFuture<StripeLightrailSplitTenderCharge> createPipelinedAsync(final Map<String, Object> chargeParams, final int stripeShare, final int lightrailShare, final Executor executor) {
+        try {
+            return createPipelinedAsync(toRequestWithIdempotencyKey(chargeParams), stripeShare, lightrailShare, executor);
+        } catch (RuntimeException e) {
+            return AsyncCalls.failed(e);
+        }
+    }
+
+    /**
+     * Pipelined counterpart of {@link #createAsync(SplitTenderChargeRequest, int, int, Executor)} for split
+     * transactions: the pending Lightrail charge and the Stripe charge are created concurrently and correlated through
+     * the shared idempotency key. The cross-reference metadata is attached afterwards, while the Lightrail charge is
+     * captured. If either leg fails, the other one is compensated (voided or refunded) before the future completes
+     * exceptionally.
+     */
+    public static CompletableFuture<StripeLightrailSplitTenderCharge> createPipelinedAsync(SplitTenderChargeRequest request, final int stripeShare, final int lightrailShare, final Executor executor) {
+        if (lightrailShare == 0 || stripeShare == 0) //nothing to overlap
+            return createAsync(request, stripeShare, lightrailShare, executor);
+
+        final SplitTenderChargeRequest keyedRequest;
+        final String idempotencyKey;
+        final Map<String, Object> stripeParams;
+        try {
+            checkShares(request, stripeShare, lightrailShare);
+            StripeLightrailSplitTenderCharge replayedCharge = SplitTenderIdempotencyCache.replay(request, MetricsRegistry.Phase.SPLIT_TENDER_CREATE);
+            if (replayedCharge != null)
+                return CompletableFuture.completedFuture(replayedCharge);
+            admit(stripeShare, lightrailShare);
+            checkStripeAvailable();
+            keyedRequest = ensureIdempotencyKey(request);
+            idempotencyKey = keyedRequest.getUserSuppliedId();
+            stripeParams = keyedRequest.toStripeParams(stripeShare, null, idempotencyKey);
+        } catch (RuntimeException | IOException | ThirdPartyException e) {
+            return AsyncCalls.failed(e);
+        }
+
+        return recordCreation(keyedRequest, stripeShare, lightrailShare, () -> createPipelinedSplit(keyedRequest, stripeShare, lightrailShare, stripeParams, executor));
+    }
+
+    private static CompletableFuture<StripeLightrailSplitTenderCharge> createPipelinedSplit(SplitTenderChargeRequest keyedRequest, int stripeShare, int lightrailShare, Map<String, Object> stripeParams, Executor executor) {
+        final String idempotencyKey = keyedRequest.getUserSuppliedId();
+        final LightrailStripeGateway gateway = keyedRequest.getGateway();
+        final CompletableFuture<LightrailCharge> lightrailLeg = AsyncCalls.supply(() -> createLightrailCharge(keyedRequest, lightrailShare, false), executor);
+        final CompletableFuture<Charge> stripeLeg = AsyncCalls.supply(() -> createJournaledStripeCharge(gateway, stripeParams, idempotencyKey), executor);
+
+        return CompletableFuture.allOf(lightrailLeg, stripeLeg)
+                .handle((ignored, e) -> null) //wait for both legs, whatever the outcome
+                .thenCompose(ignored -> {
+                    Throwable lightrailFailure = AsyncCalls.failureOf(lightrailLeg);
+                    Throwable stripeFailure = AsyncCalls.failureOf(stripeLeg);
+                    final LightrailCharge lightrailCharge = (lightrailFailure == null) ? lightrailLeg.join() : null;
+                    final Charge stripeCharge = (stripeFailure == null) ? stripeLeg.join() : null;
+
+                    if (lightrailCharge != null && stripeCharge != null) {
+                        CompletableFuture<StripeLightrailSplitTenderCharge> settledLeg = AsyncCalls.supply(() -> settle(lightrailCharge, keyedRequest, stripeCharge), executor);
+                        CompletableFuture<Charge> annotatedLeg = AsyncCalls.supply(() -> addPartnerTransactionId(gateway, stripeCharge, lightrailCharge.getFullId()), executor);
+                        return settledLeg.thenCombine(annotatedLeg, (charge, annotatedStripeCharge) -> {
+                            charge.stripeCharge = annotatedStripeCharge;
+                            return charge;
+                        });
+                    }
+
+                    final Throwable failure = (lightrailFailure != null) ? lightrailFailure : stripeFailure;
+                    if (lightrailFailure != null && stripeFailure != null)
+                        failure.addSuppressed(stripeFailure);
+                    return AsyncCalls.supply(() -> {
+                        try {
+                            LightrailCharge pendingCharge = lightrailCharge;
+                            if (pendingCharge == null && mayHaveBeenCreated(AsyncCalls.unwrap(lightrailFailure)))
+                                pendingCharge = findPendingCharge(keyedRequest); //the response may have been lost
+                            if (pendingCharge != null)
+                                pendingCharge.doVoid(idempotencyKey + "-void", null);
+                            if (stripeCharge != null)
+                                refundStripeCharge(gateway, stripeCharge, idempotencyKey);
+                            recordCompensated(idempotencyKey, AsyncCalls.unwrap(stripeFailure));
+                        } catch (Exception compensationFailure) {
+                            SplitTenderJournal.recordUnresolved(idempotencyKey);
+                            failure.addSuppressed(compensationFailure);
+                        }
+                        throw AsyncCalls.asException(failure);
+                    }, executor);
+                });
+    }
+
+    public static StripeLightrailSplitTenderCharge createPipelined(Map<String, Object> chargeParams, int stripeShare, int lightrailShare, Executor executor) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, IOException, CurrencyMismatchException {
+        return AsyncCalls.join(createPipelinedAsync(chargeParams, stripeShare, lightrailShare, executor));
+    }
+
+    public static StripeLightrailSplitTenderCharge createPipelined(SplitTenderChargeRequest request, int stripeShare, int lightrailShare, Executor executor) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, IOException, CurrencyMismatchException {
+        return AsyncCalls.join(createPipelinedAsync(request, stripeShare, lightrailShare, executor));
+    }
+
+    public static SplitTenderAuthorization authorize(Map<String, Object> chargeParams) throws InsufficientValueException, AuthorizationException, CurrencyMismatchException, IOException, CouldNotFindObjectException, ThirdPartyException {
+        return authorize(SplitTenderChargeRequest.fromParams(chargeParams));
+    }
+
+    public static SplitTenderAuthorization authorize(SplitTenderChargeRequest request) throws InsufficientValueException, AuthorizationException, CurrencyMismatchException, IOException, CouldNotFindObjectException, ThirdPartyException {
+        return simulate(request).authorize();
+    }
+
+    public static SplitTenderAuthorization authorize(Map<String, Object> chargeParams, int stripeShare, int lightrailShare) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, IOException, CurrencyMismatchException {
+        return authorize(toRequestWithIdempotencyKey(chargeParams), stripeShare, lightrailShare);
+    }
+
+    /**
+     * Holds both legs of a split-tender charge without settling them: the Lightrail share as a pending charge and
+     * the Stripe share as a charge with {@code capture=false}. The returned authorization captures or voids them
+     * later, e.g. when the order ships. If the Stripe charge fails, the pending Lightrail charge is voided.
+     * <p>
+     * Authorizations are not recorded in the {@link SplitTenderJournal}, which would capture them on recovery, nor
+     * in the {@link SplitTenderIdempotencyCache}. Only a partial capture is journaled, since it captures the Lightrail
+     * charge in full and then funds the released value back. Lightrail and Stripe both let authorizations expire if they are
+     * never settled.
+     */
+    public static SplitTenderAuthorization authorize(SplitTenderChargeRequest request, int stripeShare, int lightrailShare) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, IOException, CurrencyMismatchException {
+        checkShares(request, stripeShare, lightrailShare);
+        admit(stripeShare, lightrailShare);
+        request = ensureIdempotencyKey(request);
+        if (stripeShare != 0)
+            checkStripeAvailable();
+        String idempotencyKey = request.getUserSuppliedId();
+
+        LightrailCharge pendingLightrailCharge = (lightrailShare == 0) ? null : createLightrailCharge(request, lightrailShare, false, false);
+        Charge uncapturedStripeCharge = null;
+        if (stripeShare != 0) {
+            Map<String, Object> stripeParams = request.toStripeParams(stripeShare, (pendingLightrailCharge == null) ? null : pendingLightrailCharge.getFullId(), null);
+            stripeParams.put(StripeConstants.Parameters.CAPTURE, false);
             try {
-                stripeCharge = Charge.create(getStripeParams(stripeShare, chargeParams, null));
-            } catch (Exception e) {
-                if (e instanceof BadParameterException)
-                    throw (BadParameterException) e;
-                else
-                    throw new ThirdPartyException(e);
+                uncapturedStripeCharge = createStripeCharge(request.getGateway(), stripeParams, idempotencyKey);
+            } catch (ThirdPartyException | BadParameterException e) {
+                if (pendingLightrailCharge != null) {
+                    try {
+                        pendingLightrailCharge.doVoid(idempotencyKey + "-void", null);
+                    } catch (Exception voidFailure) {
+                        e.addSuppressed(voidFailure);
+                    }
+                }
+                throw e;
             }
         }
+        LightrailMetrics.outcome(MetricsRegistry.Outcome.AUTHORIZED);
+        return new SplitTenderAuthorization(request, pendingLightrailCharge, uncapturedStripeCharge);
+    }
+
+    /**
+     * See {@link SplitTenderAuthorization#capture(int, SplitTenderRefund.Allocation)}. The Stripe leg is captured on
+     * another thread while the Lightrail leg is captured on this one. If a leg fails, the other one is still settled
+     * and the failure is thrown once both are done.
+     */
+    static StripeLightrailSplitTenderCharge captureAuthorization(final SplitTenderAuthorization authorization, int amount, SplitTenderRefund.Allocation release) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, CurrencyMismatchException, IOException {
+        if (release == null)
+            throw new BadParameterException("A partial capture needs an allocation of the released amount between Lightrail and Stripe.");
+        int lightrailShare = authorization.getLightrailShare();
+        int stripeShare = authorization.getStripeShare();
+        if (amount <= 0 || amount > lightrailShare + stripeShare)
+            throw new BadParameterException("Capture 'amount' must be a positive integer no greater than the amount authorized.");
+        int released = lightrailShare + stripeShare - amount;
+        int lightrailReleased = SplitTenderRefund.allocateToLightrail(released, lightrailShare, stripeShare, release);
+        final int lightrailCapture = lightrailShare - lightrailReleased;
+        final int stripeCapture = stripeShare - (released - lightrailReleased);
+        final String idempotencyKey = authorization.getIdempotencyKey();
 
-        return new StripeLightrailSplitTenderCharge(lightrailCapturedCharge, stripeCharge);
+        CompletableFuture<Charge> stripeLeg = (authorization.uncapturedStripeCharge == null) ? CompletableFuture.completedFuture(null)
+                : AsyncCalls.supply(() -> settleAuthorizedStripeCharge(authorization.request.getGateway(), authorization.uncapturedStripeCharge, stripeCapture, idempotencyKey), AsyncCalls.blockingCallExecutor());
+        CompletableFuture<LightrailCharge> lightrailLeg = (authorization.pendingLightrailCharge == null) ? CompletableFuture.completedFuture(null)
+                : AsyncCalls.supply(() -> settleAuthorizedLightrailCharge(authorization, lightrailCapture), Runnable::run);
+        joinBothLegs(lightrailLeg, stripeLeg);
+
+        StripeLightrailSplitTenderCharge charge = new StripeLightrailSplitTenderCharge(lightrailLeg.join(), stripeLeg.join(), authorization.request.getGateway(), idempotencyKey);
+        LightrailMetrics.outcome(MetricsRegistry.Outcome.CAPTURED);
+        return charge;
     }
 
-    public static StripeLightrailSplitTenderCharge create(Map<String, Object> chargeParams) throws InsufficientValueException, AuthorizationException, CurrencyMismatchException, IOException, CouldNotFindObjectException, ThirdPartyException {
-        StripeLightrailSplitTenderCharge charge = simulate(chargeParams);
-        if (charge instanceof SimulatedStripeLightrailSplitTenderCharge)
-            return ((SimulatedStripeLightrailSplitTenderCharge) charge).commit();
+    /**
+     * Voids the pending Lightrail charge while the Stripe authorization is released on another thread.
+     */
+    static void voidAuthorization(final SplitTenderAuthorization authorization) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, CurrencyMismatchException, IOException {
+        final String idempotencyKey = authorization.getIdempotencyKey();
+        CompletableFuture<Charge> stripeLeg = (authorization.uncapturedStripeCharge == null) ? CompletableFuture.completedFuture(null)
+                : AsyncCalls.supply(() -> settleAuthorizedStripeCharge(authorization.request.getGateway(), authorization.uncapturedStripeCharge, 0, idempotencyKey), AsyncCalls.blockingCallExecutor());
+        CompletableFuture<LightrailCharge> lightrailLeg = (authorization.pendingLightrailCharge == null) ? CompletableFuture.completedFuture(null)
+                : AsyncCalls.supply(() -> settleAuthorizedLightrailCharge(authorization, 0), Runnable::run);
+        joinBothLegs(lightrailLeg, stripeLeg);
+    }
+
+    /**
+     * Waits for both legs, then throws the failure of the Lightrail leg, or else of the Stripe leg, if any.
+     */
+    private static void joinBothLegs(CompletableFuture<LightrailCharge> lightrailLeg, CompletableFuture<Charge> stripeLeg) throws ThirdPartyException, AuthorizationException, CouldNotFindObjectException, InsufficientValueException, CurrencyMismatchException, IOException {
+        Throwable stripeFailure = AsyncCalls.failureOf(stripeLeg);
+        Throwable lightrailFailure = AsyncCalls.failureOf(lightrailLeg);
+        if (lightrailFailure != null && stripeFailure != null)
+            lightrailFailure.addSuppressed(stripeFailure);
+        AsyncCalls.join(lightrailLeg);
+        AsyncCalls.join(stripeLeg);
+    }
+
+    /**
+     * @return the captured charge, or {@code null} if the whole share was released and the pending charge voided.
+     */
+    private static LightrailCharge settleAuthorizedLightrailCharge(SplitTenderAuthorization authorization, int captureAmount) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
+        LightrailCharge pendingCharge = authorization.pendingLightrailCharge;
+        String idempotencyKey = authorization.getIdempotencyKey();
+        if (captureAmount == 0) {
+            pendingCharge.doVoid(idempotencyKey + "-void", null);
+            return null;
+        }
+        String stripeTxId = (authorization.uncapturedStripeCharge == null) ? null : authorization.uncapturedStripeCharge.getId();
+        Metadata captureMetadata = getLightrailMetadata(authorization.getAmount(), stripeTxId);
+        int released = pendingCharge.getAmount() - captureAmount;
+        if (released == 0)
+            return pendingCharge.capture(idempotencyKey + "-capture", captureMetadata);
+
+        //pending charges can only be captured in full, so the journal lets recovery fund the rest back after a crash
+        String cardId = pendingCharge.getTransactionObject().getCardId();
+        SplitTenderJournal.recordReleaseRequested(idempotencyKey, cardId, authorization.getCurrency(), authorization.getAmount(), released, stripeTxId);
+        LightrailCharge capturedCharge;
+        try {
+            capturedCharge = captureAndRelease(pendingCharge, idempotencyKey, captureMetadata, cardId, authorization.getCurrency(), released, authorization.request.getGateway());
+        } catch (Throwable e) {
+            SplitTenderJournal.recordUnresolved(idempotencyKey);
+            throw e;
+        }
+        SplitTenderJournal.recordCompleted(idempotencyKey);
+        return capturedCharge;
+    }
+
+    /**
+     * Captures a pending charge in full and funds the released value back to its Card. Each call has its own
+     * idempotency key, so both can be repeated by a retry or a recovery.
+     */
+    private static LightrailCharge captureAndRelease(LightrailCharge pendingCharge, String idempotencyKey, Metadata captureMetadata, String cardId, String currency, int released, LightrailStripeGateway gateway) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
+        LightrailCharge capturedCharge = pendingCharge.capture(idempotencyKey + "-capture", captureMetadata);
+        Map<String, Object> fundParams = new HashMap<>();
+        fundParams.put(LightrailConstants.Parameters.CARD_ID, cardId);
+        fundParams.put(StripeConstants.Parameters.AMOUNT, released);
+        fundParams.put(LightrailConstants.Parameters.CURRENCY, currency);
+        fundParams.put(LightrailConstants.Parameters.USER_SUPPLIED_ID, idempotencyKey + "-release");
+        LightrailFund.create(fundParams, gateway);
+        return capturedCharge;
+    }
+
+    /**
+     * Captures an uncaptured Stripe charge, or releases it with a refund when nothing is left to capture.
+     *
+     * @return the captured charge, or {@code null} if it was released.
+     */
+    private static Charge settleAuthorizedStripeCharge(LightrailStripeGateway gateway, Charge stripeCharge, int captureAmount, String idempotencyKey) throws ThirdPartyException {
+        if (captureAmount == 0) {
+            createStripeRefund(gateway, stripeCharge, null, idempotencyKey + "-release");
+            return null;
+        }
+        Map<String, Object> captureParams = new HashMap<>();
+        captureParams.put(StripeConstants.Parameters.AMOUNT, captureAmount);
+        String captureIdempotencyKey = idempotencyKey + "-capture";
+        long start = LightrailMetrics.start();
+        CheckoutEvents.Span span = CheckoutEvents.begin(MetricsRegistry.Phase.STRIPE_CAPTURE);
+        Throwable failure = null;
+        long callStart = 0;
+        try {
+            callStart = LightrailCircuitBreakers.beforeCall(MetricsRegistry.Phase.STRIPE_CAPTURE);
+            return gateway.captureCharge(stripeCharge, captureParams, RequestOptions.builder().setIdempotencyKey(captureIdempotencyKey).build());
+        } catch (Exception e) {
+            failure = e;
+            throw new ThirdPartyException(e);
+        } finally {
+            LightrailCircuitBreakers.afterCall(MetricsRegistry.Phase.STRIPE_CAPTURE, callStart, failure);
+            LightrailMetrics.stop(MetricsRegistry.Phase.STRIPE_CAPTURE, start, failure == null);
+            span.complete(captureIdempotencyKey, stripeCharge.getCurrency(), captureAmount, failure);
+        }
+    }
+
+    /**
+     * Best effort: the charge is already correlated through its idempotency key, so a failure here leaves the
+     * original charge in place.
+     */
+    private static Charge addPartnerTransactionId(LightrailStripeGateway gateway, Charge stripeCharge, String lightrailTxFullId) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_PARTNER_TRANSACTION_ID, lightrailTxFullId);
+        Map<String, Object> updateParams = new HashMap<>();
+        updateParams.put(StripeConstants.Parameters.METADATA, metadata);
+        long start = LightrailMetrics.start();
+        CheckoutEvents.Span span = CheckoutEvents.begin(MetricsRegistry.Phase.STRIPE_UPDATE);
+        Throwable failure = null;
+        long callStart = 0;
+        try {
+            callStart = LightrailCircuitBreakers.beforeCall(MetricsRegistry.Phase.STRIPE_UPDATE);
+            return gateway.updateCharge(stripeCharge, updateParams);
+        } catch (Exception e) {
+            failure = e;
+            return stripeCharge;
+        } finally {
+            LightrailCircuitBreakers.afterCall(MetricsRegistry.Phase.STRIPE_UPDATE, callStart, failure);
+            LightrailMetrics.stop(MetricsRegistry.Phase.STRIPE_UPDATE, start, failure == null);
+            span.complete(null, stripeCharge.getCurrency(), stripeCharge.getAmount(), failure);
+        }
+    }
+
+    private static void refundStripeCharge(LightrailStripeGateway gateway, Charge stripeCharge, String idempotencyKey) throws ThirdPartyException {
+        createStripeRefund(gateway, stripeCharge, null, idempotencyKey + "-refund");
+        LightrailMetrics.outcome(MetricsRegistry.Outcome.STRIPE_REFUNDED);
+    }
+
+    /**
+     * @param amount the amount to refund, or {@code null} to refund what is left of the charge.
+     */
+    private static Refund createStripeRefund(LightrailStripeGateway gateway, Charge stripeCharge, Integer amount, String refundIdempotencyKey) throws ThirdPartyException {
+        Map<String, Object> refundParams = new HashMap<>();
+        refundParams.put(StripeConstants.Parameters.CHARGE, stripeCharge.getId());
+        if (amount != null)
+            refundParams.put(StripeConstants.Parameters.AMOUNT, amount);
+        long start = LightrailMetrics.start();
+        CheckoutEvents.Span span = CheckoutEvents.begin(MetricsRegistry.Phase.STRIPE_REFUND);
+        Throwable failure = null;
+        long callStart = 0;
+        try {
+            callStart = LightrailCircuitBreakers.beforeCall(MetricsRegistry.Phase.STRIPE_REFUND);
+            return gateway.createRefund(refundParams, RequestOptions.builder().setIdempotencyKey(refundIdempotencyKey).build());
+        } catch (Exception e) {
+            failure = e;
+            throw new ThirdPartyException(e);
+        } finally {
+            LightrailCircuitBreakers.afterCall(MetricsRegistry.Phase.STRIPE_REFUND, callStart, failure);
+            LightrailMetrics.stop(MetricsRegistry.Phase.STRIPE_REFUND, start, failure == null);
+            span.complete(refundIdempotencyKey, stripeCharge.getCurrency(), (amount != null) ? amount : stripeCharge.getAmount(), failure);
+        }
+    }
+
+    /**
+     * Finishes or compensates a split-tender charge left incomplete in the {@link SplitTenderJournal}, through the
+     * default gateway.
+     */
+    static SplitTenderJournal.Recovery recover(SplitTenderJournal.Entry entry) {
+        LightrailStripeGateway gateway = LightrailStripeGateways.getDefault();
+        try {
+            if (entry.release != null)
+                return recoverRelease(entry, gateway);
+            LightrailCharge pendingCharge = findPendingCharge(entry, gateway);
+            Charge stripeCharge = (entry.stripeRequest == null) ? null : findStripeCharge(gateway, entry);
+            if (stripeCharge == null && entry.stripeRequest != null) {
+                long requestedAt = Long.parseLong(entry.stripeRequest.get(StripeConstants.Parameters.CREATED));
+                if (System.currentTimeMillis() / 1000 - requestedAt < SplitTenderJournal.STRIPE_REQUEST_GRACE_SECONDS)
+                    return SplitTenderJournal.Recovery.FAILED; //the Stripe request may still be in flight
+            }
+
+            if (!entry.voided && pendingCharge != null && stripeCharge != null && !Boolean.TRUE.equals(stripeCharge.getRefunded())) {
+                int amount = Integer.parseInt(entry.started.get(StripeConstants.Parameters.AMOUNT));
+                pendingCharge.capture(entry.idempotencyKey + "-capture", getLightrailMetadata(amount, stripeCharge.getId()));
+                return SplitTenderJournal.Recovery.FINISHED;
+            }
+            if (pendingCharge != null)
+                pendingCharge.doVoid(entry.idempotencyKey + "-void", null); //returns the original void if there was one
+            if (stripeCharge != null && !Boolean.TRUE.equals(stripeCharge.getRefunded()))
+                refundStripeCharge(gateway, stripeCharge, entry.getStripeIdempotencyKey()); //one refund for all instruments
+            return SplitTenderJournal.Recovery.COMPENSATED;
+        } catch (Exception e) {
+            return SplitTenderJournal.Recovery.FAILED;
+        }
+    }
+
+    /**
+     * Finishes a partial capture of an authorization: Lightrail returns the original capture and fund if they were
+     * made.
+     */
+    private static SplitTenderJournal.Recovery recoverRelease(SplitTenderJournal.Entry entry, LightrailStripeGateway gateway) throws IOException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException {
+        String cardId = entry.release.get(LightrailConstants.Parameters.CARD_ID);
+        LightrailCharge pendingCharge = findPendingCharge(entry.idempotencyKey, cardId, null, gateway);
+        if (pendingCharge == null)
+            return SplitTenderJournal.Recovery.FAILED; //the record is only written once the pending charge exists, so try again later
+        int amount = Integer.parseInt(entry.release.get(StripeConstants.Parameters.AMOUNT));
+        String stripeTxId = entry.release.get(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_PARTNER_TRANSACTION_ID);
+        int released = Integer.parseInt(entry.release.get(LightrailConstants.Parameters.VALUE));
+        captureAndRelease(pendingCharge, entry.idempotencyKey, getLightrailMetadata(amount, stripeTxId), cardId, entry.release.get(LightrailConstants.Parameters.CURRENCY), released, gateway);
+        return SplitTenderJournal.Recovery.FINISHED;
+    }
+
+    /**
+     * Looks for the Stripe charge of a journaled split-tender charge by the idempotency key in its metadata, among the
+     * charges created since it was requested. The request itself is not repeated: its source may be single-use, and is
+     * not journaled.
+     *
+     * @return the charge, or {@code null} if Stripe did not make it.
+     */
+    private static Charge findStripeCharge(LightrailStripeGateway gateway, SplitTenderJournal.Entry entry) throws ThirdPartyException {
+        Map<String, Object> created = new HashMap<>();
+        created.put("gte", Long.parseLong(entry.stripeRequest.get(StripeConstants.Parameters.CREATED)) - SplitTenderJournal.STRIPE_REQUEST_GRACE_SECONDS); //allows for clock skew
+        Map<String, Object> listParams = new HashMap<>();
+        listParams.put(StripeConstants.Parameters.CREATED, created);
+        listParams.put(StripeConstants.Parameters.LIMIT, 100);
+
+        long start = LightrailMetrics.start();
+        CheckoutEvents.Span span = CheckoutEvents.begin(MetricsRegistry.Phase.STRIPE_RETRIEVE);
+        Throwable failure = null;
+        long callStart = 0;
+        Charge stripeCharge = null;
+        try {
+            callStart = LightrailCircuitBreakers.beforeCall(MetricsRegistry.Phase.STRIPE_RETRIEVE);
+            while (true) {
+                ChargeCollection charges = gateway.listCharges(listParams);
+                for (Charge charge : charges.getData()) {
+                    if (charge.getMetadata() != null && entry.getStripeIdempotencyKey().equals(charge.getMetadata().get(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_IDEMPOTENCY_KEY))) {
+                        stripeCharge = Boolean.TRUE.equals(charge.getPaid()) ? charge : null;
+                        return stripeCharge;
+                    }
+                }
+                if (!Boolean.TRUE.equals(charges.getHasMore()) || charges.getData().isEmpty())
+                    return null;
+                listParams.put(StripeConstants.Parameters.STARTING_AFTER, charges.getData().get(charges.getData().size() - 1).getId());
+            }
+        } catch (StripeException | IOException e) {
+            failure = e;
+            throw new ThirdPartyException(e);
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            LightrailCircuitBreakers.afterCall(MetricsRegistry.Phase.STRIPE_RETRIEVE, callStart, failure);
+            LightrailMetrics.stop(MetricsRegistry.Phase.STRIPE_RETRIEVE, start, failure == null);
+            span.complete(entry.idempotencyKey, entry.stripeRequest.get(StripeConstants.Parameters.CURRENCY), (stripeCharge == null) ? 0 : stripeCharge.getAmount(), failure);
+        }
+    }
+
+    /**
+     * @return the pending Lightrail charge of a journaled split-tender charge, or {@code null} if it was not created.
+     */
+    private static LightrailCharge findPendingCharge(SplitTenderJournal.Entry entry, LightrailStripeGateway gateway) throws AuthorizationException, IOException {
+        return findPendingCharge(entry.idempotencyKey, entry.started.get(LightrailConstants.Parameters.CARD_ID), entry.started.get(LightrailConstants.Parameters.CODE), gateway);
+    }
+
+    /**
+     * Looks for the pending charge of a split-tender request whose creation failed without a known outcome, e.g.
+     * because the response was lost.
+     *
+     * @return the pending charge, or {@code null} if Lightrail did not create it.
+     */
+    static LightrailCharge findPendingCharge(SplitTenderChargeRequest request) throws AuthorizationException, CurrencyMismatchException, InsufficientValueException, IOException, CouldNotFindObjectException {
+        SplitTenderChargeRequest resolvedRequest = LightrailResolver.resolve(request);
+        return findPendingCharge(request.getUserSuppliedId(), resolvedRequest.getCardId(), resolvedRequest.getCode(), request.getGateway());
+    }
+
+    private static LightrailCharge findPendingCharge(String idempotencyKey, String cardId, String code, LightrailStripeGateway gateway) throws AuthorizationException, IOException {
+        if (cardId == null && code == null)
+            return null;
+        Map<String, Object> retrieveParams = new HashMap<>();
+        retrieveParams.put(LightrailConstants.Parameters.USER_SUPPLIED_ID, idempotencyKey);
+        if (cardId != null)
+            retrieveParams.put(LightrailConstants.Parameters.CARD_ID, cardId);
         else
-            return charge;
+            retrieveParams.put(LightrailConstants.Parameters.CODE, code);
+        try {
+            return LightrailCharge.retrieve(retrieveParams, gateway);
+        } catch (CouldNotFindObjectException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Refunds the whole charge, each leg to where it was charged. See
+     * {@link #refund(int, SplitTenderRefund.Allocation, String)}.
+     */
+    public SplitTenderRefund refund(String idempotencyKey) {
+        int amount;
+        synchronized (refundsByIdempotencyKey) {
+            SplitTenderRefund previousRefund = refundsByIdempotencyKey.get(idempotencyKey);
+            amount = (previousRefund != null) ? previousRefund.getAmount() : getLightrailRefundable() + getStripeRefundable();
+        }
+        return refund(amount, SplitTenderRefund.Allocation.PROPORTIONAL, idempotencyKey);
+    }
+
+    /**
+     * Refunds part or all of what is left of the charge. The amount is split by the allocation between what is left on
+     * each leg, after the refunds made through this object and those Stripe reports, and both legs are refunded at the
+     * same time. The Lightrail leg is refunded as a whole when its entire share is refunded, and
+     * otherwise by funding the card with the refunded amount. If the capture of the Lightrail charge was queued, its
+     * refund waits for the capture.
+     * <p>
+     * A leg failing does not throw: see {@link SplitTenderRefund#isSuccessful()}. Refunding again with the same
+     * idempotency key and amount is safe, and retries the failed leg with the original split. Each partial refund
+     * needs its own idempotency key. Lightrail refunds made through another object, e.g. before the charge was
+     * retrieved again, are not known, so it is up to the caller not to refund more than was charged in total.
+     */
+    public SplitTenderRefund refund(int amount, SplitTenderRefund.Allocation allocation, final String idempotencyKey) {
+        if (idempotencyKey == null || idempotencyKey.isEmpty())
+            throw new BadParameterException("A refund needs an idempotency key, so that it can be retried safely.");
+        if (allocation == null)
+            throw new BadParameterException("A refund needs an allocation between Lightrail and Stripe.");
+        final SplitTenderRefund refund;
+        synchronized (refundsByIdempotencyKey) {
+            SplitTenderRefund previousRefund = refundsByIdempotencyKey.get(idempotencyKey);
+            if (previousRefund != null) {
+                if (amount != previousRefund.getAmount())
+                    throw new BadParameterException("Idempotency Error. The refund 'amount' does not match the original refund.");
+                refund = new SplitTenderRefund(idempotencyKey, previousRefund.getLightrailAmount(), previousRefund.getStripeAmount());
+            } else {
+                int lightrailRefundable = getLightrailRefundable();
+                int stripeRefundable = getStripeRefundable();
+                if (amount <= 0 || amount > lightrailRefundable + stripeRefundable)
+                    throw new BadParameterException("Refund 'amount' must be a positive integer no greater than the amount left to refund.");
+                int lightrailAmount = SplitTenderRefund.allocateToLightrail(amount, lightrailRefundable, stripeRefundable, allocation);
+                refund = new SplitTenderRefund(idempotencyKey, lightrailAmount, amount - lightrailAmount);
+                refundsByIdempotencyKey.put(idempotencyKey, refund);
+                lightrailRefunded += refund.getLightrailAmount();
+                stripeRefunded += refund.getStripeAmount();
+            }
+        }
+
+        CompletableFuture<Refund> stripeLeg = (refund.getStripeAmount() == 0) ? null
+                : AsyncCalls.supply(() -> createStripeRefund(LightrailStripeGateways.orDefault(gateway), stripeCharge, refund.getStripeAmount(), idempotencyKey + "-stripe"), AsyncCalls.blockingCallExecutor());
+        if (refund.getLightrailAmount() > 0) {
+            try {
+                refund.lightrailRefund = refundLightrailLeg(refund.getLightrailAmount(), idempotencyKey + "-lightrail");
+            } catch (Throwable e) {
+                refund.lightrailFailure = e;
+            }
+        }
+        if (stripeLeg != null) {
+            refund.stripeFailure = AsyncCalls.failureOf(stripeLeg);
+            if (refund.stripeFailure == null)
+                refund.stripeRefund = stripeLeg.join();
+        }
+
+        SplitTenderChargeCache chargeCache = SplitTenderChargeCache.getDefault();
+        if (chargeCache != null)
+            chargeCache.invalidate(getIdempotencyKey());
+        if (refund.isSuccessful())
+            LightrailMetrics.outcome(MetricsRegistry.Outcome.REFUNDED);
+        return refund;
+    }
+
+    private LightrailFund refundLightrailLeg(int amount, String refundIdempotencyKey) throws Exception {
+        CompletableFuture<LightrailCharge> capture = getLightrailCapture();
+        Throwable captureFailure = AsyncCalls.failureOf(capture);
+        if (captureFailure != null)
+            throw AsyncCalls.asException(captureFailure);
+        LightrailCharge capturedCharge = retrieved ? retrieveCapture(capture.join()) : capture.join();
+        if (amount == capturedCharge.getAmount())
+            return capturedCharge.refund(refundIdempotencyKey, null);
+
+        Map<String, Object> fundParams = new HashMap<>();
+        fundParams.put(LightrailConstants.Parameters.CARD_ID, capturedCharge.getTransactionObject().getCardId());
+        fundParams.put(StripeConstants.Parameters.AMOUNT, amount);
+        fundParams.put(LightrailConstants.Parameters.CURRENCY, capturedCharge.getTransactionObject().getCurrency());
+        fundParams.put(LightrailConstants.Parameters.USER_SUPPLIED_ID, refundIdempotencyKey);
+        return LightrailFund.create(fundParams, gateway);
+    }
+
+    /**
+     * A charge retrieved by its idempotency key holds the pending Lightrail charge, which cannot be refunded; the
+     * capture made with its own key is. A charge made without a pending charge has no such capture.
+     */
+    private LightrailCharge retrieveCapture(LightrailCharge retrievedCharge) throws AuthorizationException, IOException {
+        Map<String, Object> retrieveParams = new HashMap<>();
+        retrieveParams.put(LightrailConstants.Parameters.CARD_ID, retrievedCharge.getTransactionObject().getCardId());
+        retrieveParams.put(LightrailConstants.Parameters.USER_SUPPLIED_ID, getIdempotencyKey() + "-capture");
+        try {
+            return LightrailCharge.retrieve(retrieveParams, gateway);
+        } catch (CouldNotFindObjectException e) {
+            return retrievedCharge;
+        }
+    }
+
+    /**
+     * @return the Lightrail share less the refunds made through this object, including those whose Lightrail leg
+     * failed and may be retried. Must hold the lock on {@link #refundsByIdempotencyKey}.
+     */
+    private int getLightrailRefundable() {
+        return getLightrailShare() - lightrailRefunded;
+    }
+
+    /**
+     * @return the Stripe share less what Stripe had refunded when the charge was loaded and the refunds made through
+     * this object since. Must hold the lock on {@link #refundsByIdempotencyKey}.
+     */
+    private int getStripeRefundable() {
+        if (stripeCharge == null)
+            return 0;
+        long refundedBefore = (stripeCharge.getAmountRefunded() == null) ? 0 : stripeCharge.getAmountRefunded();
+        return (int) (getStripeShare() - refundedBefore) - stripeRefunded;
     }
 
     public int getLightrailShare() {
@@ -0,0 +1,143 @@
+package com.lightrail.emulator;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.Certificate;
+import java.util.*;
+
+/**
+ * A connection to one of the hosts of the {@link LightrailStripeEmulator}. The request is buffered and handed to the
+ * emulator when the response is first read; nothing goes over the network.
+ */
+final class EmulatedConnection extends HttpsURLConnection {
+    private final LightrailStripeEmulator emulator;
+    private final ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+    private Map<String, List<String>> requestHeaders = null;
+    private EmulatedResponse response = null;
+    private IOException failure = null;
+
+    EmulatedConnection(URL url, LightrailStripeEmulator emulator) {
+        super(url);
+        this.emulator = emulator;
+    }
+
+    @Override
+    public void connect() {
+        if (connected)
+            return;
+        requestHeaders = new LinkedHashMap<>(getRequestProperties());
+        connected = true;
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (response != null || failure != null)
+            throw new IOException("The request has already been sent.");
+        connect();
+        return requestBody;
+    }
+
+    private EmulatedResponse respond() throws IOException {
+        connect();
+        if (response == null && failure == null) {
+            try {
+                response = emulator.handle(new EmulatedRequest(method, url, requestHeaders, new String(requestBody.toByteArray(), StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+        return response;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        return respond().getStatus();
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        return respond().getReasonPhrase();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        EmulatedResponse emulatedResponse = respond();
+        if (emulatedResponse.getStatus() == 404)
+            throw new FileNotFoundException(url.toString());
+        if (emulatedResponse.isError())
+            throw new IOException("Server returned HTTP response code: " + emulatedResponse.getStatus() + " for URL: " + url);
+        return new ByteArrayInputStream(emulatedResponse.getBody());
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        if (response == null || !response.isError())
+            return null;
+        return new ByteArrayInputStream(response.getBody());
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        EmulatedResponse emulatedResponse;
+        try {
+            emulatedResponse = respond();
+        } catch (IOException e) {
+            return Collections.emptyMap();
+        }
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        headers.put(null, Collections.singletonList("HTTP/1.1 " + emulatedResponse.getStatus() + " " + emulatedResponse.getReasonPhrase()));
+        headers.put("Content-Type", Collections.singletonList("application/json"));
+        headers.put("Content-Length", Collections.singletonList(String.valueOf(emulatedResponse.getBody().length)));
+        headers.put("Request-Id", Collections.singletonList("req_emulated"));
+        return Collections.unmodifiableMap(headers);
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        for (Map.Entry<String, List<String>> header : getHeaderFields().entrySet()) {
+            if (header.getKey() == null ? name == null : header.getKey().equalsIgnoreCase(name))
+                return header.getValue().get(0);
+        }
+        return null;
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        List<String> keys = new ArrayList<>(getHeaderFields().keySet());
+        return (n < keys.size()) ? keys.get(n) : null;
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        List<List<String>> values = new ArrayList<>(getHeaderFields().values());
+        return (n < values.size()) ? values.get(n).get(0) : null;
+    }
+
+    @Override
+    public String getCipherSuite() {
+        return "TLS_EMULATED";
+    }
+
+    @Override
+    public Certificate[] getLocalCertificates() {
+        return null;
+    }
+
+    @Override
+    public Certificate[] getServerCertificates() {
+        return new Certificate[0];
+    }
+}
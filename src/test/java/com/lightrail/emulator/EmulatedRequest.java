@@ -0,0 +1,119 @@
+package com.lightrail.emulator;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.*;
+
+/**
+ * A request received by the {@link LightrailStripeEmulator}.
+ */
+final class EmulatedRequest {
+    private final String method;
+    private final URL url;
+    private final Map<String, List<String>> headers;
+    private final String body;
+
+    EmulatedRequest(String method, URL url, Map<String, List<String>> headers, String body) {
+        this.method = method;
+        this.url = url;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    String getHost() {
+        return url.getHost();
+    }
+
+    /**
+     * @return the path segments after the API version, e.g. {@code [cards, card-1, transactions]} for
+     * {@code /v1/cards/card-1/transactions}.
+     */
+    List<String> getPathSegments() {
+        List<String> segments = new ArrayList<>();
+        for (String segment : url.getPath().split("/")) {
+            if (!segment.isEmpty())
+                segments.add(decode(segment));
+        }
+        if (!segments.isEmpty() && segments.get(0).matches("v\\d+"))
+            segments.remove(0);
+        return segments;
+    }
+
+    Map<String, String> getQueryParameters() {
+        return decodeForm(url.getQuery());
+    }
+
+    String getHeader(String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (header.getKey() != null && header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty())
+                return header.getValue().get(0);
+        }
+        return null;
+    }
+
+    String getBody() {
+        return body;
+    }
+
+    Map<String, Object> getJsonBody() {
+        return Json.parseObject(body);
+    }
+
+    /**
+     * Decodes a form-encoded body; bracketed keys such as {@code metadata[orderId]} become nested maps.
+     */
+    Map<String, Object> getFormBody() {
+        Map<String, Object> form = new LinkedHashMap<>();
+        for (Map.Entry<String, String> field : decodeForm(body).entrySet()) {
+            String key = field.getKey();
+            int bracket = key.indexOf('[');
+            if (bracket > 0 && key.endsWith("]")) {
+                Object nested = form.get(key.substring(0, bracket));
+                if (!(nested instanceof Map)) {
+                    nested = new LinkedHashMap<String, Object>();
+                    form.put(key.substring(0, bracket), nested);
+                }
+                @SuppressWarnings("unchecked")
+                Map<String, Object> nestedMap = (Map<String, Object>) nested;
+                nestedMap.put(key.substring(bracket + 1, key.length() - 1), field.getValue());
+            } else {
+                form.put(key, field.getValue());
+            }
+        }
+        return form;
+    }
+
+    private static Map<String, String> decodeForm(String encoded) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        if (encoded == null || encoded.isEmpty())
+            return fields;
+        for (String pair : encoded.split("&")) {
+            if (pair.isEmpty())
+                continue;
+            int equals = pair.indexOf('=');
+            if (equals < 0)
+                fields.put(decode(pair), "");
+            else
+                fields.put(decode(pair.substring(0, equals)), decode(pair.substring(equals + 1)));
+        }
+        return fields;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); //never happens
+        }
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + url;
+    }
+}
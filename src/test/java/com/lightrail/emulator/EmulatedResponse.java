@@ -0,0 +1,55 @@
+package com.lightrail.emulator;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A JSON response of the {@link LightrailStripeEmulator}.
+ */
+final class EmulatedResponse {
+    private final int status;
+    private final byte[] body;
+
+    EmulatedResponse(int status, Object jsonBody) {
+        this.status = status;
+        this.body = Json.write(jsonBody).getBytes(StandardCharsets.UTF_8);
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    boolean isError() {
+        return status >= 400;
+    }
+
+    String getReasonPhrase() {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 400:
+                return "Bad Request";
+            case 401:
+                return "Unauthorized";
+            case 402:
+                return "Payment Required";
+            case 404:
+                return "Not Found";
+            case 409:
+                return "Conflict";
+            case 429:
+                return "Too Many Requests";
+            case 500:
+                return "Internal Server Error";
+            case 502:
+                return "Bad Gateway";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "";
+        }
+    }
+}
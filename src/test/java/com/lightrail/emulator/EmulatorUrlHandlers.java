@@ -0,0 +1,71 @@
+package com.lightrail.emulator;
+
+import java.io.IOException;
+import java.net.*;
+
+/**
+ * Routes {@code http} and {@code https} connections to the hosts of the installed {@link LightrailStripeEmulator}
+ * and everything else to the JDK's own handlers. A JVM accepts only one {@link URLStreamHandlerFactory}, so this is
+ * installed once and then follows whichever emulator is current.
+ */
+final class EmulatorUrlHandlers {
+    private static boolean installed = false;
+
+    private EmulatorUrlHandlers() {
+    }
+
+    static synchronized void ensureInstalled() {
+        if (installed)
+            return;
+        final URL defaultHttps;
+        final URL defaultHttp;
+        try {
+            //created before the factory is set, so they keep the JDK handlers for delegation
+            defaultHttps = new URL("https://localhost/");
+            defaultHttp = new URL("http://localhost/");
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e); //never happens
+        }
+        try {
+            URL.setURLStreamHandlerFactory(protocol -> {
+                if ("https".equals(protocol))
+                    return new Handler(defaultHttps);
+                if ("http".equals(protocol))
+                    return new Handler(defaultHttp);
+                return null;
+            });
+        } catch (Error e) {
+            throw new IllegalStateException("Another URLStreamHandlerFactory is already installed in this JVM.", e);
+        }
+        installed = true;
+    }
+
+    private static final class Handler extends URLStreamHandler {
+        private final URL defaultUrl;
+
+        Handler(URL defaultUrl) {
+            this.defaultUrl = defaultUrl;
+        }
+
+        @Override
+        protected URLConnection openConnection(URL url) throws IOException {
+            LightrailStripeEmulator emulator = LightrailStripeEmulator.getInstalled();
+            if (emulator != null && emulator.emulates(url.getHost()))
+                return new EmulatedConnection(url, emulator);
+            return new URL(defaultUrl, url.toExternalForm()).openConnection();
+        }
+
+        @Override
+        protected URLConnection openConnection(URL url, Proxy proxy) throws IOException {
+            LightrailStripeEmulator emulator = LightrailStripeEmulator.getInstalled();
+            if (emulator != null && emulator.emulates(url.getHost()))
+                return new EmulatedConnection(url, emulator);
+            return new URL(defaultUrl, url.toExternalForm()).openConnection(proxy);
+        }
+
+        @Override
+        protected int getDefaultPort() {
+            return defaultUrl.getDefaultPort();
+        }
+    }
+}
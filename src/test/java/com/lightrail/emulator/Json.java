@@ -0,0 +1,254 @@
+package com.lightrail.emulator;
+
+import java.util.*;
+
+/**
+ * Just enough JSON for the emulator: objects become {@link LinkedHashMap}s, arrays {@link ArrayList}s, integral
+ * numbers {@link Long}s and other numbers {@link Double}s.
+ */
+final class Json {
+    private final String text;
+    private int position = 0;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    static Object parse(String text) {
+        if (text == null || text.trim().isEmpty())
+            return null;
+        Json json = new Json(text);
+        Object value = json.readValue();
+        json.skipWhitespace();
+        if (json.position != text.length())
+            throw json.error("unexpected trailing characters");
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> parseObject(String text) {
+        Object value = parse(text);
+        if (value == null)
+            return new LinkedHashMap<>();
+        if (!(value instanceof Map))
+            throw new IllegalArgumentException("Expected a JSON object.");
+        return (Map<String, Object>) value;
+    }
+
+    static String write(Object value) {
+        StringBuilder builder = new StringBuilder();
+        write(value, builder);
+        return builder.toString();
+    }
+
+    private static void write(Object value, StringBuilder builder) {
+        if (value == null) {
+            builder.append("null");
+        } else if (value instanceof String) {
+            writeString((String) value, builder);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            builder.append(value);
+        } else if (value instanceof Map) {
+            builder.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first)
+                    builder.append(',');
+                first = false;
+                writeString(String.valueOf(entry.getKey()), builder);
+                builder.append(':');
+                write(entry.getValue(), builder);
+            }
+            builder.append('}');
+        } else if (value instanceof Collection) {
+            builder.append('[');
+            boolean first = true;
+            for (Object element : (Collection<?>) value) {
+                if (!first)
+                    builder.append(',');
+                first = false;
+                write(element, builder);
+            }
+            builder.append(']');
+        } else {
+            writeString(value.toString(), builder);
+        }
+    }
+
+    private static void writeString(String value, StringBuilder builder) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        builder.append(String.format("\\u%04x", (int) c));
+                    else
+                        builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+
+    private Object readValue() {
+        skipWhitespace();
+        if (position >= text.length())
+            throw error("unexpected end of input");
+        char c = text.charAt(position);
+        switch (c) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                expect("true");
+                return Boolean.TRUE;
+            case 'f':
+                expect("false");
+                return Boolean.FALSE;
+            case 'n':
+                expect("null");
+                return null;
+            default:
+                return readNumber();
+        }
+    }
+
+    private Map<String, Object> readObject() {
+        Map<String, Object> object = new LinkedHashMap<>();
+        position++;
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+            return object;
+        }
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"')
+                throw error("expected a key");
+            String key = readString();
+            skipWhitespace();
+            if (peek() != ':')
+                throw error("expected ':'");
+            position++;
+            object.put(key, readValue());
+            skipWhitespace();
+            char c = peek();
+            position++;
+            if (c == '}')
+                return object;
+            if (c != ',')
+                throw error("expected ',' or '}'");
+        }
+    }
+
+    private List<Object> readArray() {
+        List<Object> array = new ArrayList<>();
+        position++;
+        skipWhitespace();
+        if (peek() == ']') {
+            position++;
+            return array;
+        }
+        while (true) {
+            array.add(readValue());
+            skipWhitespace();
+            char c = peek();
+            position++;
+            if (c == ']')
+                return array;
+            if (c != ',')
+                throw error("expected ',' or ']'");
+        }
+    }
+
+    private String readString() {
+        StringBuilder builder = new StringBuilder();
+        position++;
+        while (true) {
+            if (position >= text.length())
+                throw error("unterminated string");
+            char c = text.charAt(position++);
+            if (c == '"')
+                return builder.toString();
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            char escaped = text.charAt(position++);
+            switch (escaped) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    builder.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                    position += 4;
+                    break;
+                default:
+                    builder.append(escaped);
+            }
+        }
+    }
+
+    private Number readNumber() {
+        int start = position;
+        while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0)
+            position++;
+        String number = text.substring(start, position);
+        if (number.isEmpty())
+            throw error("unexpected character");
+        if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0)
+            return Long.parseLong(number);
+        return Double.parseDouble(number);
+    }
+
+    private void expect(String literal) {
+        if (!text.startsWith(literal, position))
+            throw error("expected " + literal);
+        position += literal.length();
+    }
+
+    private char peek() {
+        if (position >= text.length())
+            throw error("unexpected end of input");
+        return text.charAt(position);
+    }
+
+    private void skipWhitespace() {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position)))
+            position++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Invalid JSON at " + position + ": " + message);
+    }
+}
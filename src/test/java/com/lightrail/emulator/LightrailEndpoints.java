@@ -0,0 +1,440 @@
+package com.lightrail.emulator;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Lightrail API endpoints used by this library: transactions (create, dry run, capture, void, refund, retrieve),
+ * cards and their balances, and contacts. All state is in memory and guarded by this object's lock.
+ */
+final class LightrailEndpoints {
+    private static final String ACCOUNT_CARD = "ACCOUNT_CARD";
+    private static final String GIFT_CARD = "GIFT_CARD";
+
+    private static final class Card {
+        final String cardId;
+        final String cardType;
+        final String currency;
+        final String contactId;
+        final String code;
+        final String dateCreated = Instant.now().toString();
+        int value;
+
+        Card(String cardId, String cardType, String currency, String contactId, String code, int value) {
+            this.cardId = cardId;
+            this.cardType = cardType;
+            this.currency = currency;
+            this.contactId = contactId;
+            this.code = code;
+            this.value = value;
+        }
+    }
+
+    private static final class Contact {
+        final String contactId;
+        final String userSuppliedId;
+        final String dateCreated = Instant.now().toString();
+
+        Contact(String contactId, String userSuppliedId) {
+            this.contactId = contactId;
+            this.userSuppliedId = userSuppliedId;
+        }
+    }
+
+    private static final class Transaction {
+        final String transactionId;
+        final String cardId;
+        final String userSuppliedId;
+        final String transactionType;
+        final String accessMethod;
+        final int value;
+        final Map<String, Object> metadata;
+        final String parentTransactionId;
+        final String dateCreated = Instant.now().toString();
+        Transaction settlement = null; //the capture, void or refund of this transaction
+
+        Transaction(String transactionId, String cardId, String userSuppliedId, String transactionType, String accessMethod,
+                    int value, Map<String, Object> metadata, String parentTransactionId) {
+            this.transactionId = transactionId;
+            this.cardId = cardId;
+            this.userSuppliedId = userSuppliedId;
+            this.transactionType = transactionType;
+            this.accessMethod = accessMethod;
+            this.value = value;
+            this.metadata = metadata;
+            this.parentTransactionId = parentTransactionId;
+        }
+    }
+
+    private final AtomicLong ids = new AtomicLong();
+    private final Map<String, Card> cards = new HashMap<>();
+    private final Map<String, String> cardIdsByCode = new HashMap<>();
+    private final Map<String, Contact> contacts = new HashMap<>();
+    private final Map<String, Transaction> transactions = new HashMap<>();
+    private final Map<String, Transaction> transactionsByUserSuppliedId = new HashMap<>();
+
+    private String nextId(String prefix) {
+        return prefix + "-emulated-" + ids.incrementAndGet();
+    }
+
+    synchronized String createGiftCard(String code, String currency, int value) {
+        if (cardIdsByCode.containsKey(code))
+            throw new IllegalArgumentException("Code already exists: " + code);
+        String cardId = nextId("card");
+        cards.put(cardId, new Card(cardId, GIFT_CARD, currency, null, code, value));
+        cardIdsByCode.put(code, cardId);
+        return cardId;
+    }
+
+    synchronized String createContact(String shopperId) {
+        String contactId = nextId("contact");
+        contacts.put(contactId, new Contact(contactId, shopperId));
+        return contactId;
+    }
+
+    synchronized String createAccountCard(String contactId, String currency, int value) {
+        if (!contacts.containsKey(contactId))
+            throw new IllegalArgumentException("No such contact: " + contactId);
+        String cardId = nextId("card");
+        cards.put(cardId, new Card(cardId, ACCOUNT_CARD, currency, contactId, null, value));
+        return cardId;
+    }
+
+    synchronized int getCardValue(String cardId) {
+        return requireCard(cardId).value;
+    }
+
+    synchronized void setCardValue(String cardId, int value) {
+        requireCard(cardId).value = value;
+    }
+
+    synchronized int getTransactionCount() {
+        return transactions.size();
+    }
+
+    private Card requireCard(String cardId) {
+        Card card = cards.get(cardId);
+        if (card == null)
+            throw new IllegalArgumentException("No such card: " + cardId);
+        return card;
+    }
+
+    static EmulatedResponse error(int status, String message) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("status", status);
+        body.put("message", message);
+        return new EmulatedResponse(status, body);
+    }
+
+    private static EmulatedResponse notFound() {
+        return error(404, "Could not find object.");
+    }
+
+    synchronized EmulatedResponse handle(EmulatedRequest request) {
+        List<String> path = request.getPathSegments();
+        String method = request.getMethod();
+        if (path.isEmpty())
+            return notFound();
+
+        switch (path.get(0)) {
+            case "ping":
+                return ping();
+            case "cards":
+                return handleCards(method, path, request);
+            case "codes":
+                return handleCodes(method, path, request);
+            case "contacts":
+                return handleContacts(method, path, request);
+            default:
+                return notFound();
+        }
+    }
+
+    private EmulatedResponse ping() {
+        Map<String, Object> user = new LinkedHashMap<>();
+        user.put("username", "emulator@lightrail.com");
+        user.put("mode", "TEST");
+        user.put("scopes", Collections.emptyList());
+        user.put("roles", Collections.emptyList());
+        return wrap("user", user);
+    }
+
+    private EmulatedResponse handleCards(String method, List<String> path, EmulatedRequest request) {
+        if (path.size() == 1 && "GET".equals(method))
+            return listCards(request.getQueryParameters());
+
+        Card card = (path.size() > 1) ? cards.get(path.get(1)) : null;
+        if (card == null)
+            return notFound();
+        if (path.size() == 2 && "GET".equals(method))
+            return wrap("card", toJson(card));
+        if (path.size() == 3 && "balance".equals(path.get(2)) && "GET".equals(method))
+            return wrap("balance", balanceJson(card));
+        if (path.size() < 3 || !"transactions".equals(path.get(2)))
+            return notFound();
+
+        if (path.size() == 3 && "GET".equals(method))
+            return listTransactions(card, request.getQueryParameters());
+        if (path.size() == 3 && "POST".equals(method))
+            return createTransaction(card, "CARDID", request.getJsonBody(), false);
+        if (path.size() == 4 && "dryRun".equals(path.get(3)) && "POST".equals(method))
+            return createTransaction(card, "CARDID", request.getJsonBody(), true);
+
+        Transaction transaction = transactions.get(path.get(3));
+        if (transaction == null || !transaction.cardId.equals(card.cardId))
+            return notFound();
+        if (path.size() == 4 && "GET".equals(method))
+            return wrap("transaction", toJson(transaction, card));
+        if (path.size() == 5 && "POST".equals(method))
+            return settle(card, transaction, path.get(4), request.getJsonBody());
+        return notFound();
+    }
+
+    private EmulatedResponse handleCodes(String method, List<String> path, EmulatedRequest request) {
+        String cardId = (path.size() > 1) ? cardIdsByCode.get(path.get(1)) : null;
+        Card card = (cardId == null) ? null : cards.get(cardId);
+        if (card == null)
+            return notFound();
+        if (path.size() == 3 && "card".equals(path.get(2)) && "GET".equals(method))
+            return wrap("card", toJson(card));
+        if (path.size() == 3 && "balance".equals(path.get(2)) && "GET".equals(method))
+            return wrap("balance", balanceJson(card));
+        if (path.size() == 3 && "transactions".equals(path.get(2)) && "GET".equals(method))
+            return listTransactions(card, request.getQueryParameters());
+        if (path.size() == 3 && "transactions".equals(path.get(2)) && "POST".equals(method))
+            return createTransaction(card, "RAWCODE", request.getJsonBody(), false);
+        if (path.size() == 4 && "transactions".equals(path.get(2)) && "dryRun".equals(path.get(3)) && "POST".equals(method))
+            return createTransaction(card, "RAWCODE", request.getJsonBody(), true);
+        return notFound();
+    }
+
+    private EmulatedResponse handleContacts(String method, List<String> path, EmulatedRequest request) {
+        if (!"GET".equals(method))
+            return notFound();
+        if (path.size() == 1) {
+            String userSuppliedId = request.getQueryParameters().get("userSuppliedId");
+            List<Object> matches = new ArrayList<>();
+            for (Contact contact : contacts.values()) {
+                if (userSuppliedId == null || userSuppliedId.equals(contact.userSuppliedId))
+                    matches.add(toJson(contact));
+            }
+            return list("contacts", matches);
+        }
+        Contact contact = contacts.get(path.get(1));
+        if (contact == null)
+            return notFound();
+        if (path.size() == 2)
+            return wrap("contact", toJson(contact));
+        if (path.size() == 3 && "cards".equals(path.get(2))) {
+            Map<String, String> query = new HashMap<>(request.getQueryParameters());
+            query.put("contactId", contact.contactId);
+            return listCards(query);
+        }
+        return notFound();
+    }
+
+    private EmulatedResponse listCards(Map<String, String> query) {
+        List<Object> matches = new ArrayList<>();
+        for (Card card : cards.values()) {
+            if (matches(query.get("contactId"), card.contactId)
+                    && matches(query.get("cardType"), card.cardType)
+                    && matches(query.get("currency"), card.currency))
+                matches.add(toJson(card));
+        }
+        return list("cards", matches);
+    }
+
+    private static boolean matches(String filter, String value) {
+        return filter == null || filter.equals(value);
+    }
+
+    private EmulatedResponse listTransactions(Card card, Map<String, String> query) {
+        String userSuppliedId = query.get("userSuppliedId");
+        List<Object> matches = new ArrayList<>();
+        if (userSuppliedId != null) {
+            Transaction transaction = transactionsByUserSuppliedId.get(userSuppliedIdKey(card.cardId, userSuppliedId));
+            if (transaction != null)
+                matches.add(toJson(transaction, card));
+        } else {
+            for (Transaction transaction : transactions.values()) {
+                if (transaction.cardId.equals(card.cardId))
+                    matches.add(toJson(transaction, card));
+            }
+        }
+        return list("transactions", matches);
+    }
+
+    private static String userSuppliedIdKey(String cardId, String userSuppliedId) {
+        return cardId + "\u0000" + userSuppliedId;
+    }
+
+    /**
+     * A negative value draws down the card (held when {@code pending}), a positive one funds it. An existing
+     * {@code userSuppliedId} on the card replays the original transaction, for dry runs as well.
+     */
+    private EmulatedResponse createTransaction(Card card, String accessMethod, Map<String, Object> body, boolean dryRun) {
+        Object valueObject = body.get("value");
+        String currency = (String) body.get("currency");
+        String userSuppliedId = (String) body.get("userSuppliedId");
+        if (!(valueObject instanceof Number) || ((Number) valueObject).intValue() == 0)
+            return error(400, "Parameter 'value' must be a non-zero integer.");
+        if (currency == null || !currency.equals(card.currency))
+            return error(409, "Currency mismatch: the card is in " + card.currency + ".");
+
+        if (userSuppliedId != null) {
+            Transaction existing = transactionsByUserSuppliedId.get(userSuppliedIdKey(card.cardId, userSuppliedId));
+            if (existing != null)
+                return wrap("transaction", toJson(existing, card));
+        }
+
+        int value = ((Number) valueObject).intValue();
+        boolean pending = Boolean.TRUE.equals(body.get("pending"));
+        if (value < 0 && card.value < -value) {
+            //partial drawdowns are allowed when explicitly requested, and in dry runs unless explicitly refused
+            boolean allowPartial = dryRun ? !Boolean.TRUE.equals(body.get("nsf")) : Boolean.FALSE.equals(body.get("nsf"));
+            if (!allowPartial)
+                return error(409, "Insufficient value on card " + card.cardId + ".");
+            value = -card.value;
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> metadata = (body.get("metadata") instanceof Map) ? (Map<String, Object>) body.get("metadata") : null;
+        String transactionType = (value > 0) ? "FUND" : (pending ? "PENDING_CREATE" : "DRAWDOWN");
+        if (dryRun)
+            return wrap("transaction", toJson(new Transaction(null, card.cardId, userSuppliedId, transactionType, accessMethod, value, metadata, null), card));
+
+        Transaction transaction = new Transaction(nextId("transaction"), card.cardId, userSuppliedId, transactionType, accessMethod, value, metadata, null);
+        card.value += value;
+        record(transaction);
+        return wrap("transaction", toJson(transaction, card));
+    }
+
+    private void record(Transaction transaction) {
+        transactions.put(transaction.transactionId, transaction);
+        if (transaction.userSuppliedId != null)
+            transactionsByUserSuppliedId.put(userSuppliedIdKey(transaction.cardId, transaction.userSuppliedId), transaction);
+    }
+
+    private EmulatedResponse settle(Card card, Transaction parent, String action, Map<String, Object> body) {
+        String userSuppliedId = (String) body.get("userSuppliedId");
+        if (userSuppliedId != null) {
+            Transaction existing = transactionsByUserSuppliedId.get(userSuppliedIdKey(card.cardId, userSuppliedId));
+            if (existing != null)
+                return wrap("transaction", toJson(existing, card));
+        }
+
+        String transactionType;
+        int value;
+        switch (action) {
+            case "capture":
+                if (!"PENDING_CREATE".equals(parent.transactionType))
+                    return error(409, "Only pending transactions can be captured.");
+                transactionType = "DRAWDOWN";
+                value = parent.value;
+                break;
+            case "void":
+                if (!"PENDING_CREATE".equals(parent.transactionType))
+                    return error(409, "Only pending transactions can be voided.");
+                transactionType = "PENDING_VOID";
+                value = -parent.value;
+                break;
+            case "refund":
+                if (!"DRAWDOWN".equals(parent.transactionType))
+                    return error(409, "Only drawdown transactions can be refunded.");
+                transactionType = "DRAWDOWN_REFUND";
+                value = -parent.value;
+                break;
+            default:
+                return notFound();
+        }
+        if (parent.settlement != null)
+            return error(409, "Transaction " + parent.transactionId + " has already been settled.");
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> metadata = (body.get("metadata") instanceof Map) ? (Map<String, Object>) body.get("metadata") : parent.metadata;
+        Transaction settlement = new Transaction(nextId("transaction"), card.cardId, userSuppliedId, transactionType, parent.accessMethod, value, metadata, parent.transactionId);
+        if (!"DRAWDOWN".equals(transactionType)) //a capture spends what the pending transaction already holds
+            card.value += value;
+        parent.settlement = settlement;
+        record(settlement);
+        return wrap("transaction", toJson(settlement, card));
+    }
+
+    private static EmulatedResponse wrap(String name, Object object) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put(name, object);
+        return new EmulatedResponse(200, body);
+    }
+
+    private static EmulatedResponse list(String name, List<Object> objects) {
+        Map<String, Object> pagination = new LinkedHashMap<>();
+        pagination.put("count", objects.size());
+        pagination.put("limit", 100);
+        pagination.put("maxLimit", 1000);
+        pagination.put("offset", 0);
+        pagination.put("totalCount", objects.size());
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put(name, objects);
+        body.put("pagination", pagination);
+        return new EmulatedResponse(200, body);
+    }
+
+    private static Map<String, Object> toJson(Card card) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("cardId", card.cardId);
+        json.put("userSuppliedId", card.cardId);
+        json.put("contactId", card.contactId);
+        json.put("dateCreated", card.dateCreated);
+        json.put("categories", Collections.emptyList());
+        json.put("cardType", card.cardType);
+        json.put("currency", card.currency);
+        return json;
+    }
+
+    private static Map<String, Object> balanceJson(Card card) {
+        Map<String, Object> principal = new LinkedHashMap<>();
+        principal.put("currentValue", card.value);
+        principal.put("state", "ACTIVE");
+        principal.put("expires", null);
+        principal.put("startDate", null);
+        principal.put("programId", "program-emulated");
+        principal.put("valueStoreId", "value-store-" + card.cardId);
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("cardId", card.cardId);
+        json.put("currency", card.currency);
+        json.put("balanceDate", Instant.now().toString());
+        json.put("principal", principal);
+        json.put("attached", Collections.emptyList());
+        json.put("currentValue", card.value);
+        return json;
+    }
+
+    private static Map<String, Object> toJson(Contact contact) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("contactId", contact.contactId);
+        json.put("userSuppliedId", contact.userSuppliedId);
+        json.put("email", null);
+        json.put("firstName", null);
+        json.put("lastName", null);
+        json.put("dateCreated", contact.dateCreated);
+        return json;
+    }
+
+    private static Map<String, Object> toJson(Transaction transaction, Card card) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("transactionId", transaction.transactionId);
+        json.put("value", transaction.value);
+        json.put("userSuppliedId", transaction.userSuppliedId);
+        json.put("dateCreated", transaction.dateCreated);
+        json.put("transactionType", transaction.transactionType);
+        json.put("transactionAccessMethod", transaction.accessMethod);
+        json.put("giftbitUserId", "user-emulated");
+        json.put("cardId", card.cardId);
+        json.put("currency", card.currency);
+        json.put("codeLastFour", (card.code == null) ? null : card.code.substring(Math.max(0, card.code.length() - 4)));
+        json.put("metadata", transaction.metadata);
+        json.put("parentTransactionId", transaction.parentTransactionId);
+        return json;
+    }
+}
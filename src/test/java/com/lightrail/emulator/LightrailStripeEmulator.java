@@ -0,0 +1,270 @@
+package com.lightrail.emulator;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process, in-memory stand-in for the Lightrail and Stripe endpoints used by this library, for running tests,
+ * load tests and benchmarks without API keys or network access. Once installed, connections to
+ * {@code api.lightrail.com} and {@code api.stripe.com} made through {@link java.net.URL} are answered by the emulator,
+ * so neither client needs any configuration:
+ * <pre>{@code
+ * LightrailStripeEmulator emulator = LightrailStripeEmulator.install();
+ * String cardId = emulator.createGiftCard("GIFT-CODE", "USD", 5000);
+ * emulator.setLatency(LightrailStripeEmulator.Service.STRIPE, 50, 150, TimeUnit.MILLISECONDS);
+ * ...
+ * emulator.uninstall();
+ * }</pre>
+ * Card balances are kept per card: pending charges hold value until they are captured or voided, and refunds and voids
+ * give it back. Lightrail transactions are idempotent on their {@code userSuppliedId} and Stripe requests on their
+ * {@code Idempotency-Key} header. Latency and faults can be configured per service.
+ */
+public class LightrailStripeEmulator {
+    public static final String LIGHTRAIL_HOST = "api.lightrail.com";
+    public static final String STRIPE_HOST = "api.stripe.com";
+
+    public enum Service {
+        LIGHTRAIL, STRIPE
+    }
+
+    private static volatile LightrailStripeEmulator installed = null;
+
+    private final LightrailEndpoints lightrail = new LightrailEndpoints();
+    private final StripeEndpoints stripe = new StripeEndpoints();
+    private final Map<Service, Conditions> conditions = new EnumMap<>(Service.class);
+
+    /**
+     * Latency and faults of one service. Faults are applied in this order: dropped connections, failed requests
+     * (never processed), then lost responses (processed, but the caller sees a connection failure).
+     */
+    private static final class Conditions {
+        volatile long minLatencyNanos = 0;
+        volatile long maxLatencyNanos = 0;
+        final AtomicInteger connectionsToDrop = new AtomicInteger();
+        final AtomicInteger requestsToFail = new AtomicInteger();
+        volatile int failureStatus = 500;
+        volatile double failureRate = 0;
+        volatile int randomFailureStatus = 500;
+        final AtomicInteger responsesToLose = new AtomicInteger();
+        final AtomicLong requests = new AtomicLong();
+
+        void delay() {
+            long min = minLatencyNanos;
+            long max = maxLatencyNanos;
+            if (max <= 0)
+                return;
+            long delay = (max > min) ? ThreadLocalRandom.current().nextLong(min, max + 1) : max;
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        static boolean takeOne(AtomicInteger counter) {
+            while (true) {
+                int remaining = counter.get();
+                if (remaining <= 0)
+                    return false;
+                if (counter.compareAndSet(remaining, remaining - 1))
+                    return true;
+            }
+        }
+    }
+
+    public LightrailStripeEmulator() {
+        for (Service service : Service.values())
+            conditions.put(service, new Conditions());
+    }
+
+    /**
+     * Creates an emulator and routes both services to it, replacing any emulator installed before.
+     */
+    public static LightrailStripeEmulator install() {
+        LightrailStripeEmulator emulator = new LightrailStripeEmulator();
+        emulator.makeCurrent();
+        return emulator;
+    }
+
+    /**
+     * Routes both services to this emulator, replacing any emulator installed before.
+     */
+    public void makeCurrent() {
+        EmulatorUrlHandlers.ensureInstalled();
+        installed = this;
+    }
+
+    /**
+     * Sends requests to the real services again, if this emulator is the installed one.
+     */
+    public void uninstall() {
+        if (installed == this)
+            installed = null;
+    }
+
+    static LightrailStripeEmulator getInstalled() {
+        return installed;
+    }
+
+    boolean emulates(String host) {
+        return LIGHTRAIL_HOST.equalsIgnoreCase(host) || STRIPE_HOST.equalsIgnoreCase(host);
+    }
+
+    EmulatedResponse handle(EmulatedRequest request) throws IOException {
+        Service service = LIGHTRAIL_HOST.equalsIgnoreCase(request.getHost()) ? Service.LIGHTRAIL : Service.STRIPE;
+        Conditions serviceConditions = conditions.get(service);
+        serviceConditions.requests.incrementAndGet();
+        serviceConditions.delay();
+
+        if (Conditions.takeOne(serviceConditions.connectionsToDrop))
+            throw new IOException("Connection to " + request.getHost() + " dropped by the emulator.");
+        if (Conditions.takeOne(serviceConditions.requestsToFail))
+            return failure(service, serviceConditions.failureStatus);
+        if (serviceConditions.failureRate > 0 && ThreadLocalRandom.current().nextDouble() < serviceConditions.failureRate)
+            return failure(service, serviceConditions.randomFailureStatus);
+
+        EmulatedResponse response = (service == Service.LIGHTRAIL) ? lightrail.handle(request) : stripe.handle(request);
+        if (Conditions.takeOne(serviceConditions.responsesToLose))
+            throw new IOException("Response from " + request.getHost() + " lost by the emulator.");
+        return response;
+    }
+
+    private static EmulatedResponse failure(Service service, int status) {
+        String message = "Failure injected by the emulator.";
+        if (service == Service.LIGHTRAIL)
+            return LightrailEndpoints.error(status, message);
+        String type = (status == 429) ? "rate_limit_error" : (status >= 500) ? "api_error" : "invalid_request_error";
+        return StripeEndpoints.error(status, type, null, message);
+    }
+
+    /**
+     * Delays every request to the service by a uniformly distributed time between the given bounds.
+     */
+    public void setLatency(Service service, long min, long max, TimeUnit unit) {
+        if (min < 0 || max < min)
+            throw new IllegalArgumentException("Latency bounds must satisfy 0 <= min <= max.");
+        Conditions serviceConditions = conditions.get(service);
+        serviceConditions.minLatencyNanos = unit.toNanos(min);
+        serviceConditions.maxLatencyNanos = unit.toNanos(max);
+    }
+
+    /**
+     * Answers the next {@code count} requests to the service with the given HTTP status, without processing them.
+     */
+    public void failNextRequests(Service service, int count, int status) {
+        Conditions serviceConditions = conditions.get(service);
+        serviceConditions.failureStatus = status;
+        serviceConditions.requestsToFail.set(count);
+    }
+
+    /**
+     * Answers the given fraction of requests to the service with the given HTTP status, without processing them.
+     */
+    public void setFailureRate(Service service, double rate, int status) {
+        if (rate < 0 || rate > 1)
+            throw new IllegalArgumentException("Failure rate must be between 0 and 1.");
+        Conditions serviceConditions = conditions.get(service);
+        serviceConditions.randomFailureStatus = status;
+        serviceConditions.failureRate = rate;
+    }
+
+    /**
+     * Fails the next {@code count} connections to the service before the request is processed.
+     */
+    public void dropNextConnections(Service service, int count) {
+        conditions.get(service).connectionsToDrop.set(count);
+    }
+
+    /**
+     * Processes the next {@code count} requests to the service but fails the connection instead of answering, as
+     * when a response is lost in transit. Retrying with the same idempotency key returns the original result.
+     */
+    public void loseNextResponses(Service service, int count) {
+        conditions.get(service).responsesToLose.set(count);
+    }
+
+    /**
+     * Removes all latency and faults.
+     */
+    public void resetConditions() {
+        for (Service service : Service.values()) {
+            Conditions serviceConditions = conditions.get(service);
+            serviceConditions.minLatencyNanos = 0;
+            serviceConditions.maxLatencyNanos = 0;
+            serviceConditions.connectionsToDrop.set(0);
+            serviceConditions.requestsToFail.set(0);
+            serviceConditions.failureRate = 0;
+            serviceConditions.responsesToLose.set(0);
+        }
+    }
+
+    public long getRequestCount(Service service) {
+        return conditions.get(service).requests.get();
+    }
+
+    /**
+     * @return the {@code cardId} of a new gift card with the given code.
+     */
+    public String createGiftCard(String code, String currency, int value) {
+        return lightrail.createGiftCard(code, currency, value);
+    }
+
+    /**
+     * @return the {@code contactId} of a new Contact with the given shopper ID ({@code userSuppliedId}).
+     */
+    public String createContact(String shopperId) {
+        return lightrail.createContact(shopperId);
+    }
+
+    /**
+     * @return the {@code cardId} of a new Account Card of the Contact.
+     */
+    public String createAccountCard(String contactId, String currency, int value) {
+        return lightrail.createAccountCard(contactId, currency, value);
+    }
+
+    /**
+     * @return the value available on the card, i.e. not spent nor held by a pending transaction.
+     */
+    public int getCardValue(String cardId) {
+        return lightrail.getCardValue(cardId);
+    }
+
+    public void setCardValue(String cardId, int value) {
+        lightrail.setCardValue(cardId, value);
+    }
+
+    public int getLightrailTransactionCount() {
+        return lightrail.getTransactionCount();
+    }
+
+    /**
+     * Makes Stripe decline charges made with the given token or customer ID.
+     */
+    public void declineStripeSource(String sourceOrCustomer) {
+        stripe.declineSource(sourceOrCustomer);
+    }
+
+    public int getStripeChargeCount() {
+        return stripe.getChargeCount();
+    }
+
+    /**
+     * @return the amount charged on Stripe and not refunded, over all charges.
+     */
+    public long getStripeCapturedTotal() {
+        return stripe.getCapturedTotal();
+    }
+
+    /**
+     * @return the Stripe charge as JSON fields, or {@code null} if there is none with this ID.
+     */
+    public Map<String, Object> getStripeCharge(String chargeId) {
+        return stripe.getCharge(chargeId);
+    }
+}
@@ -0,0 +1,135 @@
+package com.lightrail.emulator;
+
+import com.lightrail.model.Lightrail;
+import com.lightrail.model.stripe.SimulatedStripeLightrailSplitTenderCharge;
+import com.lightrail.model.stripe.SplitTenderChargeRequest;
+import com.lightrail.model.stripe.StripeLightrailSplitTenderCharge;
+import com.stripe.Stripe;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LightrailStripeEmulatorTest {
+    private LightrailStripeEmulator emulator;
+
+    @Before
+    public void setUp() {
+        emulator = LightrailStripeEmulator.install();
+    }
+
+    @After
+    public void tearDown() {
+        emulator.uninstall();
+    }
+
+    private static String call(String method, String url, String body, String idempotencyKey) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        if (idempotencyKey != null)
+            connection.setRequestProperty("Idempotency-Key", idempotencyKey);
+        if (body != null) {
+            connection.setDoOutput(true);
+            try (OutputStream requestBody = connection.getOutputStream()) {
+                requestBody.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+        try (InputStream response = (status >= 400) ? connection.getErrorStream() : connection.getInputStream()) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = response.read(buffer)) != -1)
+                responseBody.write(buffer, 0, read);
+        }
+        return status + " " + responseBody.toString("UTF-8");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> transactionOf(String response) {
+        return (Map<String, Object>) Json.parseObject(response.substring(4)).get("transaction");
+    }
+
+    @Test
+    public void pendingChargeHoldsValueUntilVoidedTest() throws IOException {
+        String cardId = emulator.createGiftCard("EMULATED-1234", "USD", 1000);
+        String lightrail = "https://" + LightrailStripeEmulator.LIGHTRAIL_HOST + "/v1/cards/" + cardId + "/transactions";
+
+        String pending = call("POST", lightrail, "{\"value\": -800, \"currency\": \"USD\", \"userSuppliedId\": \"order-1\", \"pending\": true}", null);
+        assertTrue(pending.startsWith("200"));
+        assertEquals(200, emulator.getCardValue(cardId));
+
+        String replayed = call("POST", lightrail, "{\"value\": -800, \"currency\": \"USD\", \"userSuppliedId\": \"order-1\", \"pending\": true}", null);
+        assertEquals(pending, replayed);
+        assertEquals(200, emulator.getCardValue(cardId));
+
+        assertTrue(call("POST", lightrail, "{\"value\": -500, \"currency\": \"USD\"}", null).startsWith("409"));
+
+        String voided = call("POST", lightrail + "/" + transactionOf(pending).get("transactionId") + "/void", "{}", null);
+        assertEquals("PENDING_VOID", transactionOf(voided).get("transactionType"));
+        assertEquals(1000, emulator.getCardValue(cardId));
+    }
+
+    @Test
+    public void dryRunCapsValueAtBalanceTest() throws IOException {
+        emulator.createGiftCard("EMULATED-5678", "USD", 1000);
+        String simulated = call("POST", "https://" + LightrailStripeEmulator.LIGHTRAIL_HOST + "/v1/codes/EMULATED-5678/transactions/dryRun",
+                "{\"value\": -1500, \"currency\": \"USD\"}", null);
+        assertNull(transactionOf(simulated).get("transactionId"));
+        assertEquals(-1000L, transactionOf(simulated).get("value"));
+        assertEquals(0, emulator.getLightrailTransactionCount());
+    }
+
+    @Test
+    public void stripeHonoursIdempotencyKeyAfterLostResponseTest() throws IOException {
+        String stripe = "https://" + LightrailStripeEmulator.STRIPE_HOST + "/v1/charges";
+        emulator.loseNextResponses(LightrailStripeEmulator.Service.STRIPE, 1);
+        try {
+            call("POST", stripe, "amount=700&currency=usd&source=tok_visa", "order-2");
+            fail("The response should have been lost.");
+        } catch (IOException e) {
+            //expected
+        }
+        assertTrue(call("POST", stripe, "amount=700&currency=usd&source=tok_visa", "order-2").startsWith("200"));
+        assertEquals(1, emulator.getStripeChargeCount());
+        assertEquals(700, emulator.getStripeCapturedTotal());
+
+        emulator.declineStripeSource("tok_chargeDeclined");
+        assertTrue(call("POST", stripe, "amount=700&currency=usd&source=tok_chargeDeclined", null).startsWith("402"));
+
+        emulator.failNextRequests(LightrailStripeEmulator.Service.STRIPE, 1, 503);
+        assertTrue(call("POST", stripe, "amount=700&currency=usd&source=tok_visa", null).startsWith("503"));
+        assertEquals(1, emulator.getStripeChargeCount());
+    }
+
+    @Test
+    public void splitTenderChargeAgainstEmulatorTest() throws Exception {
+        Lightrail.apiKey = "emulated";
+        Stripe.apiKey = "sk_test_emulated";
+        String cardId = emulator.createGiftCard("EMULATED-SPLIT", "USD", 1000);
+
+        SplitTenderChargeRequest request = SplitTenderChargeRequest.builder(1500, "USD")
+                .useLightrailGiftCode("EMULATED-SPLIT")
+                .useStripeToken("tok_visa")
+                .build();
+        SimulatedStripeLightrailSplitTenderCharge simulatedCharge = StripeLightrailSplitTenderCharge.simulate(request);
+        assertEquals(1000, simulatedCharge.getLightrailShare());
+        assertEquals(500, simulatedCharge.getStripeShare());
+
+        StripeLightrailSplitTenderCharge committedCharge = simulatedCharge.commit();
+        assertEquals(1000, committedCharge.getLightrailShare());
+        assertEquals(500, committedCharge.getStripeShare());
+        assertEquals(0, emulator.getCardValue(cardId));
+        assertEquals(500, emulator.getStripeCapturedTotal());
+    }
+}
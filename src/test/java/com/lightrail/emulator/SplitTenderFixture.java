@@ -0,0 +1,112 @@
+package com.lightrail.emulator;
+
+import com.lightrail.helpers.LightrailConstants;
+import com.lightrail.helpers.StripeConstants;
+import com.lightrail.model.Lightrail;
+import com.lightrail.model.stripe.SplitTenderAuthorization;
+import com.lightrail.model.stripe.SplitTenderChargeRequest;
+import com.lightrail.model.stripe.StripeLightrailSplitTenderCharge;
+import com.stripe.Stripe;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The split-tender order shared by the emulator tests: a {@value #GIFT_CARD_VALUE} gift card paying
+ * {@value #LIGHTRAIL_SHARE} of a {@value #ORDER_AMOUNT} {@value #CURRENCY} order and {@value #STRIPE_TOKEN} paying
+ * the remaining {@value #STRIPE_SHARE}.
+ * <pre>{@code
+ * SplitTenderFixture fixture = SplitTenderFixture.install();
+ * StripeLightrailSplitTenderCharge charge = fixture.createSplitCharge("GIFT-CODE", "order-1");
+ * ...
+ * fixture.uninstall();
+ * }</pre>
+ */
+public class SplitTenderFixture {
+    public static final int GIFT_CARD_VALUE = 1000;
+    public static final int ORDER_AMOUNT = 1500;
+    public static final String CURRENCY = "USD";
+    public static final String STRIPE_TOKEN = "tok_visa";
+    public static final int STRIPE_SHARE = 500;
+    public static final int LIGHTRAIL_SHARE = 1000;
+
+    private final LightrailStripeEmulator emulator;
+
+    private SplitTenderFixture(LightrailStripeEmulator emulator) {
+        this.emulator = emulator;
+    }
+
+    /**
+     * Sets placeholder API keys for both clients and installs a new {@link LightrailStripeEmulator}.
+     */
+    public static SplitTenderFixture install() {
+        Lightrail.apiKey = "emulated";
+        Stripe.apiKey = "sk_test_emulated";
+        return new SplitTenderFixture(LightrailStripeEmulator.install());
+    }
+
+    public void uninstall() {
+        emulator.uninstall();
+    }
+
+    public LightrailStripeEmulator getEmulator() {
+        return emulator;
+    }
+
+    /**
+     * @return the id of a new {@value #GIFT_CARD_VALUE} gift card with this code.
+     */
+    public String createGiftCard(String code) {
+        return emulator.createGiftCard(code, CURRENCY, GIFT_CARD_VALUE);
+    }
+
+    public static SplitTenderChargeRequest request(String code, String idempotencyKey) {
+        return request(code, idempotencyKey, ORDER_AMOUNT, STRIPE_TOKEN);
+    }
+
+    public static SplitTenderChargeRequest request(String code, String idempotencyKey, int amount, String stripeToken) {
+        return SplitTenderChargeRequest.builder(amount, CURRENCY)
+                .useLightrailGiftCode(code)
+                .useStripeToken(stripeToken)
+                .setUserSuppliedId(idempotencyKey)
+                .build();
+    }
+
+    /**
+     * The parameters {@link StripeLightrailSplitTenderCharge#retrieve(Map)} takes to find a charge.
+     */
+    public static Map<String, Object> retrieveParams(String code, String idempotencyKey, int amount) {
+        Map<String, Object> params = new HashMap<>();
+        params.put(LightrailConstants.Parameters.CODE, code);
+        params.put(LightrailConstants.Parameters.USER_SUPPLIED_ID, idempotencyKey);
+        params.put(StripeConstants.Parameters.AMOUNT, amount);
+        params.put(LightrailConstants.Parameters.CURRENCY, CURRENCY);
+        return params;
+    }
+
+    /**
+     * Creates a gift card with this code and charges the order, split {@value #STRIPE_SHARE} /
+     * {@value #LIGHTRAIL_SHARE}.
+     */
+    public StripeLightrailSplitTenderCharge createSplitCharge(String code, String idempotencyKey) throws Exception {
+        createGiftCard(code);
+        return StripeLightrailSplitTenderCharge.create(request(code, idempotencyKey), STRIPE_SHARE, LIGHTRAIL_SHARE);
+    }
+
+    /**
+     * Creates a gift card with this code and authorizes the order, split {@value #STRIPE_SHARE} /
+     * {@value #LIGHTRAIL_SHARE}.
+     */
+    public SplitTenderAuthorization authorize(String code, String idempotencyKey) throws Exception {
+        createGiftCard(code);
+        return StripeLightrailSplitTenderCharge.authorize(request(code, idempotencyKey), STRIPE_SHARE, LIGHTRAIL_SHARE);
+    }
+
+    /**
+     * @return the number of requests made to both services so far.
+     */
+    public long requestCount() {
+        return emulator.getRequestCount(LightrailStripeEmulator.Service.LIGHTRAIL)
+                + emulator.getRequestCount(LightrailStripeEmulator.Service.STRIPE);
+    }
+}
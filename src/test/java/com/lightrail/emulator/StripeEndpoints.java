@@ -0,0 +1,241 @@
+package com.lightrail.emulator;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Stripe API endpoints used by this library: charges (create, retrieve, list, update, capture) and refunds. A
+ * charge made with {@code capture=false} only counts towards the captured total once it is captured; refunding it
+ * releases the authorization. Requests carrying an {@code Idempotency-Key} header are answered with the original
+ * response when they are repeated. All state is in memory and guarded by this object's lock.
+ */
+final class StripeEndpoints {
+    static final int MINIMUM_CHARGE_AMOUNT = 50;
+
+    private final AtomicLong ids = new AtomicLong();
+    private final Map<String, Map<String, Object>> charges = new LinkedHashMap<>();
+    private final Map<String, EmulatedResponse> responsesByIdempotencyKey = new HashMap<>();
+    private final Set<String> declinedSources = new HashSet<>();
+    private long capturedTotal = 0;
+
+    synchronized void declineSource(String source) {
+        declinedSources.add(source);
+    }
+
+    synchronized int getChargeCount() {
+        return charges.size();
+    }
+
+    /**
+     * @return the amount charged and not refunded, over all charges.
+     */
+    synchronized long getCapturedTotal() {
+        return capturedTotal;
+    }
+
+    synchronized Map<String, Object> getCharge(String chargeId) {
+        Map<String, Object> charge = charges.get(chargeId);
+        return (charge == null) ? null : new LinkedHashMap<>(charge);
+    }
+
+    static EmulatedResponse error(int status, String type, String code, String message) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("type", type);
+        if (code != null)
+            error.put("code", code);
+        error.put("message", message);
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("error", error);
+        return new EmulatedResponse(status, body);
+    }
+
+    private static EmulatedResponse notFound(String id) {
+        return error(404, "invalid_request_error", "resource_missing", "No such object: " + id);
+    }
+
+    synchronized EmulatedResponse handle(EmulatedRequest request) {
+        String idempotencyKey = "POST".equals(request.getMethod()) ? request.getHeader("Idempotency-Key") : null;
+        if (idempotencyKey != null && responsesByIdempotencyKey.containsKey(idempotencyKey))
+            return responsesByIdempotencyKey.get(idempotencyKey);
+
+        EmulatedResponse response = route(request);
+        if (idempotencyKey != null && response.getStatus() != 429 && response.getStatus() < 500)
+            responsesByIdempotencyKey.put(idempotencyKey, response);
+        return response;
+    }
+
+    private EmulatedResponse route(EmulatedRequest request) {
+        List<String> path = request.getPathSegments();
+        String method = request.getMethod();
+        if (path.isEmpty())
+            return notFound("/");
+
+        if ("charges".equals(path.get(0))) {
+            if (path.size() == 1 && "POST".equals(method))
+                return createCharge(request.getFormBody());
+            if (path.size() == 1 && "GET".equals(method))
+                return listCharges(request.getQueryParameters());
+            Map<String, Object> charge = charges.get(path.get(1));
+            if (charge == null)
+                return notFound(path.get(1));
+            if (path.size() == 3 && "capture".equals(path.get(2)) && "POST".equals(method))
+                return captureCharge(charge, request.getFormBody());
+            if (path.size() == 2 && "GET".equals(method))
+                return new EmulatedResponse(200, charge);
+            if (path.size() == 2 && "POST".equals(method))
+                return updateCharge(charge, request.getFormBody());
+        } else if ("refunds".equals(path.get(0)) && path.size() == 1 && "POST".equals(method)) {
+            return createRefund(request.getFormBody());
+        }
+        return notFound(path.get(path.size() - 1));
+    }
+
+    private EmulatedResponse createCharge(Map<String, Object> form) {
+        String source = (String) form.get("source");
+        String customer = (String) form.get("customer");
+        String currency = (String) form.get("currency");
+        int amount;
+        try {
+            amount = Integer.parseInt((String) form.get("amount"));
+        } catch (NumberFormatException | ClassCastException e) {
+            return error(400, "invalid_request_error", "parameter_missing", "Missing required param: amount.");
+        }
+        if (currency == null)
+            return error(400, "invalid_request_error", "parameter_missing", "Missing required param: currency.");
+        if (source == null && customer == null)
+            return error(400, "invalid_request_error", "missing", "Must provide source or customer.");
+        if (amount < MINIMUM_CHARGE_AMOUNT)
+            return error(400, "invalid_request_error", "amount_too_small", "Amount must be at least " + MINIMUM_CHARGE_AMOUNT + " cents.");
+        if (declinedSources.contains(source) || declinedSources.contains(customer))
+            return error(402, "card_error", "card_declined", "Your card was declined.");
+
+        boolean capture = !"false".equals(form.get("capture"));
+        String chargeId = "ch_emulated" + ids.incrementAndGet();
+        Map<String, Object> refunds = new LinkedHashMap<>();
+        refunds.put("object", "list");
+        refunds.put("data", new ArrayList<>());
+        refunds.put("has_more", false);
+        refunds.put("total_count", 0);
+        refunds.put("url", "/v1/charges/" + chargeId + "/refunds");
+
+        Map<String, Object> charge = new LinkedHashMap<>();
+        charge.put("id", chargeId);
+        charge.put("object", "charge");
+        charge.put("amount", amount);
+        charge.put("amount_refunded", 0);
+        charge.put("captured", capture);
+        charge.put("created", System.currentTimeMillis() / 1000);
+        charge.put("currency", currency.toLowerCase(Locale.ROOT));
+        charge.put("customer", customer);
+        charge.put("livemode", false);
+        charge.put("metadata", (form.get("metadata") instanceof Map) ? form.get("metadata") : new LinkedHashMap<>());
+        charge.put("paid", true);
+        charge.put("refunded", false);
+        charge.put("refunds", refunds);
+        charge.put("status", "succeeded");
+        charges.put(chargeId, charge);
+        if (capture)
+            capturedTotal += amount;
+        return new EmulatedResponse(200, charge);
+    }
+
+    /**
+     * Lists the charges newest first, filtered by {@code created[gte]} and paged with {@code limit} and
+     * {@code starting_after}.
+     */
+    private EmulatedResponse listCharges(Map<String, String> query) {
+        long createdFrom = (query.get("created[gte]") != null) ? Long.parseLong(query.get("created[gte]")) : 0;
+        int limit = (query.get("limit") != null) ? Integer.parseInt(query.get("limit")) : 10;
+        String startingAfter = query.get("starting_after");
+
+        List<Map<String, Object>> newestFirst = new ArrayList<>(charges.values());
+        Collections.reverse(newestFirst);
+        List<Object> data = new ArrayList<>();
+        boolean started = (startingAfter == null);
+        boolean hasMore = false;
+        for (Map<String, Object> charge : newestFirst) {
+            if (!started) {
+                started = charge.get("id").equals(startingAfter);
+                continue;
+            }
+            if ((Long) charge.get("created") < createdFrom)
+                continue;
+            if (data.size() == limit) {
+                hasMore = true;
+                break;
+            }
+            data.add(charge);
+        }
+
+        Map<String, Object> list = new LinkedHashMap<>();
+        list.put("object", "list");
+        list.put("data", data);
+        list.put("has_more", hasMore);
+        list.put("url", "/v1/charges");
+        return new EmulatedResponse(200, list);
+    }
+
+    @SuppressWarnings("unchecked")
+    private EmulatedResponse updateCharge(Map<String, Object> charge, Map<String, Object> form) {
+        if (form.get("metadata") instanceof Map) {
+            Map<String, Object> metadata = new LinkedHashMap<>((Map<String, Object>) charge.get("metadata"));
+            metadata.putAll((Map<String, Object>) form.get("metadata"));
+            charge.put("metadata", metadata);
+        }
+        return new EmulatedResponse(200, charge);
+    }
+
+    /**
+     * Like Stripe, capturing less than the authorized amount refunds the rest.
+     */
+    private EmulatedResponse captureCharge(Map<String, Object> charge, Map<String, Object> form) {
+        if (Boolean.TRUE.equals(charge.get("captured")) || Boolean.TRUE.equals(charge.get("refunded")))
+            return error(400, "invalid_request_error", "charge_already_captured", "Charge " + charge.get("id") + " has already been captured.");
+        int chargeAmount = (Integer) charge.get("amount");
+        int amount = (form.get("amount") != null) ? Integer.parseInt((String) form.get("amount")) : chargeAmount;
+        if (amount <= 0 || amount > chargeAmount)
+            return error(400, "invalid_request_error", "amount_too_large", "Amount must be no more than " + chargeAmount + " cents.");
+        if (amount < MINIMUM_CHARGE_AMOUNT)
+            return error(400, "invalid_request_error", "amount_too_small", "Amount must be at least " + MINIMUM_CHARGE_AMOUNT + " cents.");
+
+        charge.put("captured", true);
+        charge.put("amount_refunded", chargeAmount - amount);
+        capturedTotal += amount;
+        return new EmulatedResponse(200, charge);
+    }
+
+    @SuppressWarnings("unchecked")
+    private EmulatedResponse createRefund(Map<String, Object> form) {
+        String chargeId = (String) form.get("charge");
+        Map<String, Object> charge = (chargeId == null) ? null : charges.get(chargeId);
+        if (charge == null)
+            return notFound(chargeId);
+        int chargeAmount = (Integer) charge.get("amount");
+        int alreadyRefunded = (Integer) charge.get("amount_refunded");
+        int amount = (form.get("amount") != null) ? Integer.parseInt((String) form.get("amount")) : chargeAmount - alreadyRefunded;
+        boolean captured = Boolean.TRUE.equals(charge.get("captured"));
+        if (!captured)
+            amount = chargeAmount; //releases the whole authorization
+        if (amount <= 0 || alreadyRefunded + amount > chargeAmount)
+            return error(400, "invalid_request_error", "charge_already_refunded", "Charge " + chargeId + " has already been refunded.");
+
+        Map<String, Object> refund = new LinkedHashMap<>();
+        refund.put("id", "re_emulated" + ids.incrementAndGet());
+        refund.put("object", "refund");
+        refund.put("amount", amount);
+        refund.put("charge", chargeId);
+        refund.put("created", System.currentTimeMillis() / 1000);
+        refund.put("currency", charge.get("currency"));
+        refund.put("metadata", new LinkedHashMap<>());
+        refund.put("status", "succeeded");
+
+        charge.put("amount_refunded", alreadyRefunded + amount);
+        charge.put("refunded", alreadyRefunded + amount == chargeAmount);
+        Map<String, Object> refunds = (Map<String, Object>) charge.get("refunds");
+        ((List<Object>) refunds.get("data")).add(refund);
+        refunds.put("total_count", ((List<Object>) refunds.get("data")).size());
+        if (captured)
+            capturedTotal -= amount;
+        return new EmulatedResponse(200, refund);
+    }
+}
@@ -0,0 +1,100 @@
+package com.lightrail.helpers;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensAfterConsecutiveFailuresTest() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(3, 1, TimeUnit.HOURS);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(circuitBreaker.tryAcquire());
+            circuitBreaker.onFailure();
+        }
+        assertTrue(circuitBreaker.tryAcquire());
+        circuitBreaker.onSuccess(0);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(circuitBreaker.tryAcquire());
+            circuitBreaker.onFailure();
+        }
+
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.isCallPermitted());
+        assertFalse(circuitBreaker.tryAcquire());
+        assertEquals(1, circuitBreaker.getRejectedCalls());
+        assertEquals(1, circuitBreaker.getTimesOpened());
+    }
+
+    @Test
+    public void countsSlowCallsAsFailuresTest() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(2, 100, 60000, TimeUnit.MILLISECONDS);
+        circuitBreaker.onSuccess(TimeUnit.MILLISECONDS.toNanos(50));
+        circuitBreaker.onSuccess(TimeUnit.MILLISECONDS.toNanos(150));
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        circuitBreaker.onSuccess(TimeUnit.MILLISECONDS.toNanos(150));
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void letsOneTrialCallThroughAfterOpenDurationTest() throws InterruptedException {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 20, TimeUnit.MILLISECONDS);
+        circuitBreaker.onFailure();
+        assertFalse(circuitBreaker.tryAcquire());
+        Thread.sleep(30);
+
+        assertTrue(circuitBreaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.tryAcquire());
+        circuitBreaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        Thread.sleep(30);
+
+        assertTrue(circuitBreaker.tryAcquire());
+        circuitBreaker.onSuccess(0);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    public void onlyTheTrialCallClosesTheBreakerTest() throws InterruptedException {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 20, TimeUnit.MILLISECONDS);
+        assertTrue(circuitBreaker.tryAcquire());
+        long stragglerStart = System.nanoTime();
+        circuitBreaker.onFailure();
+        circuitBreaker.onSuccess(0);
+        circuitBreaker.onSuccess(0, false);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        Thread.sleep(30);
+
+        assertTrue(circuitBreaker.tryAcquire());
+        circuitBreaker.onSuccess(System.nanoTime() - stragglerStart);
+        circuitBreaker.onSuccess(0, false);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.onSuccess(0);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void cancelledTrialCallLetsTheNextOneThroughTest() throws InterruptedException {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 20, TimeUnit.MILLISECONDS);
+        assertTrue(circuitBreaker.tryAcquire());
+        long closedCallPermittedAt = System.nanoTime();
+        circuitBreaker.onFailure();
+        Thread.sleep(30);
+
+        assertTrue(circuitBreaker.tryAcquire());
+        long trialPermittedAt = System.nanoTime();
+        circuitBreaker.cancel(closedCallPermittedAt); //permitted before the trial, so it does not end it
+        assertFalse(circuitBreaker.tryAcquire());
+        circuitBreaker.cancel(trialPermittedAt);
+
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        assertTrue(circuitBreaker.tryAcquire());
+    }
+}
@@ -0,0 +1,89 @@
+package com.lightrail.helpers;
+
+import com.lightrail.exceptions.BadParameterException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CurrencyTest {
+
+    @Test
+    public void decimalPlacesAreKnownWithoutConstructingTest() {
+        assertEquals(0, Currency.getDecimalPlaces("JPY"));
+        assertEquals(0, Currency.getDecimalPlaces("jpy"));
+        assertEquals(2, Currency.getDecimalPlaces("USD"));
+        assertEquals(3, Currency.getDecimalPlaces("KWD"));
+        assertEquals(4, Currency.getDecimalPlaces("CLF"));
+        assertEquals(2, Currency.getDecimalPlaces("ISK")); //Stripe counts these in hundredths
+        assertEquals(2, Currency.getDecimalPlaces("UGX"));
+        assertEquals(2, Currency.getDecimalPlaces("XYZ"));
+        assertEquals(2, Currency.getDecimalPlaces("US$"));
+        assertEquals(2, Currency.getDecimalPlaces(null));
+        assertEquals(1000, Currency.getMinorUnitsPerMajorUnit("bhd"));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void floatConversionRoundsOnceTest() {
+        assertEquals(1999, Currency.majorToMinor(19.99f, "USD"));
+        assertEquals(1999, Currency.majorToMinor(1999f, "JPY"));
+        assertEquals(1234, Currency.majorToMinor(12.34f, "KWD")); //in hundredths, as it always was
+        assertEquals(199900, Currency.majorToMinor(1999f, "ISK"));
+        assertEquals(-1, Currency.majorToMinor(-0.01f, "USD"));
+        assertEquals(19.99f, Currency.minorToMajor(1999, "USD"), 0);
+        assertEquals(1999f, Currency.minorToMajor(1999, "JPY"), 0);
+        assertEquals(12.34f, Currency.minorToMajor(1234, "KWD"), 0);
+    }
+
+    @Test
+    public void parseMinorIsExactTest() {
+        assertEquals(1250, Currency.parseMinor("12.5", "USD"));
+        assertEquals(1250, Currency.parseMinor("12.500", "USD"));
+        assertEquals(-99, Currency.parseMinor("-0.99", "USD"));
+        assertEquals(50, Currency.parseMinor(".5", "USD"));
+        assertEquals(1200, Currency.parseMinor("+12.", "USD"));
+        assertEquals(1500, Currency.parseMinor("1500", "JPY"));
+        assertEquals(12345, Currency.parseMinor("12.345", "KWD"));
+        assertEquals(92233720368547758L, Currency.parseMinor("922337203685477.58", "USD"));
+    }
+
+    @Test
+    public void parseMinorRejectsInexactAmountsTest() {
+        for (String amount : new String[]{"12.345", "", "-", ".", "1.2.3", "1e3", "92233720368547758.08"}) {
+            try {
+                Currency.parseMinor(amount, "USD");
+                fail("'" + amount + "' should have been rejected.");
+            } catch (BadParameterException e) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void appendMajorWritesTheCurrencysDecimalPlacesTest() {
+        StringBuilder out = new StringBuilder();
+        assertEquals("12.50", Currency.appendMajor(out, 1250, "USD").toString());
+        out.setLength(0);
+        assertEquals("-0.05", Currency.appendMajor(out, -5, "USD").toString());
+        out.setLength(0);
+        assertEquals("0.00", Currency.appendMajor(out, 0, "USD").toString());
+        out.setLength(0);
+        assertEquals("1.005", Currency.appendMajor(out, 1005, "KWD").toString());
+        out.setLength(0);
+        assertEquals("1500", Currency.appendMajor(out, 1500, "JPY").toString());
+        out.setLength(0);
+        assertEquals("-92233720368547758.08", Currency.appendMajor(out, Long.MIN_VALUE, "USD").toString());
+    }
+
+    @Test
+    public void appendAndParseRoundTripTest() {
+        StringBuilder out = new StringBuilder();
+        for (String currency : new String[]{"USD", "JPY", "KWD"}) {
+            for (long minorValue = -2500; minorValue <= 2500; minorValue += 7) {
+                out.setLength(0);
+                assertEquals(minorValue, Currency.parseMinor(Currency.appendMajor(out, minorValue, currency), currency));
+            }
+        }
+    }
+}
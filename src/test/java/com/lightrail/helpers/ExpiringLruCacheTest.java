@@ -0,0 +1,36 @@
+package com.lightrail.helpers;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ExpiringLruCacheTest {
+
+    @Test
+    public void evictsLeastRecentlyUsedTest() {
+        ExpiringLruCache<String, Integer> cache = new ExpiringLruCache<>(2, 1, TimeUnit.HOURS);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.get("a");
+        cache.put("c", 3);
+
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(Integer.valueOf(3), cache.get("c"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void expiresEntriesTest() throws InterruptedException {
+        ExpiringLruCache<String, Integer> cache = new ExpiringLruCache<>(10, 20, TimeUnit.MILLISECONDS);
+        cache.put("a", 1);
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+
+        Thread.sleep(40);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,46 @@
+package com.lightrail.helpers;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentilesStayWithinBucketPrecisionTest() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 100; millis++)
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(100, histogram.getMax(TimeUnit.MILLISECONDS));
+        assertEquals(50.5, histogram.getMean(TimeUnit.MILLISECONDS), 0.001);
+        long median = histogram.getPercentile(50, TimeUnit.MICROSECONDS);
+        assertTrue(median >= 50000 && median <= 50000 * 1.125);
+        long p99 = histogram.getPercentile(99, TimeUnit.MICROSECONDS);
+        assertTrue(p99 >= 99000 && p99 <= 99000 * 1.125);
+    }
+
+    @Test
+    public void bucketsCoverEveryValueTest() {
+        for (long value : new long[]{0, 1, 7, 8, 9, 15, 16, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(value <= LatencyHistogram.upperBoundOf(bucket));
+            if (bucket > 0)
+                assertTrue(value > LatencyHistogram.upperBoundOf(bucket - 1));
+        }
+    }
+
+    @Test
+    public void resetClearsEverythingTest() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax(TimeUnit.NANOSECONDS));
+        assertEquals(0, histogram.getPercentile(50, TimeUnit.NANOSECONDS));
+    }
+}
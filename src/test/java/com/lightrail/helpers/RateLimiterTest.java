@@ -0,0 +1,60 @@
+package com.lightrail.helpers;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    @Test
+    public void burstIsAvailableAtOnceTest() throws InterruptedException {
+        RateLimiter rateLimiter = new RateLimiter(1, 3);
+        for (int i = 0; i < 3; i++)
+            assertTrue(rateLimiter.tryAcquire(0, TimeUnit.MILLISECONDS));
+
+        assertFalse(rateLimiter.tryAcquire(0, TimeUnit.MILLISECONDS));
+        assertEquals(1, rateLimiter.getRejectedCalls());
+        assertEquals(0, rateLimiter.getDelayedCalls());
+    }
+
+    @Test
+    public void waitsForTheNextTokenTest() throws InterruptedException {
+        RateLimiter rateLimiter = new RateLimiter(20, 1);
+        rateLimiter.acquire();
+        long start = System.nanoTime();
+        assertTrue(rateLimiter.tryAcquire(1, TimeUnit.SECONDS));
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+        assertEquals(1, rateLimiter.getDelayedCalls());
+    }
+
+    @Test
+    public void waitingCallsQueueUpTest() throws InterruptedException {
+        RateLimiter rateLimiter = new RateLimiter(10, 1);
+        rateLimiter.acquire();
+        assertTrue(rateLimiter.getExpectedWaitNanos() > TimeUnit.MILLISECONDS.toNanos(50));
+
+        assertFalse(rateLimiter.tryAcquire(50, TimeUnit.MILLISECONDS)); //not reserved, so the queue is unchanged
+        assertTrue(rateLimiter.getExpectedWaitNanos() <= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void rateCanBeChangedTest() throws InterruptedException {
+        RateLimiter rateLimiter = new RateLimiter(1, 5);
+        rateLimiter.setRate(1000, 2);
+        assertEquals(2, rateLimiter.getBurst());
+        for (int i = 0; i < 2; i++)
+            assertTrue(rateLimiter.tryAcquire(0, TimeUnit.MILLISECONDS));
+
+        assertTrue(rateLimiter.tryAcquire(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveRateTest() {
+        new RateLimiter(0, 1);
+    }
+}
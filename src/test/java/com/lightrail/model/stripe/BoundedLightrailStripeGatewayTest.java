@@ -0,0 +1,117 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.model.api.objects.RequestParameters;
+import com.lightrail.model.business.LightrailTransaction;
+import com.stripe.exception.APIConnectionException;
+import com.stripe.model.Charge;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BoundedLightrailStripeGatewayTest {
+
+    /**
+     * Stands in for the services: every call takes the given time, and the most calls in flight at once is recorded.
+     */
+    static class SlowGateway extends DefaultLightrailStripeGateway {
+        final long callMillis;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger mostInFlight = new AtomicInteger();
+
+        SlowGateway(long callMillis) {
+            this.callMillis = callMillis;
+        }
+
+        private void call() throws InterruptedException {
+            mostInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(callMillis);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public LightrailTransaction retrieveTransaction(RequestParameters params) {
+            try {
+                call();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+
+        @Override
+        public Charge retrieveCharge(String chargeId) {
+            try {
+                call();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new Charge();
+        }
+    }
+
+    @Test
+    public void interruptedWaitIsAConnectionErrorTest() throws Exception {
+        SlowGateway slowGateway = new SlowGateway(0);
+        BoundedLightrailStripeGateway gateway = new BoundedLightrailStripeGateway(slowGateway, 1, 1);
+        Thread.currentThread().interrupt();
+        try {
+            gateway.retrieveCharge("ch_1");
+            fail("The call should not have been made.");
+        } catch (APIConnectionException e) {
+            //expected
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(0, slowGateway.mostInFlight.get());
+    }
+
+    @Test
+    public void callsBeyondTheLimitWaitTheirTurnTest() throws Exception {
+        SlowGateway slowGateway = new SlowGateway(20);
+        final BoundedLightrailStripeGateway gateway = new BoundedLightrailStripeGateway(slowGateway, 2, 1);
+        List<Thread> threads = new ArrayList<>();
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 6; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    gateway.retrieveTransaction(new RequestParameters());
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(0, failures.get());
+        assertEquals(2, slowGateway.mostInFlight.get());
+    }
+
+    @Test
+    public void requestsCarryTheirGatewayTest() {
+        SlowGateway slowGateway = new SlowGateway(0);
+        SplitTenderChargeRequest request = SplitTenderChargeRequest.builder(500, "USD")
+                .useStripeToken("tok_visa")
+                .setGateway(slowGateway)
+                .build();
+
+        assertSame(slowGateway, request.getGateway());
+        assertSame(slowGateway, request.withUserSuppliedId("key").getGateway());
+        assertEquals(SplitTenderChargeRequest.builder(500, "USD").useStripeToken("tok_visa").build().fingerprint(), request.fingerprint());
+        assertSame(LightrailStripeGateways.getDefault(), SplitTenderChargeRequest.builder(500, "USD").build().getGateway());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void callLimitsMustBePositiveTest() {
+        new BoundedLightrailStripeGateway(0, 1);
+    }
+}
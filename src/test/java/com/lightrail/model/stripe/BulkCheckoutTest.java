@@ -0,0 +1,51 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.helpers.TestParams;
+import com.lightrail.model.Lightrail;
+import com.stripe.Stripe;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class BulkCheckoutTest {
+
+    @Test
+    public void bulkCheckoutCreditCardOnlyTest() throws IOException, InterruptedException {
+        Properties properties = TestParams.getProperties();
+
+        Lightrail.apiKey = properties.getProperty("lightrail.testApiKey");
+        Stripe.apiKey = properties.getProperty("stripe.testApiKey");
+
+        final String orderCurrency = properties.getProperty("happyPath.code.currency");
+        final String stripeToken = properties.getProperty("stripe.demoToken");
+        int orderCount = 6;
+
+        Stream<CheckoutWithStripeAndLightrail> checkouts = IntStream.range(0, orderCount)
+                .mapToObj(i -> new CheckoutWithStripeAndLightrail(100 + i, orderCurrency).useStripeToken(stripeToken));
+
+        final List<BulkCheckoutResult> results = Collections.synchronizedList(new ArrayList<BulkCheckoutResult>());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            BulkCheckoutSummary summary = new BulkCheckout(executor, 2).run(checkouts, results::add);
+
+            assertEquals(orderCount, summary.getSucceeded());
+            assertEquals(0, summary.getFailed());
+            assertEquals(orderCount, results.size());
+            for (BulkCheckoutResult result : results) {
+                assertEquals(100 + result.getPosition(), result.getCharge().getStripeShare());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
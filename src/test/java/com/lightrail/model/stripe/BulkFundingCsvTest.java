@@ -0,0 +1,81 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.BadParameterException;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BulkFundingCsvTest {
+
+    private static BufferedReader lines(String... lines) {
+        return new BufferedReader(new StringReader(String.join("\n", lines)));
+    }
+
+    @Test
+    public void rowsAreReadAsFundParamsTest() throws IOException {
+        Iterator<Map<String, Object>> rows = BulkFundingCsv.read(lines(
+                "cardId, amount,currency,userSuppliedId",
+                "card-1,500,USD,",
+                "",
+                "\"card-2\",250,USD,promo-2"));
+
+        Map<String, Object> first = rows.next();
+        assertEquals("card-1", first.get("cardId"));
+        assertEquals(500, first.get("amount"));
+        assertEquals("USD", first.get("currency"));
+        assertFalse(first.containsKey("userSuppliedId"));
+
+        Map<String, Object> second = rows.next();
+        assertEquals("card-2", second.get("cardId"));
+        assertEquals("promo-2", second.get("userSuppliedId"));
+        assertFalse(rows.hasNext());
+    }
+
+    @Test(expected = BadParameterException.class)
+    public void unknownColumnIsRejectedTest() throws IOException {
+        BulkFundingCsv.read(lines("cardId,amount,currency,note"));
+    }
+
+    @Test
+    public void malformedAmountNamesItsLineTest() throws IOException {
+        Iterator<Map<String, Object>> rows = BulkFundingCsv.read(lines(
+                "contact,amount,currency",
+                "contact-1,100,USD",
+                "contact-2,1.50,USD"));
+        rows.next();
+        try {
+            rows.next();
+            fail("A fractional amount should have been rejected.");
+        } catch (BadParameterException e) {
+            assertTrue(e.getMessage().contains("Line 3"));
+        }
+    }
+
+    @Test
+    public void quotedCellsAreParsedTest() {
+        assertEquals(Arrays.asList("a", "b,c", "say \"hi\"", ""), BulkFundingCsv.parseLine("a,\"b,c\",\"say \"\"hi\"\"\","));
+    }
+
+    @Test
+    public void fundedRowsAreReadFromResultsTest() throws IOException {
+        BitSet funded = BulkFundingCsv.readFunded(lines(
+                BulkFundingCsv.RESULT_HEADER,
+                "0,promo-fund-0,FUNDED,transaction-0,",
+                "1,promo-fund-1,FAILED,,\"com.lightrail.exceptions.CouldNotFindObjectException: no card, sorry\"",
+                "2,promo-fund-2,FUNDED,transaction-2,",
+                "3,promo-fund-3,FUN"));
+
+        assertTrue(funded.get(0));
+        assertFalse(funded.get(1));
+        assertTrue(funded.get(2));
+        assertFalse(funded.get(3));
+    }
+}
@@ -0,0 +1,91 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.emulator.LightrailStripeEmulator;
+import com.lightrail.emulator.SplitTenderFixture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+public class BulkFundingTest {
+    private SplitTenderFixture fixture;
+    private LightrailStripeEmulator emulator;
+    private ExecutorService executor;
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        fixture = SplitTenderFixture.install();
+        emulator = fixture.getEmulator();
+        executor = Executors.newFixedThreadPool(4);
+        directory = Files.createTempDirectory("bulk-funding");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdown();
+        fixture.uninstall();
+        for (String file : new String[]{"input.csv", "results.csv"})
+            Files.deleteIfExists(directory.resolve(file));
+        Files.delete(directory);
+    }
+
+    private List<String> createCards(int count) {
+        List<String> cardIds = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            cardIds.add(emulator.createGiftCard("BULK-FUND-" + i, "USD", 0));
+        return cardIds;
+    }
+
+    private Path writeInput(List<String> cardIds) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("cardId,amount,currency");
+        for (int i = 0; i < cardIds.size(); i++)
+            lines.add(cardIds.get(i) + "," + (100 + i) + ",USD");
+        return Files.write(directory.resolve("input.csv"), lines, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void csvRowsAreFundedTest() throws Exception {
+        List<String> cardIds = createCards(10);
+        Path results = directory.resolve("results.csv");
+
+        BulkFundingSummary summary = new BulkFunding(executor, 3, "promo").runCsv(writeInput(cardIds), results);
+
+        assertEquals(10, summary.getSucceeded());
+        assertEquals(0, summary.getFailed());
+        for (int i = 0; i < cardIds.size(); i++)
+            assertEquals(100 + i, emulator.getCardValue(cardIds.get(i)));
+        assertEquals(11, Files.readAllLines(results, StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void interruptedRunIsResumedWithoutFundingTwiceTest() throws Exception {
+        List<String> cardIds = createCards(10);
+        Path input = writeInput(cardIds);
+        Path results = directory.resolve("results.csv");
+        new BulkFunding(executor, 3, "promo").runCsv(input, results);
+
+        //as if the process had stopped after writing four results, in the middle of the fifth
+        List<String> written = Files.readAllLines(results, StandardCharsets.UTF_8);
+        String torn = written.get(5).substring(0, 3);
+        Files.write(results, (String.join("\n", written.subList(0, 5)) + "\n" + torn).getBytes(StandardCharsets.UTF_8));
+
+        BulkFundingSummary summary = new BulkFunding(executor, 3, "promo").runCsv(input, results);
+
+        assertEquals(4, summary.getSkipped());
+        assertEquals(6, summary.getSucceeded());
+        for (int i = 0; i < cardIds.size(); i++)
+            assertEquals(100 + i, emulator.getCardValue(cardIds.get(i)));
+    }
+}
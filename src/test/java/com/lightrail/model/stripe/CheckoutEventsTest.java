@@ -0,0 +1,98 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.emulator.SplitTenderFixture;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CheckoutEventsTest {
+    private SplitTenderFixture fixture;
+
+    @Before
+    public void setUp() {
+        fixture = SplitTenderFixture.install();
+    }
+
+    @After
+    public void tearDown() {
+        fixture.uninstall();
+    }
+
+    private static Map<String, RecordedEvent> eventsByName(Recording recording) throws IOException {
+        Path dump = Files.createTempFile("checkout", ".jfr");
+        try {
+            recording.dump(dump);
+            List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+            Map<String, RecordedEvent> eventsByName = new HashMap<>();
+            for (RecordedEvent event : events)
+                eventsByName.put(event.getEventType().getName(), event);
+            return eventsByName;
+        } finally {
+            Files.delete(dump);
+        }
+    }
+
+    @Test
+    public void disabledWithoutRecordingTest() {
+        assertSame(CheckoutEvents.DISABLED, CheckoutEvents.begin(MetricsRegistry.Phase.STRIPE_CHARGE));
+    }
+
+    @Test
+    public void onlyEnabledPhasesAreTimedTest() {
+        try (Recording recording = new Recording()) {
+            recording.enable("com.lightrail.StripeCharge");
+            recording.disable("com.lightrail.LightrailVoid");
+            recording.start();
+            assertSame(CheckoutEvents.DISABLED, CheckoutEvents.begin(MetricsRegistry.Phase.LIGHTRAIL_VOID));
+            assertNotSame(CheckoutEvents.DISABLED, CheckoutEvents.begin(MetricsRegistry.Phase.STRIPE_CHARGE));
+        }
+    }
+
+    @Test
+    public void recordsEachLegOfSplitChargeTest() throws Exception {
+        fixture.createGiftCard("EVENTS-SPLIT");
+        SplitTenderChargeRequest request = SplitTenderFixture.request("EVENTS-SPLIT", "order-events-1");
+
+        Map<String, RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("com.lightrail.SplitTenderCreate");
+            recording.enable("com.lightrail.LightrailPendingCharge");
+            recording.enable("com.lightrail.StripeCharge");
+            recording.start();
+            StripeLightrailSplitTenderCharge.create(request, 500, 1000);
+            recording.stop();
+            events = eventsByName(recording);
+        }
+
+        RecordedEvent splitTender = events.get("com.lightrail.SplitTenderCreate");
+        assertEquals("order-events-1", splitTender.getString("idempotencyKey"));
+        assertEquals(1500, splitTender.getLong("amount"));
+        assertEquals(1000, splitTender.getLong("lightrailShare"));
+        assertEquals(500, splitTender.getLong("stripeShare"));
+        assertEquals(CheckoutEvents.SUCCEEDED, splitTender.getString("outcome"));
+
+        RecordedEvent lightrailLeg = events.get("com.lightrail.LightrailPendingCharge");
+        assertEquals(1000, lightrailLeg.getLong("amount"));
+        assertEquals("USD", lightrailLeg.getString("currency"));
+
+        RecordedEvent stripeLeg = events.get("com.lightrail.StripeCharge");
+        assertEquals("order-events-1", stripeLeg.getString("idempotencyKey"));
+        assertEquals(500, stripeLeg.getLong("amount"));
+        assertTrue(stripeLeg.getDuration().toNanos() > 0);
+    }
+}
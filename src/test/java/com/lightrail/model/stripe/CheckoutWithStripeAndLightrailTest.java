@@ -12,9 +12,12 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import static com.lightrail.helpers.TestParams.getGiftCodeValue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 public class CheckoutWithStripeAndLightrailTest {
 
@@ -64,6 +67,23 @@ public class CheckoutWithStripeAndLightrailTest {
         returnFundsToCode(giftCodeShare);
     }
 
+    @Test
+    public void checkoutReusesSimulationUntilInputChangesTest() throws IOException, CurrencyMismatchException, InsufficientValueException, AuthorizationException, CouldNotFindObjectException, ThirdPartyException {
+        CheckoutWithStripeAndLightrail checkoutWithGiftCode = createCheckoutObject(7645, true, true);
+
+        SimulatedStripeLightrailSplitTenderCharge simulatedTx = checkoutWithGiftCode.simulate();
+        checkoutWithGiftCode.needsCreditCardPayment();
+        assertSame(simulatedTx, checkoutWithGiftCode.simulate());
+
+        checkoutWithGiftCode.setOrderTotal(7646, checkoutWithGiftCode.getOrderCurrency());
+        SimulatedStripeLightrailSplitTenderCharge newSimulatedTx = checkoutWithGiftCode.simulate();
+        assertNotSame(simulatedTx, newSimulatedTx);
+        assertEquals(7646, newSimulatedTx.getLightrailShare() + newSimulatedTx.getStripeShare());
+
+        checkoutWithGiftCode.setSimulationFreshness(0, TimeUnit.SECONDS);
+        assertNotSame(newSimulatedTx, checkoutWithGiftCode.simulate());
+    }
+
     @Test
     public void checkoutWithGiftCodeOnlyTest() throws IOException, CurrencyMismatchException, AuthorizationException, InsufficientValueException, CouldNotFindObjectException, ThirdPartyException {
         Properties properties = TestParams.getProperties();
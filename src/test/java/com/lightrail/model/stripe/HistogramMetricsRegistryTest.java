@@ -0,0 +1,67 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.emulator.LightrailStripeEmulator;
+import com.lightrail.emulator.SplitTenderFixture;
+import com.lightrail.exceptions.ThirdPartyException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HistogramMetricsRegistryTest {
+    private SplitTenderFixture fixture;
+    private LightrailStripeEmulator emulator;
+    private HistogramMetricsRegistry registry;
+
+    @Before
+    public void setUp() {
+        fixture = SplitTenderFixture.install();
+        emulator = fixture.getEmulator();
+        registry = new HistogramMetricsRegistry();
+        LightrailMetrics.setRegistry(registry);
+    }
+
+    @After
+    public void tearDown() {
+        LightrailMetrics.setRegistry(null);
+        fixture.uninstall();
+    }
+
+    @Test
+    public void recordsEachLegOfSplitChargeTest() throws Exception {
+        fixture.createGiftCard("METRICS-SPLIT");
+
+        StripeLightrailSplitTenderCharge.simulate(SplitTenderFixture.request("METRICS-SPLIT", "metrics-split")).commit();
+
+        assertEquals(1, registry.getLatency(MetricsRegistry.Phase.SPLIT_TENDER_SIMULATE).getCount());
+        assertEquals(1, registry.getLatency(MetricsRegistry.Phase.SPLIT_TENDER_CREATE).getCount());
+        assertEquals(1, registry.getLatency(MetricsRegistry.Phase.LIGHTRAIL_PENDING_CHARGE).getCount());
+        assertEquals(1, registry.getLatency(MetricsRegistry.Phase.STRIPE_CHARGE).getCount());
+        assertEquals(1, registry.getLatency(MetricsRegistry.Phase.LIGHTRAIL_CAPTURE).getCount());
+        assertEquals(1, registry.getOutcomeCount(MetricsRegistry.Outcome.CAPTURED));
+        assertEquals(0, registry.getFailureCount(MetricsRegistry.Phase.SPLIT_TENDER_CREATE));
+    }
+
+    @Test
+    public void recordsDeclinedStripeChargeTest() throws Exception {
+        String cardId = fixture.createGiftCard("METRICS-DECLINED");
+        emulator.declineStripeSource("tok_chargeDeclined");
+        SplitTenderChargeRequest request = SplitTenderFixture.request("METRICS-DECLINED", "metrics-declined", 1500, "tok_chargeDeclined");
+
+        try {
+            StripeLightrailSplitTenderCharge.create(request, 500, 1000);
+            fail("The Stripe charge should have been declined.");
+        } catch (ThirdPartyException e) {
+            //expected
+        }
+
+        assertEquals(1000, emulator.getCardValue(cardId));
+        assertEquals(1, registry.getOutcomeCount(MetricsRegistry.Outcome.STRIPE_DECLINED));
+        assertEquals(1, registry.getOutcomeCount(MetricsRegistry.Outcome.VOIDED));
+        assertEquals(0, registry.getOutcomeCount(MetricsRegistry.Outcome.CAPTURED));
+        assertEquals(1, registry.getFailureCount(MetricsRegistry.Phase.STRIPE_CHARGE));
+        assertEquals(1, registry.getFailureCount(MetricsRegistry.Phase.SPLIT_TENDER_CREATE));
+    }
+}
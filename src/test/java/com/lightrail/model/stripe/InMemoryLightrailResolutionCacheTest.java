@@ -0,0 +1,42 @@
+package com.lightrail.model.stripe;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class InMemoryLightrailResolutionCacheTest {
+
+    @Test
+    public void resolvesPerCurrencyAndCountsHitsTest() {
+        InMemoryLightrailResolutionCache cache = new InMemoryLightrailResolutionCache(10, 1, TimeUnit.HOURS);
+        cache.putCardIdForContact("contact-1", "USD", "card-usd");
+        cache.putCardIdForContact("contact-1", "CAD", "card-cad");
+        cache.putCardIdForShopper("shopper-1", "USD", "card-shopper");
+
+        assertEquals("card-usd", cache.getCardIdForContact("contact-1", "USD"));
+        assertEquals("card-cad", cache.getCardIdForContact("contact-1", "CAD"));
+        assertNull(cache.getCardIdForShopper("contact-1", "USD"));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void invalidatesAllCurrenciesOfAContactTest() {
+        InMemoryLightrailResolutionCache cache = new InMemoryLightrailResolutionCache(10, 1, TimeUnit.HOURS);
+        cache.putCardIdForContact("contact-1", "USD", "card-usd");
+        cache.putCardIdForContact("contact-1", "CAD", "card-cad");
+        cache.putCardIdForContact("contact-10", "USD", "other-card");
+        cache.putCardIdForCode("CODE", "card-code");
+
+        cache.invalidateContact("contact-1");
+        cache.invalidateCode("CODE");
+
+        assertNull(cache.getCardIdForContact("contact-1", "USD"));
+        assertNull(cache.getCardIdForContact("contact-1", "CAD"));
+        assertEquals("other-card", cache.getCardIdForContact("contact-10", "USD"));
+        assertNull(cache.getCardIdForCode("CODE"));
+    }
+}
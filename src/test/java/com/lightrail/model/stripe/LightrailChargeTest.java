@@ -10,9 +10,12 @@ import org.junit.Test;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import static com.lightrail.helpers.TestParams.getGiftCodeValue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotNull;
 
 public class LightrailChargeTest {
 
@@ -118,6 +121,33 @@ public class LightrailChargeTest {
         assertEquals(properties.getProperty("happyPath.code.cardId"), giftCharge.getTransactionObject().getCardId());
     }
 
+    @Test
+    public void GiftChargeSimulateWithBalanceCacheTest () throws IOException, InsufficientValueException, AuthorizationException, CouldNotFindObjectException {
+        Properties properties = TestParams.getProperties();
+        Lightrail.apiKey = properties.getProperty("lightrail.testApiKey");
+
+        String code = properties.getProperty("happyPath.code");
+        String currency = properties.getProperty("happyPath.code.currency");
+        LightrailBalanceCache.setDefault(new LightrailBalanceCache(100, 1, TimeUnit.MINUTES));
+        try {
+            LightrailCharge remoteSimulation = LightrailCharge.simulateByCode(code, 101, currency);
+            assertEquals(1, LightrailBalanceCache.getDefault().size());
+
+            LightrailCharge secondSimulation = LightrailCharge.simulateByCode(code, 101, currency);
+            assertEquals(remoteSimulation.getAmount(), secondSimulation.getAmount());
+            assertNotNull(secondSimulation.getTransactionObject());
+            assertEquals(remoteSimulation.getTransactionObject().getCardId(), secondSimulation.getTransactionObject().getCardId());
+            assertEquals(remoteSimulation.getTransactionObject().getCardId(), secondSimulation.getFullId());
+            assertEquals(Integer.valueOf(101), LightrailBalanceCache.getDefault().getCoverableAmount(TestParams.readCodeParamsFromProperties(), 101));
+
+            LightrailCharge giftCharge = LightrailCharge.createByCode(code, 101, currency);
+            assertEquals(0, LightrailBalanceCache.getDefault().size());
+            giftCharge.refund();
+        } finally {
+            LightrailBalanceCache.setDefault(null);
+        }
+    }
+
     @Test
     public void GiftChargeInsufficientValueTest() throws IOException, AuthorizationException, CurrencyMismatchException, CouldNotFindObjectException, InsufficientValueException {
         Properties properties = TestParams.getProperties();
@@ -0,0 +1,124 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.emulator.LightrailStripeEmulator;
+import com.lightrail.emulator.SplitTenderFixture;
+import com.lightrail.exceptions.CircuitOpenException;
+import com.lightrail.exceptions.ThirdPartyException;
+import com.lightrail.helpers.CircuitBreaker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LightrailCircuitBreakersTest {
+    private SplitTenderFixture fixture;
+    private LightrailStripeEmulator emulator;
+
+    @Before
+    public void setUp() {
+        fixture = SplitTenderFixture.install();
+        emulator = fixture.getEmulator();
+        LightrailCircuitBreakers.setLightrail(new CircuitBreaker(2, 1, TimeUnit.HOURS));
+        LightrailCircuitBreakers.setStripe(new CircuitBreaker(2, 1, TimeUnit.HOURS));
+    }
+
+    @After
+    public void tearDown() {
+        LightrailCircuitBreakers.setLightrail(null);
+        LightrailCircuitBreakers.setStripe(null);
+        LightrailCircuitBreakers.setFailOpenToStripe(false);
+        fixture.uninstall();
+    }
+
+    private void tripLightrailBreaker() throws Exception {
+        emulator.dropNextConnections(LightrailStripeEmulator.Service.LIGHTRAIL, 2);
+        for (int i = 0; i < 2; i++) {
+            try {
+                LightrailCharge.simulateByCode("BREAKER", 1000, "USD");
+                fail("The connection should have been dropped.");
+            } catch (IOException e) {
+                //expected
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, LightrailCircuitBreakers.getLightrail().getState());
+    }
+
+    @Test
+    public void rejectsLightrailCallsWhileOpenTest() throws Exception {
+        fixture.createGiftCard("BREAKER");
+        tripLightrailBreaker();
+        long requests = emulator.getRequestCount(LightrailStripeEmulator.Service.LIGHTRAIL);
+
+        try {
+            StripeLightrailSplitTenderCharge.simulate(SplitTenderFixture.request("BREAKER", "breaker-rejected"));
+            fail("The Lightrail breaker should be open.");
+        } catch (CircuitOpenException e) {
+            //expected
+        }
+        assertEquals(requests, emulator.getRequestCount(LightrailStripeEmulator.Service.LIGHTRAIL));
+    }
+
+    @Test
+    public void failsOpenToStripeTest() throws Exception {
+        String cardId = fixture.createGiftCard("BREAKER");
+        tripLightrailBreaker();
+        LightrailCircuitBreakers.setFailOpenToStripe(true);
+
+        SimulatedStripeLightrailSplitTenderCharge simulatedCharge = StripeLightrailSplitTenderCharge.simulate(SplitTenderFixture.request("BREAKER", "breaker-fail-open"));
+        assertTrue(simulatedCharge.isLightrailSkipped());
+        assertEquals(0, simulatedCharge.getLightrailShare());
+        assertEquals(1500, simulatedCharge.getStripeShare());
+
+        StripeLightrailSplitTenderCharge committedCharge = simulatedCharge.commit();
+        assertTrue(committedCharge.isLightrailSkipped());
+        assertNull(committedCharge.getLightrailCharge());
+        assertEquals(1500, emulator.getStripeCapturedTotal());
+        assertEquals(1000, emulator.getCardValue(cardId));
+    }
+
+    @Test
+    public void failsOpenToStripeForContactsTest() throws Exception {
+        String contactId = emulator.createContact("breaker-shopper");
+        String cardId = emulator.createAccountCard(contactId, "USD", 1000);
+        fixture.createGiftCard("BREAKER");
+        tripLightrailBreaker();
+        LightrailCircuitBreakers.setFailOpenToStripe(true);
+
+        SplitTenderChargeRequest request = SplitTenderChargeRequest.builder(1500, "USD")
+                .useLightrailShopperId("breaker-shopper")
+                .useStripeToken("tok_visa")
+                .build();
+        SimulatedStripeLightrailSplitTenderCharge simulatedCharge = StripeLightrailSplitTenderCharge.simulate(request);
+        assertTrue(simulatedCharge.isLightrailSkipped());
+        assertEquals(1500, simulatedCharge.getStripeShare());
+
+        request = SplitTenderChargeRequest.builder(1500, "USD")
+                .useLightrailContact(contactId)
+                .useStripeToken("tok_visa")
+                .build();
+        simulatedCharge = StripeLightrailSplitTenderCharge.simulate(request);
+        assertTrue(simulatedCharge.isLightrailSkipped());
+        simulatedCharge.commit();
+        assertEquals(1000, emulator.getCardValue(cardId));
+        assertEquals(1500, emulator.getStripeCapturedTotal());
+    }
+
+    @Test
+    public void skipsPendingChargeWhileStripeIsOpenTest() throws Exception {
+        fixture.createGiftCard("BREAKER");
+        LightrailCircuitBreakers.getStripe().onFailure();
+        LightrailCircuitBreakers.getStripe().onFailure();
+
+        try {
+            StripeLightrailSplitTenderCharge.create(SplitTenderFixture.request("BREAKER", "breaker-stripe-open"), 500, 1000);
+            fail("The Stripe breaker should be open.");
+        } catch (ThirdPartyException e) {
+            assertTrue(e.getCause() instanceof CircuitOpenException);
+        }
+        assertEquals(0, emulator.getLightrailTransactionCount());
+    }
+}
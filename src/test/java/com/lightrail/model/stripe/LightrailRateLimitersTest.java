@@ -0,0 +1,84 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.CircuitOpenException;
+import com.lightrail.exceptions.RateLimitedException;
+import com.lightrail.helpers.CircuitBreaker;
+import com.lightrail.helpers.RateLimiter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LightrailRateLimitersTest {
+
+    @Before
+    public void setUp() {
+        LightrailRateLimiters.setLightrail(new RateLimiter(1, 1));
+        LightrailRateLimiters.setStripe(new RateLimiter(1, 1));
+        LightrailRateLimiters.setMaxWait(0, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        LightrailRateLimiters.setLightrail(null);
+        LightrailRateLimiters.setStripe(null);
+        LightrailRateLimiters.setMaxWait(1, TimeUnit.SECONDS);
+        LightrailCircuitBreakers.setLightrail(null);
+    }
+
+    @Test
+    public void callsBeyondTheLimitAreRejectedTest() throws Exception {
+        LightrailRateLimiters.acquire(MetricsRegistry.Phase.LIGHTRAIL_SIMULATE);
+        try {
+            LightrailRateLimiters.acquire(MetricsRegistry.Phase.LIGHTRAIL_PENDING_CHARGE);
+            fail("The call should have been rate limited.");
+        } catch (RateLimitedException e) {
+            //expected
+        }
+        LightrailRateLimiters.acquire(MetricsRegistry.Phase.STRIPE_CHARGE); //a separate limit
+
+        assertEquals(1, LightrailRateLimiters.getLightrail().getRejectedCalls());
+    }
+
+    @Test
+    public void checkoutsAreRejectedBeforeAnyLegWhileBackedUpTest() throws Exception {
+        LightrailRateLimiters.acquire(MetricsRegistry.Phase.STRIPE_CHARGE);
+        LightrailRateLimiters.admit(true, false);
+        try {
+            LightrailRateLimiters.admit(true, true);
+            fail("The checkout should have been rejected.");
+        } catch (RateLimitedException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void settlementCallsWaitInsteadOfFailingTest() throws Exception {
+        LightrailRateLimiters.getLightrail().setRate(50, 1);
+        LightrailRateLimiters.acquire(MetricsRegistry.Phase.LIGHTRAIL_PENDING_CHARGE);
+        LightrailRateLimiters.acquire(MetricsRegistry.Phase.LIGHTRAIL_CAPTURE);
+
+        assertEquals(0, LightrailRateLimiters.getLightrail().getRejectedCalls());
+        assertEquals(1, LightrailRateLimiters.getLightrail().getDelayedCalls());
+    }
+
+    @Test
+    public void callsRejectedByAnOpenBreakerTakeNoTokenTest() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 1, TimeUnit.HOURS);
+        circuitBreaker.onFailure();
+        LightrailCircuitBreakers.setLightrail(circuitBreaker);
+        try {
+            LightrailCircuitBreakers.beforeCall(MetricsRegistry.Phase.LIGHTRAIL_SIMULATE);
+            fail("The call should have been rejected by the breaker.");
+        } catch (CircuitOpenException e) {
+            //expected
+        }
+        LightrailCircuitBreakers.setLightrail(null);
+
+        LightrailRateLimiters.acquire(MetricsRegistry.Phase.LIGHTRAIL_SIMULATE);
+        assertEquals(0, LightrailRateLimiters.getLightrail().getRejectedCalls());
+    }
+}
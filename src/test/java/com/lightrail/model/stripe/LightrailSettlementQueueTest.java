@@ -0,0 +1,170 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.emulator.SplitTenderFixture;
+import com.lightrail.exceptions.CouldNotFindObjectException;
+import com.lightrail.exceptions.ThirdPartyException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LightrailSettlementQueueTest {
+    private LightrailSettlementQueue queue;
+
+    @Before
+    public void setUp() {
+        queue = new LightrailSettlementQueue(2, 3, 1, 10, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        queue.close();
+    }
+
+    @Test
+    public void retriesConnectionFailuresTest() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> settlement = queue.submit("settlement-retried", LightrailSettlementQueue.Operation.CAPTURE, () -> {
+            if (calls.incrementAndGet() < 3)
+                throw new IOException("connection reset");
+            return "captured";
+        });
+
+        assertEquals("captured", settlement.get(5, TimeUnit.SECONDS));
+        assertEquals(3, calls.get());
+        assertTrue(queue.awaitEmpty(5, TimeUnit.SECONDS));
+        assertEquals(1, queue.getSettledCount());
+        assertEquals(0, queue.getAbandonedCount());
+    }
+
+    @Test
+    public void abandonsAfterLastAttemptTest() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> settlement = queue.submit("settlement-abandoned", LightrailSettlementQueue.Operation.VOID, () -> {
+            calls.incrementAndGet();
+            throw new IOException("connection reset");
+        });
+
+        try {
+            settlement.get(5, TimeUnit.SECONDS);
+            fail("The settlement should have been abandoned.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(3, calls.get());
+        assertEquals(1, queue.getAbandonedCount());
+    }
+
+    @Test
+    public void doesNotRetryOtherFailuresTest() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> settlement = queue.submit("settlement-not-found", LightrailSettlementQueue.Operation.CAPTURE, () -> {
+            calls.incrementAndGet();
+            throw new CouldNotFindObjectException("No such transaction.");
+        });
+
+        try {
+            settlement.get(5, TimeUnit.SECONDS);
+            fail("The settlement should have failed.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CouldNotFindObjectException);
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void deduplicatesByIdempotencyKeyTest() throws Exception {
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> first = queue.submit("settlement-duplicate", LightrailSettlementQueue.Operation.CAPTURE, () -> {
+            calls.incrementAndGet();
+            release.join();
+            return "captured";
+        });
+        CompletableFuture<String> second = queue.submit("settlement-duplicate", LightrailSettlementQueue.Operation.CAPTURE, () -> {
+            calls.incrementAndGet();
+            return "captured again";
+        });
+
+        assertSame(first, second);
+        assertEquals(1, queue.getDepth());
+        Thread.sleep(20);
+        assertTrue(queue.getOldestAge(TimeUnit.MILLISECONDS) >= 20);
+
+        release.complete(null);
+        assertEquals("captured", second.get(5, TimeUnit.SECONDS));
+        assertTrue(queue.awaitEmpty(5, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+        assertEquals(0, queue.getDepth());
+        assertEquals(0, queue.getOldestAge(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void conflictingOperationIsRejectedTest() throws Exception {
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        CompletableFuture<String> capture = queue.submit("settlement-conflict", LightrailSettlementQueue.Operation.CAPTURE, () -> {
+            release.join();
+            return "captured";
+        });
+        CompletableFuture<Integer> doVoid = queue.submit("settlement-conflict", LightrailSettlementQueue.Operation.VOID, () -> 0);
+
+        try {
+            doVoid.get(5, TimeUnit.SECONDS);
+            fail("The void should have been rejected.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        release.complete(null);
+        assertEquals("captured", capture.get(5, TimeUnit.SECONDS));
+        assertTrue(queue.awaitEmpty(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void splitTenderCaptureIsQueuedTest() throws Exception {
+        SplitTenderFixture fixture = SplitTenderFixture.install();
+        LightrailSettlementQueue.setDefault(queue);
+        try {
+            StripeLightrailSplitTenderCharge charge = fixture.createSplitCharge("SETTLEMENT", "settlement-capture");
+
+            LightrailCharge capturedCharge = charge.getLightrailCapture().get(5, TimeUnit.SECONDS);
+            assertEquals(1000, capturedCharge.getAmount());
+            assertEquals(0, fixture.getEmulator().getCardValue(capturedCharge.getTransactionObject().getCardId()));
+            assertEquals(500, fixture.getEmulator().getStripeCapturedTotal());
+        } finally {
+            LightrailSettlementQueue.setDefault(null);
+            fixture.uninstall();
+        }
+    }
+
+    @Test
+    public void splitTenderVoidIsQueuedTest() throws Exception {
+        SplitTenderFixture fixture = SplitTenderFixture.install();
+        LightrailSettlementQueue.setDefault(queue);
+        try {
+            String cardId = fixture.createGiftCard("SETTLEMENT-VOID");
+            fixture.getEmulator().declineStripeSource("tok_chargeDeclined");
+            SplitTenderChargeRequest request = SplitTenderFixture.request("SETTLEMENT-VOID", "settlement-void", 1500, "tok_chargeDeclined");
+
+            try {
+                StripeLightrailSplitTenderCharge.create(request, 500, 1000);
+                fail("The Stripe charge should have been declined.");
+            } catch (ThirdPartyException e) {
+                //expected
+            }
+
+            assertTrue(queue.awaitEmpty(5, TimeUnit.SECONDS));
+            assertEquals(1000, fixture.getEmulator().getCardValue(cardId));
+            assertEquals(1, queue.getSettledCount());
+        } finally {
+            LightrailSettlementQueue.setDefault(null);
+            fixture.uninstall();
+        }
+    }
+}
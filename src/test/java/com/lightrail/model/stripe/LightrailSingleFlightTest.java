@@ -0,0 +1,150 @@
+package com.lightrail.model.stripe;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.UnaryOperator;
+
+import static org.junit.Assert.*;
+
+public class LightrailSingleFlightTest {
+    private LightrailSingleFlight singleFlight;
+    private HistogramMetricsRegistry metrics;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        singleFlight = new LightrailSingleFlight(1);
+        LightrailSingleFlight.setDefault(singleFlight);
+        metrics = new HistogramMetricsRegistry();
+        LightrailMetrics.setRegistry(metrics);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        LightrailSingleFlight.setDefault(null);
+        LightrailMetrics.setRegistry(null);
+        executor.shutdownNow();
+    }
+
+    private Future<String> callInBackground(String key, AtomicInteger calls, CompletableFuture<String> result) {
+        return executor.submit(() -> LightrailSingleFlight.call(MetricsRegistry.Phase.LIGHTRAIL_SIMULATE, key, () -> {
+            calls.incrementAndGet();
+            return result.join();
+        }, UnaryOperator.identity()));
+    }
+
+    private static void waitFor(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline)
+                fail("Timed out.");
+            Thread.yield();
+        }
+    }
+
+    @Test
+    public void identicalCallsInFlightShareOneCallTest() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> result = new CompletableFuture<>();
+
+        Future<String> leader = callInBackground("simulation", calls, result);
+        waitFor(() -> singleFlight.getInFlightCount() == 1);
+        Future<String> follower = callInBackground("simulation", calls, result);
+        waitFor(() -> singleFlight.getCoalescedCount() == 1);
+        result.complete("simulated");
+
+        assertEquals("simulated", leader.get(10, TimeUnit.SECONDS));
+        assertEquals("simulated", follower.get(10, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+        assertEquals(1, singleFlight.getLeaderCount());
+        assertEquals(1, metrics.getCoalescedCount(MetricsRegistry.Phase.LIGHTRAIL_SIMULATE));
+        assertEquals(0, singleFlight.getInFlightCount());
+    }
+
+    @Test
+    public void eachCallerGetsItsOwnCopyTest() throws Exception {
+        CompletableFuture<StringBuilder> result = new CompletableFuture<>();
+        AtomicInteger calls = new AtomicInteger();
+        Callable<StringBuilder> call = () -> LightrailSingleFlight.call(MetricsRegistry.Phase.LIGHTRAIL_SIMULATE, "mutable", () -> {
+            calls.incrementAndGet();
+            return result.join();
+        }, StringBuilder::new);
+
+        Future<StringBuilder> leader = executor.submit(call);
+        waitFor(() -> singleFlight.getInFlightCount() == 1);
+        Future<StringBuilder> follower = executor.submit(call);
+        waitFor(() -> singleFlight.getCoalescedCount() == 1);
+        StringBuilder shared = new StringBuilder("simulated");
+        result.complete(shared);
+
+        StringBuilder leaderCopy = leader.get(10, TimeUnit.SECONDS);
+        StringBuilder followerCopy = follower.get(10, TimeUnit.SECONDS);
+        assertNotSame(leaderCopy, followerCopy);
+        assertNotSame(shared, leaderCopy);
+        leaderCopy.append(" and changed");
+        assertEquals("simulated", followerCopy.toString());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void failureIsSharedTest() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> result = new CompletableFuture<>();
+
+        Future<String> leader = callInBackground("failing", calls, result);
+        waitFor(() -> singleFlight.getInFlightCount() == 1);
+        Future<String> follower = callInBackground("failing", calls, result);
+        waitFor(() -> singleFlight.getCoalescedCount() == 1);
+        result.completeExceptionally(new IOException("connection reset"));
+
+        for (Future<String> call : new Future[]{leader, follower}) {
+            try {
+                call.get(10, TimeUnit.SECONDS);
+                fail("The failure should have been shared.");
+            } catch (ExecutionException e) {
+                assertTrue(AsyncCalls.unwrap(e) instanceof IOException);
+            }
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void callsBeyondMaxKeysAreNotCoalescedTest() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> result = new CompletableFuture<>();
+
+        Future<String> leader = callInBackground("first", calls, result);
+        waitFor(() -> singleFlight.getInFlightCount() == 1);
+        String other = LightrailSingleFlight.call(MetricsRegistry.Phase.LIGHTRAIL_SIMULATE, "second", () -> "direct", UnaryOperator.identity());
+        result.complete("simulated");
+
+        assertEquals("direct", other);
+        assertEquals("simulated", leader.get(10, TimeUnit.SECONDS));
+        assertEquals(1, singleFlight.getOverflowCount());
+        assertEquals(0, singleFlight.getCoalescedCount());
+    }
+
+    @Test
+    public void completedCallsAreNotReusedTest() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        LightrailSingleFlight.call(MetricsRegistry.Phase.LIGHTRAIL_SIMULATE, "repeated", () -> calls.incrementAndGet(), UnaryOperator.identity());
+        LightrailSingleFlight.call(MetricsRegistry.Phase.LIGHTRAIL_SIMULATE, "repeated", () -> calls.incrementAndGet(), UnaryOperator.identity());
+
+        assertEquals(2, calls.get());
+        assertEquals(2, singleFlight.getLeaderCount());
+        assertEquals(0, singleFlight.getCoalescedCount());
+    }
+}
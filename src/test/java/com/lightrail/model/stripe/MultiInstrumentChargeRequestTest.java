@@ -0,0 +1,78 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.BadParameterException;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MultiInstrumentChargeRequestTest {
+
+    @Test
+    public void instrumentsAreChargedInOrderWithTheirOwnKeysTest() {
+        SplitAllocationPolicy policy = SplitAllocationPolicies.capLightrailShare(50);
+        MultiInstrumentChargeRequest request = MultiInstrumentChargeRequest.builder(1000, "USD")
+                .addLightrailGiftCode("CODE-1")
+                .addLightrailContact("contact-1")
+                .addLightrailCardId("card-1")
+                .useStripeToken("tok_visa")
+                .setUserSuppliedId("order-1")
+                .setAllocationPolicy(policy)
+                .build();
+
+        List<SplitTenderChargeRequest> instruments = request.getInstruments();
+        assertEquals(3, instruments.size());
+        assertEquals("CODE-1", instruments.get(0).getCode());
+        assertNull(instruments.get(0).getCardId());
+        assertEquals("contact-1", instruments.get(1).getContact());
+        assertEquals("card-1", instruments.get(2).getCardId());
+        for (int i = 0; i < instruments.size(); i++) {
+            assertEquals("order-1-" + i, instruments.get(i).getUserSuppliedId());
+            assertEquals(1000, instruments.get(i).getAmount());
+            assertEquals("tok_visa", instruments.get(i).getStripeToken());
+            assertSame(policy, instruments.get(i).getAllocationPolicy());
+        }
+        assertSame(instruments, request.getInstruments());
+    }
+
+    @Test
+    public void generatedKeyIsSharedByTheInstrumentsTest() {
+        MultiInstrumentChargeRequest request = MultiInstrumentChargeRequest.builder(1000, "USD")
+                .addLightrailGiftCode("CODE-1")
+                .addLightrailGiftCode("CODE-2")
+                .build();
+        assertNull(request.getInstruments().get(0).getUserSuppliedId());
+
+        request = request.withUserSuppliedId("generated");
+        assertEquals("generated-0", request.getInstruments().get(0).getUserSuppliedId());
+        assertEquals("generated-1", request.getInstruments().get(1).getUserSuppliedId());
+    }
+
+    @Test(expected = BadParameterException.class)
+    public void sameInstrumentTwiceTest() {
+        MultiInstrumentChargeRequest.builder(1000, "USD")
+                .addLightrailGiftCode("CODE-1")
+                .addLightrailGiftCode("CODE-1");
+    }
+
+    @Test(expected = BadParameterException.class)
+    public void sharesMustMatchTheInstrumentsTest() throws Exception {
+        MultiInstrumentChargeRequest request = MultiInstrumentChargeRequest.builder(1000, "USD")
+                .addLightrailGiftCode("CODE-1")
+                .addLightrailGiftCode("CODE-2")
+                .useStripeToken("tok_visa")
+                .build();
+        MultiInstrumentSplitTenderCharge.create(request, new int[]{500});
+    }
+
+    @Test(expected = BadParameterException.class)
+    public void sharesMustNotExceedTheAmountTest() throws Exception {
+        MultiInstrumentChargeRequest request = MultiInstrumentChargeRequest.builder(1000, "USD")
+                .addLightrailGiftCode("CODE-1")
+                .addLightrailGiftCode("CODE-2")
+                .useStripeToken("tok_visa")
+                .build();
+        MultiInstrumentSplitTenderCharge.create(request, new int[]{600, 600});
+    }
+}
@@ -0,0 +1,176 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.emulator.LightrailStripeEmulator;
+import com.lightrail.emulator.SplitTenderFixture;
+import com.lightrail.exceptions.InsufficientValueException;
+import com.lightrail.exceptions.ThirdPartyException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MultiInstrumentSplitTenderChargeTest {
+    private SplitTenderFixture fixture;
+    private LightrailStripeEmulator emulator;
+    private Path directory;
+    private SplitTenderJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        fixture = SplitTenderFixture.install();
+        emulator = fixture.getEmulator();
+        directory = Files.createTempDirectory("multi-instrument-journal");
+        journal = new SplitTenderJournal(directory);
+        SplitTenderJournal.setDefault(journal);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SplitTenderJournal.setDefault(null);
+        journal.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files)
+                Files.delete(file);
+        }
+        Files.delete(directory);
+        fixture.uninstall();
+    }
+
+    private static MultiInstrumentChargeRequest request(String idempotencyKey, int amount, String... codes) {
+        MultiInstrumentChargeRequest.Builder builder = MultiInstrumentChargeRequest.builder(amount, "USD")
+                .useStripeToken("tok_visa")
+                .setUserSuppliedId(idempotencyKey);
+        for (String code : codes)
+            builder.addLightrailGiftCode(code);
+        return builder.build();
+    }
+
+    @Test
+    public void simulationGivesBackFromTheLastInstrumentsTest() throws Exception {
+        emulator.createGiftCard("MULTI-SIMULATE-1", "USD", 600);
+        emulator.createGiftCard("MULTI-SIMULATE-2", "USD", 380);
+        emulator.setLatency(LightrailStripeEmulator.Service.LIGHTRAIL, 300, 300, TimeUnit.MILLISECONDS);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            long start = System.nanoTime();
+            SimulatedMultiInstrumentSplitTenderCharge simulated = MultiInstrumentSplitTenderCharge.simulate(request("multi-simulate", 1000, "MULTI-SIMULATE-1", "MULTI-SIMULATE-2"), executor);
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertTrue("The instruments should have been simulated at once, took " + elapsedMillis + "ms.", elapsedMillis < 550);
+            assertArrayEquals(new int[]{600, 350}, simulated.getLightrailShares()); //Stripe is charged its minimum
+            assertEquals(50, simulated.getStripeShare());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void createChargesEveryInstrumentAndStripeTest() throws Exception {
+        String firstCardId = emulator.createGiftCard("MULTI-CREATE-1", "USD", 600);
+        String secondCardId = emulator.createGiftCard("MULTI-CREATE-2", "USD", 400);
+
+        MultiInstrumentSplitTenderCharge charge = MultiInstrumentSplitTenderCharge.create(request("multi-create", 1500, "MULTI-CREATE-1", "MULTI-CREATE-2"), new int[]{600, 400});
+
+        assertArrayEquals(new int[]{600, 400}, charge.getLightrailShares());
+        assertEquals(500, charge.getStripeShare());
+        assertEquals(0, emulator.getCardValue(firstCardId));
+        assertEquals(0, emulator.getCardValue(secondCardId));
+        assertEquals(500, emulator.getStripeCapturedTotal());
+        assertEquals(Collections.emptySet(), journal.getIncompleteTransactions());
+    }
+
+    @Test
+    public void failedPendingChargeVoidsTheOthersTest() throws Exception {
+        String firstCardId = emulator.createGiftCard("MULTI-SHORT-1", "USD", 600);
+        String secondCardId = emulator.createGiftCard("MULTI-SHORT-2", "USD", 300);
+
+        try {
+            MultiInstrumentSplitTenderCharge.create(request("multi-short", 1500, "MULTI-SHORT-1", "MULTI-SHORT-2"), new int[]{600, 400});
+            fail("The second instrument should not have covered its share.");
+        } catch (InsufficientValueException e) {
+            //expected
+        }
+
+        assertEquals(600, emulator.getCardValue(firstCardId));
+        assertEquals(300, emulator.getCardValue(secondCardId));
+        assertEquals(0, emulator.getStripeChargeCount());
+        assertEquals(Collections.emptySet(), journal.getIncompleteTransactions());
+    }
+
+    @Test
+    public void pendingChargeWithLostResponseIsVoidedTest() throws Exception {
+        String firstCardId = emulator.createGiftCard("MULTI-LOST-HOLD-1", "USD", 600);
+        String secondCardId = emulator.createGiftCard("MULTI-LOST-HOLD-2", "USD", 400);
+        emulator.loseNextResponses(LightrailStripeEmulator.Service.LIGHTRAIL, 1);
+
+        try {
+            MultiInstrumentSplitTenderCharge.create(request("multi-lost-hold", 1500, "MULTI-LOST-HOLD-1", "MULTI-LOST-HOLD-2"), new int[]{600, 400});
+            fail("The response to a pending charge should have been lost.");
+        } catch (IOException e) {
+            //expected
+        }
+
+        assertEquals(600, emulator.getCardValue(firstCardId)); //the pending charge was made, found and voided
+        assertEquals(400, emulator.getCardValue(secondCardId));
+        assertEquals(0, emulator.getStripeChargeCount());
+        assertEquals(Collections.emptySet(), journal.getIncompleteTransactions());
+    }
+
+    @Test
+    public void declinedStripeChargeVoidsEveryInstrumentTest() throws Exception {
+        String firstCardId = emulator.createGiftCard("MULTI-DECLINED-1", "USD", 600);
+        String secondCardId = emulator.createGiftCard("MULTI-DECLINED-2", "USD", 400);
+        emulator.declineStripeSource("tok_visa");
+
+        try {
+            MultiInstrumentSplitTenderCharge.create(request("multi-declined", 1500, "MULTI-DECLINED-1", "MULTI-DECLINED-2"), new int[]{600, 400});
+            fail("The Stripe charge should have been declined.");
+        } catch (ThirdPartyException e) {
+            //expected
+        }
+
+        assertEquals(600, emulator.getCardValue(firstCardId));
+        assertEquals(400, emulator.getCardValue(secondCardId));
+        assertEquals(Collections.emptySet(), journal.getIncompleteTransactions());
+    }
+
+    @Test
+    public void lostStripeResponseIsRefundedOnRecoveryTest() throws Exception {
+        String firstCardId = emulator.createGiftCard("MULTI-LOST-STRIPE-1", "USD", 600);
+        String secondCardId = emulator.createGiftCard("MULTI-LOST-STRIPE-2", "USD", 400);
+        emulator.loseNextResponses(LightrailStripeEmulator.Service.STRIPE, 1);
+
+        try {
+            MultiInstrumentSplitTenderCharge.create(request("multi-lost-stripe", 1500, "MULTI-LOST-STRIPE-1", "MULTI-LOST-STRIPE-2"), new int[]{600, 400});
+            fail("The Stripe response should have been lost.");
+        } catch (ThirdPartyException e) {
+            //expected
+        }
+        assertEquals(600, emulator.getCardValue(firstCardId));
+        assertEquals(400, emulator.getCardValue(secondCardId));
+        assertEquals(500, emulator.getStripeCapturedTotal());
+        assertEquals(new HashSet<>(Arrays.asList("multi-lost-stripe-0", "multi-lost-stripe-1")), journal.getIncompleteTransactions());
+
+        Map<String, SplitTenderJournal.Recovery> recoveries = journal.recover();
+
+        assertEquals(SplitTenderJournal.Recovery.COMPENSATED, recoveries.get("multi-lost-stripe-0"));
+        assertEquals(SplitTenderJournal.Recovery.COMPENSATED, recoveries.get("multi-lost-stripe-1"));
+        assertEquals(0, emulator.getStripeCapturedTotal());
+        assertEquals(600, emulator.getCardValue(firstCardId));
+        assertEquals(400, emulator.getCardValue(secondCardId));
+        assertEquals(Collections.emptySet(), journal.getIncompleteTransactions());
+    }
+}
@@ -0,0 +1,106 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.InsufficientValueException;
+import com.lightrail.model.api.objects.RequestParameters;
+import com.lightrail.model.business.LightrailTransaction;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SplitAllocationPoliciesTest {
+
+    @After
+    public void tearDown() {
+        SplitAllocationPolicies.setDefault(null);
+        SplitAllocationPolicies.setStripeMinimum("XTS", 50);
+    }
+
+    private static SplitTenderChargeRequest request(int amount, String currency, SplitAllocationPolicy policy) {
+        return SplitTenderChargeRequest.builder(amount, currency)
+                .useLightrailCardId("card-1")
+                .useStripeToken("tok_visa")
+                .setAllocationPolicy(policy)
+                .build();
+    }
+
+    @Test
+    public void giftCardFirstLeavesStripeAtLeastItsMinimumTest() throws Exception {
+        SplitTenderChargeRequest request = request(1000, "USD", null);
+        assertEquals(1000, SplitAllocationPolicies.getMaxLightrailShare(request));
+        assertEquals(1000, SplitAllocationPolicies.allocate(request, 1000));
+        assertEquals(600, SplitAllocationPolicies.allocate(request, 600));
+        assertEquals(950, SplitAllocationPolicies.allocate(request, 990));
+        assertEquals(0, SplitAllocationPolicies.allocate(request, 0));
+    }
+
+    @Test
+    public void stripeMinimumsDependOnTheCurrencyTest() throws Exception {
+        assertEquals(30, SplitAllocationPolicies.getStripeMinimum("gbp"));
+        assertEquals(400, SplitAllocationPolicies.getStripeMinimum("HKD"));
+        assertEquals(50, SplitAllocationPolicies.getStripeMinimum("XTS"));
+
+        assertEquals(970, SplitAllocationPolicies.allocate(request(1000, "GBP", null), 990));
+        assertEquals(600, SplitAllocationPolicies.allocate(request(1000, "HKD", null), 990));
+
+        SplitAllocationPolicies.setStripeMinimum("xts", 100);
+        assertEquals(900, SplitAllocationPolicies.allocate(request(1000, "XTS", null), 990));
+    }
+
+    @Test(expected = InsufficientValueException.class)
+    public void amountBelowTheStripeMinimumMustBeCoveredByLightrailTest() throws Exception {
+        SplitAllocationPolicies.allocate(request(40, "USD", null), 30);
+    }
+
+    @Test
+    public void cappedLightrailShareTest() throws Exception {
+        SplitTenderChargeRequest request = request(1001, "USD", SplitAllocationPolicies.capLightrailShare(50));
+        assertEquals(500, SplitAllocationPolicies.getMaxLightrailShare(request));
+        assertEquals(500, SplitAllocationPolicies.allocate(request, 500));
+        assertEquals(200, SplitAllocationPolicies.allocate(request, 200));
+    }
+
+    @Test
+    public void feeMinimizingSkipsTinyBalancesTest() throws Exception {
+        SplitAllocationPolicy policy = SplitAllocationPolicies.minimizeCardFees(30, 290, 5);
+        assertEquals(0, SplitAllocationPolicies.allocate(request(1000, "USD", policy), 5));
+        assertEquals(400, SplitAllocationPolicies.allocate(request(1000, "USD", policy), 400));
+        assertEquals(1000, SplitAllocationPolicies.allocate(request(1000, "USD", policy), 1000));
+        assertEquals(950, SplitAllocationPolicies.allocate(request(1000, "USD", policy), 990));
+        assertEquals(30, SplitAllocationPolicies.allocate(request(30, "USD", policy), 30));
+    }
+
+    @Test
+    public void requestsUseTheDefaultPolicyUnlessGivenOneTest() {
+        SplitAllocationPolicy capped = SplitAllocationPolicies.capLightrailShare(10);
+        SplitAllocationPolicies.setDefault(capped);
+        assertSame(capped, request(1000, "USD", null).getAllocationPolicy());
+        assertSame(SplitAllocationPolicies.giftCardFirst(), request(1000, "USD", SplitAllocationPolicies.giftCardFirst()).withUserSuppliedId("key").getAllocationPolicy());
+    }
+
+    @Test
+    public void zeroCapSimulatesWithoutCallingLightrailTest() throws Exception {
+        SplitTenderChargeRequest request = SplitTenderChargeRequest.builder(1000, "USD")
+                .useLightrailCardId("card-1")
+                .useStripeToken("tok_visa")
+                .setAllocationPolicy(SplitAllocationPolicies.capLightrailShare(0))
+                .setGateway(new DefaultLightrailStripeGateway() {
+                    @Override
+                    public LightrailTransaction simulateTransaction(RequestParameters params) throws IOException {
+                        throw new IOException("Lightrail should not have been called.");
+                    }
+                })
+                .build();
+
+        SimulatedStripeLightrailSplitTenderCharge simulatedCharge = StripeLightrailSplitTenderCharge.simulate(request);
+        assertEquals(0, simulatedCharge.getLightrailShare());
+        assertEquals(1000, simulatedCharge.getStripeShare());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capMustBeAPercentageTest() {
+        SplitAllocationPolicies.capLightrailShare(101);
+    }
+}
@@ -0,0 +1,144 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.emulator.LightrailStripeEmulator;
+import com.lightrail.emulator.SplitTenderFixture;
+import com.lightrail.exceptions.BadParameterException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SplitTenderAuthorizationTest {
+    private SplitTenderFixture fixture;
+    private LightrailStripeEmulator emulator;
+
+    @Before
+    public void setUp() {
+        fixture = SplitTenderFixture.install();
+        emulator = fixture.getEmulator();
+    }
+
+    @After
+    public void tearDown() {
+        fixture.uninstall();
+    }
+
+    private SplitTenderAuthorization authorize(String code) throws Exception {
+        return fixture.authorize(code, "authorize-" + code);
+    }
+
+    @Test
+    public void authorizationHoldsBothLegsTest() throws Exception {
+        SplitTenderAuthorization authorization = authorize("AUTHORIZE-HOLD");
+        String cardId = authorization.getPendingLightrailCharge().getTransactionObject().getCardId();
+
+        assertEquals(1000, authorization.getLightrailShare());
+        assertEquals(500, authorization.getStripeShare());
+        assertEquals(0, emulator.getCardValue(cardId));
+        assertEquals(Boolean.FALSE, emulator.getStripeCharge(authorization.getStripeCharge().getId()).get("captured"));
+        assertEquals(0, emulator.getStripeCapturedTotal());
+    }
+
+    @Test
+    public void fullCaptureSettlesBothLegsTest() throws Exception {
+        SplitTenderAuthorization authorization = authorize("AUTHORIZE-FULL");
+        String cardId = authorization.getPendingLightrailCharge().getTransactionObject().getCardId();
+
+        StripeLightrailSplitTenderCharge charge = authorization.capture();
+
+        assertEquals(1000, charge.getLightrailShare());
+        assertEquals(500, charge.getStripeShare());
+        assertEquals(0, emulator.getCardValue(cardId));
+        assertEquals(500, emulator.getStripeCapturedTotal());
+    }
+
+    @Test
+    public void partialCaptureReleasesTheRestTest() throws Exception {
+        SplitTenderAuthorization authorization = authorize("AUTHORIZE-PARTIAL");
+        String cardId = authorization.getPendingLightrailCharge().getTransactionObject().getCardId();
+
+        authorization.capture(1200, SplitTenderRefund.Allocation.PROPORTIONAL);
+
+        assertEquals(200, emulator.getCardValue(cardId));
+        assertEquals(400, emulator.getStripeCapturedTotal());
+    }
+
+    @Test
+    public void voidReleasesBothLegsTest() throws Exception {
+        SplitTenderAuthorization authorization = authorize("AUTHORIZE-VOID");
+        String cardId = authorization.getPendingLightrailCharge().getTransactionObject().getCardId();
+
+        authorization.doVoid();
+
+        assertEquals(1000, emulator.getCardValue(cardId));
+        assertEquals(Boolean.TRUE, emulator.getStripeCharge(authorization.getStripeCharge().getId()).get("refunded"));
+        assertEquals(0, emulator.getStripeCapturedTotal());
+    }
+
+    @Test
+    public void retriedCaptureDoesNotCaptureTwiceTest() throws Exception {
+        SplitTenderAuthorization authorization = authorize("AUTHORIZE-RETRIED");
+        String cardId = authorization.getPendingLightrailCharge().getTransactionObject().getCardId();
+
+        emulator.failNextRequests(LightrailStripeEmulator.Service.LIGHTRAIL, 1, 500);
+        try {
+            authorization.capture(1200, SplitTenderRefund.Allocation.PROPORTIONAL);
+            fail("The Lightrail leg should have failed.");
+        } catch (Exception e) {
+            //the Stripe leg was captured regardless
+        }
+        authorization.capture(1200, SplitTenderRefund.Allocation.PROPORTIONAL);
+
+        assertEquals(200, emulator.getCardValue(cardId));
+        assertEquals(400, emulator.getStripeCapturedTotal());
+    }
+
+    @Test
+    public void partialCaptureInterruptedAfterTheCaptureIsReleasedOnRecoveryTest() throws Exception {
+        Path directory = Files.createTempDirectory("authorization-journal");
+        SplitTenderJournal journal = new SplitTenderJournal(directory);
+        SplitTenderJournal.setDefault(journal);
+        try {
+            SplitTenderAuthorization authorization = authorize("AUTHORIZE-INTERRUPTED");
+            String cardId = authorization.getPendingLightrailCharge().getTransactionObject().getCardId();
+
+            emulator.loseNextResponses(LightrailStripeEmulator.Service.LIGHTRAIL, 1); //the capture is made, the fund is not
+            try {
+                authorization.capture(1200, SplitTenderRefund.Allocation.PROPORTIONAL);
+                fail("The response to the Lightrail capture should have been lost.");
+            } catch (IOException e) {
+                //expected
+            }
+            assertEquals(0, emulator.getCardValue(cardId));
+            assertEquals(Collections.singleton("authorize-AUTHORIZE-INTERRUPTED"), journal.getIncompleteTransactions());
+
+            Map<String, SplitTenderJournal.Recovery> recoveries = journal.recover();
+
+            assertEquals(SplitTenderJournal.Recovery.FINISHED, recoveries.get("authorize-AUTHORIZE-INTERRUPTED"));
+            assertEquals(200, emulator.getCardValue(cardId));
+            assertEquals(400, emulator.getStripeCapturedTotal());
+            assertEquals(Collections.emptySet(), journal.getIncompleteTransactions());
+        } finally {
+            SplitTenderJournal.setDefault(null);
+            journal.close();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files)
+                    Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test(expected = BadParameterException.class)
+    public void captureOfMoreThanAuthorizedIsRejectedTest() throws Exception {
+        authorize("AUTHORIZE-TOO-MUCH").capture(1501, SplitTenderRefund.Allocation.PROPORTIONAL);
+    }
+}
@@ -0,0 +1,99 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.emulator.SplitTenderFixture;
+import com.lightrail.exceptions.BadParameterException;
+import com.stripe.model.Charge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SplitTenderChargeCacheTest {
+    private SplitTenderFixture fixture;
+    private SplitTenderChargeCache cache;
+
+    @Before
+    public void setUp() {
+        fixture = SplitTenderFixture.install();
+        cache = new SplitTenderChargeCache(100, 1, TimeUnit.HOURS);
+    }
+
+    @After
+    public void tearDown() {
+        SplitTenderChargeCache.setDefault(null);
+        fixture.uninstall();
+    }
+
+    @Test
+    public void createdChargeIsRetrievedWithoutNetworkCallsTest() throws Exception {
+        SplitTenderChargeCache.setDefault(cache);
+        StripeLightrailSplitTenderCharge created = fixture.createSplitCharge("CACHE-CREATED", "cache-created");
+        long requestsAfterCreate = fixture.requestCount();
+
+        StripeLightrailSplitTenderCharge retrieved = StripeLightrailSplitTenderCharge.retrieve(SplitTenderFixture.retrieveParams("CACHE-CREATED", "cache-created", 1500));
+
+        assertEquals(requestsAfterCreate, fixture.requestCount());
+        assertEquals(created.getStripeCharge().getId(), retrieved.getStripeCharge().getId());
+        assertEquals(1000, retrieved.getLightrailShare());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void retrievedChargeIsCachedTest() throws Exception {
+        StripeLightrailSplitTenderCharge created = fixture.createSplitCharge("CACHE-RETRIEVED", "cache-retrieved");
+        SplitTenderChargeCache.setDefault(cache);
+
+        StripeLightrailSplitTenderCharge first = StripeLightrailSplitTenderCharge.retrieve(SplitTenderFixture.retrieveParams("CACHE-RETRIEVED", "cache-retrieved", 1500));
+        long requestsAfterFirst = fixture.requestCount();
+        StripeLightrailSplitTenderCharge second = StripeLightrailSplitTenderCharge.retrieve(SplitTenderFixture.retrieveParams("CACHE-RETRIEVED", "cache-retrieved", 1500));
+
+        assertEquals(requestsAfterFirst, fixture.requestCount());
+        assertEquals(created.getStripeCharge().getId(), first.getStripeCharge().getId());
+        assertSame(first, second);
+    }
+
+    @Test
+    public void knownStripeLegIsRetrievedAfterInvalidationTest() throws Exception {
+        SplitTenderChargeCache.setDefault(cache);
+        StripeLightrailSplitTenderCharge created = fixture.createSplitCharge("CACHE-INVALIDATED", "cache-invalidated");
+        cache.invalidate("cache-invalidated");
+        long requestsBefore = fixture.requestCount();
+
+        StripeLightrailSplitTenderCharge retrieved = StripeLightrailSplitTenderCharge.retrieve(SplitTenderFixture.retrieveParams("CACHE-INVALIDATED", "cache-invalidated", 1500));
+
+        assertTrue(fixture.requestCount() > requestsBefore);
+        assertEquals(created.getStripeCharge().getId(), retrieved.getStripeCharge().getId());
+    }
+
+    @Test
+    public void chargeWithQueuedCaptureIsNotCachedTest() throws Exception {
+        SplitTenderChargeCache.setDefault(cache);
+        fixture.createGiftCard("CACHE-QUEUED");
+        SplitTenderChargeRequest request = SplitTenderFixture.request("CACHE-QUEUED", "cache-queued");
+        //what a settlement queue leaves behind until it gets to the capture
+        LightrailCharge pendingCharge = StripeLightrailSplitTenderCharge.createLightrailCharge(request, 1000, false, false);
+        Charge stripeCharge = StripeLightrailSplitTenderCharge.createStripeCharge(request.getGateway(), request.toStripeParams(500, pendingCharge.getFullId(), "cache-queued"), "cache-queued");
+        SplitTenderChargeCache.putStripeCharge("cache-queued", stripeCharge);
+
+        StripeLightrailSplitTenderCharge.retrieve(SplitTenderFixture.retrieveParams("CACHE-QUEUED", "cache-queued", 1500));
+
+        assertNull(SplitTenderChargeCache.getSettled("cache-queued", 1500));
+
+        pendingCharge.capture("cache-queued-capture", StripeLightrailSplitTenderCharge.getLightrailMetadata(1500, stripeCharge.getId()));
+        StripeLightrailSplitTenderCharge retrieved = StripeLightrailSplitTenderCharge.retrieve(SplitTenderFixture.retrieveParams("CACHE-QUEUED", "cache-queued", 1500));
+
+        assertSame(retrieved, SplitTenderChargeCache.getSettled("cache-queued", 1500));
+        assertEquals(stripeCharge.getId(), retrieved.getStripeCharge().getId());
+    }
+
+    @Test(expected = BadParameterException.class)
+    public void cachedChargeWithOtherAmountIsRejectedTest() throws Exception {
+        SplitTenderChargeCache.setDefault(cache);
+        fixture.createSplitCharge("CACHE-MISMATCH", "cache-mismatch");
+
+        StripeLightrailSplitTenderCharge.retrieve(SplitTenderFixture.retrieveParams("CACHE-MISMATCH", "cache-mismatch", 1400));
+    }
+}
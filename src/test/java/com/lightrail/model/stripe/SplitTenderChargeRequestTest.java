@@ -0,0 +1,87 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.exceptions.BadParameterException;
+import com.lightrail.helpers.LightrailConstants;
+import com.lightrail.helpers.LightrailEcommerceConstants;
+import com.lightrail.helpers.StripeConstants;
+import com.lightrail.model.api.objects.RequestParameters;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SplitTenderChargeRequestTest {
+
+    @Test
+    public void roundTripsParamsTest() {
+        Map<String, Object> chargeParams = new HashMap<>();
+        chargeParams.put(StripeConstants.Parameters.AMOUNT, 1000);
+        chargeParams.put(LightrailConstants.Parameters.CURRENCY, "USD");
+        chargeParams.put(LightrailConstants.Parameters.CODE, "CODE");
+        chargeParams.put(StripeConstants.Parameters.TOKEN, "tok_visa");
+        chargeParams.put("extra", "value");
+
+        SplitTenderChargeRequest request = SplitTenderChargeRequest.fromParams(chargeParams);
+        assertEquals(1000, request.getAmount());
+        assertEquals("CODE", request.getCode());
+        assertEquals("tok_visa", request.getStripeToken());
+        assertEquals(chargeParams, request.toParams());
+    }
+
+    @Test
+    public void buildsEachLegTest() {
+        SplitTenderChargeRequest request = SplitTenderChargeRequest.builder(1000, "USD")
+                .useLightrailGiftCode("CODE")
+                .useStripeCustomer("cus_1")
+                .setUserSuppliedId("order-1")
+                .build();
+
+        RequestParameters lightrailParams = request.toLightrailRequest(400, true, null);
+        assertEquals(-400, lightrailParams.get(LightrailConstants.Parameters.VALUE));
+        assertEquals(true, lightrailParams.get(LightrailConstants.Parameters.PENDING));
+        assertEquals("CODE", lightrailParams.get(LightrailConstants.Parameters.CODE));
+        assertEquals("order-1", lightrailParams.get(LightrailConstants.Parameters.USER_SUPPLIED_ID));
+        assertFalse(lightrailParams.containsKey(StripeConstants.Parameters.CUSTOMER));
+
+        Map<String, Object> stripeParams = request.toStripeParams(600, "card/tx", "order-1");
+        assertEquals(600, stripeParams.get(StripeConstants.Parameters.AMOUNT));
+        assertEquals("cus_1", stripeParams.get(StripeConstants.Parameters.CUSTOMER));
+        Map<?, ?> metadata = (Map<?, ?>) stripeParams.get(StripeConstants.Parameters.METADATA);
+        assertEquals(1000, metadata.get(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_TOTAL));
+        assertEquals("card/tx", metadata.get(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_PARTNER_TRANSACTION_ID));
+    }
+
+    @Test(expected = BadParameterException.class)
+    public void requiresStripePaymentForStripeShareTest() {
+        SplitTenderChargeRequest.builder(1000, "USD").useLightrailGiftCode("CODE").build().toStripeParams(600, null, null);
+    }
+
+    @Test
+    public void fingerprintIgnoresIdempotencyKeyTest() {
+        SplitTenderChargeRequest request = SplitTenderChargeRequest.builder(1000, "USD")
+                .useLightrailGiftCode("CODE")
+                .useStripeToken("tok_visa")
+                .setLightrailParam("metadata", "note")
+                .setUserSuppliedId("order-1")
+                .build();
+
+        assertEquals(request.fingerprint(), request.withUserSuppliedId("order-2").fingerprint());
+        assertEquals(request.fingerprint(), SplitTenderChargeRequest.fromParams(request.toParams()).fingerprint());
+    }
+
+    @Test
+    public void fingerprintCoversEveryParameterTest() {
+        long fingerprint = SplitTenderChargeRequest.builder(1000, "USD").useLightrailGiftCode("CODE").useStripeToken("tok_visa").build().fingerprint();
+
+        assertNotEquals(fingerprint, SplitTenderChargeRequest.builder(1001, "USD").useLightrailGiftCode("CODE").useStripeToken("tok_visa").build().fingerprint());
+        assertNotEquals(fingerprint, SplitTenderChargeRequest.builder(1000, "CAD").useLightrailGiftCode("CODE").useStripeToken("tok_visa").build().fingerprint());
+        assertNotEquals(fingerprint, SplitTenderChargeRequest.builder(1000, "USD").useLightrailCardId("CODE").useStripeToken("tok_visa").build().fingerprint());
+        assertNotEquals(fingerprint, SplitTenderChargeRequest.builder(1000, "USD").useLightrailGiftCode("CODE").useStripeCustomer("tok_visa").build().fingerprint());
+        assertNotEquals(fingerprint, SplitTenderChargeRequest.builder(1000, "USD").useLightrailGiftCode("CODE").useStripeToken("tok_visa").setLightrailParam("metadata", "note").build().fingerprint());
+        assertNotEquals(
+                SplitTenderChargeRequest.builder(1000, "USD").useLightrailGiftCode("CO").useStripeToken("DEtok").build().fingerprint(),
+                SplitTenderChargeRequest.builder(1000, "USD").useLightrailGiftCode("CODE").useStripeToken("tok").build().fingerprint());
+    }
+}
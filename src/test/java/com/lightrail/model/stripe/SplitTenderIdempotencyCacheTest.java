@@ -0,0 +1,76 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.emulator.LightrailStripeEmulator;
+import com.lightrail.emulator.SplitTenderFixture;
+import com.lightrail.exceptions.BadParameterException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SplitTenderIdempotencyCacheTest {
+    private SplitTenderFixture fixture;
+    private LightrailStripeEmulator emulator;
+    private SplitTenderIdempotencyCache cache;
+
+    @Before
+    public void setUp() {
+        fixture = SplitTenderFixture.install();
+        emulator = fixture.getEmulator();
+        cache = new SplitTenderIdempotencyCache(100, 10, TimeUnit.MINUTES);
+        SplitTenderIdempotencyCache.setDefault(cache);
+    }
+
+    @After
+    public void tearDown() {
+        SplitTenderIdempotencyCache.setDefault(null);
+        fixture.uninstall();
+    }
+
+    private static SplitTenderChargeRequest splitRequest(String code, int amount, String stripeToken) {
+        return SplitTenderFixture.request(code, "idempotency-" + code, amount, stripeToken);
+    }
+
+    @Test
+    public void duplicateSubmitIsReplayedLocallyTest() throws Exception {
+        fixture.createGiftCard("REPLAYED");
+        StripeLightrailSplitTenderCharge original = StripeLightrailSplitTenderCharge.create(splitRequest("REPLAYED", 1500, "tok_visa"));
+        long requestsAfterCreate = fixture.requestCount();
+
+        StripeLightrailSplitTenderCharge replayed = StripeLightrailSplitTenderCharge.create(splitRequest("REPLAYED", 1500, "tok_visa"));
+        SimulatedStripeLightrailSplitTenderCharge simulated = StripeLightrailSplitTenderCharge.simulate(splitRequest("REPLAYED", 1500, "tok_visa"));
+
+        assertSame(original, replayed);
+        assertEquals(original.getLightrailShare(), simulated.getLightrailShare());
+        assertEquals(original.getStripeShare(), simulated.getStripeShare());
+        assertEquals(requestsAfterCreate, fixture.requestCount());
+        assertEquals(1, emulator.getStripeChargeCount());
+        assertEquals(3, cache.getHits()); //the simulate and the commit of the second create, then the simulate
+    }
+
+    @Test
+    public void mismatchedParametersAreRejectedLocallyTest() throws Exception {
+        fixture.createGiftCard("MISMATCHED");
+        StripeLightrailSplitTenderCharge.create(splitRequest("MISMATCHED", 1500, "tok_visa"));
+        long requestsAfterCreate = fixture.requestCount();
+
+        try {
+            StripeLightrailSplitTenderCharge.create(splitRequest("MISMATCHED", 1500, "tok_mastercard"));
+            fail("A request with a different Stripe token should have been rejected.");
+        } catch (BadParameterException e) {
+            //expected
+        }
+        try {
+            StripeLightrailSplitTenderCharge.createAsync(splitRequest("MISMATCHED", 1400, "tok_visa"), 400, 1000, Runnable::run).join();
+            fail("A request with a different amount should have been rejected.");
+        } catch (RuntimeException e) {
+            assertTrue(AsyncCalls.unwrap(e) instanceof BadParameterException);
+        }
+
+        assertEquals(requestsAfterCreate, fixture.requestCount());
+        assertEquals(2, cache.getRejected());
+    }
+}
@@ -0,0 +1,186 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.emulator.LightrailStripeEmulator;
+import com.lightrail.emulator.SplitTenderFixture;
+import com.lightrail.exceptions.ThirdPartyException;
+import com.lightrail.helpers.LightrailConstants;
+import com.lightrail.helpers.StripeConstants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class SplitTenderJournalRecoveryTest {
+    private SplitTenderFixture fixture;
+    private LightrailStripeEmulator emulator;
+    private Path directory;
+    private SplitTenderJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        fixture = SplitTenderFixture.install();
+        emulator = fixture.getEmulator();
+        directory = Files.createTempDirectory("split-tender-journal");
+        journal = new SplitTenderJournal(directory);
+        SplitTenderJournal.setDefault(journal);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SplitTenderJournal.setDefault(null);
+        journal.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files)
+                Files.delete(file);
+        }
+        Files.delete(directory);
+        fixture.uninstall();
+    }
+
+    @Test
+    public void completedChargeIsNotIncompleteTest() throws Exception {
+        fixture.createSplitCharge("JOURNAL-COMPLETED", "journal-recovery-completed");
+
+        assertEquals(Collections.emptySet(), journal.getIncompleteTransactions());
+        assertEquals(Collections.emptyMap(), journal.recover());
+    }
+
+    @Test
+    public void lostStripeResponseIsRefundedTest() throws Exception {
+        String cardId = fixture.createGiftCard("JOURNAL-LOST");
+        emulator.loseNextResponses(LightrailStripeEmulator.Service.STRIPE, 1);
+
+        try {
+            StripeLightrailSplitTenderCharge.create(SplitTenderFixture.request("JOURNAL-LOST", "journal-recovery-lost"), 500, 1000);
+            fail("The Stripe response should have been lost.");
+        } catch (ThirdPartyException e) {
+            //expected
+        }
+        assertEquals(1000, emulator.getCardValue(cardId));
+        assertEquals(500, emulator.getStripeCapturedTotal());
+        assertEquals(Collections.singleton("journal-recovery-lost"), journal.getIncompleteTransactions());
+
+        Map<String, SplitTenderJournal.Recovery> recoveries = journal.recover();
+
+        assertEquals(SplitTenderJournal.Recovery.COMPENSATED, recoveries.get("journal-recovery-lost"));
+        assertEquals(0, emulator.getStripeCapturedTotal());
+        assertEquals(1000, emulator.getCardValue(cardId));
+        assertEquals(Collections.emptySet(), journal.getIncompleteTransactions());
+    }
+
+    @Test
+    public void pipelinedChargeWithLostLightrailResponseIsVoidedTest() throws Exception {
+        String cardId = fixture.createGiftCard("JOURNAL-PIPELINED-LOST");
+        emulator.loseNextResponses(LightrailStripeEmulator.Service.LIGHTRAIL, 1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            StripeLightrailSplitTenderCharge.createPipelined(SplitTenderFixture.request("JOURNAL-PIPELINED-LOST", "journal-recovery-pipelined-lost"), 500, 1000, executor);
+            fail("The response to the pending charge should have been lost.");
+        } catch (IOException e) {
+            //expected
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(1000, emulator.getCardValue(cardId)); //the pending charge was made, found and voided
+        assertEquals(0, emulator.getStripeCapturedTotal());
+        assertEquals(Collections.emptySet(), journal.getIncompleteTransactions());
+    }
+
+    private LightrailCharge createPendingCharge(String cardId, String idempotencyKey) throws Exception {
+        Map<String, Object> pendingChargeParams = new HashMap<>();
+        pendingChargeParams.put(LightrailConstants.Parameters.CARD_ID, cardId);
+        pendingChargeParams.put(StripeConstants.Parameters.AMOUNT, 1000);
+        pendingChargeParams.put(LightrailConstants.Parameters.CURRENCY, "USD");
+        pendingChargeParams.put(StripeConstants.Parameters.CAPTURE, false);
+        pendingChargeParams.put(LightrailConstants.Parameters.USER_SUPPLIED_ID, idempotencyKey);
+        return LightrailCharge.create(pendingChargeParams);
+    }
+
+    private static SplitTenderChargeRequest cardRequest(String cardId, String idempotencyKey) {
+        return SplitTenderChargeRequest.builder(1500, "USD")
+                .useLightrailCardId(cardId)
+                .useStripeToken("tok_visa")
+                .setUserSuppliedId(idempotencyKey)
+                .build();
+    }
+
+    @Test
+    public void chargeInterruptedBeforeCaptureIsFinishedAfterRestartTest() throws Exception {
+        String cardId = fixture.createGiftCard("JOURNAL-CRASH");
+        SplitTenderChargeRequest request = cardRequest(cardId, "journal-recovery-crash");
+
+        //the process stops right after the Stripe charge was made
+        SplitTenderJournal.recordStarted(request, 1000);
+        LightrailCharge pendingCharge = createPendingCharge(cardId, "journal-recovery-crash");
+        Map<String, Object> stripeParams = request.toStripeParams(500, pendingCharge.getFullId(), "journal-recovery-crash");
+        SplitTenderJournal.recordStripeRequested("journal-recovery-crash", stripeParams);
+        StripeLightrailSplitTenderCharge.createStripeCharge(LightrailStripeGateways.getDefault(), stripeParams, "journal-recovery-crash");
+        journal.close();
+
+        journal = new SplitTenderJournal(directory);
+        assertEquals(Collections.singleton("journal-recovery-crash"), journal.getIncompleteTransactions());
+
+        Map<String, SplitTenderJournal.Recovery> recoveries = journal.recover();
+
+        assertEquals(SplitTenderJournal.Recovery.FINISHED, recoveries.get("journal-recovery-crash"));
+        assertEquals(500, emulator.getStripeCapturedTotal());
+        assertEquals(0, emulator.getCardValue(cardId));
+        assertEquals(Collections.emptySet(), journal.getIncompleteTransactions());
+        journal.close();
+        journal = new SplitTenderJournal(directory);
+        assertEquals(Collections.emptySet(), journal.getIncompleteTransactions());
+    }
+
+    @Test
+    public void stripeChargeNeverMadeIsCompensatedWithoutChargingTest() throws Exception {
+        String cardId = fixture.createGiftCard("JOURNAL-UNSENT");
+        SplitTenderChargeRequest request = cardRequest(cardId, "journal-recovery-unsent");
+
+        //the process stops before the Stripe request reached Stripe
+        SplitTenderJournal.recordStarted(request, 1000);
+        LightrailCharge pendingCharge = createPendingCharge(cardId, "journal-recovery-unsent");
+        long requestedAt = System.currentTimeMillis() / 1000 - SplitTenderJournal.STRIPE_REQUEST_GRACE_SECONDS - 1;
+        SplitTenderJournal.recordStripeRequested("journal-recovery-unsent", request.toStripeParams(500, pendingCharge.getFullId(), "journal-recovery-unsent"), requestedAt);
+        journal.close();
+
+        journal = new SplitTenderJournal(directory);
+        Map<String, SplitTenderJournal.Recovery> recoveries = journal.recover();
+
+        assertEquals(SplitTenderJournal.Recovery.COMPENSATED, recoveries.get("journal-recovery-unsent"));
+        assertEquals(0, emulator.getStripeCapturedTotal());
+        assertEquals(0, emulator.getStripeChargeCount());
+        assertEquals(1000, emulator.getCardValue(cardId));
+        assertEquals(Collections.emptySet(), journal.getIncompleteTransactions());
+    }
+
+    @Test
+    public void recentStripeRequestIsLeftForLaterRecoveryTest() throws Exception {
+        String cardId = fixture.createGiftCard("JOURNAL-RECENT");
+        SplitTenderChargeRequest request = cardRequest(cardId, "journal-recovery-recent");
+
+        SplitTenderJournal.recordStarted(request, 1000);
+        LightrailCharge pendingCharge = createPendingCharge(cardId, "journal-recovery-recent");
+        SplitTenderJournal.recordStripeRequested("journal-recovery-recent", request.toStripeParams(500, pendingCharge.getFullId(), "journal-recovery-recent"));
+        journal.close();
+
+        journal = new SplitTenderJournal(directory);
+        Map<String, SplitTenderJournal.Recovery> recoveries = journal.recover();
+
+        assertEquals(SplitTenderJournal.Recovery.FAILED, recoveries.get("journal-recovery-recent"));
+        assertEquals(0, emulator.getStripeChargeCount());
+        assertEquals(0, emulator.getCardValue(cardId));
+        assertEquals(Collections.singleton("journal-recovery-recent"), journal.getIncompleteTransactions());
+    }
+}
@@ -0,0 +1,156 @@
+package com.lightrail.model.stripe;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SplitTenderJournalTest {
+    private Path directory;
+    private SplitTenderJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("split-tender-journal");
+        journal = new SplitTenderJournal(directory, 4096);
+        SplitTenderJournal.setDefault(journal);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SplitTenderJournal.setDefault(null);
+        journal.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files)
+                Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    private static SplitTenderChargeRequest request(String idempotencyKey) {
+        return SplitTenderChargeRequest.builder(1500, "USD")
+                .useLightrailCardId("card-journal")
+                .useStripeToken("tok_visa")
+                .setUserSuppliedId(idempotencyKey)
+                .build();
+    }
+
+    private static Map<String, Object> stripeParams() {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("_split_tender_partner_txn_id", "card-journal/transaction");
+        Map<String, Object> params = new HashMap<>();
+        params.put("amount", 500);
+        params.put("currency", "USD");
+        params.put("source", "tok_journal");
+        params.put("metadata", metadata);
+        return params;
+    }
+
+    private SplitTenderJournal reopen() throws IOException {
+        journal.close();
+        journal = new SplitTenderJournal(directory, 4096);
+        return journal;
+    }
+
+    private long countSegments() throws IOException {
+        long count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path ignored : files)
+                count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void finishedChargesAreNotIncompleteTest() throws IOException {
+        SplitTenderJournal.recordStarted(request("journal-completed"), 1000);
+        SplitTenderJournal.recordStripeRequested("journal-completed", stripeParams());
+        SplitTenderJournal.recordCompleted("journal-completed");
+        SplitTenderJournal.recordStarted(request("journal-aborted"), 1000);
+        SplitTenderJournal.recordAborted("journal-aborted");
+
+        assertEquals(Collections.emptySet(), reopen().getIncompleteTransactions());
+    }
+
+    @Test
+    public void chargesInFlightAreIncompleteAfterReopenTest() throws IOException {
+        SplitTenderJournal.recordStarted(request("journal-started"), 1000);
+        SplitTenderJournal.recordStarted(request("journal-stripe-requested"), 1000);
+        SplitTenderJournal.recordStripeRequested("journal-stripe-requested", stripeParams());
+        SplitTenderJournal.recordReleaseRequested("journal-release-requested", "card-journal", "USD", 1500, 300, null);
+        assertEquals(Collections.emptySet(), journal.getIncompleteTransactions());
+
+        reopen();
+        assertEquals(3, journal.getIncompleteTransactions().size());
+        assertTrue(journal.getIncompleteTransactions().contains("journal-started"));
+        assertTrue(journal.getIncompleteTransactions().contains("journal-stripe-requested"));
+        assertTrue(journal.getIncompleteTransactions().contains("journal-release-requested"));
+    }
+
+    @Test
+    public void unresolvedChargesAreIncompleteTest() throws IOException {
+        SplitTenderJournal.recordStarted(request("journal-unresolved"), 1000);
+        SplitTenderJournal.recordFailure("journal-unresolved", new IOException("connection reset"));
+        assertEquals(Collections.singleton("journal-unresolved"), journal.getIncompleteTransactions());
+
+        SplitTenderJournal.recordStarted(request("journal-declined"), 1000);
+        SplitTenderJournal.recordFailure("journal-declined", new IllegalStateException("declined"));
+        assertEquals(Collections.singleton("journal-unresolved"), journal.getIncompleteTransactions());
+
+        SplitTenderJournal.recordCompleted("journal-unresolved"); //e.g. a queued capture succeeding after a retry
+        assertEquals(Collections.emptySet(), journal.getIncompleteTransactions());
+    }
+
+    @Test
+    public void tornWriteIsIgnoredTest() throws IOException {
+        SplitTenderJournal.recordStarted(request("journal-before-tear"), 1000);
+        journal.close();
+
+        ByteBuffer torn = ByteBuffer.allocate(12);
+        torn.putInt(100); //announces more than was written
+        torn.putInt(0);
+        torn.putInt(42);
+        Files.write(directory.resolve("split-tender-0000000000000099.journal"), torn.array());
+
+        journal = new SplitTenderJournal(directory, 4096);
+        assertEquals(Collections.singleton("journal-before-tear"), journal.getIncompleteTransactions());
+    }
+
+    @Test
+    public void finishedSegmentsAreDeletedTest() throws IOException {
+        for (int i = 0; i < 200; i++) {
+            SplitTenderJournal.recordStarted(request("journal-segment-" + i), 1000);
+            SplitTenderJournal.recordStripeRequested("journal-segment-" + i, stripeParams());
+            SplitTenderJournal.recordCompleted("journal-segment-" + i);
+        }
+        assertTrue(countSegments() <= 2);
+    }
+
+    @Test
+    public void stripeSourceIsNotJournaledTest() throws IOException {
+        SplitTenderJournal.recordStarted(request("journal-source"), 1000);
+        SplitTenderJournal.recordStripeRequested("journal-source", stripeParams());
+        journal.close();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String contents = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+                assertTrue(contents.contains("journal-source"));
+                assertFalse(contents.contains("tok_journal"));
+            }
+        }
+        journal = new SplitTenderJournal(directory, 4096);
+        assertEquals(Collections.singleton("journal-source"), journal.getIncompleteTransactions());
+    }
+}
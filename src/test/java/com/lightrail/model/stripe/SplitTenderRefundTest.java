@@ -0,0 +1,139 @@
+package com.lightrail.model.stripe;
+
+import com.lightrail.emulator.LightrailStripeEmulator;
+import com.lightrail.emulator.SplitTenderFixture;
+import com.lightrail.exceptions.BadParameterException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SplitTenderRefundTest {
+    private SplitTenderFixture fixture;
+    private LightrailStripeEmulator emulator;
+
+    @Before
+    public void setUp() {
+        fixture = SplitTenderFixture.install();
+        emulator = fixture.getEmulator();
+    }
+
+    @After
+    public void tearDown() {
+        fixture.uninstall();
+    }
+
+    private StripeLightrailSplitTenderCharge createSplitCharge(String code) throws Exception {
+        return fixture.createSplitCharge(code, "refund-" + code);
+    }
+
+    @Test
+    public void proportionalAllocationTest() {
+        assertEquals(600, SplitTenderRefund.allocateToLightrail(900, 1000, 500, SplitTenderRefund.Allocation.PROPORTIONAL));
+        assertEquals(1000, SplitTenderRefund.allocateToLightrail(1500, 1000, 500, SplitTenderRefund.Allocation.PROPORTIONAL));
+        assertEquals(0, SplitTenderRefund.allocateToLightrail(1, 1, 2, SplitTenderRefund.Allocation.PROPORTIONAL)); //1 * 2/3 rounds to 1 on Stripe
+        assertEquals(0, SplitTenderRefund.allocateToLightrail(300, 0, 500, SplitTenderRefund.Allocation.PROPORTIONAL));
+        assertEquals(300, SplitTenderRefund.allocateToLightrail(300, 500, 0, SplitTenderRefund.Allocation.PROPORTIONAL));
+    }
+
+    @Test
+    public void stripeFirstAllocationTest() {
+        assertEquals(0, SplitTenderRefund.allocateToLightrail(400, 1000, 500, SplitTenderRefund.Allocation.STRIPE_FIRST));
+        assertEquals(300, SplitTenderRefund.allocateToLightrail(800, 1000, 500, SplitTenderRefund.Allocation.STRIPE_FIRST));
+        assertEquals(1000, SplitTenderRefund.allocateToLightrail(1500, 1000, 500, SplitTenderRefund.Allocation.STRIPE_FIRST));
+    }
+
+    @Test
+    public void fullRefundReturnsEachLegTest() throws Exception {
+        StripeLightrailSplitTenderCharge charge = createSplitCharge("REFUND-FULL");
+        String cardId = charge.getLightrailCharge().getTransactionObject().getCardId();
+
+        SplitTenderRefund refund = charge.refund("refund-full-1");
+
+        assertTrue(refund.getSummary(), refund.isSuccessful());
+        assertEquals(1000, refund.getLightrailAmount());
+        assertEquals(500, refund.getStripeAmount());
+        assertEquals(1000, emulator.getCardValue(cardId));
+        assertEquals(0, emulator.getStripeCapturedTotal());
+    }
+
+    @Test
+    public void partialRefundIsAllocatedTest() throws Exception {
+        StripeLightrailSplitTenderCharge charge = createSplitCharge("REFUND-PARTIAL");
+        String cardId = charge.getLightrailCharge().getTransactionObject().getCardId();
+
+        SplitTenderRefund proportional = charge.refund(300, SplitTenderRefund.Allocation.PROPORTIONAL, "refund-partial-1");
+        SplitTenderRefund stripeFirst = charge.refund(600, SplitTenderRefund.Allocation.STRIPE_FIRST, "refund-partial-2");
+
+        assertTrue(proportional.isSuccessful());
+        assertTrue(stripeFirst.isSuccessful());
+        assertEquals(200, proportional.getLightrailAmount());
+        assertEquals(100, proportional.getStripeAmount());
+        assertEquals(200, stripeFirst.getLightrailAmount()); //only 400 was left on Stripe
+        assertEquals(400, stripeFirst.getStripeAmount());
+        assertEquals(400, emulator.getCardValue(cardId));
+        assertEquals(0, emulator.getStripeCapturedTotal());
+    }
+
+    @Test
+    public void laterRefundIsAllocatedAgainstWhatIsLeftTest() throws Exception {
+        StripeLightrailSplitTenderCharge charge = createSplitCharge("REFUND-LEFT");
+        String cardId = charge.getLightrailCharge().getTransactionObject().getCardId();
+
+        SplitTenderRefund first = charge.refund(900, SplitTenderRefund.Allocation.PROPORTIONAL, "refund-left-1");
+        SplitTenderRefund second = charge.refund(600, SplitTenderRefund.Allocation.PROPORTIONAL, "refund-left-2");
+
+        assertTrue(first.getSummary(), first.isSuccessful());
+        assertTrue(second.getSummary(), second.isSuccessful());
+        assertEquals(300, first.getStripeAmount());
+        assertEquals(400, second.getLightrailAmount());
+        assertEquals(200, second.getStripeAmount());
+        assertEquals(1000, emulator.getCardValue(cardId));
+        assertEquals(0, emulator.getStripeCapturedTotal());
+    }
+
+    @Test(expected = BadParameterException.class)
+    public void refundOfMoreThanIsLeftIsRejectedTest() throws Exception {
+        StripeLightrailSplitTenderCharge charge = createSplitCharge("REFUND-NOTHING-LEFT");
+        charge.refund("refund-nothing-left-1");
+        charge.refund(1, SplitTenderRefund.Allocation.PROPORTIONAL, "refund-nothing-left-2");
+    }
+
+    @Test
+    public void retriedRefundDoesNotRefundTwiceTest() throws Exception {
+        StripeLightrailSplitTenderCharge charge = createSplitCharge("REFUND-RETRIED");
+        String cardId = charge.getLightrailCharge().getTransactionObject().getCardId();
+
+        emulator.failNextRequests(LightrailStripeEmulator.Service.LIGHTRAIL, 1, 500);
+        SplitTenderRefund failed = charge.refund(300, SplitTenderRefund.Allocation.PROPORTIONAL, "refund-retried-1");
+        assertFalse(failed.isSuccessful());
+        assertNotNull(failed.getLightrailFailure());
+        assertNull(failed.getStripeFailure());
+
+        SplitTenderRefund retried = charge.refund(300, SplitTenderRefund.Allocation.PROPORTIONAL, "refund-retried-1");
+        assertTrue(retried.isSuccessful());
+        assertEquals(failed.getStripeRefund().getId(), retried.getStripeRefund().getId());
+        assertEquals(200, emulator.getCardValue(cardId));
+        assertEquals(400, emulator.getStripeCapturedTotal());
+    }
+
+    @Test
+    public void refundAfterRetrieveRefundsTheCaptureTest() throws Exception {
+        StripeLightrailSplitTenderCharge charge = createSplitCharge("REFUND-RETRIEVED");
+        String cardId = charge.getLightrailCharge().getTransactionObject().getCardId();
+
+        StripeLightrailSplitTenderCharge retrieved = StripeLightrailSplitTenderCharge.retrieve(SplitTenderFixture.retrieveParams("REFUND-RETRIEVED", "refund-REFUND-RETRIEVED", 1500));
+        SplitTenderRefund refund = retrieved.refund("refund-retrieved-1");
+
+        assertTrue(refund.getSummary(), refund.isSuccessful());
+        assertEquals(1000, refund.getLightrailAmount());
+        assertEquals(1000, emulator.getCardValue(cardId));
+        assertEquals(0, emulator.getStripeCapturedTotal());
+    }
+
+    @Test(expected = BadParameterException.class)
+    public void refundOfMoreThanChargedIsRejectedTest() throws Exception {
+        createSplitCharge("REFUND-TOO-MUCH").refund(1501, SplitTenderRefund.Allocation.PROPORTIONAL, "refund-too-much");
+    }
+}
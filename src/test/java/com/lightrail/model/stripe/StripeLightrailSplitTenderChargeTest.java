@@ -15,6 +15,9 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static com.lightrail.helpers.TestParams.getGiftCodeValue;
 import static org.junit.Assert.assertEquals;
@@ -57,6 +60,65 @@ public class StripeLightrailSplitTenderChargeTest {
         returnFundsToCode(giftCodeShare);
     }
 
+    @Test
+    public void hybridChargeAsyncHappyPathTest() throws IOException, AuthorizationException, CouldNotFindObjectException, InterruptedException, ExecutionException {
+        Properties properties = TestParams.getProperties();
+
+        Lightrail.apiKey = properties.getProperty("lightrail.testApiKey");
+        Stripe.apiKey = properties.getProperty("stripe.testApiKey");
+
+        int transactionAmount = 400;
+
+        Map<String, Object> hybridChargeParams = TestParams.readCodeParamsFromProperties();
+        hybridChargeParams.put(StripeConstants.Parameters.AMOUNT, transactionAmount);
+        hybridChargeParams.put(StripeConstants.Parameters.TOKEN, properties.getProperty("stripe.demoToken"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            SimulatedStripeLightrailSplitTenderCharge simulatedTx = StripeLightrailSplitTenderCharge.simulateAsync(hybridChargeParams, executor).get();
+            int giftCodeShare = simulatedTx.getLightrailShare();
+
+            StripeLightrailSplitTenderCharge stripeLightrailSplitTenderCharge = simulatedTx.commitAsync(executor).get();
+            assertEquals(giftCodeShare, stripeLightrailSplitTenderCharge.getLightrailShare());
+            assertEquals(transactionAmount, giftCodeShare + stripeLightrailSplitTenderCharge.getStripeShare());
+
+            returnFundsToCode(giftCodeShare);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void hybridChargePipelinedHappyPathTest() throws IOException, AuthorizationException, CurrencyMismatchException, InsufficientValueException, CouldNotFindObjectException, ThirdPartyException {
+        Properties properties = TestParams.getProperties();
+
+        Lightrail.apiKey = properties.getProperty("lightrail.testApiKey");
+        Stripe.apiKey = properties.getProperty("stripe.testApiKey");
+
+        int transactionAmount = 400;
+
+        Map<String, Object> hybridChargeParams = TestParams.readCodeParamsFromProperties();
+        hybridChargeParams.put(StripeConstants.Parameters.AMOUNT, transactionAmount);
+        hybridChargeParams.put(StripeConstants.Parameters.TOKEN, properties.getProperty("stripe.demoToken"));
+
+        SimulatedStripeLightrailSplitTenderCharge simulatedTx = StripeLightrailSplitTenderCharge.simulate(hybridChargeParams);
+        int giftCodeShare = simulatedTx.getLightrailShare();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            StripeLightrailSplitTenderCharge stripeLightrailSplitTenderCharge = StripeLightrailSplitTenderCharge.createPipelined(
+                    hybridChargeParams, transactionAmount - giftCodeShare, giftCodeShare, executor);
+            assertEquals(giftCodeShare, stripeLightrailSplitTenderCharge.getLightrailShare());
+            assertEquals(transactionAmount, giftCodeShare + stripeLightrailSplitTenderCharge.getStripeShare());
+            assertEquals(stripeLightrailSplitTenderCharge.getStripeTransactionId(),
+                    stripeLightrailSplitTenderCharge.getLightrailCharge().getMetadata().get(LightrailEcommerceConstants.HybridTransactionMetadata.SPLIT_TENDER_PARTNER_TRANSACTION_ID));
+
+            returnFundsToCode(giftCodeShare);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void hybridChargeHappyPathWithCustomerIdTest() throws IOException, AuthorizationException, CurrencyMismatchException, InsufficientValueException, CouldNotFindObjectException, ThirdPartyException {
         Properties properties = TestParams.getProperties();